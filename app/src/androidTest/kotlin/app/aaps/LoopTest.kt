@@ -115,7 +115,7 @@ class LoopTest @Inject constructor() {
         objectivesPlugin.objectives[0].startedOn = 1
 
         // Now there should be missing profile
-        (profileFunction as ProfileFunctionImpl).cache.clear()
+        (profileFunction as ProfileFunctionImpl).clearCache()
         loop.invoke("test2", allowNotification = false)
         loopStatusEvent = rxHelper.waitFor(EventLoopSetLastRunGui::class.java, comment = "step2")
         assertThat(loopStatusEvent.first).isTrue()
@@ -778,8 +778,8 @@ class ReplayApsResultsTest @Inject constructor() {
         assertThat(resultKt.variable_sens ?: Double.NaN).isEqualTo(result.json()?.optDouble("variable_sens"))
     }
 
-    enum class TestSource { ASSET, FILE }
-    data class TestFile(val source: TestSource, val path: String, val name: String)
+    enum class TestSource { ASSET, FILE, ROLLING_FILE }
+    data class TestFile(val source: TestSource, val path: String, val name: String, val line: Int = 0)
 
     private fun readResultFiles(): MutableList<TestFile> {
         val apsResults = mutableListOf<TestFile>()
@@ -792,6 +792,12 @@ class ReplayApsResultsTest @Inject constructor() {
                 // apsResults.add(JSONObject(contents).apply { put("filename", it.name) })
                 apsResults.add(TestFile(TestSource.FILE, it.path, it.name))
             }
+        // and in rolling files, one result per line
+        fileListProvider.resultPath.walk().maxDepth(1)
+            .filter { it.isFile && it.name.endsWith(".jsonl") }
+            .forEach { file ->
+                file.useLines { lines -> lines.forEachIndexed { index, _ -> apsResults.add(TestFile(TestSource.ROLLING_FILE, file.path, "${file.name}:${index + 1}", index)) } }
+            }
 
         // look for results in assets
         val assets = InstrumentationRegistry.getInstrumentation().context.assets
@@ -809,8 +815,9 @@ class ReplayApsResultsTest @Inject constructor() {
     private fun TestFile.readContent(): JSONObject {
         val assets = InstrumentationRegistry.getInstrumentation().context.assets
         return when (source) {
-            TestSource.ASSET -> JSONObject(assets.open("results/$name").readBytes().toString(StandardCharsets.UTF_8)).apply { put("filename", name) }
-            TestSource.FILE  -> JSONObject(storage.getFileContents(File(path))).apply { put("filename", name) }
+            TestSource.ASSET        -> JSONObject(assets.open("results/$name").readBytes().toString(StandardCharsets.UTF_8)).apply { put("filename", name) }
+            TestSource.FILE         -> JSONObject(storage.getFileContents(File(path))).apply { put("filename", name) }
+            TestSource.ROLLING_FILE -> JSONObject(File(path).useLines { it.elementAt(line) }).apply { put("filename", name) }
         }
     }
 }
@@ -143,7 +143,7 @@ class KeepAliveWorker(
     private fun databaseCleanup() {
         val lastRun = preferences.get(LongNonKey.LastCleanupRun)
         if (lastRun < dateUtil.now() - T.days(1).msecs()) {
-            val result = persistenceLayer.cleanupDatabase(6 * 31, deleteTrackedChanges = false)
+            val result = persistenceLayer.cleanupDatabase(6 * 31, deleteTrackedChanges = false) { aapsLogger.debug(LTag.CORE, "Cleanup progress: $it") }
             aapsLogger.debug(LTag.CORE, "Cleanup result: $result")
             preferences.put(LongNonKey.LastCleanupRun, dateUtil.now())
         }
@@ -0,0 +1,31 @@
+package app.aaps.core.data.model
+
+/**
+ * Rollup of valid glucose values of one local day
+ *
+ * Counts of readings per band, bands are defined by the code calculating the rollup.
+ * Mean and standard deviation of a period are derived from [count], [sum] and [sumOfSquares].
+ */
+data class GDS(
+    var id: Long = 0,
+    /** Local midnight starting the day */
+    var timestamp: Long,
+    /** Offset valid at [timestamp] when calculated */
+    var utcOffset: Long,
+    /** Length of the day, differs from 24h on DST change */
+    var duration: Long,
+    var veryLow: Int = 0,
+    var low: Int = 0,
+    var target: Int = 0,
+    var aboveTarget: Int = 0,
+    var aboveNightHigh: Int = 0,
+    /** Part of [aboveNightHigh] measured during night hours */
+    var aboveNightHighAtNight: Int = 0,
+    var high: Int = 0,
+    var veryHigh: Int = 0,
+    var count: Int = 0,
+    var sum: Double = 0.0,
+    var sumOfSquares: Double = 0.0,
+    var min: Double = 0.0,
+    var max: Double = 0.0
+)
@@ -13,6 +13,11 @@ interface AutosensDataStore {
     var bgReadings: List<GV>
     var autosensDataTable: LongSparseArray<AutosensData>
     var bucketedData: MutableList<InMemoryGlucoseValue>?
+
+    /**
+     * Incremented on every assignment of [bucketedData]. 0 if bucketed data was never created
+     */
+    val bucketedDataVersion: Long
     var lastUsed5minCalculation: Boolean?
 
     /**
@@ -7,6 +7,7 @@ import app.aaps.core.data.model.DS
 import app.aaps.core.data.model.EB
 import app.aaps.core.data.model.EPS
 import app.aaps.core.data.model.FD
+import app.aaps.core.data.model.GDS
 import app.aaps.core.data.model.GV
 import app.aaps.core.data.model.GlucoseUnit
 import app.aaps.core.data.model.HR
@@ -42,10 +43,14 @@ interface PersistenceLayer {
 
     /**
      * Perform database maintenance
+     * Records are removed in small batches not to block other database access. Blocking, run on background thread.
      * @param keepDays remove all records older than
      * @param deleteTrackedChanges delete tracked changes from all tables
+     * @param compact return free space to the file system. First run rebuilds the whole database, use only when user is waiting
+     * @param onProgress called with "Name count" after every cleaned table
+     * @return html formatted list of removed records
      */
-    fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean): String
+    fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean, compact: Boolean = false, onProgress: (String) -> Unit = {}): String
 
     // BS
     /**
@@ -118,6 +123,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementBolus(id: Long): Maybe<Pair<BS, BS>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsBolus(id: Long, limit: Int): SyncPage<BS>
+
     /**
      * Insert or update if exists record
      *
@@ -263,6 +278,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementCarbs(id: Long): Maybe<Pair<CA, CA>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsCarbs(id: Long, limit: Int): SyncPage<CA>
+
     /**
      * Insert or update if exists record
      *
@@ -411,10 +436,40 @@ interface PersistenceLayer {
      * @return database record
      */
     fun getNextSyncElementGlucoseValue(id: Long): Maybe<Pair<GV, GV>>
+
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): SyncPage<GV>
     fun getBgReadingsDataFromTimeToTime(start: Long, end: Long, ascending: Boolean): List<GV>
     fun getBgReadingsDataFromTime(timestamp: Long, ascending: Boolean): Single<List<GV>>
     fun getBgReadingByNSId(nsId: String): GV?
 
+    /**
+     * Get stored daily glucose rollups
+     *
+     * @param from start of first day
+     * @param to end of period (exclusive)
+     * @return rollups sorted by day, days never calculated or changed since are missing
+     */
+    fun getGlucoseDailyStats(from: Long, to: Long): List<GDS>
+
+    /**
+     * Calculate daily glucose rollup from valid glucose values of the day and store it.
+     * Reading and storing runs in one transaction
+     *
+     * @param from start of day
+     * @param to end of day (exclusive)
+     * @param calculate rollup of glucose values sorted by timestamp
+     * @return stored rollup
+     */
+    fun calculateGlucoseDailyStats(from: Long, to: Long, calculate: (List<GV>) -> GDS): GDS
+
     /**
      * Invalidate record with id
      *
@@ -592,6 +647,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementProfileSwitch(id: Long): Maybe<Pair<PS, PS>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): SyncPage<PS>
+
     /**
      * Get record with highest id
      *
@@ -948,6 +1013,15 @@ interface PersistenceLayer {
      */
     fun getExtendedBolusByNSId(nsId: String): EB?
 
+    /**
+     * Get extended boluses running in time interval
+     *
+     * @param startTime from
+     * @param endTime to
+     * @return List of extended boluses, newest first
+     */
+    fun getExtendedBolusesActiveBetweenTimeAndTime(startTime: Long, endTime: Long): List<EB>
+
     /**
      * Get running extended bolus starting in time interval
      *
@@ -984,6 +1058,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementExtendedBolus(id: Long): Maybe<Pair<EB, EB>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): SyncPage<EB>
+
     /**
      * Invalidate record with id
      *
@@ -1064,6 +1148,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementTemporaryTarget(id: Long): Maybe<Pair<TT, TT>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): SyncPage<TT>
+
     /**
      * Invalidate record with id
      *
@@ -1122,6 +1216,16 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementTherapyEvent(id: Long): Maybe<Pair<TE, TE>>
 
+    /**
+     * Get page of changed records after id
+     *
+     * @param id record id
+     * @param limit max records
+     * @return pairs of current record and changed record sorted by id of changed record
+     *   with id and count of loaded records needed to continue
+     */
+    fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): SyncPage<TE>
+
     /**
      * Insert record if not exists
      *
@@ -1286,6 +1390,18 @@ interface PersistenceLayer {
     fun getUserEntryDataFromTime(timestamp: Long): Single<List<UE>>
     fun getUserEntryFilteredDataFromTime(timestamp: Long): Single<List<UE>>
 
+    /**
+     * Page of [getUserEntryFilteredDataFromTime], newest first.
+     * Pass [Long.MAX_VALUE] for the first page, then timestamp and id of the last returned entry.
+     *
+     * @param timestamp from
+     * @param beforeTimestamp return entries older than this (including same timestamp with lower id)
+     * @param beforeId id of last entry of previous page
+     * @param limit max page size
+     * @return List of entries
+     */
+    fun getUserEntryFilteredDataPage(timestamp: Long, beforeTimestamp: Long, beforeId: Long, limit: Int): List<UE>
+
     // TDD
 
     /**
@@ -1408,6 +1524,19 @@ interface PersistenceLayer {
         val glucoseUnit: GlucoseUnit
     )
 
+    /**
+     * Page of changed records for sync
+     *
+     * @param pairs current record - changed record. Changes whose current record is missing are skipped
+     * @param lastId id of the last loaded record including skipped ones, next page starts after it
+     * @param rawCount number of loaded records including skipped ones, less than limit at end of data
+     */
+    data class SyncPage<T>(
+        val pairs: List<Pair<T, T>>,
+        val lastId: Long,
+        val rawCount: Int
+    )
+
     /**
      * Get nearest older APSResult (max age is 5 min)
      *
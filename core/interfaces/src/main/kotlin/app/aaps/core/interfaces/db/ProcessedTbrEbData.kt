@@ -16,12 +16,13 @@ interface ProcessedTbrEbData {
     /**
      * Get running temporary basals for given time range, sliced by calculationStep.
      * For each step between given range it calculates equivalent of getTempBasalIncludingConvertedExtended
+     * Records are loaded once for the whole range and resolved in one sweep over time
      *
      *  @param startTime start of calculated period, timestamp
      *  @param endTime end of calculated period, timestamp
      *  @param calculationStep calculation step, in millisecond
-     *  @return map where for each step, its timestamp is a key and calculated optional temporary basal is a value
+     *  @return temporary basal for every step, steps start at startTime
      */
-    fun getTempBasalIncludingConvertedExtendedForRange(startTime: Long, endTime: Long, calculationStep: Long): Map<Long, TB?>
+    fun getTempBasalIncludingConvertedExtendedForRange(startTime: Long, endTime: Long, calculationStep: Long): TempBasalRange
 
 }
\ No newline at end of file
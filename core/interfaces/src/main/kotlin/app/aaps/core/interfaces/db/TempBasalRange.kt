@@ -0,0 +1,45 @@
+package app.aaps.core.interfaces.db
+
+import app.aaps.core.data.model.TB
+
+/**
+ * Running temporary basals of a time range sliced by [calculationStep]
+ *
+ * Every running basal is stored once in [records]. [index] holds for each step
+ * position in [records] or -1 if no temporary basal is running.
+ *
+ * @see ProcessedTbrEbData.getTempBasalIncludingConvertedExtendedForRange
+ */
+class TempBasalRange(
+    val startTime: Long,
+    val calculationStep: Long,
+    val records: List<TB>,
+    val index: IntArray
+) {
+
+    val size: Int get() = index.size
+
+    /**
+     * @return timestamp of step
+     */
+    fun timeAt(step: Int): Long = startTime + step * calculationStep
+
+    /**
+     * @return temporary basal running at step or null
+     */
+    operator fun get(step: Int): TB? = index[step].let { if (it < 0) null else records[it] }
+
+    /**
+     * @return temporary basal running at step containing [time] or null if [time] is out of range
+     */
+    fun at(time: Long): TB? {
+        if (time < startTime) return null
+        val step = (time - startTime) / calculationStep
+        return if (step < size) get(step.toInt()) else null
+    }
+
+    /**
+     * @return map where for each step its timestamp is a key and temporary basal is a value
+     */
+    fun toMap(): Map<Long, TB?> = HashMap<Long, TB?>(size * 2).also { map -> for (step in 0 until size) map[timeAt(step)] = get(step) }
+}
@@ -17,7 +17,10 @@ interface FileListProvider {
     fun newCwfFile(filename: String, withDate: Boolean = true): DocumentFile?
 
     fun ensureResultDirExists(): File
-    fun newResultFile(): File
+    /**
+     * File of current day APS results are appended to, one JSON object per line
+     */
+    fun rollingResultFile(): File
     fun listPreferenceFiles(): MutableList<PrefsFile>
     fun listCustomWatchfaceFiles(): MutableList<CwfFile>
     fun checkMetadata(metadata: Map<PrefsMetadataKey, PrefMetadata>): Map<PrefsMetadataKey, PrefMetadata>
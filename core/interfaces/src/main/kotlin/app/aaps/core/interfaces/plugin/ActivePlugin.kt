@@ -108,6 +108,12 @@ interface ActivePlugin {
      */
     fun getSpecificPluginsListByInterface(interfaceClass: Class<*>): ArrayList<PluginBase>
 
+    /**
+     *  List of all plugins implementing interface
+     *  Shared list built once for plugin set, don't modify
+     */
+    fun getPluginsByInterface(interfaceClass: Class<*>): List<PluginBase>
+
     /**
      *  Pre-process all plugin types and validate active plugins (ie. only only one plugin for type is selected)
      */
@@ -3,6 +3,7 @@ package app.aaps.core.interfaces.storage
 import android.content.ContentResolver
 import androidx.documentfile.provider.DocumentFile
 import java.io.File
+import java.io.Writer
 
 // This may seems unnecessary abstraction - but it will simplify testing
 interface Storage {
@@ -10,6 +11,12 @@ interface Storage {
     fun putFileContents(file: File, contents: String)
     @Throws(SecurityException::class)
     fun putFileContents(contentResolver: ContentResolver, file: DocumentFile, contents: String)
+    /**
+     * Stream contents to [file] through [write] instead of building them in memory first
+     */
+    @Throws(SecurityException::class)
+    fun putFileContents(contentResolver: ContentResolver, file: DocumentFile, write: (Writer) -> Unit)
+    fun appendFileContents(file: File, contents: String)
     fun getFileContents(file: File): String
     @Throws(SecurityException::class)
     fun getFileContents(contentResolver: ContentResolver, file: DocumentFile): String
@@ -15,4 +15,8 @@ interface UserEntryPresentationHelper {
     fun actionToColoredString(action: Action): Spanned
     fun listToPresentationString(list: List<ValueWithUnit>): String
     fun userEntriesToCsv(userEntries: List<UE>): String
+    /**
+     * Write the same CSV as [userEntriesToCsv] row by row, so [userEntries] can be read lazily
+     */
+    fun userEntriesToCsv(userEntries: Sequence<UE>, out: Appendable)
 }
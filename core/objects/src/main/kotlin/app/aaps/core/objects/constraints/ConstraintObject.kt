@@ -6,9 +6,17 @@ import app.aaps.core.interfaces.logging.LTag
 
 class ConstraintObject<T : Comparable<T>>(private var value: T, private val aapsLogger: AAPSLogger) : Constraint<T> {
 
+    /**
+     * Reason formatted only when read, most of constraint checks never display them
+     */
+    private class Reason(private val reason: String, private val from: Any?) {
+
+        override fun toString(): String = if (from == null) reason else translateFrom(from) + ": " + reason
+    }
+
     private var originalValue: T
-    private val reasons: MutableList<String> = ArrayList()
-    private val mostLimiting: MutableList<String> = ArrayList()
+    private val reasons: MutableList<Reason> = ArrayList()
+    private val mostLimiting: MutableList<Reason> = ArrayList()
     override fun value(): T {
         return value
     }
@@ -20,12 +28,12 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
     override fun set(value: T): Constraint<T> {
         this.value = value
         originalValue = value
-        aapsLogger.debug(LTag.CONSTRAINTS, "Setting value $value")
+        aapsLogger.debug(LTag.CONSTRAINTS) { "Setting value $value" }
         return this
     }
 
     override fun set(value: T, reason: String, from: Any): Constraint<T> {
-        aapsLogger.debug(LTag.CONSTRAINTS, "Setting value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]")
+        aapsLogger.debug(LTag.CONSTRAINTS) { "Setting value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]" }
         this.value = value
         addReason(reason, from)
         addMostLimingReason(reason, from)
@@ -34,7 +42,7 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
 
     override fun setIfDifferent(value: T, reason: String, from: Any): Constraint<T> {
         if (this.value != value) {
-            aapsLogger.debug(LTag.CONSTRAINTS, "Setting because of different value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]")
+            aapsLogger.debug(LTag.CONSTRAINTS) { "Setting because of different value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]" }
             this.value = value
             addReason(reason, from)
             addMostLimingReason(reason, from)
@@ -44,7 +52,7 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
 
     override fun setIfSmaller(value: T, reason: String, from: Any): Constraint<T> {
         if (value < this.value) {
-            aapsLogger.debug(LTag.CONSTRAINTS, "Setting because of smaller value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]")
+            aapsLogger.debug(LTag.CONSTRAINTS) { "Setting because of smaller value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]" }
             this.value = value
             mostLimiting.clear()
             addMostLimingReason(reason, from)
@@ -57,7 +65,7 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
 
     override fun setIfGreater(value: T, reason: String, from: Any): Constraint<T> {
         if (value > this.value) {
-            aapsLogger.debug(LTag.CONSTRAINTS, "Setting because of greater value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]")
+            aapsLogger.debug(LTag.CONSTRAINTS) { "Setting because of greater value " + this.value + " -> " + value + " (" + reason + ")[" + translateFrom(from) + "]" }
             this.value = value
             mostLimiting.clear()
             addMostLimingReason(reason, from)
@@ -68,16 +76,12 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
         return this
     }
 
-    private fun translateFrom(from: Any): String {
-        return from.javaClass.simpleName.replace("Plugin", "")
-    }
-
     override fun addReason(reason: String, from: Any) {
-        reasons.add(translateFrom(from) + ": " + reason)
+        reasons.add(Reason(reason, from))
     }
 
     private fun addMostLimingReason(reason: String, from: Any) {
-        mostLimiting.add(translateFrom(from) + ": " + reason)
+        mostLimiting.add(Reason(reason, from))
     }
 
     override fun getReasons(): String {
@@ -86,12 +90,12 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
             if (count != 0) sb.append("\n")
             sb.append(r)
         }
-        aapsLogger.debug(LTag.CONSTRAINTS, "Limiting original value: $originalValue to $value. Reason: $sb")
+        aapsLogger.debug(LTag.CONSTRAINTS) { "Limiting original value: $originalValue to $value. Reason: $sb" }
         return sb.toString()
     }
 
     override val reasonList: List<String>
-        get() = reasons
+        get() = reasons.map { it.toString() }
 
     override fun getMostLimitedReasons(): String {
         val sb = StringBuilder()
@@ -99,18 +103,25 @@ class ConstraintObject<T : Comparable<T>>(private var value: T, private val aaps
             if (count != 0) sb.append("\n")
             sb.append(r)
         }
-        aapsLogger.debug(LTag.CONSTRAINTS, "Limiting original value: $originalValue to $value. Reason: $sb")
+        aapsLogger.debug(LTag.CONSTRAINTS) { "Limiting original value: $originalValue to $value. Reason: $sb" }
         return sb.toString()
     }
 
     override val mostLimitedReasonList: List<String>
-        get() = mostLimiting
+        get() = mostLimiting.map { it.toString() }
 
     override fun copyReasons(another: Constraint<*>) {
-        reasons.addAll(another.reasonList)
+        for (r in another.reasonList) reasons.add(Reason(r, null))
     }
 
     init {
         originalValue = value
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private fun translateFrom(from: Any): String {
+            return from.javaClass.simpleName.replace("Plugin", "")
+        }
+    }
+}
@@ -46,4 +46,14 @@ class ConstraintObjectTest : TestBase() {
         assertThat(d.getMostLimitedReasons()).isEqualTo("ConstraintObjectTest: Set 4d\nConstraintObjectTest: Set 7d")
         assertThat(d.originalValue()).isWithin(0.01).of(10.0)
     }
+
+    @Test fun copiedReasonsAreKept() {
+        val d = ConstraintObject(10.0, aapsLogger)
+        d.setIfSmaller(5.0, "Set 5d", this)
+        val c = ConstraintObject(true, aapsLogger)
+        c.set(false, "Set false", this)
+        c.copyReasons(d)
+        assertThat(c.reasonList).containsExactly("ConstraintObjectTest: Set false", "ConstraintObjectTest: Set 5d").inOrder()
+        assertThat(c.mostLimitedReasonList).containsExactly("ConstraintObjectTest: Set false")
+    }
 }
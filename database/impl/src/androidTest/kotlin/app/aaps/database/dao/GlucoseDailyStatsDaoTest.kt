@@ -0,0 +1,120 @@
+package app.aaps.database.dao
+
+import android.content.Context
+import androidx.room.Room
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import app.aaps.database.AppDatabase
+import app.aaps.database.di.DatabaseModule
+import app.aaps.database.entities.GlucoseDailyStats
+import app.aaps.database.entities.TABLE_GLUCOSE_DAILY_STATS
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.TimeUnit
+
+@RunWith(AndroidJUnit4::class)
+class GlucoseDailyStatsDaoTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+    private fun createDatabase() =
+        Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+
+    private fun getDbObjects(supportDb: SupportSQLiteDatabase, type: String): Set<String> {
+        val names = mutableSetOf<String>()
+        supportDb.query("SELECT name FROM sqlite_master WHERE type = '$type'").use { c ->
+            while (c.moveToNext()) names.add(c.getString(0))
+        }
+        return names
+    }
+
+    private fun getTableNames(db: SupportSQLiteDatabase) = getDbObjects(db, "table")
+    private fun getIndexNames(db: SupportSQLiteDatabase) = getDbObjects(db, "index")
+
+    @Test
+    fun migrate30to31_matchesExportedSchema() {
+        val helper = MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(),
+            AppDatabase::class.java
+        )
+        val supportDb = helper.createDatabase(TEST_DB_NAME, 30)
+        Assert.assertFalse(getTableNames(supportDb).contains(TABLE_GLUCOSE_DAILY_STATS))
+        supportDb.close()
+        // validates tables and indices against 31.json written by Room schema export of the build
+        val migratedDb = helper.runMigrationsAndValidate(TEST_DB_NAME, 31, true, DatabaseModule().migration30to31)
+        Assert.assertTrue(getTableNames(migratedDb).contains(TABLE_GLUCOSE_DAILY_STATS))
+        Assert.assertTrue(getIndexNames(migratedDb).contains("index_glucoseDailyStats_timestamp"))
+        migratedDb.close()
+    }
+
+    @Test
+    fun migrate_insertAndFind() {
+        val helper = MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(),
+            AppDatabase::class.java
+        )
+        helper.createDatabase(TEST_DB_NAME, 30).close()
+        Room.databaseBuilder(ApplicationProvider.getApplicationContext(), AppDatabase::class.java, TEST_DB_NAME)
+            .addMigrations(*DatabaseModule().migrations)
+            .build().also { db ->
+                val stats = createStats(DAY_START)
+                db.glucoseDailyStatsDao.insert(stats)
+                Assert.assertEquals(listOf(stats.copy(id = 1)), db.glucoseDailyStatsDao.getFromTimeToTime(DAY_START, DAY_START + DAY))
+                db.close()
+            }
+    }
+
+    @Test
+    fun insertReplacesSameDay() {
+        createDatabase().also { db ->
+            val dao = db.glucoseDailyStatsDao
+            dao.insert(createStats(DAY_START, count = 10))
+            dao.insert(createStats(DAY_START, count = 20))
+            val stored = dao.getFromTimeToTime(DAY_START, DAY_START + DAY)
+            Assert.assertEquals(1, stored.size)
+            Assert.assertEquals(20, stored[0].count)
+            db.close()
+        }
+    }
+
+    @Test
+    fun deleteOverlapping() {
+        createDatabase().also { db ->
+            val dao = db.glucoseDailyStatsDao
+            for (day in 0..3) dao.insert(createStats(DAY_START + day * DAY))
+
+            // single value in the middle of the 2nd day
+            Assert.assertEquals(1, dao.deleteOverlapping(DAY_START + DAY + DAY / 2, DAY_START + DAY + DAY / 2))
+            // everything before 3rd day start, as database cleanup does
+            Assert.assertEquals(1, dao.deleteOverlapping(0, DAY_START + 2 * DAY - 1))
+            Assert.assertEquals(
+                listOf(DAY_START + 2 * DAY, DAY_START + 3 * DAY),
+                dao.getFromTimeToTime(0, Long.MAX_VALUE).map { it.timestamp }
+            )
+            db.close()
+        }
+    }
+
+    companion object {
+
+        private const val TEST_DB_NAME = "testDatabase"
+        private val DAY = TimeUnit.DAYS.toMillis(1)
+        private const val DAY_START = 1_700_000_000_000L
+
+        fun createStats(timestamp: Long, count: Int = 288) =
+            GlucoseDailyStats(
+                timestamp = timestamp,
+                utcOffset = 0,
+                duration = DAY,
+                target = count,
+                count = count,
+                sum = count * 120.0,
+                sumOfSquares = count * 120.0 * 120.0,
+                min = 120.0,
+                max = 120.0
+            )
+    }
+}
@@ -11,6 +11,7 @@ import app.aaps.database.daos.DeviceStatusDao
 import app.aaps.database.daos.EffectiveProfileSwitchDao
 import app.aaps.database.daos.ExtendedBolusDao
 import app.aaps.database.daos.FoodDao
+import app.aaps.database.daos.GlucoseDailyStatsDao
 import app.aaps.database.daos.GlucoseValueDao
 import app.aaps.database.daos.HeartRateDao
 import app.aaps.database.daos.PreferenceChangeDao
@@ -30,6 +31,7 @@ import app.aaps.database.entities.DeviceStatus
 import app.aaps.database.entities.EffectiveProfileSwitch
 import app.aaps.database.entities.ExtendedBolus
 import app.aaps.database.entities.Food
+import app.aaps.database.entities.GlucoseDailyStats
 import app.aaps.database.entities.GlucoseValue
 import app.aaps.database.entities.HeartRate
 import app.aaps.database.entities.PreferenceChange
@@ -43,7 +45,7 @@ import app.aaps.database.entities.TotalDailyDose
 import app.aaps.database.entities.UserEntry
 import app.aaps.database.entities.VersionChange
 
-const val DATABASE_VERSION = 30
+const val DATABASE_VERSION = 31
 
 @Database(
     version = DATABASE_VERSION,
@@ -51,7 +53,8 @@ const val DATABASE_VERSION = 30
         EffectiveProfileSwitch::class, ExtendedBolus::class, GlucoseValue::class, ProfileSwitch::class,
         TemporaryBasal::class, TemporaryTarget::class, TherapyEvent::class, TotalDailyDose::class,
         PreferenceChange::class, VersionChange::class, UserEntry::class,
-        Food::class, DeviceStatus::class, RunningMode::class, HeartRate::class, StepsCount::class],
+        Food::class, DeviceStatus::class, RunningMode::class, HeartRate::class, StepsCount::class,
+        GlucoseDailyStats::class],
     exportSchema = true
 )
 @TypeConverters(Converters::class)
@@ -96,4 +99,6 @@ internal abstract class AppDatabase : RoomDatabase() {
     abstract val heartRateDao: HeartRateDao
 
     abstract val stepsCountDao: StepsCountDao
+
+    abstract val glucoseDailyStatsDao: GlucoseDailyStatsDao
 }
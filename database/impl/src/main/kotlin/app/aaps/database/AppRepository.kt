@@ -8,6 +8,7 @@ import app.aaps.database.entities.DeviceStatus
 import app.aaps.database.entities.EffectiveProfileSwitch
 import app.aaps.database.entities.ExtendedBolus
 import app.aaps.database.entities.Food
+import app.aaps.database.entities.GlucoseDailyStats
 import app.aaps.database.entities.GlucoseValue
 import app.aaps.database.entities.HeartRate
 import app.aaps.database.entities.ProfileSwitch
@@ -21,6 +22,7 @@ import app.aaps.database.entities.UserEntry
 import app.aaps.database.entities.data.NewEntries
 import app.aaps.database.entities.embedments.InterfaceIDs
 import app.aaps.database.entities.interfaces.DBEntry
+import app.aaps.database.entities.interfaces.TraceableDBEntry
 import app.aaps.database.transactions.Transaction
 import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Maybe
@@ -40,9 +42,25 @@ class AppRepository @Inject internal constructor(
 ) {
 
     private val changeSubject = PublishSubject.create<List<DBEntry>>()
+    private val changeCoalescer = ChangeCoalescer(CHANGE_WINDOW_MILLIS, Schedulers.io())
 
+    /**
+     * Changes of every transaction
+     */
     fun changeObservable(): Observable<List<DBEntry>> = changeSubject.subscribeOn(Schedulers.io())
 
+    /**
+     * Changes merged per entity type over [CHANGE_WINDOW_MILLIS].
+     * Use for refreshing data where a burst of transactions needs only one reaction.
+     */
+    fun coalescedChangeObservable(): Observable<ChangeSummary> = changeCoalescer.observable().subscribeOn(Schedulers.io())
+
+    private fun notifyChanges(changes: List<DBEntry>) {
+        invalidateGlucoseDailyStats(changes)
+        changeSubject.onNext(changes)
+        changeCoalescer.add(changes)
+    }
+
     /**
      * Executes a transaction ignoring its result
      * Runs on IO scheduler
@@ -55,7 +73,7 @@ class AppRepository @Inject internal constructor(
                 transaction.run()
             }
         }.subscribeOn(Schedulers.io()).doOnComplete {
-            changeSubject.onNext(changes)
+            notifyChanges(changes)
         }
     }
 
@@ -71,7 +89,7 @@ class AppRepository @Inject internal constructor(
                 transaction.run()
             })
         }.subscribeOn(Schedulers.io()).doOnSuccess {
-            changeSubject.onNext(changes)
+            notifyChanges(changes)
         }
     }
 
@@ -79,58 +97,16 @@ class AppRepository @Inject internal constructor(
 
     fun clearApsResults() = database.apsResultDao.deleteAllEntries()
 
-    fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean): String {
-        val than = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays)
-        val removed = mutableListOf<Pair<String, Int>>()
-        removed.add(Pair("APSResult", database.apsResultDao.deleteOlderThan(than)))
-        removed.add(Pair("GlucoseValue", database.glucoseValueDao.deleteOlderThan(than)))
-        removed.add(Pair("TherapyEvent", database.therapyEventDao.deleteOlderThan(than)))
-        removed.add(Pair("TemporaryBasal", database.temporaryBasalDao.deleteOlderThan(than)))
-        removed.add(Pair("ExtendedBolus", database.extendedBolusDao.deleteOlderThan(than)))
-        removed.add(Pair("Bolus", database.bolusDao.deleteOlderThan(than)))
-        removed.add(Pair("TotalDailyDose", database.totalDailyDoseDao.deleteOlderThan(than)))
-        removed.add(Pair("Carbs", database.carbsDao.deleteOlderThan(than)))
-        removed.add(Pair("TemporaryTarget", database.temporaryTargetDao.deleteOlderThan(than)))
-        removed.add(Pair("BolusCalculatorResult", database.bolusCalculatorResultDao.deleteOlderThan(than)))
-        // keep at least one EPS
-        if (database.effectiveProfileSwitchDao.getEffectiveProfileSwitchDataFromTime(than + 1).blockingGet().isNotEmpty())
-            removed.add(Pair("EffectiveProfileSwitch", database.effectiveProfileSwitchDao.deleteOlderThan(than)))
-        removed.add(Pair("ProfileSwitch", database.profileSwitchDao.deleteOlderThan(than)))
-        removed.add(Pair("ApsResult", database.apsResultDao.deleteOlderThan(than)))
-        // keep version history database.versionChangeDao.deleteOlderThan(than)
-        removed.add(Pair("UserEntry", database.userEntryDao.deleteOlderThan(than)))
-        removed.add(Pair("PreferenceChange", database.preferenceChangeDao.deleteOlderThan(than)))
-        // keep foods database.foodDao.deleteOlderThan(than)
-        removed.add(Pair("DeviceStatus", database.deviceStatusDao.deleteOlderThan(than)))
-        removed.add(Pair("RunningMode", database.runningModeDao.deleteOlderThan(than)))
-        removed.add(Pair("HeartRate", database.heartRateDao.deleteOlderThan(than)))
-        removed.add(Pair("StepsCount", database.stepsCountDao.deleteOlderThan(than)))
-
-        if (deleteTrackedChanges) {
-            removed.add(Pair("CHANGES APSResult", database.apsResultDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES GlucoseValue", database.glucoseValueDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES TherapyEvent", database.therapyEventDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES TemporaryBasal", database.temporaryBasalDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES Bolus", database.bolusDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES ExtendedBolus", database.extendedBolusDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES TotalDailyDose", database.totalDailyDoseDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES Carbs", database.carbsDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES TemporaryTarget", database.temporaryTargetDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES BolusCalculatorResult", database.bolusCalculatorResultDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES EffectiveProfileSwitch", database.effectiveProfileSwitchDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES ProfileSwitch", database.profileSwitchDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES ApsResult", database.apsResultDao.deleteTrackedChanges()))
-            // keep food database.foodDao.deleteHistory()
-            removed.add(Pair("CHANGES RunningMode", database.runningModeDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES HeartRate", database.heartRateDao.deleteTrackedChanges()))
-            removed.add(Pair("CHANGES StepsCount", database.stepsCountDao.deleteTrackedChanges()))
+    private val cleanup = DatabaseCleanup(database)
+
+    /**
+     * Remove old records in small batches
+     * Blocking, run on background thread
+     */
+    fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean, compact: Boolean = false, onProgress: (String) -> Unit = {}): String =
+        synchronized(cleanup) {
+            cleanup.run(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(keepDays), deleteTrackedChanges, compact, onProgress)
         }
-        val ret = StringBuilder()
-        removed
-            .filter { it.second > 0 }
-            .map { ret.append(it.first + " " + it.second + "<br>") }
-        return ret.toString()
-    }
 
     fun clearCachedTddData(from: Long) {
         database.totalDailyDoseDao.deleteNewerThan(from, InterfaceIDs.PumpType.CACHE)
@@ -178,6 +154,49 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementGlucoseValue.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): SyncPage<GlucoseValue> =
+        pairWithCurrent(database.glucoseValueDao.getModifiedOrNewAfter(id, limit)) { database.glucoseValueDao.findByIds(it) }
+
+    private fun <T : TraceableDBEntry> pairWithCurrent(changed: List<T>, findByIds: (List<Long>) -> List<T>): SyncPage<T> {
+        val referenceIds = changed.mapNotNull { it.referenceId }.distinct()
+        val current = if (referenceIds.isEmpty()) emptyMap() else findByIds(referenceIds).associateBy { it.id }
+        val pairs = changed.mapNotNull { record ->
+            val referenceId = record.referenceId
+            if (referenceId == null) record to record
+            else current[referenceId]?.let { it to record }
+        }
+        return SyncPage(pairs, changed.lastOrNull()?.id ?: 0L, changed.size)
+    }
+
+    // GLUCOSE DAILY STATS
+    fun getGlucoseDailyStats(from: Long, to: Long): List<GlucoseDailyStats> =
+        database.glucoseDailyStatsDao.getFromTimeToTime(from, to)
+
+    /**
+     * Calculate and store rollup of day [from]..[to] in one transaction,
+     * so a concurrent change of glucose values cannot leave a stale row behind
+     */
+    fun calculateGlucoseDailyStats(from: Long, to: Long, calculate: (List<GlucoseValue>) -> GlucoseDailyStats): GlucoseDailyStats =
+        database.runInTransaction(Callable {
+            calculate(database.glucoseValueDao.getValidFromTimeToTime(from, to)).also { database.glucoseDailyStatsDao.insert(it) }
+        })
+
+    // before notification, readers triggered by it must not get rollups of changed days
+    private fun invalidateGlucoseDailyStats(changes: List<DBEntry>) {
+        var from = Long.MAX_VALUE
+        var to = Long.MIN_VALUE
+        for (change in changes)
+            if (change is GlucoseValue) {
+                from = minOf(from, change.timestamp)
+                to = maxOf(to, change.timestamp)
+            }
+        if (from <= to) database.glucoseDailyStatsDao.deleteOverlapping(from, to)
+    }
+
     // TEMP TARGETS
     fun findTemporaryTargetByNSId(nsId: String): TemporaryTarget? =
         database.temporaryTargetDao.findByNSId(nsId)
@@ -201,6 +220,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementTemporaryTarget.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): SyncPage<TemporaryTarget> =
+        pairWithCurrent(database.temporaryTargetDao.getModifiedOrNewAfter(id, limit)) { database.temporaryTargetDao.findByIds(it) }
+
     fun getTemporaryTargetDataFromTime(timestamp: Long, ascending: Boolean): Single<List<TemporaryTarget>> =
         database.temporaryTargetDao.getTemporaryTargetDataFromTime(timestamp)
             .map { if (!ascending) it.reversed() else it }
@@ -227,9 +253,12 @@ class AppRepository @Inject internal constructor(
         database.userEntryDao.getUserEntryFilteredDataFromTime(UserEntry.Sources.Loop, timestamp)
             .subscribeOn(Schedulers.io())
 
+    fun getUserEntryFilteredDataPage(timestamp: Long, beforeTimestamp: Long, beforeId: Long, limit: Int): List<UserEntry> =
+        database.userEntryDao.getUserEntryFilteredDataPage(UserEntry.Sources.Loop, timestamp, beforeTimestamp, beforeId, limit)
+
     fun insert(word: UserEntry) {
         database.userEntryDao.insert(word)
-        changeSubject.onNext(mutableListOf(word)) // Not TraceableDao
+        notifyChanges(listOf(word)) // Not TraceableDao
     }
 
     // PROFILE SWITCH
@@ -249,6 +278,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementProfileSwitch.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): SyncPage<ProfileSwitch> =
+        pairWithCurrent(database.profileSwitchDao.getModifiedOrNewAfter(id, limit)) { database.profileSwitchDao.findByIds(it) }
+
     fun getProfileSwitchActiveAt(timestamp: Long): ProfileSwitch? {
         val tps = database.profileSwitchDao.getTemporaryProfileSwitchActiveAt(timestamp)
             .subscribeOn(Schedulers.io())
@@ -411,6 +447,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementTherapyEvent.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): SyncPage<TherapyEvent> =
+        pairWithCurrent(database.therapyEventDao.getModifiedOrNewAfter(id, limit)) { database.therapyEventDao.findByIds(it) }
+
     fun getTherapyEventDataFromTime(timestamp: Long, ascending: Boolean): Single<List<TherapyEvent>> =
         database.therapyEventDao.getTherapyEventDataFromTime(timestamp)
             .map { if (!ascending) it.reversed() else it }
@@ -487,6 +530,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementBolus.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsBolus(id: Long, limit: Int): SyncPage<Bolus> =
+        pairWithCurrent(database.bolusDao.getModifiedOrNewAfterExclude(id, limit, Bolus.Type.PRIMING)) { database.bolusDao.findByIds(it) }
+
     fun getNewestBolus(): Maybe<Bolus> =
         database.bolusDao.getLastBolusRecord()
             .subscribeOn(Schedulers.io())
@@ -559,6 +609,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementCarbs.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsCarbs(id: Long, limit: Int): SyncPage<Carbs> =
+        pairWithCurrent(database.carbsDao.getModifiedOrNewAfter(id, limit)) { database.carbsDao.findByIds(it) }
+
     fun getLastCarbs(): Maybe<Carbs> =
         database.carbsDao.getLastCarbsRecordMaybe()
             .subscribeOn(Schedulers.io())
@@ -639,7 +696,7 @@ class AppRepository @Inject internal constructor(
     // DEVICE STATUS
     fun insert(deviceStatus: DeviceStatus) {
         database.deviceStatusDao.insert(deviceStatus)
-        changeSubject.onNext(mutableListOf(deviceStatus)) // Not TraceableDao
+        notifyChanges(listOf(deviceStatus)) // Not TraceableDao
     }
 
     /*
@@ -735,6 +792,13 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /**
+     * Page of changed records after [id] paired as in getNextSyncElementExtendedBolus.
+     * Records whose current version is missing are skipped, but still count for [SyncPage.lastId] and [SyncPage.rawCount]
+     */
+    fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): SyncPage<ExtendedBolus> =
+        pairWithCurrent(database.extendedBolusDao.getModifiedOrNewAfter(id, limit)) { database.extendedBolusDao.findByIds(it) }
+
     fun getExtendedBolusActiveAt(timestamp: Long): Maybe<ExtendedBolus> =
         database.extendedBolusDao.getExtendedBolusActiveAt(timestamp)
             .subscribeOn(Schedulers.io())
@@ -744,6 +808,10 @@ class AppRepository @Inject internal constructor(
             .map { if (!ascending) it.reversed() else it }
             .subscribeOn(Schedulers.io())
 
+    fun getExtendedBolusesActiveBetweenTimeAndTime(from: Long, to: Long): Single<List<ExtendedBolus>> =
+        database.extendedBolusDao.getExtendedBolusActiveBetweenTimeAndTime(from, to)
+            .subscribeOn(Schedulers.io())
+
     fun getExtendedBolusesStartingFromTimeToTime(start: Long, end: Long, ascending: Boolean): Single<List<ExtendedBolus>> =
         database.extendedBolusDao.getExtendedBolusDataFromTimeToTime(start, end)
             .map { if (!ascending) it.reversed() else it }
@@ -820,6 +888,10 @@ class AppRepository @Inject internal constructor(
         database.apsResultDao.getApsResults(start, end)
             .subscribeOn(Schedulers.io())
 
+    companion object {
+
+        const val CHANGE_WINDOW_MILLIS = 500L
+    }
 }
 
 @Suppress("USELESS_CAST", "unused")
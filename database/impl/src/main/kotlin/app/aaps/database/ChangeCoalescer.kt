@@ -0,0 +1,61 @@
+package app.aaps.database
+
+import app.aaps.database.entities.interfaces.DBEntry
+import io.reactivex.rxjava3.core.Observable
+import io.reactivex.rxjava3.core.Scheduler
+import io.reactivex.rxjava3.subjects.PublishSubject
+import java.util.concurrent.TimeUnit
+
+/**
+ * Merges changes of transactions into [ChangeSummary]
+ *
+ * First change after a quiet period is emitted immediately, so a single new BG is not delayed.
+ * Changes arriving later than that within [windowMillis] are merged and emitted together
+ * at the end of the window. Continuous stream (NS backfill, pump history) produces
+ * one summary per window.
+ */
+internal class ChangeCoalescer(
+    private val windowMillis: Long,
+    private val scheduler: Scheduler
+) {
+
+    private val subject = PublishSubject.create<ChangeSummary>().toSerialized()
+    private var pending: ChangeSummary? = null
+    private var windowEnd = Long.MIN_VALUE
+
+    fun observable(): Observable<ChangeSummary> = subject
+
+    fun add(changes: List<DBEntry>) {
+        if (changes.isEmpty()) return
+        val now = scheduler.now(TimeUnit.MILLISECONDS)
+        val ready = synchronized(this) {
+            val waiting = pending
+            when {
+                waiting != null  -> {
+                    waiting.add(changes)
+                    null
+                }
+
+                now >= windowEnd -> {
+                    windowEnd = now + windowMillis
+                    ChangeSummary().also { it.add(changes) }
+                }
+
+                else             -> {
+                    pending = ChangeSummary().also { it.add(changes) }
+                    scheduler.scheduleDirect(::flush, windowEnd - now, TimeUnit.MILLISECONDS)
+                    null
+                }
+            }
+        }
+        ready?.let { subject.onNext(it) }
+    }
+
+    private fun flush() {
+        val ready = synchronized(this) {
+            windowEnd = scheduler.now(TimeUnit.MILLISECONDS) + windowMillis
+            pending.also { pending = null }
+        }
+        ready?.let { subject.onNext(it) }
+    }
+}
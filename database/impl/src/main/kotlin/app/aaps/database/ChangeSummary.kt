@@ -0,0 +1,61 @@
+package app.aaps.database
+
+import app.aaps.database.entities.interfaces.DBEntry
+import app.aaps.database.entities.interfaces.DBEntryWithTime
+
+/**
+ * Changes of one or more transactions merged per entity type
+ *
+ * @see AppRepository.coalescedChangeObservable
+ */
+class ChangeSummary {
+
+    /**
+     * Changed records of one entity type
+     */
+    class Entity internal constructor() {
+
+        /** number of changed records */
+        var count = 0
+            private set
+
+        /** oldest timestamp of changed records, [Long.MAX_VALUE] if entity has no time */
+        var from = Long.MAX_VALUE
+            private set
+
+        /** newest timestamp of changed records, [Long.MIN_VALUE] if entity has no time */
+        var to = Long.MIN_VALUE
+            private set
+
+        internal fun add(entry: DBEntry) {
+            count++
+            if (entry is DBEntryWithTime) {
+                if (entry.timestamp < from) from = entry.timestamp
+                if (entry.timestamp > to) to = entry.timestamp
+            }
+        }
+
+        override fun toString(): String = "count=$count from=$from to=$to"
+    }
+
+    private val entities = LinkedHashMap<Class<out DBEntry>, Entity>()
+
+    /** number of merged non-empty transactions */
+    var transactions = 0
+        private set
+
+    val isEmpty: Boolean get() = entities.isEmpty()
+
+    internal fun add(changes: List<DBEntry>) {
+        if (changes.isEmpty()) return
+        transactions++
+        for (entry in changes) entities.getOrPut(entry.javaClass) { Entity() }.add(entry)
+    }
+
+    operator fun get(type: Class<out DBEntry>): Entity? = entities[type]
+
+    inline fun <reified T : DBEntry> of(): Entity? = get(T::class.java)
+
+    override fun toString(): String =
+        entities.entries.joinToString(prefix = "ChangeSummary(transactions=$transactions ", postfix = ")") { "${it.key.simpleName}: ${it.value}" }
+}
@@ -0,0 +1,179 @@
+package app.aaps.database
+
+import androidx.annotation.VisibleForTesting
+import androidx.sqlite.db.SupportSQLiteDatabase
+import app.aaps.database.entities.TABLE_APS_RESULTS
+import app.aaps.database.entities.TABLE_BOLUSES
+import app.aaps.database.entities.TABLE_BOLUS_CALCULATOR_RESULTS
+import app.aaps.database.entities.TABLE_CARBS
+import app.aaps.database.entities.TABLE_DEVICE_STATUS
+import app.aaps.database.entities.TABLE_EFFECTIVE_PROFILE_SWITCHES
+import app.aaps.database.entities.TABLE_EXTENDED_BOLUSES
+import app.aaps.database.entities.TABLE_GLUCOSE_VALUES
+import app.aaps.database.entities.TABLE_HEART_RATE
+import app.aaps.database.entities.TABLE_PREFERENCE_CHANGES
+import app.aaps.database.entities.TABLE_PROFILE_SWITCHES
+import app.aaps.database.entities.TABLE_RUNNING_MODE
+import app.aaps.database.entities.TABLE_STEPS_COUNT
+import app.aaps.database.entities.TABLE_TEMPORARY_BASALS
+import app.aaps.database.entities.TABLE_TEMPORARY_TARGETS
+import app.aaps.database.entities.TABLE_THERAPY_EVENTS
+import app.aaps.database.entities.TABLE_TOTAL_DAILY_DOSES
+import app.aaps.database.entities.TABLE_USER_ENTRY
+
+/**
+ * Removes old records and tracked changes in small batches.
+ *
+ * Every batch is a single DELETE statement running in its own implicit transaction,
+ * so the write lock is held only for one batch and pending transactions get their turn
+ * during the pause between batches. Batch size adapts to keep one batch around [TARGET_BATCH_NANOS].
+ * Versions (referenceId IS NOT NULL) are deleted before current records to never leave
+ * history rows pointing to deleted parents between batches.
+ * Daily glucose rollups of days losing glucose values are deleted with them.
+ *
+ * Foods and version changes are kept.
+ */
+internal class DatabaseCleanup(private val database: AppDatabase) {
+
+    private class Table(val name: String, val table: String, val tracksChanges: Boolean = true)
+
+    private val tables = listOf(
+        Table("APSResult", TABLE_APS_RESULTS),
+        Table("GlucoseValue", TABLE_GLUCOSE_VALUES),
+        Table("TherapyEvent", TABLE_THERAPY_EVENTS),
+        Table("TemporaryBasal", TABLE_TEMPORARY_BASALS),
+        Table("ExtendedBolus", TABLE_EXTENDED_BOLUSES),
+        Table("Bolus", TABLE_BOLUSES),
+        Table("TotalDailyDose", TABLE_TOTAL_DAILY_DOSES),
+        Table("Carbs", TABLE_CARBS),
+        Table("TemporaryTarget", TABLE_TEMPORARY_TARGETS),
+        Table("BolusCalculatorResult", TABLE_BOLUS_CALCULATOR_RESULTS),
+        Table("EffectiveProfileSwitch", TABLE_EFFECTIVE_PROFILE_SWITCHES),
+        Table("ProfileSwitch", TABLE_PROFILE_SWITCHES),
+        Table("UserEntry", TABLE_USER_ENTRY, tracksChanges = false),
+        Table("PreferenceChange", TABLE_PREFERENCE_CHANGES, tracksChanges = false),
+        Table("DeviceStatus", TABLE_DEVICE_STATUS, tracksChanges = false),
+        Table("RunningMode", TABLE_RUNNING_MODE),
+        Table("HeartRate", TABLE_HEART_RATE),
+        Table("StepsCount", TABLE_STEPS_COUNT)
+    )
+
+    /**
+     * Batch size controller: halves the batch when the last one took longer than [targetNanos],
+     * grows it by a quarter when it took less than half of it.
+     */
+    @VisibleForTesting
+    internal class BatchSize(
+        private val targetNanos: Long = TARGET_BATCH_NANOS,
+        private val min: Int = MIN_BATCH,
+        private val max: Int = MAX_BATCH,
+        initial: Int = INITIAL_BATCH
+    ) {
+
+        var current = initial
+            private set
+
+        fun update(elapsedNanos: Long) {
+            current = when {
+                elapsedNanos > targetNanos     -> (current / 2).coerceAtLeast(min)
+                elapsedNanos < targetNanos / 2 -> (current + current / 4 + 1).coerceAtMost(max)
+                else                           -> current
+            }
+        }
+    }
+
+    private val db: SupportSQLiteDatabase get() = database.openHelper.writableDatabase
+    private val batchSize = BatchSize()
+
+    /**
+     * @param than remove records with timestamp older than
+     * @param deleteTrackedChanges remove all versions of records too
+     * @param compact reclaim free pages. Database without incremental auto vacuum is converted
+     *                by one full VACUUM, so use it only when user is waiting for result
+     * @param onProgress called after every finished table with "Name count"
+     * @return html formatted list of removed records
+     */
+    fun run(than: Long, deleteTrackedChanges: Boolean, compact: Boolean, onProgress: (String) -> Unit): String {
+        val removed = mutableListOf<Pair<String, Int>>()
+        fun report(name: String, count: Int) {
+            removed.add(Pair(name, count))
+            if (count > 0) onProgress("$name $count")
+        }
+
+        for (table in tables) {
+            // keep at least one EPS
+            if (table.table == TABLE_EFFECTIVE_PROFILE_SWITCHES &&
+                database.effectiveProfileSwitchDao.getEffectiveProfileSwitchDataFromTime(than + 1).blockingGet().isEmpty()
+            ) continue
+            var count = 0
+            if (table.tracksChanges) count += deleteInBatches(table.table, "timestamp < $than AND referenceId IS NOT NULL")
+            count += deleteInBatches(table.table, "timestamp < $than")
+            report(table.name, count)
+        }
+        // removed days and the day cut by [than], calculated again from what is left on next read
+        report("GlucoseDailyStats", database.glucoseDailyStatsDao.deleteOverlapping(0, than - 1))
+        if (deleteTrackedChanges)
+            for (table in tables.filter { it.tracksChanges })
+                report("CHANGES " + table.name, deleteInBatches(table.table, "referenceId IS NOT NULL"))
+        if (compact || isIncrementalVacuum()) report("Freed pages", vacuum())
+
+        val ret = StringBuilder()
+        removed
+            .filter { it.second > 0 }
+            .map { ret.append(it.first + " " + it.second + "<br>") }
+        return ret.toString()
+    }
+
+    private fun deleteInBatches(table: String, where: String): Int {
+        var total = 0
+        while (true) {
+            val start = System.nanoTime()
+            val deleted = db.compileStatement(
+                "DELETE FROM `$table` WHERE id IN (SELECT id FROM `$table` WHERE $where LIMIT ${batchSize.current})"
+            ).use { it.executeUpdateDelete() }
+            val limit = batchSize.current
+            batchSize.update(System.nanoTime() - start)
+            total += deleted
+            if (deleted < limit) return total
+            Thread.sleep(PAUSE_MS)
+        }
+    }
+
+    private fun isIncrementalVacuum(): Boolean = pragma("auto_vacuum") == AUTO_VACUUM_INCREMENTAL
+
+    /**
+     * Return free pages to the file system [VACUUM_PAGES] at a time.
+     * Auto vacuum mode can be changed on existing database only by VACUUM which rebuilds the whole file.
+     */
+    private fun vacuum(): Int {
+        val freePages = pragma("freelist_count")
+        if (!isIncrementalVacuum()) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL")
+            db.execSQL("VACUUM")
+            return freePages
+        }
+        var left = freePages
+        while (left > 0) {
+            // each step of the statement frees one page
+            db.query("PRAGMA incremental_vacuum($VACUUM_PAGES)").use { while (it.moveToNext()) Unit }
+            val now = pragma("freelist_count")
+            if (now >= left) break
+            left = now
+            Thread.sleep(PAUSE_MS)
+        }
+        return freePages - left
+    }
+
+    private fun pragma(name: String): Int = db.query("PRAGMA $name").use { if (it.moveToFirst()) it.getInt(0) else 0 }
+
+    companion object {
+
+        private const val TARGET_BATCH_NANOS = 5_000_000L
+        private const val INITIAL_BATCH = 200
+        private const val MIN_BATCH = 10
+        private const val MAX_BATCH = 5000
+        private const val PAUSE_MS = 20L
+        private const val VACUUM_PAGES = 64
+        private const val AUTO_VACUUM_INCREMENTAL = 2
+    }
+}
@@ -0,0 +1,10 @@
+package app.aaps.database
+
+/**
+ * Page of changed records loaded for sync
+ *
+ * @param pairs current record - changed record, changes whose current record is missing are skipped
+ * @param lastId id of the last loaded record including skipped ones, next page starts after it
+ * @param rawCount number of loaded records including skipped ones
+ */
+data class SyncPage<T>(val pairs: List<Pair<T, T>>, val lastId: Long, val rawCount: Int)
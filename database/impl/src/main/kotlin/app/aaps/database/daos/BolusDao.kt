@@ -63,6 +63,13 @@ internal interface BolusDao : TraceableDao<Bolus> {
     @Query("SELECT * FROM $TABLE_BOLUSES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Bolus>
 
+    // for xDrip we need page of records
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE unlikely(id > :id) AND likely(pumpId IS NOT NULL) AND likely(type <> :exclude) ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfterExclude(id: Long, limit: Int, exclude: Bolus.Type = Bolus.Type.PRIMING): List<Bolus>
+
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<Bolus>
+
     @Query("SELECT * FROM $TABLE_BOLUSES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<Bolus>
 }
\ No newline at end of file
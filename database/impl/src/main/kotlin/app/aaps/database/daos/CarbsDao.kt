@@ -56,6 +56,13 @@ internal interface CarbsDao : TraceableDao<Carbs> {
     @Query("SELECT * FROM $TABLE_CARBS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Carbs>
 
+    // for xDrip we need page of records
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): List<Carbs>
+
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<Carbs>
+
     @Query("SELECT * FROM $TABLE_CARBS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<Carbs>
 }
\ No newline at end of file
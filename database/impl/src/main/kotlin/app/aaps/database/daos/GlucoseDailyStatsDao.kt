@@ -0,0 +1,21 @@
+package app.aaps.database.daos
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import app.aaps.database.entities.GlucoseDailyStats
+import app.aaps.database.entities.TABLE_GLUCOSE_DAILY_STATS
+
+@Dao
+internal interface GlucoseDailyStatsDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(stats: GlucoseDailyStats): Long
+
+    @Query("SELECT * FROM $TABLE_GLUCOSE_DAILY_STATS WHERE timestamp >= :from AND timestamp < :to ORDER BY timestamp ASC")
+    fun getFromTimeToTime(from: Long, to: Long): List<GlucoseDailyStats>
+
+    @Query("DELETE FROM $TABLE_GLUCOSE_DAILY_STATS WHERE timestamp <= :to AND timestamp + duration > :from")
+    fun deleteOverlapping(from: Long, to: Long): Int
+}
@@ -40,6 +40,9 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE unlikely(timestamp BETWEEN :start AND :end) AND likely(isValid = 1) AND likely(referenceId IS NULL) AND likely(value >= 39) ORDER BY timestamp ASC")
     fun compatGetBgReadingsDataFromTime(start: Long, end: Long): Single<List<GlucoseValue>>
 
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE timestamp >= :from AND timestamp < :to AND isValid = 1 AND referenceId IS NULL ORDER BY timestamp ASC")
+    fun getValidFromTimeToTime(from: Long, to: Long): List<GlucoseValue>
+
     // for WS we need 1 record only
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id > :id ORDER BY id ASC limit 1")
     fun getNextModifiedOrNewAfter(id: Long): Maybe<GlucoseValue>
@@ -47,6 +50,13 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<GlucoseValue>
 
+    // for xDrip we need page of records
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): List<GlucoseValue>
+
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<GlucoseValue>
+
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<GlucoseValue>
 }
\ No newline at end of file
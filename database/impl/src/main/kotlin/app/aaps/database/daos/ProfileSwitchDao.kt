@@ -55,6 +55,13 @@ internal interface ProfileSwitchDao : ProfileSwitchDaoWorkaround {
     @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<ProfileSwitch>
 
+    // for xDrip we need page of records
+    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): List<ProfileSwitch>
+
+    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<ProfileSwitch>
+
     @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<ProfileSwitch>
 }
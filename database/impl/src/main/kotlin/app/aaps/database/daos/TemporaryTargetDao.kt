@@ -47,6 +47,13 @@ internal interface TemporaryTargetDao : TraceableDao<TemporaryTarget> {
     @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<TemporaryTarget>
 
+    // for xDrip we need page of records
+    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id > :id ORDER BY id ASC limit :limit")
+    fun getModifiedOrNewAfter(id: Long, limit: Int): List<TemporaryTarget>
+
+    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id IN (:ids)")
+    fun findByIds(ids: List<Long>): List<TemporaryTarget>
+
     @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
     fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<TemporaryTarget>
 }
\ No newline at end of file
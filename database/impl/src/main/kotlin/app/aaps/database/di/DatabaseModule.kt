@@ -8,6 +8,7 @@ import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
 import app.aaps.database.AppDatabase
 import app.aaps.database.entities.TABLE_APS_RESULTS
+import app.aaps.database.entities.TABLE_GLUCOSE_DAILY_STATS
 import app.aaps.database.entities.TABLE_HEART_RATE
 import app.aaps.database.entities.TABLE_PREFERENCE_CHANGES
 import app.aaps.database.entities.TABLE_RUNNING_MODE
@@ -192,7 +193,16 @@ open class DatabaseModule {
         }
     }
 
+    internal val migration30to31 = object : Migration(30, 31) {
+        override fun migrate(db: SupportSQLiteDatabase) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `$TABLE_GLUCOSE_DAILY_STATS` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `timestamp` INTEGER NOT NULL, `utcOffset` INTEGER NOT NULL, `duration` INTEGER NOT NULL, `veryLow` INTEGER NOT NULL, `low` INTEGER NOT NULL, `target` INTEGER NOT NULL, `aboveTarget` INTEGER NOT NULL, `aboveNightHigh` INTEGER NOT NULL, `aboveNightHighAtNight` INTEGER NOT NULL, `high` INTEGER NOT NULL, `veryHigh` INTEGER NOT NULL, `count` INTEGER NOT NULL, `sum` REAL NOT NULL, `sumOfSquares` REAL NOT NULL, `min` REAL NOT NULL, `max` REAL NOT NULL)")
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_glucoseDailyStats_timestamp` ON `$TABLE_GLUCOSE_DAILY_STATS` (`timestamp`)")
+            // Custom indexes must be dropped on migration to pass room schema checking after upgrade
+            dropCustomIndexes(db)
+        }
+    }
+
     /** List of all migrations for easy reply in tests. */
     @VisibleForTesting
-    internal val migrations = arrayOf(migration20to21, migration21to22, migration22to23, migration23to24, migration24to25, migration25to26, migration26to27, migration27to28, migration28to29, migration29to30)
+    internal val migrations = arrayOf(migration20to21, migration21to22, migration22to23, migration23to24, migration24to25, migration25to26, migration26to27, migration27to28, migration28to29, migration29to30, migration30to31)
 }
@@ -0,0 +1,43 @@
+package app.aaps.database.entities
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+import app.aaps.database.entities.interfaces.DBEntry
+import app.aaps.database.entities.interfaces.DBEntryWithTimeAndDuration
+
+/**
+ * Rollup of valid glucose values of one local day
+ *
+ * Derived data, not synced and not tracked. Rows are deleted when glucose values
+ * of the day change and calculated again on next read.
+ * Band limits are defined by the calculating code, counts of a row sum to [count].
+ */
+@Entity(
+    tableName = TABLE_GLUCOSE_DAILY_STATS,
+    indices = [Index("timestamp", unique = true)]
+)
+data class GlucoseDailyStats(
+    @PrimaryKey(autoGenerate = true)
+    override var id: Long = 0,
+    /** Local midnight starting the day */
+    override var timestamp: Long,
+    /** Offset valid at [timestamp] when calculated */
+    override var utcOffset: Long,
+    /** Length of the day, differs from 24h on DST change */
+    override var duration: Long,
+    var veryLow: Int = 0,
+    var low: Int = 0,
+    var target: Int = 0,
+    var aboveTarget: Int = 0,
+    var aboveNightHigh: Int = 0,
+    /** Part of [aboveNightHigh] measured during night hours */
+    var aboveNightHighAtNight: Int = 0,
+    var high: Int = 0,
+    var veryHigh: Int = 0,
+    var count: Int = 0,
+    var sum: Double = 0.0,
+    var sumOfSquares: Double = 0.0,
+    var min: Double = 0.0,
+    var max: Double = 0.0
+) : DBEntry, DBEntryWithTimeAndDuration
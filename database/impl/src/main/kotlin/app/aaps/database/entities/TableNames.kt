@@ -10,6 +10,7 @@ const val TABLE_EXTENDED_BOLUSES = "extendedBoluses"
 const val TABLE_HEART_RATE = "heartRate"
 const val TABLE_STEPS_COUNT = "stepsCount"
 const val TABLE_GLUCOSE_VALUES = "glucoseValues"
+const val TABLE_GLUCOSE_DAILY_STATS = "glucoseDailyStats"
 const val TABLE_FOODS = "foods"
 const val TABLE_PROFILE_SWITCHES = "profileSwitches"
 const val TABLE_TEMPORARY_BASALS = "temporaryBasals"
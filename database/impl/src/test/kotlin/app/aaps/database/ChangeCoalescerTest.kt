@@ -0,0 +1,93 @@
+package app.aaps.database
+
+import app.aaps.database.entities.Carbs
+import app.aaps.database.entities.GlucoseValue
+import app.aaps.database.entities.interfaces.DBEntry
+import com.google.common.truth.Truth.assertThat
+import io.reactivex.rxjava3.schedulers.TestScheduler
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit
+
+class ChangeCoalescerTest {
+
+    private lateinit var scheduler: TestScheduler
+    private lateinit var sut: ChangeCoalescer
+    private val emitted = mutableListOf<ChangeSummary>()
+
+    @BeforeEach
+    fun prepare() {
+        scheduler = TestScheduler(1_000_000L, TimeUnit.MILLISECONDS)
+        sut = ChangeCoalescer(500L, scheduler)
+        emitted.clear()
+        sut.observable().subscribe { emitted.add(it) }
+    }
+
+    @Test
+    fun singleChangeIsEmittedImmediately() {
+        sut.add(listOf(gv(1000)))
+        assertThat(emitted).hasSize(1)
+        assertThat(emitted[0].of<GlucoseValue>()!!.to).isEqualTo(1000)
+    }
+
+    @Test
+    fun emptyTransactionIsIgnored() {
+        sut.add(emptyList())
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+        assertThat(emitted).isEmpty()
+    }
+
+    @Test
+    fun burstIsMergedPerEntityType() {
+        sut.add(listOf(gv(5000)))
+        sut.add(listOf(gv(3000), carbs(7000)))
+        sut.add(listOf(gv(4000), carbs(2000)))
+        assertThat(emitted).hasSize(1)
+
+        scheduler.advanceTimeBy(499, TimeUnit.MILLISECONDS)
+        assertThat(emitted).hasSize(1)
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        assertThat(emitted).hasSize(2)
+        val merged = emitted[1]
+        assertThat(merged.transactions).isEqualTo(2)
+        assertThat(merged.of<GlucoseValue>()!!.count).isEqualTo(2)
+        assertThat(merged.of<GlucoseValue>()!!.from).isEqualTo(3000)
+        assertThat(merged.of<GlucoseValue>()!!.to).isEqualTo(4000)
+        assertThat(merged.of<Carbs>()!!.from).isEqualTo(2000)
+        assertThat(merged.of<Carbs>()!!.to).isEqualTo(7000)
+    }
+
+    @Test
+    fun changeAfterQuietPeriodIsNotDelayed() {
+        sut.add(listOf(gv(1000)))
+        scheduler.advanceTimeBy(600, TimeUnit.MILLISECONDS)
+        sut.add(listOf(gv(2000)))
+        assertThat(emitted).hasSize(2)
+    }
+
+    @Test
+    fun importOf10kRecords() {
+        // NS backfill: one record per transaction, 2 ms apart
+        val records = 10_000
+        var rawReactions = 0
+        for (i in 0 until records) {
+            val changes: List<DBEntry> = if (i % 10 == 0) listOf(carbs(i * 60_000L)) else listOf(gv(i * 60_000L))
+            // every emission of raw change observable fires one event per entity type
+            rawReactions += changes.map { it.javaClass }.distinct().size
+            sut.add(changes)
+            scheduler.advanceTimeBy(2, TimeUnit.MILLISECONDS)
+        }
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS)
+        val coalescedReactions = emitted.sumOf { summary -> listOfNotNull(summary.of<GlucoseValue>(), summary.of<Carbs>()).size }
+
+        assertThat(emitted.sumOf { it.transactions }).isEqualTo(records)
+        assertThat(emitted.sumOf { summary -> summary.of<GlucoseValue>()?.count ?: 0 } + emitted.sumOf { summary -> summary.of<Carbs>()?.count ?: 0 }).isEqualTo(records)
+        assertThat(emitted.size).isAtMost(records * 2 / 500 + 2)
+        assertThat(coalescedReactions).isLessThan(rawReactions / 100)
+    }
+
+    private fun gv(timestamp: Long) =
+        GlucoseValue(timestamp = timestamp, utcOffset = 0, raw = null, value = 100.0, trendArrow = GlucoseValue.TrendArrow.FLAT, noise = null, sourceSensor = GlucoseValue.SourceSensor.UNKNOWN)
+
+    private fun carbs(timestamp: Long) = Carbs(timestamp = timestamp, utcOffset = 0, duration = 0, amount = 10.0)
+}
@@ -0,0 +1,46 @@
+package app.aaps.database
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class DatabaseCleanupTest {
+
+    @Test
+    fun batchSizeShrinksOnSlowBatches() {
+        val batchSize = DatabaseCleanup.BatchSize(targetNanos = 5_000_000L, min = 10, max = 5000, initial = 200)
+        batchSize.update(20_000_000L)
+        assertThat(batchSize.current).isEqualTo(100)
+        repeat(10) { batchSize.update(20_000_000L) }
+        assertThat(batchSize.current).isEqualTo(10)
+    }
+
+    @Test
+    fun batchSizeGrowsOnFastBatches() {
+        val batchSize = DatabaseCleanup.BatchSize(targetNanos = 5_000_000L, min = 10, max = 5000, initial = 200)
+        batchSize.update(1_000_000L)
+        assertThat(batchSize.current).isEqualTo(251)
+        repeat(50) { batchSize.update(1_000_000L) }
+        assertThat(batchSize.current).isEqualTo(5000)
+    }
+
+    @Test
+    fun batchSizeKeptNearTarget() {
+        val batchSize = DatabaseCleanup.BatchSize(targetNanos = 5_000_000L, min = 10, max = 5000, initial = 200)
+        batchSize.update(4_000_000L)
+        assertThat(batchSize.current).isEqualTo(200)
+    }
+
+    @Test
+    fun batchSizeConvergesToTargetDuration() {
+        // simulated table where one row costs 20 us: 250 rows fit into 5 ms
+        val batchSize = DatabaseCleanup.BatchSize(targetNanos = 5_000_000L, min = 10, max = 5000, initial = 10)
+        var longest = 0L
+        repeat(100) {
+            val elapsed = batchSize.current * 20_000L
+            if (it > 20) longest = maxOf(longest, elapsed)
+            batchSize.update(elapsed)
+        }
+        assertThat(longest).isAtMost(2 * 5_000_000L)
+        assertThat(batchSize.current).isAtLeast(125)
+    }
+}
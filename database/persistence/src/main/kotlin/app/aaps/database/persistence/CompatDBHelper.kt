@@ -45,81 +45,71 @@ class CompatDBHelper @Inject constructor(
 ) {
 
     fun dbChangeDisposable(): Disposable = repository
-        .changeObservable()
+        .coalescedChangeObservable()
         .doOnSubscribe {
             rxBus.send(EventNewBG(null))
             uiInteraction.updateWidget(context, "OnStart")
         }
-        .subscribe {
+        .subscribe { changes ->
             /**
+             * Changes are merged over a short window, so a burst (NS backfill, pump history)
+             * fires every event only once with time range of all changed records.
              * GlucoseValues can come in batch
              * oldest one should be used for invalidation, newest one for for triggering Loop.
-             * Thus we need to collect both
-             *
              */
-            var newestGlucoseValue: GlucoseValue? = null
-            it.filterIsInstance<GlucoseValue>().maxByOrNull { gv -> gv.timestamp }?.let { gv ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventNewBG $gv")
-                rxBus.send(EventNewBG(gv.timestamp))
-                newestGlucoseValue = gv
+            aapsLogger.debug(LTag.DATABASE, "Processing $changes")
+            changes.of<GlucoseValue>()?.let { gv ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventNewBG ${gv.to}")
+                rxBus.send(EventNewBG(gv.to))
+                aapsLogger.debug(LTag.DATABASE, "Firing EventNewHistoryData ${gv.from} ${gv.to}")
+                rxBus.send(EventNewHistoryData(gv.from, true, gv.to))
             }
-            it.filterIsInstance<GlucoseValue>().minOfOrNull { gv -> gv.timestamp }?.let { timestamp ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventNewHistoryData $timestamp $newestGlucoseValue")
-                rxBus.send(EventNewHistoryData(timestamp, true, newestGlucoseValue?.timestamp))
-            }
-            it.filterIsInstance<Carbs>().minOfOrNull { t -> t.timestamp }?.let { timestamp ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventTreatmentChange $timestamp")
-                rxBus.send(EventTreatmentChange())
-                rxBus.send(EventNewHistoryData(timestamp, false))
-            }
-            it.filterIsInstance<Bolus>().minOfOrNull { t -> t.timestamp }?.let { timestamp ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventTreatmentChange $timestamp")
-                rxBus.send(EventTreatmentChange())
-                rxBus.send(EventNewHistoryData(timestamp, false))
-            }
-            it.filterIsInstance<BolusCalculatorResult>().minOfOrNull { t -> t.timestamp }?.let { timestamp ->
+            val treatments = listOfNotNull(changes.of<Carbs>(), changes.of<Bolus>(), changes.of<BolusCalculatorResult>())
+            treatments.minOfOrNull { it.from }?.let { timestamp ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTreatmentChange $timestamp")
                 rxBus.send(EventTreatmentChange())
-                rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<TemporaryBasal>().minOfOrNull { t -> t.timestamp }?.let { timestamp ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventTempBasalChange $timestamp")
+            changes.of<TemporaryBasal>()?.let { tb ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventTempBasalChange ${tb.from}")
                 rxBus.send(EventTempBasalChange())
-                rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<ExtendedBolus>().minOfOrNull { t -> t.timestamp }?.let { timestamp ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventExtendedBolusChange $timestamp")
+            changes.of<ExtendedBolus>()?.let { eb ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventExtendedBolusChange ${eb.from}")
                 rxBus.send(EventExtendedBolusChange())
-                rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<EffectiveProfileSwitch>().firstOrNull()?.let { eps ->
-                aapsLogger.debug(LTag.DATABASE, "Firing EventEffectiveProfileSwitchChanged $eps")
-                rxBus.send(EventEffectiveProfileSwitchChanged(eps.timestamp))
-                rxBus.send(EventNewHistoryData(eps.timestamp, false))
+            changes.of<EffectiveProfileSwitch>()?.let { eps ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventEffectiveProfileSwitchChanged ${eps.from}")
+                rxBus.send(EventEffectiveProfileSwitchChanged(eps.from))
+            }
+            // one invalidation from the oldest changed record of all history types
+            val history = treatments + listOfNotNull(changes.of<TemporaryBasal>(), changes.of<ExtendedBolus>(), changes.of<EffectiveProfileSwitch>())
+            history.minOfOrNull { it.from }?.let { timestamp ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventNewHistoryData $timestamp")
+                rxBus.send(EventNewHistoryData(timestamp, false))
             }
-            it.filterIsInstance<TemporaryTarget>().firstOrNull()?.let { tt ->
+            changes.of<TemporaryTarget>()?.let { tt ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTempTargetChange $tt")
                 rxBus.send(EventTempTargetChange())
             }
-            it.filterIsInstance<TherapyEvent>().firstOrNull()?.let { te ->
+            changes.of<TherapyEvent>()?.let { te ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventTherapyEventChange $te")
                 rxBus.send(EventTherapyEventChange())
             }
-            it.filterIsInstance<Food>().firstOrNull()?.let { food ->
+            changes.of<Food>()?.let { food ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventFoodDatabaseChanged $food")
                 rxBus.send(EventFoodDatabaseChanged())
             }
-            it.filterIsInstance<ProfileSwitch>().firstOrNull()?.let { ps ->
+            changes.of<ProfileSwitch>()?.let { ps ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventProfileSwitchChanged $ps")
                 rxBus.send(EventProfileSwitchChanged())
             }
-            it.filterIsInstance<RunningMode>().firstOrNull()?.let { rm ->
+            changes.of<RunningMode>()?.let { rm ->
                 aapsLogger.debug(LTag.DATABASE, "Firing RunningModeChange $rm")
                 rxBus.send(EventRunningModeChange())
             }
-            it.filterIsInstance<DeviceStatus>().firstOrNull()?.let { ds ->
+            changes.of<DeviceStatus>()?.let { ds ->
                 aapsLogger.debug(LTag.DATABASE, "Firing EventDeviceStatusChange $ds")
                 rxBus.send(EventDeviceStatusChange())
             }
         }
-}
\ No newline at end of file
+}
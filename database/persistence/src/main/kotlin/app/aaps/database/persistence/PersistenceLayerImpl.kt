@@ -8,6 +8,7 @@ import app.aaps.core.data.model.DS
 import app.aaps.core.data.model.EB
 import app.aaps.core.data.model.EPS
 import app.aaps.core.data.model.FD
+import app.aaps.core.data.model.GDS
 import app.aaps.core.data.model.GV
 import app.aaps.core.data.model.GlucoseUnit
 import app.aaps.core.data.model.HR
@@ -143,7 +144,8 @@ class PersistenceLayerImpl @Inject constructor(
 
     override fun clearDatabases() = repository.clearDatabases()
     override fun clearApsResults() = repository.clearApsResults()
-    override fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean): String = repository.cleanupDatabase(keepDays, deleteTrackedChanges)
+    override fun cleanupDatabase(keepDays: Long, deleteTrackedChanges: Boolean, compact: Boolean, onProgress: (String) -> Unit): String =
+        repository.cleanupDatabase(keepDays, deleteTrackedChanges, compact, onProgress)
 
     // BS
     override fun getNewestBolus(): BS? = repository.getNewestBolus().blockingGet()?.fromDb()
@@ -172,6 +174,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementBolus(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsBolus(id: Long, limit: Int): PersistenceLayer.SyncPage<BS> =
+        repository.getNextSyncElementsBolus(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun insertOrUpdateBolus(bolus: BS, action: Action, source: Sources, note: String?): Single<PersistenceLayer.TransactionResult<BS>> =
         repository.runTransactionForResult(InsertOrUpdateBolusTransaction(bolus.toDb()))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while saving Bolus", it) }
@@ -352,6 +357,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementCarbs(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsCarbs(id: Long, limit: Int): PersistenceLayer.SyncPage<CA> =
+        repository.getNextSyncElementsCarbs(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun insertOrUpdateCarbs(carbs: CA, action: Action, source: Sources, note: String?): Single<PersistenceLayer.TransactionResult<CA>> =
         repository.runTransactionForResult(InsertOrUpdateCarbsTransaction(carbs.toDb()))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while saving Carbs", it) }
@@ -584,6 +592,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementGlucoseValue(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): PersistenceLayer.SyncPage<GV> =
+        repository.getNextSyncElementsGlucoseValue(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun getBgReadingsDataFromTimeToTime(start: Long, end: Long, ascending: Boolean): List<GV> =
         repository.compatGetBgReadingsDataFromTime(start, end, ascending)
             .map { list -> list.asSequence().map { it.fromDb() }.toList() }
@@ -596,6 +607,12 @@ class PersistenceLayerImpl @Inject constructor(
     override fun getBgReadingByNSId(nsId: String): GV? =
         repository.findBgReadingByNSId(nsId)?.fromDb()
 
+    override fun getGlucoseDailyStats(from: Long, to: Long): List<GDS> =
+        repository.getGlucoseDailyStats(from, to).map { it.fromDb() }
+
+    override fun calculateGlucoseDailyStats(from: Long, to: Long, calculate: (List<GV>) -> GDS): GDS =
+        repository.calculateGlucoseDailyStats(from, to) { values -> calculate(values.map { it.fromDb() }).toDb() }.fromDb()
+
     override fun invalidateGlucoseValue(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<PersistenceLayer.TransactionResult<GV>> =
         repository.runTransactionForResult(InvalidateGlucoseValueTransaction(id))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while invalidating GlucoseValue", it) }
@@ -984,6 +1001,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementProfileSwitch(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): PersistenceLayer.SyncPage<PS> =
+        repository.getNextSyncElementsProfileSwitch(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun getLastProfileSwitchId(): Long? = repository.getLastProfileSwitchId()
     override fun insertOrUpdateProfileSwitch(profileSwitch: PS, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<PersistenceLayer.TransactionResult<PS>> =
         repository.runTransactionForResult(InsertOrUpdateProfileSwitch(profileSwitch.toDb()))
@@ -1286,6 +1306,9 @@ class PersistenceLayerImpl @Inject constructor(
     override fun getLastExtendedBolusId(): Long? = repository.getLastExtendedBolusId()
     override fun getExtendedBolusByNSId(nsId: String): EB? = repository.findExtendedBolusByNSId(nsId)?.fromDb()
 
+    override fun getExtendedBolusesActiveBetweenTimeAndTime(startTime: Long, endTime: Long): List<EB> =
+        repository.getExtendedBolusesActiveBetweenTimeAndTime(startTime, endTime).blockingGet().asSequence().map { it.fromDb() }.toList()
+
     override fun getExtendedBolusesStartingFromTimeToTime(startTime: Long, endTime: Long, ascending: Boolean): List<EB> =
         repository.getExtendedBolusesStartingFromTimeToTime(startTime, endTime, ascending)
             .map { list -> list.asSequence().map { it.fromDb() }.toList() }
@@ -1303,6 +1326,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementExtendedBolus(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): PersistenceLayer.SyncPage<EB> =
+        repository.getNextSyncElementsExtendedBolus(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun invalidateExtendedBolus(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<PersistenceLayer.TransactionResult<EB>> =
         repository.runTransactionForResult(InvalidateExtendedBolusTransaction(id))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while invalidating ExtendedBolus", it) }
@@ -1407,6 +1433,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementTemporaryTarget(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): PersistenceLayer.SyncPage<TT> =
+        repository.getNextSyncElementsTemporaryTarget(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun invalidateTemporaryTarget(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>)
         : Single<PersistenceLayer.TransactionResult<TT>> =
         repository.runTransactionForResult(InvalidateTemporaryTargetTransaction(id))
@@ -1565,6 +1594,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementTherapyEvent(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): PersistenceLayer.SyncPage<TE> =
+        repository.getNextSyncElementsTherapyEvent(id, limit).let { page -> PersistenceLayer.SyncPage(page.pairs.map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }, page.lastId, page.rawCount) }
+
     override fun insertPumpTherapyEventIfNewByTimestamp(therapyEvent: TE, timestamp: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>)
         : Single<PersistenceLayer.TransactionResult<TE>> =
         repository.runTransactionForResult(InsertIfNewByTimestampTherapyEventTransaction(therapyEvent.toDb()))
@@ -1824,6 +1856,9 @@ class PersistenceLayerImpl @Inject constructor(
     override fun getUserEntryFilteredDataFromTime(timestamp: Long): Single<List<UE>> =
         repository.getUserEntryFilteredDataFromTime(timestamp).map { list -> list.asSequence().map { it.fromDb() }.toList() }
 
+    override fun getUserEntryFilteredDataPage(timestamp: Long, beforeTimestamp: Long, beforeId: Long, limit: Int): List<UE> =
+        repository.getUserEntryFilteredDataPage(timestamp, beforeTimestamp, beforeId, limit).map { it.fromDb() }
+
     // TDD
     override fun clearCachedTddData(timestamp: Long) = repository.clearCachedTddData(timestamp)
     override fun getLastTotalDailyDoses(count: Int, ascending: Boolean): List<TDD> =
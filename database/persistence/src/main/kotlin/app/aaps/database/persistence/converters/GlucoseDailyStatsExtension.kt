@@ -0,0 +1,46 @@
+package app.aaps.database.persistence.converters
+
+import app.aaps.core.data.model.GDS
+import app.aaps.database.entities.GlucoseDailyStats
+
+fun GlucoseDailyStats.fromDb(): GDS =
+    GDS(
+        id = this.id,
+        timestamp = this.timestamp,
+        utcOffset = this.utcOffset,
+        duration = this.duration,
+        veryLow = this.veryLow,
+        low = this.low,
+        target = this.target,
+        aboveTarget = this.aboveTarget,
+        aboveNightHigh = this.aboveNightHigh,
+        aboveNightHighAtNight = this.aboveNightHighAtNight,
+        high = this.high,
+        veryHigh = this.veryHigh,
+        count = this.count,
+        sum = this.sum,
+        sumOfSquares = this.sumOfSquares,
+        min = this.min,
+        max = this.max
+    )
+
+fun GDS.toDb(): GlucoseDailyStats =
+    GlucoseDailyStats(
+        id = this.id,
+        timestamp = this.timestamp,
+        utcOffset = this.utcOffset,
+        duration = this.duration,
+        veryLow = this.veryLow,
+        low = this.low,
+        target = this.target,
+        aboveTarget = this.aboveTarget,
+        aboveNightHigh = this.aboveNightHigh,
+        aboveNightHighAtNight = this.aboveNightHighAtNight,
+        high = this.high,
+        veryHigh = this.veryHigh,
+        count = this.count,
+        sum = this.sum,
+        sumOfSquares = this.sumOfSquares,
+        min = this.min,
+        max = this.max
+    )
@@ -3,11 +3,13 @@ package app.aaps.implementation.db
 import app.aaps.core.data.model.TB
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.db.ProcessedTbrEbData
+import app.aaps.core.interfaces.db.TempBasalRange
 import app.aaps.core.interfaces.plugin.ActivePlugin
 import app.aaps.core.interfaces.profile.ProfileFunction
 import app.aaps.core.objects.extensions.toTemporaryBasal
 import dagger.Reusable
 import javax.inject.Inject
+import kotlin.math.max
 
 @Reusable
 class ProcessedTbrEbDataImpl @Inject constructor(
@@ -28,14 +30,68 @@ class ProcessedTbrEbDataImpl @Inject constructor(
     override fun getTempBasalIncludingConvertedExtended(timestamp: Long): TB? =
         persistenceLayer.getTemporaryBasalActiveAt(timestamp) ?: getConvertedExtended(timestamp)
 
-    override fun getTempBasalIncludingConvertedExtendedForRange(startTime: Long, endTime: Long, calculationStep: Long): Map<Long, TB?> {
-        val tempBasals = HashMap<Long, TB?>()
-        val tbs = persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(startTime, endTime)
-        for (t in startTime until endTime step calculationStep) {
-            val tb = tbs.firstOrNull { basal -> basal.timestamp <= t && (basal.timestamp + basal.duration) > t }
-            tempBasals[t] = tb ?: getConvertedExtended(t)
+    override fun getTempBasalIncludingConvertedExtendedForRange(startTime: Long, endTime: Long, calculationStep: Long): TempBasalRange {
+        val steps = if (endTime > startTime) ((endTime - startTime + calculationStep - 1) / calculationStep).toInt() else 0
+        // database returns newest first, keep that order for records starting at the same time
+        val records = persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(startTime, endTime).asReversed().sortedBy { it.timestamp }.toMutableList()
+        val ebs =
+            if (activePlugin.activePump.isFakingTempsByExtendedBoluses)
+                persistenceLayer.getExtendedBolusesActiveBetweenTimeAndTime(startTime, endTime).asReversed().sortedBy { it.timestamp }
+            else emptyList()
+        val tbSweep = ActiveIntervalSweep(LongArray(records.size) { records[it].timestamp }, LongArray(records.size) { records[it].timestamp + records[it].duration })
+        val ebSweep = ActiveIntervalSweep(LongArray(ebs.size) { ebs[it].timestamp }, LongArray(ebs.size) { ebs[it].timestamp + ebs[it].duration })
+
+        // converted extended bolus is reused while it gets the same profile basal
+        var convertedEb = -1
+        var convertedBasal = 0.0
+        var convertedIndex = -1
+        val index = IntArray(steps)
+        for (step in 0 until steps) {
+            val time = startTime + step * calculationStep
+            val tb = tbSweep.activeAt(time)
+            val eb = if (tb < 0) ebSweep.activeAt(time) else -1
+            index[step] = when {
+                tb >= 0 -> tb
+                eb < 0  -> -1
+                else    -> {
+                    val profile = profileFunction.getProfile(time)
+                    if (profile == null) -1
+                    else {
+                        val basal = profile.getBasal(ebs[eb].timestamp)
+                        if (eb != convertedEb || basal != convertedBasal) {
+                            records.add(ebs[eb].toTemporaryBasal(profile))
+                            convertedEb = eb
+                            convertedBasal = basal
+                            convertedIndex = records.size - 1
+                        }
+                        convertedIndex
+                    }
+                }
+            }
         }
-        return tempBasals
+        return TempBasalRange(startTime, calculationStep, records, index)
     }
 
-}
\ No newline at end of file
+    /**
+     * Finds latest started interval running at increasing times in one pass over intervals sorted by start
+     */
+    private class ActiveIntervalSweep(private val starts: LongArray, private val ends: LongArray) {
+
+        // highest end of intervals 0..i, stops backward search when nothing older can be running
+        private val maxEnd = LongArray(ends.size).also { for (i in ends.indices) it[i] = if (i == 0) ends[0] else max(it[i - 1], ends[i]) }
+        private var started = 0
+
+        /**
+         * @return index of running interval or -1. [time] must not decrease between calls
+         */
+        fun activeAt(time: Long): Int {
+            while (started < starts.size && starts[started] <= time) started++
+            var i = started - 1
+            while (i >= 0 && maxEnd[i] > time) {
+                if (ends[i] > time) return i
+                i--
+            }
+            return -1
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package app.aaps.implementation.iob
 
+import app.aaps.core.data.iob.InMemoryGlucoseValue
+import app.aaps.core.interfaces.aps.AutosensDataStore
 import app.aaps.core.interfaces.aps.GlucoseStatus
 import app.aaps.core.interfaces.iob.GlucoseStatusProvider
 import app.aaps.core.interfaces.iob.IobCobCalculator
@@ -9,13 +11,13 @@ import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.interfaces.utils.DecimalFormatter
 import app.aaps.implementation.extensions.asRounded
 import app.aaps.implementation.extensions.log
-import dagger.Reusable
 import javax.inject.Inject
+import javax.inject.Singleton
 import kotlin.math.pow
 import kotlin.math.roundToInt
 import kotlin.math.roundToLong
 
-@Reusable
+@Singleton
 class GlucoseStatusProviderImpl @Inject constructor(
     private val aapsLogger: AAPSLogger,
     private val iobCobCalculator: IobCobCalculator,
@@ -23,21 +25,43 @@ class GlucoseStatusProviderImpl @Inject constructor(
     private val decimalFormatter: DecimalFormatter
 ) : GlucoseStatusProvider {
 
+    /**
+     * Status calculated from [version] of bucketed data of [ads]
+     */
+    private class CachedStatus(val ads: AutosensDataStore, val version: Long, val status: GlucoseStatus?)
+
+    @Volatile private var cachedStatus: CachedStatus? = null
+
     override val glucoseStatusData: GlucoseStatus?
         get() = getGlucoseStatusData()
 
+    /**
+     * Status is calculated once per new bucketed data and shared by all callers.
+     * Only age of the data is evaluated on every call.
+     */
     override fun getGlucoseStatusData(allowOldData: Boolean): GlucoseStatus? {
-        val data = iobCobCalculator.ads.getBucketedDataTableCopy() ?: return null
+        val ads = iobCobCalculator.ads
+        // read version before data. Newer data stored under older version is only recalculated once more
+        val version = ads.bucketedDataVersion
+        val cached = cachedStatus
+        val status =
+            if (version != 0L && cached != null && cached.ads === ads && cached.version == version) cached.status
+            else calculateGlucoseStatus(ads.getBucketedDataTableCopy()).also { if (version != 0L) cachedStatus = CachedStatus(ads, version, it) }
+        if (status == null) return null
+        if (status.date < dateUtil.now() - 7 * 60 * 1000L && !allowOldData) {
+            aapsLogger.debug(LTag.GLUCOSE, "oldData")
+            return null
+        }
+        return status
+    }
 
-        var sizeRecords = data.size
+    private fun calculateGlucoseStatus(data: List<InMemoryGlucoseValue>?): GlucoseStatus? {
+        if (data == null) return null
+        val sizeRecords = data.size
         if (sizeRecords == 0) {
             aapsLogger.debug(LTag.GLUCOSE, "sizeRecords==0")
             return null
         }
-        if (data[0].timestamp < dateUtil.now() - 7 * 60 * 1000L && !allowOldData) {
-            aapsLogger.debug(LTag.GLUCOSE, "oldData")
-            return null
-        }
         val now = data[0]
         val nowDate = now.timestamp
         var change: Double
@@ -62,9 +86,12 @@ class GlucoseStatusProviderImpl @Inject constructor(
                 corrSqu = 0.0
             ).asRounded()
         }
-        val lastDeltas = ArrayList<Double>()
-        val shortDeltas = ArrayList<Double>()
-        val longDeltas = ArrayList<Double>()
+        val lastDeltas = DoubleArray(sizeRecords)
+        val shortDeltas = DoubleArray(sizeRecords)
+        val longDeltas = DoubleArray(sizeRecords)
+        var lastCount = 0
+        var shortCount = 0
+        var longCount = 0
 
         // Use the latest sgv value in the now calculations
         for (i in 1 until sizeRecords) {
@@ -76,7 +103,7 @@ class GlucoseStatusProviderImpl @Inject constructor(
                 // multiply by 5 to get the same units as delta, i.e. mg/dL/5m
                 change = now.recalculated - then.recalculated
                 val avgDel = change / minutesAgo * 5
-                aapsLogger.debug(LTag.GLUCOSE, "$then minutesAgo=$minutesAgo avgDelta=$avgDel")
+                aapsLogger.debug(LTag.GLUCOSE) { "$then minutesAgo=$minutesAgo avgDelta=$avgDel" }
 
                 // use the average of all data points in the last 2.5m for all further "now" calculations
                 // if (0 < minutesAgo && minutesAgo < 2.5) {
@@ -86,25 +113,25 @@ class GlucoseStatusProviderImpl @Inject constructor(
                 //     // short_deltas are calculated from everything ~5-15 minutes ago
                 // } else
                 if (2.5 < minutesAgo && minutesAgo < 17.5) {
-                    shortDeltas.add(avgDel)
+                    shortDeltas[shortCount++] = avgDel
                     // last_deltas are calculated from everything ~5 minutes ago
                     if (2.5 < minutesAgo && minutesAgo < 7.5) {
-                        lastDeltas.add(avgDel)
+                        lastDeltas[lastCount++] = avgDel
                     }
                     // long_deltas are calculated from everything ~20-40 minutes ago
                 } else if (17.5 < minutesAgo && minutesAgo < 42.5) {
-                    longDeltas.add(avgDel)
+                    longDeltas[longCount++] = avgDel
                 } else {
                     // Do not process any more records after >= 42.5 minutes
                     break
                 }
             }
         }
-        val shortAverageDelta = average(shortDeltas)
-        val delta = if (lastDeltas.isEmpty()) {
+        val shortAverageDelta = average(shortDeltas, shortCount)
+        val delta = if (lastCount == 0) {
             shortAverageDelta
         } else {
-            average(lastDeltas)
+            average(lastDeltas, lastCount)
         }
 
         // calculate 2 variables for 5% range; still using 5 minute data
@@ -162,18 +189,21 @@ class GlucoseStatusProviderImpl @Inject constructor(
             val scaleTime = 300.0 // in 5m; values are  0, -1, -2, -3, -4, ...
             val scaleBg = 50.0 // TIR range is now 1.4 - 3.6
 
+            // scaled time and bg of records scanned so far, used for residuals of every fit
+            val times = DoubleArray(sizeRecords)
+            val bgs = DoubleArray(sizeRecords)
+
             // if (data[i].recalculated > 38) {  } // not checked in past 1.5 years
             n = 0
             for (i in 0 until sizeRecords) {
-                val noGap = !data[i].filledGap
-                if (data[i].recalculated > 39 && noGap) {
+                val then = data[i]
+                times[i] = (then.timestamp - time0) / 1000.0 / scaleTime
+                bgs[i] = then.recalculated / scaleBg
+                val noGap = !then.filledGap
+                if (then.recalculated > 39 && noGap) {
                     n += 1
-                    val thenDate: Long
-                    var bg: Double
-                    val then = data[i]
-                    thenDate = then.timestamp
-                    bg = then.recalculated / scaleBg
-                    val ti = (thenDate - time0) / 1000.0 / scaleTime
+                    val bg = bgs[i]
+                    val ti = times[i]
                     if (-ti * scaleTime > 47 * 60) {                       // skip records older than 47.5 minutes
                         break
                     } else if (ti < tiLast - 11.0 * 60 / scaleTime) {      // stop scan if a CGM gap > 11 minutes is detected
@@ -191,12 +221,13 @@ class GlucoseStatusProviderImpl @Inject constructor(
                     }
                     tiLast = ti
                     sx += ti
-                    sx2 += ti.pow(2.0)
+                    val ti2 = ti * ti
+                    sx2 += ti2
                     sx3 += ti.pow(3.0)
                     sx4 += ti.pow(4.0)
                     sy += bg
                     sxy += ti * bg
-                    sx2y += ti.pow(2.0) * bg
+                    sx2y += ti2 * bg
                     //val n = i + 1
                     var detH = 0.0
                     var detA = 0.0
@@ -216,11 +247,11 @@ class GlucoseStatusProviderImpl @Inject constructor(
                         var sSquares = 0.0
                         var sResidualSquares = 0.0
                         for (j in 0..i) {
-                            val before = data[j]
-                            sSquares += (before.recalculated / scaleBg - yMean).pow(2.0)
-                            val deltaT: Double = (before.timestamp - time0) / 1000.0 / scaleTime
-                            val bgj: Double = a * deltaT.pow(2.0) + b * deltaT + c
-                            sResidualSquares += (before.recalculated / scaleBg - bgj).pow(2.0)
+                            val deviation = bgs[j] - yMean
+                            sSquares += deviation * deviation
+                            val deltaT = times[j]
+                            val residual = bgs[j] - (a * (deltaT * deltaT) + b * deltaT + c)
+                            sResidualSquares += residual * residual
                         }
                         var rSqu = 0.64
                         if (sSquares != 0.0) {
@@ -250,7 +281,7 @@ class GlucoseStatusProviderImpl @Inject constructor(
             noise = 0.0, //for now set to nothing as not all CGMs report noise
             shortAvgDelta = shortAverageDelta,
             delta = delta,
-            longAvgDelta = average(longDeltas),
+            longAvgDelta = average(longDeltas, longCount),
             duraISFminutes = minutesdur.toDouble(),
             duraISFaverage = oldavg,
             parabolaMinutes = duraP,
@@ -349,13 +380,13 @@ class GlucoseStatusProviderImpl @Inject constructor(
     */
     companion object {
 
-        fun average(array: ArrayList<Double>): Double {
+        fun average(array: DoubleArray, count: Int = array.size): Double {
             var sum = 0.0
-            if (array.isEmpty()) return 0.0
-            for (value in array) {
-                sum += value
+            if (count == 0) return 0.0
+            for (i in 0 until count) {
+                sum += array[i]
             }
-            return sum / array.size
+            return sum / count
         }
     }
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import app.aaps.core.interfaces.smoothing.Smoothing
 import app.aaps.core.interfaces.source.BgSource
 import app.aaps.core.interfaces.sync.NsClient
 import app.aaps.core.interfaces.sync.Sync
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -28,7 +29,14 @@ class PluginStore @Inject constructor(
     private val aapsLogger: AAPSLogger
 ) : ActivePlugin {
 
-    lateinit var plugins: List<@JvmSuppressWildcards PluginBase>
+    var plugins: List<@JvmSuppressWildcards PluginBase> = emptyList()
+        set(value) {
+            field = value
+            pluginsByInterface.clear()
+        }
+
+    // plugins implementing interface, filled on first request
+    private val pluginsByInterface = ConcurrentHashMap<Class<*>, List<PluginBase>>()
 
     private var activeBgSourceStore: BgSource? = null
     private var activePumpStore: Pump? = null
@@ -64,13 +72,17 @@ class PluginStore @Inject constructor(
         }
     }
 
-    override fun getSpecificPluginsListByInterface(interfaceClass: Class<*>): ArrayList<PluginBase> {
-        val newList = ArrayList<PluginBase>()
-        for (p in plugins) {
-            if (!interfaceClass.isAssignableFrom(ConfigBuilder::class.java) && interfaceClass.isAssignableFrom(p.javaClass)) newList.add(p)
+    override fun getSpecificPluginsListByInterface(interfaceClass: Class<*>): ArrayList<PluginBase> =
+        ArrayList(getPluginsByInterface(interfaceClass))
+
+    override fun getPluginsByInterface(interfaceClass: Class<*>): List<PluginBase> =
+        pluginsByInterface.getOrPut(interfaceClass) {
+            val newList = ArrayList<PluginBase>()
+            for (p in plugins) {
+                if (!interfaceClass.isAssignableFrom(ConfigBuilder::class.java) && interfaceClass.isAssignableFrom(p.javaClass)) newList.add(p)
+            }
+            newList
         }
-        return newList
-    }
 
     override fun getSpecificPluginsVisibleInList(type: PluginType): ArrayList<PluginBase> {
         val newList = ArrayList<PluginBase>()
@@ -204,15 +216,15 @@ class PluginStore @Inject constructor(
         get() = activeSmoothingStore ?: checkNotNull(activeSmoothingStore) { "No smoothing selected" }
 
     override val activeOverview: Overview
-        get() = getSpecificPluginsListByInterface(Overview::class.java).first() as Overview
+        get() = getPluginsByInterface(Overview::class.java).first() as Overview
 
     override val activeSafety: Safety
-        get() = getSpecificPluginsListByInterface(Safety::class.java).first() as Safety
+        get() = getPluginsByInterface(Safety::class.java).first() as Safety
 
     override val activeIobCobCalculator: IobCobCalculator
-        get() = getSpecificPluginsListByInterface(IobCobCalculator::class.java).first() as IobCobCalculator
+        get() = getPluginsByInterface(IobCobCalculator::class.java).first() as IobCobCalculator
     override val activeObjectives: Objectives?
-        get() = getSpecificPluginsListByInterface(Objectives::class.java).firstOrNull() as Objectives?
+        get() = getPluginsByInterface(Objectives::class.java).firstOrNull() as Objectives?
     override val activeNsClient: NsClient?
         get() = getTheOneEnabledInArray(getSpecificPluginsListByInterface(NsClient::class.java), PluginType.SYNC) as NsClient?
 
@@ -10,6 +10,7 @@ import app.aaps.core.data.ue.ValueWithUnit
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.nsclient.ProcessedDeviceStatusData
 import app.aaps.core.interfaces.plugin.ActivePlugin
 import app.aaps.core.interfaces.profile.Profile
@@ -27,7 +28,6 @@ import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.core.objects.profile.ProfileSealed
 import io.reactivex.rxjava3.disposables.CompositeDisposable
 import io.reactivex.rxjava3.kotlin.plusAssign
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -47,8 +47,12 @@ class ProfileFunctionImpl @Inject constructor(
     private val processedDeviceStatusData: ProcessedDeviceStatusData
 ) : ProfileFunction {
 
-    @VisibleForTesting
-    val cache = ConcurrentHashMap<Long, Profile?>()
+    /**
+     * Effective profile switch history loaded on first use.
+     * Readers use current snapshot without locking, writers replace it under [timelineLock]
+     */
+    @Volatile private var timeline = ProfileTimeline.EMPTY
+    private val timelineLock = Any()
 
     private val disposable = CompositeDisposable()
 
@@ -58,11 +62,47 @@ class ProfileFunctionImpl @Inject constructor(
             .observeOn(aapsSchedulers.io)
             .subscribe(
                 {
-                    synchronized(cache) { cache.keys.removeIf { key -> key > it.startDate } }
+                    synchronized(timelineLock) {
+                        // not loaded yet, first use loads current data
+                        if (timeline !== ProfileTimeline.EMPTY) {
+                            reloadTimeline(it.startDate)
+                            aapsLogger.debug(LTag.DATABASE, "Profile timeline reloaded from ${it.startDate}")
+                        }
+                    }
                 }, fabricPrivacy::logException
             )
     }
 
+    @VisibleForTesting
+    fun clearCache() {
+        synchronized(timelineLock) { timeline = ProfileTimeline.EMPTY }
+    }
+
+    /**
+     * Replace intervals starting at or after [from] by records from database
+     */
+    private fun reloadTimeline(from: Long): ProfileTimeline =
+        synchronized(timelineLock) {
+            val loadedAt = dateUtil.now()
+            val switches = persistenceLayer.getEffectiveProfileSwitchesFromTime(from, true).blockingGet()
+            timeline.replaceFrom(from, switches, loadedAt) { ProfileSealed.EPS(it, activePlugin) }.also { timeline = it }
+        }
+
+    /**
+     * Current snapshot, loaded on first use
+     *
+     * Every change of effective profile switches fires [EventEffectiveProfileSwitchChanged]
+     * which reloads the changed range, so the snapshot is not reloaded on lookups.
+     */
+    private fun currentTimeline(): ProfileTimeline {
+        timeline.takeIf { it.loadedAt != ProfileTimeline.EMPTY.loadedAt }?.let { return it }
+        synchronized(timelineLock) {
+            // loaded by another thread while waiting for lock
+            timeline.takeIf { it.loadedAt != ProfileTimeline.EMPTY.loadedAt }?.let { return it }
+            return reloadTimeline(0)
+        }
+    }
+
     override fun getProfileName(): String =
         getProfileName(System.currentTimeMillis(), customized = true, showRemainingTime = false)
 
@@ -91,25 +131,7 @@ class ProfileFunctionImpl @Inject constructor(
         getProfile(dateUtil.now())
 
     override fun getProfile(time: Long): Profile? {
-        val rounded = time - time % 1000
-        // Clear cache after longer use
-        synchronized(cache) {
-            if (cache.keys.size > 30000) {
-                cache.clear()
-                aapsLogger.debug("Profile cache cleared")
-            }
-            if (cache.containsKey(rounded)) {
-                return cache[rounded]
-            }
-        }
-        val ps = persistenceLayer.getEffectiveProfileSwitchActiveAt(time)
-        if (ps != null) {
-            val sealed = ProfileSealed.EPS(ps, activePlugin)
-            synchronized(cache) {
-                cache.put(rounded, sealed)
-            }
-            return sealed
-        }
+        currentTimeline().at(time)?.let { return it }
         // In NSClient mode effective profile may not be received if older than 2 days
         // Try to get it from device status
         // Remove this code after switch to api v3
@@ -117,19 +139,11 @@ class ProfileFunctionImpl @Inject constructor(
         if (config.AAPSCLIENT) {
             processedDeviceStatusData.pumpData?.activeProfileName?.let { activeProfile ->
                 activePlugin.activeProfileSource.profile?.getSpecificProfile(activeProfile)?.let { ap ->
-                    val sealed = ProfileSealed.Pure(ap, activePlugin)
-                    synchronized(cache) {
-                        cache.put(rounded, sealed)
-                    }
-                    return sealed
+                    return ProfileSealed.Pure(ap, activePlugin)
                 }
 
             }
         }
-
-        synchronized(cache) {
-            cache.remove(rounded)
-        }
         return null
     }
 
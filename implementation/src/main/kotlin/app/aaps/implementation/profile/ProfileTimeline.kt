@@ -0,0 +1,83 @@
+package app.aaps.implementation.profile
+
+import app.aaps.core.data.model.EPS
+import app.aaps.core.interfaces.profile.Profile
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Immutable snapshot of effective profile switch history
+ *
+ * Every effective profile switch is valid from its timestamp until the next one.
+ * Intervals are sorted by start and resolved by binary search, so the snapshot
+ * may be read from any thread without locking.
+ * Profiles are sealed on first lookup of their interval, only the history really used is converted.
+ *
+ * @param starts sorted timestamps of effective profile switches
+ * @param switches effective profile switch of the corresponding start
+ * @param profiles profile valid from the corresponding start, null until first used
+ * @param seal conversion of effective profile switch to profile
+ * @param loadedAt time of loading from database
+ */
+internal class ProfileTimeline private constructor(
+    private val starts: LongArray,
+    private val switches: List<EPS>,
+    private val profiles: AtomicReferenceArray<Profile?>,
+    private val seal: (EPS) -> Profile,
+    val loadedAt: Long
+) {
+
+    val size: Int get() = starts.size
+
+    /**
+     * Profile valid at [time], ie. from the latest effective profile switch not newer than [time]
+     *
+     * @return profile or null if there is no effective profile switch before [time]
+     */
+    fun at(time: Long): Profile? {
+        var low = 0
+        var high = starts.size - 1
+        var found = -1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            if (starts[middle] <= time) {
+                found = middle
+                low = middle + 1
+            } else high = middle - 1
+        }
+        return if (found >= 0) profileAt(found) else null
+    }
+
+    /**
+     * Sealed profile of interval [index]. Concurrent readers get the same instance
+     */
+    private fun profileAt(index: Int): Profile =
+        profiles.get(index) ?: seal(switches[index]).let { sealed ->
+            if (profiles.compareAndSet(index, null, sealed)) sealed else profiles.get(index)!!
+        }
+
+    /**
+     * New snapshot with intervals starting at or after [from] replaced
+     *
+     * @param from start of replaced range
+     * @param switches valid effective profile switches from [from] sorted by timestamp
+     * @param seal conversion of effective profile switch to profile
+     */
+    fun replaceFrom(from: Long, switches: List<EPS>, loadedAt: Long, seal: (EPS) -> Profile): ProfileTimeline {
+        var kept = 0
+        while (kept < starts.size && starts[kept] < from) kept++
+        // reloaded tail without change, keep profiles
+        if (kept == starts.size - 1 && switches.size == 1 && switches[0] == this.switches[kept])
+            return ProfileTimeline(starts, this.switches, profiles, seal, loadedAt)
+        val newStarts = LongArray(kept + switches.size)
+        val newProfiles = AtomicReferenceArray<Profile?>(kept + switches.size)
+        System.arraycopy(starts, 0, newStarts, 0, kept)
+        for (index in 0 until kept) newProfiles.set(index, profiles.get(index))
+        switches.forEachIndexed { index, eps -> newStarts[kept + index] = eps.timestamp }
+        return ProfileTimeline(newStarts, this.switches.subList(0, kept) + switches, newProfiles, seal, loadedAt)
+    }
+
+    companion object {
+
+        val EMPTY = ProfileTimeline(LongArray(0), emptyList(), AtomicReferenceArray(0), { error("Empty profile timeline") }, Long.MIN_VALUE)
+    }
+}
@@ -7,11 +7,11 @@ import android.view.Gravity
 import android.widget.TableRow
 import android.widget.TextView
 import app.aaps.core.data.configuration.Constants
+import app.aaps.core.data.model.GDS
 import app.aaps.core.interfaces.profile.ProfileUtil
 import app.aaps.core.interfaces.stats.DexcomTIR
 import app.aaps.implementation.R
 import dagger.Reusable
-import java.util.Calendar
 import kotlin.math.pow
 import kotlin.math.roundToInt
 import kotlin.math.sqrt
@@ -24,11 +24,10 @@ class DexcomTirImpl : DexcomTIR {
     private var inRange = 0
     private var high = 0
     private var veryHigh = 0
-    private var error = 0
     private var count = 0
 
     private var sum = 0.0
-    val values = mutableListOf<Double>()
+    private var sumOfSquares = 0.0
 
     private val veryLowTirMgdl = Constants.STATS_RANGE_VERY_LOW_MMOL * Constants.MMOLL_TO_MGDL
     private val lowTirMgdl = Constants.STATS_RANGE_LOW_MMOL * Constants.MMOLL_TO_MGDL
@@ -36,27 +35,18 @@ class DexcomTirImpl : DexcomTIR {
     private val highNightTirMgdl = Constants.STATS_RANGE_HIGH_NIGHT_MMOL * Constants.MMOLL_TO_MGDL
     private val veryHighTirMgdl = Constants.STATS_RANGE_VERY_HIGH_MMOL * Constants.MMOLL_TO_MGDL
 
-    private fun error() = run { error++ }
-    private fun veryLow(valueMgdl: Double) = run { values.add(valueMgdl); sum += valueMgdl; veryLow++; count++ }
-    private fun low(valueMgdl: Double) = run { values.add(valueMgdl); sum += valueMgdl; low++; count++ }
-    private fun inRange(valueMgdl: Double) = run { values.add(valueMgdl); sum += valueMgdl; inRange++; count++ }
-    private fun high(valueMgdl: Double) = run { values.add(valueMgdl); sum += valueMgdl; high++; count++ }
-    private fun veryHigh(valueMgdl: Double) = run { values.add(valueMgdl); sum += valueMgdl; veryHigh++; count++ }
-
-    private fun highTirMgdl(hour: Int) = if (hour in 6..22) highTirMgdl else highNightTirMgdl
-
-    fun add(time: Long, valueMgdl: Double) {
-        val c = Calendar.getInstance()
-        c.timeInMillis = time
-        val hour = c[Calendar.HOUR_OF_DAY]
-        when {
-            valueMgdl < 39                -> error()
-            valueMgdl < veryLowTirMgdl    -> veryLow(valueMgdl)
-            valueMgdl < lowTirMgdl        -> low(valueMgdl)
-            valueMgdl > veryHighTirMgdl   -> veryHigh(valueMgdl)
-            valueMgdl > highTirMgdl(hour) -> high(valueMgdl)
-            else                          -> inRange(valueMgdl)
-        }
+    /**
+     * Add daily rollup, values above night high limit are high only during night hours
+     */
+    fun add(stats: GDS) {
+        veryLow += stats.veryLow
+        low += stats.low
+        inRange += stats.target + stats.aboveTarget + stats.aboveNightHigh - stats.aboveNightHighAtNight
+        high += stats.aboveNightHighAtNight + stats.high
+        veryHigh += stats.veryHigh
+        count += stats.count
+        sum += stats.sum
+        sumOfSquares += stats.sumOfSquares
     }
 
     private fun veryLowPct() = if (count > 0) veryLow.toDouble() / count * 100.0 else 0.0
@@ -68,9 +58,7 @@ class DexcomTirImpl : DexcomTIR {
 
     override fun calculateSD(): Double {
         if (count == 0) return 0.0
-        var standardDeviation = 0.0
-        for (num in values) standardDeviation += (num - mean()).pow(2.0)
-        return sqrt(standardDeviation / count)
+        return sqrt((sumOfSquares / count - mean().pow(2.0)).coerceAtLeast(0.0))
     }
 
     override fun toHbA1cView(context: Context): TextView =
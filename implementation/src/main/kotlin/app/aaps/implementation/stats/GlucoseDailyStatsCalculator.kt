@@ -0,0 +1,96 @@
+package app.aaps.implementation.stats
+
+import app.aaps.core.data.configuration.Constants
+import app.aaps.core.data.model.GDS
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.interfaces.utils.MidnightTime
+import dagger.Reusable
+import java.util.Calendar
+import java.util.TimeZone
+import javax.inject.Inject
+
+/**
+ * Daily glucose rollups for statistics
+ *
+ * Rollups of whole days are stored in database and dropped there when glucose values of the day change,
+ * so 7-90 days statistics read one row per day and scan readings only of days changed since last use.
+ *
+ * Bands in mg/dL, limits shared by TIR and Dexcom statistics:
+ * veryLow < 55.8 <= low < 70.2 <= target <= 140.4 < aboveTarget <= 149.4 < aboveNightHigh <= 180 < high <= 250.2 < veryHigh
+ */
+@Reusable
+class GlucoseDailyStatsCalculator @Inject constructor(
+    private val persistenceLayer: PersistenceLayer,
+    private val dateUtil: DateUtil
+) {
+
+    /**
+     * Rollups of days from midnight [days] back until last midnight
+     *
+     * @return rollups sorted by day, days without readings are skipped
+     */
+    fun calculate(days: Long): List<GDS> {
+        val now = dateUtil.now()
+        val startTime = MidnightTime.calcDaysBack(now, days)
+        val endTime = MidnightTime.calc(now)
+        val stored = persistenceLayer.getGlucoseDailyStats(startTime, endTime).associateBy { it.timestamp }
+        val result = ArrayList<GDS>()
+        var day = startTime
+        while (day < endTime) {
+            val next = MidnightTime.calc(day + T.hours(25).msecs())
+            // recalculate after time zone change, night hours are local
+            val stats = stored[day]?.takeIf { it.duration == next - day && it.utcOffset == utcOffset(day) }
+                ?: persistenceLayer.calculateGlucoseDailyStats(day, next) { values -> rollup(day, next, values) }
+            if (stats.count > 0) result.add(stats)
+            day = next
+        }
+        return result
+    }
+
+    companion object {
+
+        val VERY_LOW = Constants.STATS_RANGE_VERY_LOW_MMOL * Constants.MMOLL_TO_MGDL
+        val LOW = Constants.STATS_RANGE_LOW_MMOL * Constants.MMOLL_TO_MGDL
+        val TARGET_HIGH = Constants.STATS_TARGET_HIGH_MMOL * Constants.MMOLL_TO_MGDL
+        val NIGHT_HIGH = Constants.STATS_RANGE_HIGH_NIGHT_MMOL * Constants.MMOLL_TO_MGDL
+        val HIGH = Constants.STATS_RANGE_HIGH_MMOL * Constants.MMOLL_TO_MGDL
+        val VERY_HIGH = Constants.STATS_RANGE_VERY_HIGH_MMOL * Constants.MMOLL_TO_MGDL
+
+        private fun utcOffset(time: Long) = TimeZone.getDefault().getOffset(time).toLong()
+
+        /**
+         * Rollup of glucose values of day [from]..[to]. Readings below 39 mg/dL are errors and skipped
+         */
+        fun rollup(from: Long, to: Long, values: List<GV>): GDS {
+            val stats = GDS(timestamp = from, utcOffset = utcOffset(from), duration = to - from)
+            val calendar = Calendar.getInstance()
+            for (gv in values) {
+                val value = gv.value
+                if (value < 39) continue
+                when {
+                    value < VERY_LOW     -> stats.veryLow++
+                    value < LOW          -> stats.low++
+                    value <= TARGET_HIGH -> stats.target++
+                    value <= NIGHT_HIGH  -> stats.aboveTarget++
+                    value <= HIGH        -> {
+                        stats.aboveNightHigh++
+                        calendar.timeInMillis = gv.timestamp
+                        if (calendar[Calendar.HOUR_OF_DAY] !in 6..22) stats.aboveNightHighAtNight++
+                    }
+
+                    value <= VERY_HIGH   -> stats.high++
+                    else                 -> stats.veryHigh++
+                }
+                if (stats.count == 0 || value < stats.min) stats.min = value
+                if (stats.count == 0 || value > stats.max) stats.max = value
+                stats.count++
+                stats.sum += value
+                stats.sumOfSquares += value * value
+            }
+            return stats
+        }
+    }
+}
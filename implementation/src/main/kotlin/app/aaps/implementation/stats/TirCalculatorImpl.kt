@@ -24,12 +24,15 @@ class TirCalculatorImpl @Inject constructor(
     private val rh: ResourceHelper,
     private val profileUtil: ProfileUtil,
     private val dateUtil: DateUtil,
-    private val persistenceLayer: PersistenceLayer
+    private val persistenceLayer: PersistenceLayer,
+    private val glucoseDailyStatsCalculator: GlucoseDailyStatsCalculator
 ) : TirCalculator {
 
     override fun calculate(days: Long, lowMgdl: Double, highMgdl: Double): LongSparseArray<TIR> {
         if (lowMgdl < 39) throw RuntimeException("Low below 39")
         if (lowMgdl > highMgdl) throw RuntimeException("Low > High")
+        if (lowMgdl == GlucoseDailyStatsCalculator.LOW && (highMgdl == GlucoseDailyStatsCalculator.TARGET_HIGH || highMgdl == GlucoseDailyStatsCalculator.HIGH))
+            return fromDailyStats(days, highMgdl)
         val startTime = MidnightTime.calcDaysBack(days)
         val endTime = MidnightTime.calc(dateUtil.now())
 
@@ -50,6 +53,22 @@ class TirCalculatorImpl @Inject constructor(
         return result
     }
 
+    /**
+     * Ranges matching bands of daily rollups are summed from them
+     */
+    private fun fromDailyStats(days: Long, highMgdl: Double): LongSparseArray<TIR> {
+        val result = LongSparseArray<TIR>()
+        for (stats in glucoseDailyStatsCalculator.calculate(days)) {
+            val tir = TirImpl(stats.timestamp, GlucoseDailyStatsCalculator.LOW, highMgdl)
+            tir.below = stats.veryLow + stats.low
+            tir.inRange = stats.target + if (highMgdl == GlucoseDailyStatsCalculator.HIGH) stats.aboveTarget + stats.aboveNightHigh else 0
+            tir.above = stats.count - tir.below - tir.inRange
+            tir.count = stats.count
+            result.append(stats.timestamp, tir)
+        }
+        return result
+    }
+
     private fun averageTIR(tirs: LongSparseArray<TIR>): TIR {
         val totalTir = if (tirs.size() > 0) {
             TirImpl(tirs.valueAt(0).date, tirs.valueAt(0).lowThreshold, tirs.valueAt(0).highThreshold)
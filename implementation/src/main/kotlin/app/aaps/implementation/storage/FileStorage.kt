@@ -5,8 +5,10 @@ import androidx.documentfile.provider.DocumentFile
 import app.aaps.core.interfaces.storage.Storage
 import java.io.BufferedReader
 import java.io.File
+import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.InputStreamReader
+import java.io.Writer
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -42,4 +44,13 @@ class FileStorage @Inject constructor() : Storage {
         output.close()
     }
 
+    override fun putFileContents(contentResolver: ContentResolver, file: DocumentFile, write: (Writer) -> Unit) {
+        val descriptor = contentResolver.openFileDescriptor(file.uri, "w") ?: throw FileNotFoundException(file.uri.toString())
+        descriptor.use { FileOutputStream(it.fileDescriptor).bufferedWriter().use(write) }
+    }
+
+    override fun appendFileContents(file: File, contents: String) {
+        file.appendText(contents)
+    }
+
 }
\ No newline at end of file
@@ -161,6 +161,14 @@ class UserEntryPresentationHelperImpl @Inject constructor(
         return getCsvHeader() + userEntries.joinToString("\n") { entry -> getCsvEntry(entry) }
     }
 
+    override fun userEntriesToCsv(userEntries: Sequence<UE>, out: Appendable) {
+        out.append(getCsvHeader())
+        userEntries.forEachIndexed { index, entry ->
+            if (index > 0) out.append("\n")
+            out.append(getCsvEntry(entry))
+        }
+    }
+
     private fun getCsvHeader() = rh.gs(
         app.aaps.core.ui.R.string.ue_csv_header,
         csvString(app.aaps.core.ui.R.string.ue_timestamp),
@@ -0,0 +1,165 @@
+package app.aaps.implementation.db
+
+import app.aaps.core.data.model.EB
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.pump.Pump
+import app.aaps.core.objects.extensions.toTemporaryBasal
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito
+import org.mockito.Mockito.`when`
+import kotlin.random.Random
+
+class ProcessedTbrEbDataImplTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var pump: Pump
+    @Mock lateinit var profile1: Profile
+    @Mock lateinit var profile2: Profile
+
+    private lateinit var sut: ProcessedTbrEbDataImpl
+    private var tbs: List<TB> = emptyList()
+    private var ebs: List<EB> = emptyList()
+
+    private val calculationStep = T.mins(5).msecs()
+    private val rangeEnd = now - now % calculationStep
+
+    @BeforeEach
+    fun prepare() {
+        sut = ProcessedTbrEbDataImpl(persistenceLayer, activePlugin, profileFunction)
+        `when`(activePlugin.activePump).thenReturn(pump)
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(true)
+        `when`(profile1.getBasal(anyLong())).thenReturn(1.0)
+        `when`(profile2.getBasal(anyLong())).thenReturn(1.5)
+        // profile switch every 5 hours, gap without profile every day
+        `when`(profileFunction.getProfile(anyLong())).thenAnswer {
+            val time = it.getArgument<Long>(0)
+            when {
+                time % T.days(1).msecs() < T.mins(20).msecs() -> null
+                time / T.hours(5).msecs() % 2 == 0L           -> profile1
+                else                                          -> profile2
+            }
+        }
+        `when`(persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(anyLong(), anyLong())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            tbs.filter { it.timestamp <= to && it.timestamp + it.duration > from }.sortedByDescending { it.timestamp }
+        }
+        `when`(persistenceLayer.getTemporaryBasalActiveAt(anyLong())).thenAnswer { invocation ->
+            val time = invocation.getArgument<Long>(0)
+            tbs.filter { it.timestamp <= time && it.timestamp + it.duration > time }.maxByOrNull { it.timestamp }
+        }
+        `when`(persistenceLayer.getExtendedBolusesActiveBetweenTimeAndTime(anyLong(), anyLong())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            ebs.filter { it.timestamp <= to && it.timestamp + it.duration > from }.sortedByDescending { it.timestamp }
+        }
+        `when`(persistenceLayer.getExtendedBolusActiveAt(anyLong())).thenAnswer { invocation ->
+            val time = invocation.getArgument<Long>(0)
+            ebs.filter { it.timestamp <= time && it.timestamp + it.duration > time }.maxByOrNull { it.timestamp }
+        }
+    }
+
+    @Test
+    fun emptyRange() {
+        val range = sut.getTempBasalIncludingConvertedExtendedForRange(rangeEnd, rangeEnd, calculationStep)
+        assertThat(range.size).isEqualTo(0)
+        assertThat(range.at(rangeEnd)).isNull()
+    }
+
+    @Test
+    fun stepsMatchSingleTimeResolution() {
+        generateData(days = 3)
+        val start = rangeEnd - T.days(3).msecs() - T.hours(2).msecs() + 7
+        val range = sut.getTempBasalIncludingConvertedExtendedForRange(start, rangeEnd, calculationStep)
+
+        assertThat(range.size).isEqualTo(((rangeEnd - start + calculationStep - 1) / calculationStep).toInt())
+        var running = 0
+        for (step in 0 until range.size) {
+            val time = range.timeAt(step)
+            val expected = sut.getTempBasalIncludingConvertedExtended(time)
+            assertThat(range[step]).isEqualTo(expected)
+            assertThat(range.at(time + calculationStep - 1)).isEqualTo(expected)
+            if (expected != null) running++
+        }
+        // data covers all cases: no basal, temporary basal, converted extended bolus
+        assertThat(running).isGreaterThan(0)
+        assertThat(running).isLessThan(range.size)
+        assertThat((0 until range.size).count { range[it]?.type == TB.Type.FAKE_EXTENDED }).isGreaterThan(0)
+    }
+
+    @Test
+    fun resultMatchesPerStepSearch() {
+        generateData(days = 7)
+        val start = rangeEnd - T.days(7).msecs()
+        val range = sut.getTempBasalIncludingConvertedExtendedForRange(start, rangeEnd, calculationStep)
+        assertThat(range.toMap()).isEqualTo(perStepSearch(start, rangeEnd, calculationStep))
+    }
+
+    @Test
+    fun convertedExtendedBolusesAreShared() {
+        tbs = emptyList()
+        ebs = listOf(EB(timestamp = rangeEnd - T.hours(3).msecs(), duration = T.hours(2).msecs(), amount = 2.0))
+        val range = sut.getTempBasalIncludingConvertedExtendedForRange(rangeEnd - T.hours(4).msecs(), rangeEnd, calculationStep)
+        // one record per extended bolus and profile basal, not per step
+        assertThat(range.records.size).isAtMost(2)
+        assertThat((0 until range.size).count { range[it] != null }).isEqualTo(24)
+    }
+
+    @Test
+    fun multiDayRangesMatchPerStepSearch() {
+        `when`(pump.isFakingTempsByExtendedBoluses).thenReturn(false)
+        for (days in listOf(1, 7, 30)) {
+            generateData(days)
+            val start = rangeEnd - T.days(days.toLong()).msecs()
+            val range = sut.getTempBasalIncludingConvertedExtendedForRange(start, rangeEnd, calculationStep)
+            assertThat(range.toMap()).isEqualTo(perStepSearch(start, rangeEnd, calculationStep))
+        }
+    }
+
+    /**
+     * Previous implementation searching list of temporary basals at every step
+     */
+    private fun perStepSearch(startTime: Long, endTime: Long, calculationStep: Long): Map<Long, TB?> {
+        val tempBasals = HashMap<Long, TB?>()
+        val tbs = persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(startTime, endTime)
+        for (t in startTime until endTime step calculationStep) {
+            val tb = tbs.firstOrNull { basal -> basal.timestamp <= t && (basal.timestamp + basal.duration) > t }
+            tempBasals[t] = tb ?: if (activePlugin.activePump.isFakingTempsByExtendedBoluses)
+                profileFunction.getProfile(t)?.let { profile -> persistenceLayer.getExtendedBolusActiveAt(t)?.toTemporaryBasal(profile) }
+            else null
+        }
+        return tempBasals
+    }
+
+    /**
+     * Temporary basals with gaps, some cancelled by a newer one, long ones overlapped by short ones.
+     * Extended boluses running in gaps and under temporary basals.
+     */
+    private fun generateData(days: Int) {
+        val random = Random(days)
+        val newTbs = mutableListOf<TB>()
+        val newEbs = mutableListOf<EB>()
+        var time = rangeEnd - T.days(days.toLong()).msecs() - T.hours(1).msecs()
+        while (time < rangeEnd) {
+            val duration = T.mins(random.nextLong(1, 24) * 5).msecs()
+            newTbs.add(TB(timestamp = time, duration = duration, rate = random.nextInt(0, 200).toDouble(), isAbsolute = false, type = TB.Type.NORMAL))
+            when (random.nextInt(6)) {
+                0    -> newTbs.add(TB(timestamp = time + T.mins(7).msecs(), duration = T.mins(13).msecs(), rate = 0.5, isAbsolute = true, type = TB.Type.NORMAL))
+                1    -> newTbs.add(TB(timestamp = time + T.mins(1).msecs(), duration = duration * 4, rate = 2.0, isAbsolute = true, type = TB.Type.NORMAL))
+                2    -> newEbs.add(EB(timestamp = time + duration - T.mins(10).msecs(), duration = T.mins(90).msecs(), amount = 3.0))
+                else -> Unit
+            }
+            time += duration + T.mins(random.nextLong(0, 6) * 7).msecs()
+        }
+        tbs = newTbs
+        ebs = newEbs
+    }
+}
@@ -116,8 +116,35 @@ class GlucoseStatusTest : TestBaseWithProfile() {
         assertThat(glucoseStatus).isNotNull()
     }
 
+    @Test fun statusIsCalculatedOncePerBucketedDataVersion() {
+        Mockito.`when`(autosensDataStore.getBucketedDataTableCopy()).thenReturn(generateValidBgData())
+        Mockito.`when`(autosensDataStore.bucketedDataVersion).thenReturn(1L)
+        val glucoseStatusProvider = GlucoseStatusProviderImpl(aapsLogger, iobCobCalculatorPlugin, dateUtil, decimalFormatter)
+        val first = glucoseStatusProvider.glucoseStatusData
+        repeat(10) { assertThat(glucoseStatusProvider.glucoseStatusData).isSameInstanceAs(first) }
+        Mockito.verify(autosensDataStore, Mockito.times(1)).getBucketedDataTableCopy()
+
+        // new reading
+        Mockito.`when`(autosensDataStore.getBucketedDataTableCopy()).thenReturn(generateOneCurrentRecordBgData())
+        Mockito.`when`(autosensDataStore.bucketedDataVersion).thenReturn(2L)
+        assertThat(glucoseStatusProvider.glucoseStatusData!!.duraISFminutes).isEqualTo(0.0)
+        Mockito.verify(autosensDataStore, Mockito.times(2)).getBucketedDataTableCopy()
+    }
+
+    @Test fun memoizedStatusIsCheckedForAge() {
+        Mockito.`when`(autosensDataStore.getBucketedDataTableCopy()).thenReturn(generateValidBgData())
+        Mockito.`when`(autosensDataStore.bucketedDataVersion).thenReturn(1L)
+        val glucoseStatusProvider = GlucoseStatusProviderImpl(aapsLogger, iobCobCalculatorPlugin, dateUtil, decimalFormatter)
+        assertThat(glucoseStatusProvider.glucoseStatusData).isNotNull()
+
+        Mockito.`when`(dateUtil.now()).thenReturn(1514766900000L + T.mins(8).msecs())
+        assertThat(glucoseStatusProvider.glucoseStatusData).isNull()
+        assertThat(glucoseStatusProvider.getGlucoseStatusData(true)).isNotNull()
+        Mockito.verify(autosensDataStore, Mockito.times(1)).getBucketedDataTableCopy()
+    }
+
     @Test fun averageShouldNotFailOnEmptyArray() {
-        assertThat(GlucoseStatusProviderImpl.average(ArrayList())).isWithin(0.001).of(0.0)
+        assertThat(GlucoseStatusProviderImpl.average(DoubleArray(0))).isWithin(0.001).of(0.0)
     }
 
     /*
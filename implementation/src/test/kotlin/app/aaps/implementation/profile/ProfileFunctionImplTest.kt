@@ -0,0 +1,75 @@
+package app.aaps.implementation.profile
+
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.nsclient.ProcessedDeviceStatusData
+import app.aaps.core.interfaces.rx.events.EventEffectiveProfileSwitchChanged
+import app.aaps.core.objects.profile.ProfileSealed
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import io.reactivex.rxjava3.core.Single
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+
+class ProfileFunctionImplTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var processedDeviceStatusData: ProcessedDeviceStatusData
+
+    private lateinit var sut: ProfileFunctionImpl
+
+    private val older get() = effectiveProfileSwitch.copy(timestamp = now - T.hours(3).msecs(), originalPercentage = 90)
+    private val newer get() = effectiveProfileSwitch.copy(timestamp = now - T.hours(1).msecs(), originalPercentage = 110)
+
+    @BeforeEach
+    fun prepare() {
+        whenever(persistenceLayer.getEffectiveProfileSwitchesFromTime(0, true)).thenReturn(Single.just(listOf(older, newer)))
+        sut = ProfileFunctionImpl(
+            aapsLogger, preferences, rxBus, rh, activePlugin, persistenceLayer, dateUtil, config, hardLimits, aapsSchedulers, fabricPrivacy, processedDeviceStatusData
+        )
+    }
+
+    private fun valueAt(time: Long): EPS? = (sut.getProfile(time) as ProfileSealed.EPS?)?.value
+
+    @Test
+    fun historyIsLoadedOnce() {
+        assertThat(valueAt(now)).isEqualTo(newer)
+        assertThat(valueAt(now - T.hours(2).msecs())).isEqualTo(older)
+        assertThat(valueAt(now - T.hours(4).msecs())).isNull()
+        // time passes, lookups after loading don't go to database
+        whenever(dateUtil.now()).thenReturn(now + T.mins(10).msecs())
+        assertThat(valueAt(now + T.mins(10).msecs())).isEqualTo(newer)
+        assertThat(sut.getProfile()).isSameInstanceAs(sut.getProfile(now))
+
+        verify(persistenceLayer, times(1)).getEffectiveProfileSwitchesFromTime(any(), any())
+    }
+
+    @Test
+    fun changeReloadsFromChangedTime() {
+        assertThat(valueAt(now)).isEqualTo(newer)
+        val olderProfile = sut.getProfile(now - T.hours(2).msecs())
+
+        val added = effectiveProfileSwitch.copy(timestamp = now - T.mins(5).msecs(), originalPercentage = 120)
+        whenever(persistenceLayer.getEffectiveProfileSwitchesFromTime(newer.timestamp, true)).thenReturn(Single.just(listOf(newer, added)))
+        rxBus.send(EventEffectiveProfileSwitchChanged(newer.timestamp))
+
+        assertThat(valueAt(now)).isEqualTo(added)
+        assertThat(valueAt(now - T.mins(30).msecs())).isEqualTo(newer)
+        // intervals before the change are kept
+        assertThat(sut.getProfile(now - T.hours(2).msecs())).isSameInstanceAs(olderProfile)
+        verify(persistenceLayer, times(1)).getEffectiveProfileSwitchesFromTime(0, true)
+    }
+
+    @Test
+    fun changeBeforeFirstUseIsNotLoaded() {
+        rxBus.send(EventEffectiveProfileSwitchChanged(newer.timestamp))
+        assertThat(valueAt(now)).isEqualTo(newer)
+        verify(persistenceLayer, times(1)).getEffectiveProfileSwitchesFromTime(any(), any())
+    }
+}
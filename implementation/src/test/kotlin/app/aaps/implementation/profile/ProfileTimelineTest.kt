@@ -0,0 +1,102 @@
+package app.aaps.implementation.profile
+
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.objects.profile.ProfileSealed
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class ProfileTimelineTest : TestBaseWithProfile() {
+
+    private var sealed = 0
+    private val seal: (EPS) -> Profile = {
+        sealed++
+        ProfileSealed.EPS(it, activePlugin)
+    }
+
+    private fun eps(timestamp: Long, percentage: Int = 100) = effectiveProfileSwitch.copy(timestamp = timestamp, originalPercentage = percentage)
+
+    @Test
+    fun emptyTimeline() {
+        assertThat(ProfileTimeline.EMPTY.at(now)).isNull()
+        assertThat(ProfileTimeline.EMPTY.size).isEqualTo(0)
+    }
+
+    @Test
+    fun intervalsAreResolved() {
+        val switches = listOf(eps(now - T.hours(3).msecs(), 90), eps(now - T.hours(2).msecs(), 110), eps(now - T.hours(1).msecs(), 120))
+        val sut = ProfileTimeline.EMPTY.replaceFrom(0, switches, now, seal)
+
+        assertThat(sut.size).isEqualTo(3)
+        assertThat(sut.at(now - T.hours(3).msecs() - 1)).isNull()
+        assertThat((sut.at(now - T.hours(3).msecs()) as ProfileSealed.EPS).value).isEqualTo(switches[0])
+        assertThat((sut.at(now - T.hours(2).msecs() - 1) as ProfileSealed.EPS).value).isEqualTo(switches[0])
+        assertThat((sut.at(now - T.hours(2).msecs()) as ProfileSealed.EPS).value).isEqualTo(switches[1])
+        assertThat((sut.at(now + T.days(1).msecs()) as ProfileSealed.EPS).value).isEqualTo(switches[2])
+        // the same instance for whole interval
+        assertThat(sut.at(now - T.mins(50).msecs())).isSameInstanceAs(sut.at(now - T.mins(10).msecs()))
+    }
+
+    @Test
+    fun rangeIsReplaced() {
+        val switches = listOf(eps(now - T.hours(3).msecs(), 90), eps(now - T.hours(2).msecs(), 110), eps(now - T.hours(1).msecs(), 120))
+        val old = ProfileTimeline.EMPTY.replaceFrom(0, switches, now, seal)
+        val kept = old.at(now - T.hours(3).msecs())
+
+        // second record invalidated, new one added
+        val newer = eps(now - T.mins(30).msecs(), 130)
+        val sut = old.replaceFrom(now - T.hours(2).msecs(), listOf(switches[2], newer), now + 1, seal)
+
+        assertThat(sut.size).isEqualTo(3)
+        assertThat(sut.loadedAt).isEqualTo(now + 1)
+        assertThat(sut.at(now - T.hours(3).msecs())).isSameInstanceAs(kept)
+        assertThat((sut.at(now - T.hours(2).msecs()) as ProfileSealed.EPS).value).isEqualTo(switches[0])
+        assertThat((sut.at(now) as ProfileSealed.EPS).value).isEqualTo(newer)
+        // old snapshot is not changed
+        assertThat((old.at(now) as ProfileSealed.EPS).value).isEqualTo(switches[2])
+    }
+
+    @Test
+    fun unchangedTailKeepsProfiles() {
+        val switches = listOf(eps(now - T.hours(3).msecs()), eps(now - T.hours(1).msecs()))
+        val old = ProfileTimeline.EMPTY.replaceFrom(0, switches, now, seal)
+        val profile = old.at(now)
+        sealed = 0
+
+        val sut = old.replaceFrom(switches[1].timestamp, listOf(switches[1]), now + 1000, seal)
+
+        assertThat(sealed).isEqualTo(0)
+        assertThat(sut.loadedAt).isEqualTo(now + 1000)
+        assertThat(sut.at(now)).isSameInstanceAs(profile)
+        assertThat(sealed).isEqualTo(0)
+    }
+
+    @Test
+    fun profilesAreSealedOnFirstUse() {
+        val switches = (1..100).map { eps(now - T.hours(it.toLong()).msecs()) }.reversed()
+        val sut = ProfileTimeline.EMPTY.replaceFrom(0, switches, now, seal)
+        assertThat(sealed).isEqualTo(0)
+
+        val profile = sut.at(now)
+        assertThat(sealed).isEqualTo(1)
+        assertThat(sut.at(now - T.mins(30).msecs())).isSameInstanceAs(profile)
+        assertThat(sealed).isEqualTo(1)
+
+        // sealed profiles are kept by replaced snapshot, only used intervals are sealed
+        val replaced = sut.replaceFrom(now - T.hours(2).msecs(), listOf(eps(now - T.hours(2).msecs(), 120)), now + 1, seal)
+        assertThat((replaced.at(now) as ProfileSealed.EPS).value.originalPercentage).isEqualTo(120)
+        assertThat(replaced.at(now - T.hours(50).msecs())).isNotNull()
+        assertThat(sealed).isEqualTo(3)
+        assertThat(sut.at(now)).isSameInstanceAs(profile)
+    }
+
+    @Test
+    fun allIntervalsRemoved() {
+        val old = ProfileTimeline.EMPTY.replaceFrom(0, listOf(eps(now - T.hours(1).msecs())), now, seal)
+        val sut = old.replaceFrom(0, emptyList(), now, seal)
+        assertThat(sut.size).isEqualTo(0)
+        assertThat(sut.at(now)).isNull()
+    }
+}
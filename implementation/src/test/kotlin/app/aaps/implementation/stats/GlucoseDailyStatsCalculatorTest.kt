@@ -0,0 +1,107 @@
+package app.aaps.implementation.stats
+
+import app.aaps.core.data.model.GDS
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.utils.MidnightTime
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.whenever
+import java.util.Calendar
+import kotlin.math.sqrt
+import kotlin.random.Random
+
+class GlucoseDailyStatsCalculatorTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+
+    private lateinit var sut: GlucoseDailyStatsCalculator
+    private val readings = mutableListOf<GV>()
+    private val stored = sortedMapOf<Long, GDS>()
+    private var calculations = 0
+
+    @BeforeEach
+    fun prepare() {
+        sut = GlucoseDailyStatsCalculator(persistenceLayer, dateUtil)
+        val random = Random(1)
+        readings.clear()
+        var time = now - T.days(10).msecs()
+        while (time < now) {
+            readings.add(GV(timestamp = time, raw = null, value = random.nextDouble(30.0, 400.0), trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.UNKNOWN))
+            time += T.mins(5).msecs()
+        }
+        stored.clear()
+        calculations = 0
+        whenever(persistenceLayer.getGlucoseDailyStats(any(), any())).thenAnswer { invocation ->
+            stored.subMap(invocation.getArgument(0), invocation.getArgument(1)).values.toList()
+        }
+        whenever(persistenceLayer.calculateGlucoseDailyStats(any(), any(), anyOrNull())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            val calculate = invocation.getArgument<(List<GV>) -> GDS>(2)
+            calculations++
+            calculate(readings.filter { it.timestamp in from until to }).also { stored[from] = it }
+        }
+    }
+
+    @Test
+    fun rollupMatchesReadings() {
+        val days = sut.calculate(7)
+        assertThat(days).hasSize(7)
+        assertThat(days.first().timestamp).isEqualTo(MidnightTime.calcDaysBack(now, 7))
+        assertThat(days.last().timestamp + days.last().duration).isEqualTo(MidnightTime.calc(now))
+        for (day in days) {
+            val values = readings.filter { it.timestamp >= day.timestamp && it.timestamp < day.timestamp + day.duration && it.value >= 39 }
+            assertThat(day.count).isEqualTo(values.size)
+            assertThat(day.veryLow).isEqualTo(values.count { it.value < GlucoseDailyStatsCalculator.VERY_LOW })
+            assertThat(day.veryLow + day.low).isEqualTo(values.count { it.value < GlucoseDailyStatsCalculator.LOW })
+            assertThat(day.target).isEqualTo(values.count { it.value >= GlucoseDailyStatsCalculator.LOW && it.value <= GlucoseDailyStatsCalculator.TARGET_HIGH })
+            assertThat(day.high + day.veryHigh).isEqualTo(values.count { it.value > GlucoseDailyStatsCalculator.HIGH })
+            assertThat(day.aboveNightHighAtNight).isEqualTo(values.count { it.value > GlucoseDailyStatsCalculator.NIGHT_HIGH && it.value <= GlucoseDailyStatsCalculator.HIGH && hour(it.timestamp) !in 6..22 })
+            assertThat(day.veryLow + day.low + day.target + day.aboveTarget + day.aboveNightHigh + day.high + day.veryHigh).isEqualTo(day.count)
+            assertThat(day.sum).isWithin(1e-6).of(values.sumOf { it.value })
+            assertThat(day.min).isEqualTo(values.minOf { it.value })
+            assertThat(day.max).isEqualTo(values.maxOf { it.value })
+        }
+    }
+
+    @Test
+    fun storedDaysAreNotRecalculated() {
+        sut.calculate(7)
+        assertThat(calculations).isEqualTo(7)
+
+        calculations = 0
+        val days = sut.calculate(7)
+        assertThat(calculations).isEqualTo(0)
+        assertThat(days).hasSize(7)
+
+        // new readings of one day deleted its rollup
+        stored.remove(days[3].timestamp)
+        sut.calculate(7)
+        assertThat(calculations).isEqualTo(1)
+        // longer period calculates only older days
+        sut.calculate(9)
+        assertThat(calculations).isEqualTo(3)
+    }
+
+    @Test
+    fun dexcomStatisticsFromRollups() {
+        val tir = DexcomTirImpl()
+        for (day in sut.calculate(7)) tir.add(day)
+
+        val values = readings.filter { it.timestamp >= MidnightTime.calcDaysBack(now, 7) && it.timestamp < MidnightTime.calc(now) && it.value >= 39 }.map { it.value }
+        val mean = values.average()
+        val sd = sqrt(values.sumOf { (it - mean) * (it - mean) } / values.size)
+        assertThat(tir.calculateSD()).isWithin(1e-6).of(sd)
+    }
+
+    private fun hour(time: Long) = Calendar.getInstance().also { it.timeInMillis = time }[Calendar.HOUR_OF_DAY]
+}
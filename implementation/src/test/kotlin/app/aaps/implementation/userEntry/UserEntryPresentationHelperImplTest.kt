@@ -0,0 +1,50 @@
+package app.aaps.implementation.userEntry
+
+import app.aaps.core.data.model.UE
+import app.aaps.core.data.ue.Action
+import app.aaps.core.data.ue.Sources
+import app.aaps.core.data.ue.ValueWithUnit
+import app.aaps.core.interfaces.utils.Translator
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+
+class UserEntryPresentationHelperImplTest : TestBaseWithProfile() {
+
+    @Mock lateinit var translator: Translator
+
+    private lateinit var sut: UserEntryPresentationHelperImpl
+
+    @BeforeEach
+    fun prepare() {
+        whenever(rh.gs(anyInt())).thenReturn("Column")
+        whenever(translator.translate(any<Action>())).thenAnswer { it.getArgument<Action>(0).name }
+        whenever(translator.translate(any<Sources>())).thenAnswer { it.getArgument<Sources>(0).name }
+        sut = UserEntryPresentationHelperImpl(translator, profileUtil, rh, dateUtil, decimalFormatter)
+    }
+
+    @Test
+    fun streamedCsvMatchesCsv() {
+        val entries = listOf(
+            UE(id = 3, timestamp = now, utcOffset = 0, action = Action.BOLUS, source = Sources.InsulinDialog, note = "with \"quotes\"", values = listOf(ValueWithUnit.Insulin(1.5))),
+            UE(id = 2, timestamp = now - 1000, utcOffset = 0, action = Action.CARBS, source = Sources.CarbDialog, note = "two\nlines", values = listOf(ValueWithUnit.Gram(20))),
+            UE(id = 1, timestamp = now - 2000, utcOffset = 0, action = Action.TEMP_BASAL, source = Sources.TempBasalDialog, note = "", values = listOf(ValueWithUnit.Mgdl(100.0), ValueWithUnit.SimpleString("a")))
+        )
+        val streamed = StringBuilder()
+        sut.userEntriesToCsv(entries.asSequence(), streamed)
+        assertThat(streamed.toString()).isEqualTo(sut.userEntriesToCsv(entries))
+        assertThat(streamed.lines()).hasSize(4)
+    }
+
+    @Test
+    fun streamedCsvOfNoEntriesIsHeaderOnly() {
+        val streamed = StringBuilder()
+        sut.userEntriesToCsv(emptySequence(), streamed)
+        assertThat(streamed.toString()).isEqualTo(sut.userEntriesToCsv(emptyList()))
+    }
+}
@@ -0,0 +1,27 @@
+package app.aaps.plugins.aps.openAPS
+
+import java.text.DecimalFormat
+import java.util.Locale
+
+/**
+ * [DecimalFormat] of [pattern] created once instead of on every formatted number.
+ *
+ * The format is recreated when the default format locale changes, so the output
+ * is the same as of `DecimalFormat(pattern).format(value)`.
+ * Not thread safe, like the determine_basal classes using it.
+ */
+class CachedDecimalFormat(private val pattern: String) {
+
+    private var locale: Locale? = null
+    private var format: DecimalFormat? = null
+
+    fun format(value: Double): String {
+        val current = Locale.getDefault(Locale.Category.FORMAT)
+        val cached = format
+        if (cached != null && current == locale) return cached.format(value)
+        return DecimalFormat(pattern).also {
+            format = it
+            locale = current
+        }.format(value)
+    }
+}
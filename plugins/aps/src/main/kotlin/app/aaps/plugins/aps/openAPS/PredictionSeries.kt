@@ -0,0 +1,70 @@
+package app.aaps.plugins.aps.openAPS
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * One predicted BG curve of determine_basal (IOB, ZT, COB, aCOB, UAM) in 5 min steps.
+ *
+ * Values live in a primitive array which is reused by the next loop run,
+ * so the prediction loop doesn't box a Double per tick. Like predBGs in oref0
+ * the curve is truncated at [capacity] points (4 hours).
+ */
+class PredictionSeries(private val capacity: Int = 48) {
+
+    private val values = DoubleArray(capacity)
+
+    var size = 0
+        private set
+
+    operator fun get(index: Int): Double = values[index]
+
+    fun last(): Double = values[size - 1]
+
+    /**
+     * Start a new curve at current [bg]
+     */
+    fun reset(bg: Double) {
+        values[0] = bg
+        size = 1
+    }
+
+    /**
+     * Append [value], ignored once the curve is full
+     */
+    fun add(value: Double) {
+        if (size < capacity) values[size++] = value
+    }
+
+    /**
+     * Round all values to whole mg/dl in range 39 - 401
+     */
+    fun roundAndLimit() {
+        for (i in 0 until size) {
+            val value = min(401.0, max(39.0, values[i]))
+            values[i] = if (value.isNaN()) Double.NaN else Math.round(value).toDouble()
+        }
+    }
+
+    /**
+     * Drop trailing values equal to the previous one, keeping at least [minIndex] values
+     */
+    fun trimFlatTail(minIndex: Int) {
+        for (i in size - 1 downTo minIndex) {
+            if (values[i - 1] != values[i]) break
+            else size--
+        }
+    }
+
+    /**
+     * Drop trailing values while they are rising and above [target], keeping at least [minIndex] values
+     */
+    fun trimRisingTail(minIndex: Int, target: Double) {
+        for (i in size - 1 downTo minIndex) {
+            if (values[i - 1] >= values[i] || values[i] <= target) break
+            else size--
+        }
+    }
+
+    fun toIntList(): List<Int> = List(size) { values[it].toInt() }
+}
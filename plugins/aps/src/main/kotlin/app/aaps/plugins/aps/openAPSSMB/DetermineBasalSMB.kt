@@ -11,7 +11,8 @@ import app.aaps.core.interfaces.aps.Predictions
 import app.aaps.core.interfaces.aps.RT
 import app.aaps.core.interfaces.profile.ProfileUtil
 import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
-import java.text.DecimalFormat
+import app.aaps.plugins.aps.openAPS.CachedDecimalFormat
+import app.aaps.plugins.aps.openAPS.PredictionSeries
 import java.time.Instant
 import java.time.ZoneId
 import javax.inject.Inject
@@ -31,7 +32,16 @@ class DetermineBasalSMB @Inject constructor(
     private val consoleError = mutableListOf<String>()
     private val consoleLog = mutableListOf<String>()
 
-    private fun Double.toFixed2(): String = DecimalFormat("0.00#").format(round(this, 2))
+    // reused by every run to keep the prediction loop free of allocations
+    private val IOBpredBGs = PredictionSeries()
+    private val COBpredBGs = PredictionSeries()
+    private val aCOBpredBGs = PredictionSeries()
+    private val UAMpredBGs = PredictionSeries()
+    private val ZTpredBGs = PredictionSeries()
+    private val fixed2Format = CachedDecimalFormat("0.00#")
+    private val withoutZerosFormat = CachedDecimalFormat("0.##")
+
+    private fun Double.toFixed2(): String = fixed2Format.format(round(this, 2))
 
     fun round_basal(value: Double): Double = value
 
@@ -43,7 +53,7 @@ class DetermineBasalSMB @Inject constructor(
         return Math.round(value * scale) / scale
     }
 
-    fun Double.withoutZeros(): String = DecimalFormat("0.##").format(this)
+    fun Double.withoutZeros(): String = withoutZerosFormat.format(this)
     fun round(value: Double): Int = value.roundToInt()
 
     // we expect BG to rise or fall at the rate of BGI,
@@ -388,16 +398,11 @@ class DetermineBasalSMB @Inject constructor(
 
         // generate predicted future BGs based on IOB, COB, and current absorption rate
 
-        var COBpredBGs = mutableListOf<Double>()
-        var aCOBpredBGs = mutableListOf<Double>()
-        var IOBpredBGs = mutableListOf<Double>()
-        var UAMpredBGs = mutableListOf<Double>()
-        var ZTpredBGs = mutableListOf<Double>()
-        COBpredBGs.add(bg)
-        aCOBpredBGs.add(bg)
-        IOBpredBGs.add(bg)
-        ZTpredBGs.add(bg)
-        UAMpredBGs.add(bg)
+        COBpredBGs.reset(bg)
+        aCOBpredBGs.reset(bg)
+        IOBpredBGs.reset(bg)
+        ZTpredBGs.reset(bg)
+        UAMpredBGs.reset(bg)
 
         var enableSMB = enable_smb(profile, microBolusAllowed, meal_data, target_bg)
 
@@ -529,24 +534,24 @@ class DetermineBasalSMB @Inject constructor(
             //console.error(iobTick);
             val predBGI: Double = round((-iobTick.activity * sens * 5), 2)
             val IOBpredBGI: Double =
-                if (dynIsfMode) round((-iobTick.activity * (1800 / (profile.TDD * (ln((max(IOBpredBGs[IOBpredBGs.size - 1], 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
+                if (dynIsfMode) round((-iobTick.activity * (1800 / (profile.TDD * (ln((max(IOBpredBGs.last(), 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
                 else predBGI
             iobTick.iobWithZeroTemp ?: error("iobTick.iobWithZeroTemp missing")
             // try to find where is crashing https://console.firebase.google.com/u/0/project/androidaps-c34f8/crashlytics/app/android:info.nightscout.androidaps/issues/950cdbaf63d545afe6d680281bb141e5?versions=3.3.0-dev-d%20(1500)&time=last-thirty-days&types=crash&sessionEventKey=673BF7DD032300013D4704707A053273_2017608123846397475
             if (iobTick.iobWithZeroTemp!!.activity.isNaN() || sens.isNaN())
                 fabricPrivacy.logCustom("iobTick.iobWithZeroTemp!!.activity=${iobTick.iobWithZeroTemp!!.activity} sens=$sens")
             val predZTBGI =
-                if (dynIsfMode) round((-iobTick.iobWithZeroTemp!!.activity * (1800 / (profile.TDD * (ln((max(ZTpredBGs[ZTpredBGs.size - 1], 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
+                if (dynIsfMode) round((-iobTick.iobWithZeroTemp!!.activity * (1800 / (profile.TDD * (ln((max(ZTpredBGs.last(), 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
                 else round((-iobTick.iobWithZeroTemp!!.activity * sens * 5), 2)
             val predUAMBGI =
-                if (dynIsfMode) round((-iobTick.activity * (1800 / (profile.TDD * (ln((max(UAMpredBGs[UAMpredBGs.size - 1], 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
+                if (dynIsfMode) round((-iobTick.activity * (1800 / (profile.TDD * (ln((max(UAMpredBGs.last(), 39.0) / profile.insulinDivisor) + 1)))) * 5), 2)
                 else predBGI
             // for IOBpredBGs, predicted deviation impact drops linearly from current deviation down to zero
             // over 60 minutes (data points every 5m)
             val predDev: Double = ci * (1 - min(1.0, IOBpredBGs.size / (60.0 / 5.0)))
-            IOBpredBG = IOBpredBGs[IOBpredBGs.size - 1] + IOBpredBGI + predDev
+            IOBpredBG = IOBpredBGs.last() + IOBpredBGI + predDev
             // calculate predBGs with long zero temp without deviations
-            val ZTpredBG = ZTpredBGs[ZTpredBGs.size - 1] + predZTBGI
+            val ZTpredBG = ZTpredBGs.last() + predZTBGI
             // for COBpredBGs, predicted carb impact drops linearly from current carb impact down to zero
             // eventually accounting for all carbs (if they can be absorbed over DIA)
             val predCI: Double = max(0.0, max(0.0, ci) * (1 - COBpredBGs.size / max(cid * 2, 1.0)))
@@ -560,11 +565,14 @@ class DetermineBasalSMB @Inject constructor(
                 throw Exception("remainingCI=$remainingCI intervals=$intervals remainingCIpeak=$remainingCIpeak")
             }
             remainingCItotal += predCI + remainingCI
-            remainingCIs.add(round(remainingCI))
-            predCIs.add(round(predCI))
+            // only logged with COB
+            if (meal_data.mealCOB > 0) {
+                remainingCIs.add(round(remainingCI))
+                predCIs.add(round(predCI))
+            }
             //console.log(round(predCI,1)+"+"+round(remainingCI,1)+" ");
-            COBpredBG = COBpredBGs[COBpredBGs.size - 1] + predBGI + min(0.0, predDev) + predCI + remainingCI
-            aCOBpredBG = aCOBpredBGs[aCOBpredBGs.size - 1] + predBGI + min(0.0, predDev) + predACI
+            COBpredBG = COBpredBGs.last() + predBGI + min(0.0, predDev) + predCI + remainingCI
+            aCOBpredBG = aCOBpredBGs.last() + predBGI + min(0.0, predDev) + predACI
             // for UAMpredBGs, predicted carb impact drops at slopeFromDeviations
             // calculate predicted CI from UAM based on slopeFromDeviations
             val predUCIslope = max(0.0, uci + (UAMpredBGs.size * slopeFromDeviations))
@@ -578,14 +586,14 @@ class DetermineBasalSMB @Inject constructor(
                 //console.error(UAMpredBGs.length,slopeFromDeviations, predUCI);
                 UAMduration = round((UAMpredBGs.size + 1) * 5 / 60.0, 1)
             }
-            UAMpredBG = UAMpredBGs[UAMpredBGs.size - 1] + predUAMBGI + min(0.0, predDev) + predUCI
+            UAMpredBG = UAMpredBGs.last() + predUAMBGI + min(0.0, predDev) + predUCI
             //console.error(predBGI, predCI, predUCI);
             // truncate all BG predictions at 4 hours
-            if (IOBpredBGs.size < 48) IOBpredBGs.add(IOBpredBG)
-            if (COBpredBGs.size < 48) COBpredBGs.add(COBpredBG)
-            if (aCOBpredBGs.size < 48) aCOBpredBGs.add(aCOBpredBG)
-            if (UAMpredBGs.size < 48) UAMpredBGs.add(UAMpredBG)
-            if (ZTpredBGs.size < 48) ZTpredBGs.add(ZTpredBG)
+            IOBpredBGs.add(IOBpredBG)
+            COBpredBGs.add(COBpredBG)
+            aCOBpredBGs.add(aCOBpredBG)
+            UAMpredBGs.add(UAMpredBG)
+            ZTpredBGs.add(ZTpredBG)
             // calculate minGuardBGs without a wait from COB, UAM, IOB predBGs
             if (COBpredBG < minCOBGuardBG) minCOBGuardBG = round(COBpredBG).toDouble()
             if (UAMpredBG < minUAMGuardBG) minUAMGuardBG = round(UAMpredBG).toDouble()
@@ -615,47 +623,32 @@ class DetermineBasalSMB @Inject constructor(
             consoleError.add("remainingCIs:      " + remainingCIs.joinToString(separator = " "))
         }
         rT.predBGs = Predictions()
-        IOBpredBGs = IOBpredBGs.map { round(min(401.0, max(39.0, it)), 0) }.toMutableList()
-        for (i in IOBpredBGs.size - 1 downTo 13) {
-            if (IOBpredBGs[i - 1] != IOBpredBGs[i]) break
-            else IOBpredBGs.removeAt(IOBpredBGs.lastIndex)
-        }
-        rT.predBGs?.IOB = IOBpredBGs.map { it.toInt() }
-        lastIOBpredBG = round(IOBpredBGs[IOBpredBGs.size - 1]).toDouble()
-        ZTpredBGs = ZTpredBGs.map { round(min(401.0, max(39.0, it)), 0) }.toMutableList()
-        for (i in ZTpredBGs.size - 1 downTo 7) {
-            // stop displaying ZTpredBGs once they're rising and above target
-            if (ZTpredBGs[i - 1] >= ZTpredBGs[i] || ZTpredBGs[i] <= target_bg) break
-            else ZTpredBGs.removeAt(ZTpredBGs.lastIndex)
-        }
-        rT.predBGs?.ZT = ZTpredBGs.map { it.toInt() }
+        IOBpredBGs.roundAndLimit()
+        IOBpredBGs.trimFlatTail(13)
+        rT.predBGs?.IOB = IOBpredBGs.toIntList()
+        lastIOBpredBG = round(IOBpredBGs.last()).toDouble()
+        ZTpredBGs.roundAndLimit()
+        // stop displaying ZTpredBGs once they're rising and above target
+        ZTpredBGs.trimRisingTail(7, target_bg)
+        rT.predBGs?.ZT = ZTpredBGs.toIntList()
         if (meal_data.mealCOB > 0) {
-            aCOBpredBGs = aCOBpredBGs.map { round(min(401.0, max(39.0, it)), 0) }.toMutableList()
-            for (i in aCOBpredBGs.size - 1 downTo 13) {
-                if (aCOBpredBGs[i - 1] != aCOBpredBGs[i]) break
-                else aCOBpredBGs.removeAt(aCOBpredBGs.lastIndex)
-            }
+            aCOBpredBGs.roundAndLimit()
+            aCOBpredBGs.trimFlatTail(13)
         }
         if (meal_data.mealCOB > 0 && (ci > 0 || remainingCIpeak > 0)) {
-            COBpredBGs = COBpredBGs.map { round(min(401.0, max(39.0, it)), 0) }.toMutableList()
-            for (i in COBpredBGs.size - 1 downTo 13) {
-                if (COBpredBGs[i - 1] != COBpredBGs[i]) break
-                else COBpredBGs.removeAt(COBpredBGs.lastIndex)
-            }
-            rT.predBGs?.COB = COBpredBGs.map { it.toInt() }
-            lastCOBpredBG = COBpredBGs[COBpredBGs.size - 1]
-            eventualBG = max(eventualBG, round(COBpredBGs[COBpredBGs.size - 1], 0))
+            COBpredBGs.roundAndLimit()
+            COBpredBGs.trimFlatTail(13)
+            rT.predBGs?.COB = COBpredBGs.toIntList()
+            lastCOBpredBG = COBpredBGs.last()
+            eventualBG = max(eventualBG, round(COBpredBGs.last(), 0))
         }
         if (ci > 0 || remainingCIpeak > 0) {
             if (enableUAM) {
-                UAMpredBGs = UAMpredBGs.map { round(min(401.0, max(39.0, it)), 0) }.toMutableList()
-                for (i in UAMpredBGs.size - 1 downTo 13) {
-                    if (UAMpredBGs[i - 1] != UAMpredBGs[i]) break
-                    else UAMpredBGs.removeAt(UAMpredBGs.lastIndex)
-                }
-                rT.predBGs?.UAM = UAMpredBGs.map { it.toInt() }
-                lastUAMpredBG = UAMpredBGs[UAMpredBGs.size - 1]
-                eventualBG = max(eventualBG, round(UAMpredBGs[UAMpredBGs.size - 1], 0))
+                UAMpredBGs.roundAndLimit()
+                UAMpredBGs.trimFlatTail(13)
+                rT.predBGs?.UAM = UAMpredBGs.toIntList()
+                lastUAMpredBG = UAMpredBGs.last()
+                eventualBG = max(eventualBG, round(UAMpredBGs.last(), 0))
             }
 
             // set eventualBG based on COB or UAM predBGs
@@ -811,14 +804,14 @@ class DetermineBasalSMB @Inject constructor(
         var minutesAboveMinBG = 240
         var minutesAboveThreshold = 240
         if (meal_data.mealCOB > 0 && (ci > 0 || remainingCIpeak > 0)) {
-            for (i in COBpredBGs.indices) {
+            for (i in 0 until COBpredBGs.size) {
                 //console.error(COBpredBGs[i], min_bg);
                 if (COBpredBGs[i] < min_bg) {
                     minutesAboveMinBG = 5 * i
                     break
                 }
             }
-            for (i in COBpredBGs.indices) {
+            for (i in 0 until COBpredBGs.size) {
                 //console.error(COBpredBGs[i], threshold);
                 if (COBpredBGs[i] < threshold) {
                     minutesAboveThreshold = 5 * i
@@ -826,14 +819,14 @@ class DetermineBasalSMB @Inject constructor(
                 }
             }
         } else {
-            for (i in IOBpredBGs.indices) {
+            for (i in 0 until IOBpredBGs.size) {
                 //console.error(IOBpredBGs[i], min_bg);
                 if (IOBpredBGs[i] < min_bg) {
                     minutesAboveMinBG = 5 * i
                     break
                 }
             }
-            for (i in IOBpredBGs.indices) {
+            for (i in 0 until IOBpredBGs.size) {
                 //console.error(IOBpredBGs[i], threshold);
                 if (IOBpredBGs[i] < threshold) {
                     minutesAboveThreshold = 5 * i
@@ -0,0 +1,81 @@
+package app.aaps.plugins.aps.openAPS
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class PredictionSeriesTest {
+
+    private fun series(vararg values: Double, capacity: Int = 48) =
+        PredictionSeries(capacity).also { series ->
+            series.reset(values[0])
+            for (i in 1 until values.size) series.add(values[i])
+        }
+
+    @Test
+    fun addStopsAtCapacity() {
+        val sut = series(100.0, capacity = 4)
+        repeat(10) { sut.add(101.0 + it) }
+        assertThat(sut.size).isEqualTo(4)
+        assertThat(sut.toIntList()).containsExactly(100, 101, 102, 103).inOrder()
+        assertThat(sut.last()).isEqualTo(103.0)
+    }
+
+    @Test
+    fun resetReusesBuffer() {
+        val sut = series(100.0, 110.0, 120.0)
+        sut.reset(90.0)
+        assertThat(sut.size).isEqualTo(1)
+        assertThat(sut[0]).isEqualTo(90.0)
+        sut.add(95.0)
+        assertThat(sut.toIntList()).containsExactly(90, 95).inOrder()
+    }
+
+    @Test
+    fun roundAndLimit() {
+        val sut = series(20.0, 39.4, 100.5, 100.49, 400.6, 1000.0, Double.NaN)
+        sut.roundAndLimit()
+        assertThat(sut[0]).isEqualTo(39.0)
+        assertThat(sut[1]).isEqualTo(39.0)
+        assertThat(sut[2]).isEqualTo(101.0)
+        assertThat(sut[3]).isEqualTo(100.0)
+        assertThat(sut[4]).isEqualTo(401.0)
+        assertThat(sut[5]).isEqualTo(401.0)
+        assertThat(sut[6]).isNaN()
+    }
+
+    @Test
+    fun trimFlatTail() {
+        val sut = series(100.0, 110.0, 120.0, 120.0, 120.0)
+        sut.trimFlatTail(1)
+        assertThat(sut.toIntList()).containsExactly(100, 110, 120).inOrder()
+    }
+
+    @Test
+    fun trimFlatTailKeepsMinIndex() {
+        val sut = series(100.0, 100.0, 100.0, 100.0)
+        sut.trimFlatTail(2)
+        assertThat(sut.toIntList()).containsExactly(100, 100).inOrder()
+    }
+
+    @Test
+    fun trimRisingTailAboveTarget() {
+        val sut = series(100.0, 90.0, 95.0, 105.0, 115.0)
+        sut.trimRisingTail(1, 100.0)
+        // 95 is below target, so the tail stops rising above target there
+        assertThat(sut.toIntList()).containsExactly(100, 90, 95).inOrder()
+    }
+
+    @Test
+    fun trimRisingTailStopsOnFall() {
+        val sut = series(150.0, 160.0, 155.0, 170.0)
+        sut.trimRisingTail(1, 100.0)
+        assertThat(sut.toIntList()).containsExactly(150, 160, 155).inOrder()
+    }
+
+    @Test
+    fun trimRisingTailKeepsMinIndex() {
+        val sut = series(150.0, 160.0, 170.0, 180.0)
+        sut.trimRisingTail(2, 100.0)
+        assertThat(sut.toIntList()).containsExactly(150, 160).inOrder()
+    }
+}
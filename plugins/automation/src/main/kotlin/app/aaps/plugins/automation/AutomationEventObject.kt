@@ -9,9 +9,11 @@ import app.aaps.plugins.automation.actions.ActionDummy
 import app.aaps.plugins.automation.actions.ActionStopProcessing
 import app.aaps.plugins.automation.triggers.TriggerConnector
 import app.aaps.plugins.automation.triggers.TriggerDummy
+import app.aaps.plugins.automation.triggers.TriggerEvaluationContext
 import dagger.android.HasAndroidInjector
 import org.json.JSONArray
 import org.json.JSONObject
+import java.util.UUID
 import javax.inject.Inject
 
 class AutomationEventObject(private val injector: HasAndroidInjector) : AutomationEvent {
@@ -19,6 +21,7 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
     @Inject lateinit var aapsLogger: AAPSLogger
     @Inject lateinit var dateUtil: DateUtil
 
+    var id: String = UUID.randomUUID().toString() // stable over edits and renames, keys run state
     override var title: String = ""
     override var isEnabled = true
     var systemAction: Boolean = false // true = generated by AAPS, false = entered by user
@@ -37,6 +40,8 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
 
     override fun canRun(): Boolean = trigger.shouldRun()
     override fun preconditionCanRun(): Boolean = getPreconditions().shouldRun()
+    fun canRun(context: TriggerEvaluationContext): Boolean = trigger.shouldRun(context)
+    fun preconditionCanRun(context: TriggerEvaluationContext): Boolean = getPreconditions().shouldRun(context)
     override fun firstActionIcon(): Int? = actions.firstOrNull()?.icon()
 
     internal fun getPreconditions(): TriggerConnector {
@@ -65,6 +70,7 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
         val array = JSONArray()
         for (a in actions) array.put(a.toJSON())
         return JSONObject()
+            .put("id", id)
             .put("title", title)
             .put("enabled", isEnabled)
             .put("systemAction", systemAction)
@@ -78,6 +84,7 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
 
     fun fromJSON(data: String): AutomationEventObject {
         val d = JSONObject(data)
+        id = d.optString("id").ifEmpty { UUID.randomUUID().toString() }
         title = d.optString("title", "")
         isEnabled = d.optBoolean("enabled", true)
         systemAction = d.optBoolean("systemAction", false)
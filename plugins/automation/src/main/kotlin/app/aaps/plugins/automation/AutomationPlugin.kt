@@ -4,6 +4,7 @@ import android.content.Context
 import android.os.Handler
 import android.os.HandlerThread
 import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import androidx.preference.PreferenceCategory
 import androidx.preference.PreferenceManager
 import androidx.preference.PreferenceScreen
@@ -64,6 +65,8 @@ import app.aaps.plugins.automation.triggers.TriggerCOB
 import app.aaps.plugins.automation.triggers.TriggerCannulaAge
 import app.aaps.plugins.automation.triggers.TriggerConnector
 import app.aaps.plugins.automation.triggers.TriggerDelta
+import app.aaps.plugins.automation.triggers.TriggerEvaluationContext
+import app.aaps.plugins.automation.triggers.TriggerEvaluationContextFactory
 import app.aaps.plugins.automation.triggers.TriggerHeartRate
 import app.aaps.plugins.automation.triggers.TriggerInsulinAge
 import app.aaps.plugins.automation.triggers.TriggerIob
@@ -110,7 +113,8 @@ class AutomationPlugin @Inject constructor(
     private val locationServiceHelper: LocationServiceHelper,
     private val dateUtil: DateUtil,
     private val activePlugin: ActivePlugin,
-    private val timerUtil: TimerUtil
+    private val timerUtil: TimerUtil,
+    private val evaluationContextFactory: TriggerEvaluationContextFactory
 ) : PluginBaseWithPreferences(
     pluginDescription = PluginDescription()
         .mainType(PluginType.GENERAL)
@@ -204,6 +208,9 @@ class AutomationPlugin @Inject constructor(
         super.onStop()
     }
 
+    /**
+     * Store rule definitions. Called on [EventAutomationDataChanged] only, run state is stored by [storeRunState]
+     */
     private fun storeToSP() {
         val array = JSONArray()
         val iterator = synchronized(this) { automationEvents.toMutableList().iterator() }
@@ -222,12 +229,14 @@ class AutomationPlugin @Inject constructor(
     @Synchronized
     private fun loadFromSP() {
         automationEvents.clear()
+        var missingIds = false
         val data = preferences.get(AutomationStringKey.AutomationEvents)
         if (data != "")
             try {
                 val array = JSONArray(data)
                 for (i in 0 until array.length()) {
                     val o = array.getJSONObject(i)
+                    if (!o.has("id")) missingIds = true
                     val event = AutomationEventObject(injector).fromJSON(o.toString())
                     automationEvents.add(event)
                 }
@@ -236,6 +245,35 @@ class AutomationPlugin @Inject constructor(
             }
         else
             automationEvents.add(AutomationEventObject(injector).fromJSON(EMPTY_EVENT))
+        // keep generated ids, run state would be lost on next start otherwise
+        if (missingIds) storeToSP()
+        loadRunState()
+    }
+
+    /**
+     * Store last execution of rules as id -> timestamp, much cheaper than encoding all definitions
+     */
+    @VisibleForTesting
+    internal fun storeRunState() {
+        val state = JSONObject()
+        val iterator = synchronized(this) { automationEvents.toMutableList().iterator() }
+        while (iterator.hasNext()) {
+            val event = iterator.next()
+            if (event.lastRun != 0L) state.put(event.id, event.lastRun)
+        }
+        preferences.put(AutomationStringKey.AutomationRunState, state.toString())
+    }
+
+    @VisibleForTesting
+    internal fun loadRunState() {
+        val data = preferences.get(AutomationStringKey.AutomationRunState)
+        if (data == "") return
+        try {
+            val state = JSONObject(data)
+            for (event in automationEvents) event.lastRun = state.optLong(event.id, 0L)
+        } catch (e: JSONException) {
+            aapsLogger.error(LTag.AUTOMATION, "Unable to load run state", e)
+        }
     }
 
     internal fun processActions() {
@@ -261,12 +299,15 @@ class AutomationPlugin @Inject constructor(
         }
 
         aapsLogger.debug(LTag.AUTOMATION, "processActions")
+        // all triggers of the pass share BG, IOB, COB ... loaded on first use
+        var evaluationContext = evaluationContextFactory.create()
         val iterator = synchronized(this) { automationEvents.toMutableList().iterator() }
         while (iterator.hasNext()) {
             val event = iterator.next()
             if (event.isEnabled && !event.userAction && event.shouldRun())
                 if (event.systemAction || commonEventsEnabled) {
-                    processEvent(event)
+                    // executed actions may change what following triggers see
+                    if (processEvent(event, evaluationContext)) evaluationContext = evaluationContextFactory.create()
                     if (event.hasStopProcessing()) break
                 }
         }
@@ -276,13 +317,17 @@ class AutomationPlugin @Inject constructor(
         // TriggerBTDevice can pick up and process these events
         // after processing clear events to prevent repeated actions
         btConnects.clear()
-
-        storeToSP() // save last run time
     }
 
     override fun processEvent(someEvent: AutomationEvent) {
-        val event = someEvent as AutomationEventObject
-        if (event.canRun() && event.preconditionCanRun()) {
+        processEvent(someEvent as AutomationEventObject, evaluationContextFactory.create())
+    }
+
+    /**
+     * @return true if actions of the event were executed
+     */
+    private fun processEvent(event: AutomationEventObject, evaluationContext: TriggerEvaluationContext): Boolean {
+        if (event.canRun(evaluationContext) && event.preconditionCanRun(evaluationContext)) {
             val actions = event.actions
             for (action in actions) {
                 action.title = event.title
@@ -313,8 +358,14 @@ class AutomationPlugin @Inject constructor(
             }
             SystemClock.sleep(1100)
             event.lastRun = dateUtil.now()
-            if (event.autoRemove) remove(event)
+            if (event.autoRemove) {
+                remove(event)
+                rxBus.send(EventAutomationDataChanged())
+            }
+            storeRunState()
+            return true
         }
+        return false
     }
 
     @Synchronized
@@ -344,6 +395,8 @@ class AutomationPlugin @Inject constructor(
 
     @Synchronized
     fun set(event: AutomationEventObject, index: Int) {
+        // edited copy of the same rule
+        if (automationEvents[index].id == event.id) event.lastRun = automationEvents[index].lastRun
         automationEvents[index] = event
         rxBus.send(EventAutomationDataChanged())
     }
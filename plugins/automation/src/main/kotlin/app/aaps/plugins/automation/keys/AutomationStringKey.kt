@@ -9,4 +9,5 @@ enum class AutomationStringKey(
 ) : StringNonPreferenceKey {
 
     AutomationEvents("AUTOMATION_EVENTS", ""),
+    AutomationRunState("AUTOMATION_RUN_STATE", "", exportable = false),
 }
@@ -44,13 +44,20 @@ abstract class Trigger(val injector: HasAndroidInjector) {
     @Inject lateinit var iobCobCalculator: IobCobCalculator
     @Inject lateinit var glucoseStatusProvider: GlucoseStatusProvider
     @Inject lateinit var dateUtil: DateUtil
+    @Inject lateinit var evaluationContextFactory: TriggerEvaluationContextFactory
 
     init {
         @Suppress("LeakingThis")
         injector.androidInjector().inject(this)
     }
 
-    abstract fun shouldRun(): Boolean
+    abstract fun shouldRun(context: TriggerEvaluationContext): Boolean
+
+    /**
+     * Evaluate this trigger alone. Automation passes share one [TriggerEvaluationContext] between all triggers instead
+     */
+    fun shouldRun(): Boolean = shouldRun(evaluationContextFactory.create())
+
     abstract fun dataJSON(): JSONObject
     abstract fun fromJSON(data: String): Trigger
 
@@ -36,7 +36,7 @@ class TriggerBTDevice(injector: HasAndroidInjector) : Trigger(injector) {
     }
 
     @Synchronized
-    override fun shouldRun(): Boolean {
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
         if (eventExists()) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
@@ -1,7 +1,6 @@
 package app.aaps.plugins.automation.triggers
 
 import android.widget.LinearLayout
-import app.aaps.core.data.model.BS
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.utils.JsonHelper
 import app.aaps.core.utils.JsonHelper.safeGetString
@@ -35,8 +34,8 @@ class TriggerBolusAgo(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val lastBolus = persistenceLayer.getNewestBolusOfType(BS.Type.NORMAL)
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val lastBolus = context.lastNormalBolus
         val lastBolusTime = lastBolus?.timestamp ?: 0L
         if (lastBolusTime == 0L)
             return if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
@@ -46,7 +45,7 @@ class TriggerBolusAgo(injector: HasAndroidInjector) : Trigger(injector) {
                 aapsLogger.debug(LTag.AUTOMATION, "NOT ready for execution: " + friendlyDescription())
                 false
             }
-        val last = (dateUtil.now() - lastBolusTime).toDouble() / (60 * 1000)
+        val last = (context.now - lastBolusTime).toDouble() / (60 * 1000)
         aapsLogger.debug(LTag.AUTOMATION, "LastBolus min ago: $minutesAgo")
         val doRun = comparator.value.check(last.toInt(), minutesAgo.getMinutes())
         if (doRun) {
@@ -38,8 +38,8 @@ class TriggerCOB(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val cobInfo = iobCobCalculator.getCobInfo("AutomationTriggerCOB")
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val cobInfo = context.cobInfo
         if (cobInfo.displayCob == null) {
             return if (comparator.value === Comparator.Compare.IS_NOT_AVAILABLE) {
                 aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
@@ -36,10 +36,10 @@ class TriggerCannulaAge(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val therapyEvent = persistenceLayer.getLastTherapyRecordUpToNow(TE.Type.CANNULA_CHANGE)
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val therapyEvent = context.lastTherapyEvent(TE.Type.CANNULA_CHANGE)
         val currentAgeHours = therapyEvent?.timestamp?.let { timestamp ->
-            (dateUtil.now() - timestamp) / (60 * 60 * 1000.0)
+            (context.now - timestamp) / (60 * 60 * 1000.0)
         }?.toDouble() ?: 0.0
         if (therapyEvent == null && comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
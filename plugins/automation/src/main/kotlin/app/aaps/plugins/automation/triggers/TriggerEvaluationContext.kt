@@ -0,0 +1,57 @@
+package app.aaps.plugins.automation.triggers
+
+import app.aaps.core.data.iob.CobInfo
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.HR
+import app.aaps.core.data.model.SC
+import app.aaps.core.data.model.TE
+import app.aaps.core.data.model.TT
+import app.aaps.core.interfaces.aps.AutosensData
+import app.aaps.core.interfaces.aps.GlucoseStatus
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.iob.GlucoseStatusProvider
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.interfaces.utils.DateUtil
+
+/**
+ * Data triggers are evaluated against in one pass of AutomationPlugin.processActions
+ *
+ * Every value is loaded on first use and then shared by all triggers of the pass,
+ * so twenty rules checking BG or IOB cost one glucose status and one IOB calculation.
+ * Values are not refreshed: create a new context when the state may have changed
+ * (i.e. after actions of an event were executed).
+ */
+class TriggerEvaluationContext(
+    private val aapsLogger: AAPSLogger,
+    private val dateUtil: DateUtil,
+    private val glucoseStatusProvider: GlucoseStatusProvider,
+    private val profileFunction: ProfileFunction,
+    private val iobCobCalculator: IobCobCalculator,
+    private val persistenceLayer: PersistenceLayer
+) {
+
+    val now: Long by lazy { dateUtil.now() }
+    val glucoseStatus: GlucoseStatus? by lazy { glucoseStatusProvider.glucoseStatusData }
+    val profile: Profile? by lazy { profileFunction.getProfile() }
+    val iob: IobTotal? by lazy { profile?.let { iobCobCalculator.calculateFromTreatmentsAndTemps(now, it) } }
+    val cobInfo: CobInfo by lazy { iobCobCalculator.getCobInfo("AutomationTriggerCOB") }
+    val lastAutosensData: AutosensData? by lazy { iobCobCalculator.ads.getLastAutosensData("Automation trigger", aapsLogger, dateUtil) }
+    val temporaryTarget: TT? by lazy { persistenceLayer.getTemporaryTargetActiveAt(now) }
+    val lastNormalBolus: BS? by lazy { persistenceLayer.getNewestBolusOfType(BS.Type.NORMAL) }
+
+    private val therapyEvents = HashMap<TE.Type, TE?>()
+    private val heartRates = HashMap<Long, List<HR>>()
+    private val stepsCounts = HashMap<Long, List<SC>>()
+
+    fun lastTherapyEvent(type: TE.Type): TE? =
+        if (therapyEvents.containsKey(type)) therapyEvents[type]
+        else persistenceLayer.getLastTherapyRecordUpToNow(type).also { therapyEvents[type] = it }
+
+    fun heartRatesFrom(start: Long): List<HR> = heartRates.getOrPut(start) { persistenceLayer.getHeartRatesFromTime(start) }
+
+    fun stepsCountFrom(start: Long): List<SC> = stepsCounts.getOrPut(start) { persistenceLayer.getStepsCountFromTime(start) }
+}
@@ -0,0 +1,24 @@
+package app.aaps.plugins.automation.triggers
+
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.iob.GlucoseStatusProvider
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.interfaces.utils.DateUtil
+import javax.inject.Inject
+import javax.inject.Singleton
+
+@Singleton
+class TriggerEvaluationContextFactory @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val dateUtil: DateUtil,
+    private val glucoseStatusProvider: GlucoseStatusProvider,
+    private val profileFunction: ProfileFunction,
+    private val iobCobCalculator: IobCobCalculator,
+    private val persistenceLayer: PersistenceLayer
+) {
+
+    fun create(): TriggerEvaluationContext =
+        TriggerEvaluationContext(aapsLogger, dateUtil, glucoseStatusProvider, profileFunction, iobCobCalculator, persistenceLayer)
+}
@@ -25,13 +25,13 @@ class TriggerHeartRate(injector: HasAndroidInjector) : Trigger(injector) {
         value = Comparator.Compare.IS_EQUAL_OR_GREATER
     }
 
-    override fun shouldRun(): Boolean {
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
         if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.info(LTag.AUTOMATION, "HR ready, no limit set ${friendlyDescription()}")
             return true
         }
-        val start = dateUtil.now() - averageHeartRateDurationMillis
-        val hrs = persistenceLayer.getHeartRatesFromTime(start)
+        val start = context.now - averageHeartRateDurationMillis
+        val hrs = context.heartRatesFrom(start)
         val duration = hrs.takeUnless { it.isEmpty() }?.sumOf { hr -> hr.duration } ?: 0L
         if (duration == 0L) {
             aapsLogger.info(LTag.AUTOMATION, "HR not ready, no heart rate measured for ${friendlyDescription()}")
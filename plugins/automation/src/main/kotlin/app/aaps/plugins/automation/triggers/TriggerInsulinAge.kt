@@ -36,10 +36,10 @@ class TriggerInsulinAge(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val therapyEvent = persistenceLayer.getLastTherapyRecordUpToNow(TE.Type.INSULIN_CHANGE)
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val therapyEvent = context.lastTherapyEvent(TE.Type.INSULIN_CHANGE)
         val currentAgeHours = therapyEvent?.timestamp?.let { timestamp ->
-            (dateUtil.now() - timestamp) / (60 * 60 * 1000.0)
+            (context.now - timestamp) / (60 * 60 * 1000.0)
         }?.toDouble() ?: 0.0
         val isPatchPump = activePlugin.activePump.pumpDescription.isPatchPump
         if (isPatchPump) {
@@ -79,7 +79,7 @@ class TriggerLocation(injector: HasAndroidInjector) : Trigger(injector), PingPla
         longitude.setValue(latLng.longitude)
     }
 
-    @Synchronized override fun shouldRun(): Boolean {
+    @Synchronized override fun shouldRun(context: TriggerEvaluationContext): Boolean {
         val location: Location = locationDataContainer.lastLocation ?: return false
         val a = Location("Trigger")
         a.latitude = latitude.value
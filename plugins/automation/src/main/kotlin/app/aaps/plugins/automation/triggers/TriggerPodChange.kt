@@ -14,9 +14,9 @@ import java.util.Optional
 
 class TriggerPodChange(injector: HasAndroidInjector) : Trigger(injector) {
 
-    override fun shouldRun(): Boolean {
-        val eventLastSettingsExport = persistenceLayer.getLastTherapyRecordUpToNow(TE.Type.SETTINGS_EXPORT)
-        val eventLastPodChange = persistenceLayer.getLastTherapyRecordUpToNow(TE.Type.CANNULA_CHANGE)
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val eventLastSettingsExport = context.lastTherapyEvent(TE.Type.SETTINGS_EXPORT)
+        val eventLastPodChange = context.lastTherapyEvent(TE.Type.CANNULA_CHANGE)
         if (eventLastPodChange == null || eventLastSettingsExport == null) {
             aapsLogger.debug(LTag.AUTOMATION, "NOT ready for execution (no events): " + friendlyDescription())
             return false
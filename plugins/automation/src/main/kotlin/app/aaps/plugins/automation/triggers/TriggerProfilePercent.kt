@@ -40,8 +40,8 @@ class TriggerProfilePercent(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val profile = profileFunction.getProfile()
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val profile = context.profile
         if (profileFunction.isProfileChangePending()) {
             aapsLogger.debug(LTag.AUTOMATION, "NOT ready for execution: " + "Profile change is already pending: " + friendlyDescription())
             return false
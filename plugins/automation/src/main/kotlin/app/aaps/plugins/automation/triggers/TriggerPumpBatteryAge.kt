@@ -36,10 +36,10 @@ class TriggerPumpBatteryAge(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val therapyEvent = persistenceLayer.getLastTherapyRecordUpToNow(TE.Type.PUMP_BATTERY_CHANGE)
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val therapyEvent = context.lastTherapyEvent(TE.Type.PUMP_BATTERY_CHANGE)
         val currentAgeHours = therapyEvent?.timestamp?.let { timestamp ->
-            (dateUtil.now() - timestamp) / (60 * 60 * 1000.0)
+            (context.now - timestamp) / (60 * 60 * 1000.0)
         }?.toDouble() ?: 0.0
         val pump = activePlugin.activePump
         if (!pump.pumpDescription.isBatteryReplaceable && !pump.isBatteryChangeLoggingEnabled()) {
@@ -40,13 +40,13 @@ class TriggerPumpLastConnection(injector: HasAndroidInjector) : Trigger(injector
         return this
     }
 
-    override fun shouldRun(): Boolean {
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
         val lastConnection = activePlugin.activePump.lastDataTime()
         if (lastConnection == 0L && comparator.value === Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
         }
-        val connectionAgo = (dateUtil.now() - lastConnection) / (60 * 1000)
+        val connectionAgo = (context.now - lastConnection) / (60 * 1000)
         aapsLogger.debug(LTag.AUTOMATION, "Last connection min ago: $connectionAgo")
         if (comparator.value.check(connectionAgo.toInt(), minutesAgo.value)) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
@@ -23,7 +23,7 @@ class TriggerStepsCount(injector: HasAndroidInjector) : Trigger(injector) {
         value = Comparator.Compare.IS_EQUAL_OR_GREATER
     }
 
-    override fun shouldRun(): Boolean {
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
         if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.info(LTag.AUTOMATION, "Steps count ready, no limit set ${friendlyDescription()}")
             return true
@@ -32,8 +32,8 @@ class TriggerStepsCount(injector: HasAndroidInjector) : Trigger(injector) {
         
         // Steps count entries update every 1-1.5 minutes on my watch,
         // so we must get some entries from the last 5 minutes.
-        val start = dateUtil.now() - 5 * 60 * 1000L
-        val measurements = persistenceLayer.getStepsCountFromTime(start)
+        val start = context.now - 5 * 60 * 1000L
+        val measurements = context.stepsCountFrom(start)
         val lastSC = measurements.lastOrNull { it.duration == measurementDuration.value.toInt() * 60 * 1000L }
         if (lastSC == null) {
             aapsLogger.info(LTag.AUTOMATION, "No steps count measurements available - ${friendlyDescription()}")
@@ -28,8 +28,8 @@ class TriggerTempTarget(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val tt = persistenceLayer.getTemporaryTargetActiveAt(dateUtil.now())
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val tt = context.temporaryTarget
         if (tt == null && comparator.value == ComparatorExists.Compare.NOT_EXISTS) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
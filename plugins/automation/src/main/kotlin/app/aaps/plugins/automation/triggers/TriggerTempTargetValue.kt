@@ -45,8 +45,8 @@ class TriggerTempTargetValue(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val tt = persistenceLayer.getTemporaryTargetActiveAt(dateUtil.now())
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val tt = context.temporaryTarget
         if (tt == null && comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
@@ -30,8 +30,8 @@ class TriggerTime(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
-    override fun shouldRun(): Boolean {
-        val now = dateUtil.now()
+    override fun shouldRun(context: TriggerEvaluationContext): Boolean {
+        val now = context.now
         if (now >= time.value && now - time.value < T.mins(5).msecs()) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
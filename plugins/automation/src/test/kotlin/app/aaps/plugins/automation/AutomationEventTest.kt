@@ -43,19 +43,21 @@ class AutomationEventTest : TestBase() {
     @Test fun testCloneEvent() {
         // create test object
         val event = AutomationEventObject(injector)
+        event.id = "1"
         event.title = "Test"
         event.trigger = TriggerDummy(injector).instantiate(JSONObject(TriggerConnectorTest().oneItem)) as TriggerConnector
         event.addAction(ActionLoopClosed(injector))
 
         // export to json
         val eventJsonExpected =
-            "{\"userAction\":false,\"autoRemove\":false,\"readOnly\":false,\"trigger\":\"{\\\"data\\\":{\\\"connectorType\\\":\\\"AND\\\",\\\"triggerList\\\":[\\\"{\\\\\\\"data\\\\\\\":{\\\\\\\"connectorType\\\\\\\":\\\\\\\"AND\\\\\\\",\\\\\\\"triggerList\\\\\\\":[]},\\\\\\\"type\\\\\\\":\\\\\\\"TriggerConnector\\\\\\\"}\\\"]},\\\"type\\\":\\\"TriggerConnector\\\"}\",\"title\":\"Test\",\"systemAction\":false,\"actions\":[\"{\\\"type\\\":\\\"ActionLoopClosed\\\"}\"],\"enabled\":true}"
+            "{\"id\":\"1\",\"userAction\":false,\"autoRemove\":false,\"readOnly\":false,\"trigger\":\"{\\\"data\\\":{\\\"connectorType\\\":\\\"AND\\\",\\\"triggerList\\\":[\\\"{\\\\\\\"data\\\\\\\":{\\\\\\\"connectorType\\\\\\\":\\\\\\\"AND\\\\\\\",\\\\\\\"triggerList\\\\\\\":[]},\\\\\\\"type\\\\\\\":\\\\\\\"TriggerConnector\\\\\\\"}\\\"]},\\\"type\\\":\\\"TriggerConnector\\\"}\",\"title\":\"Test\",\"systemAction\":false,\"actions\":[\"{\\\"type\\\":\\\"ActionLoopClosed\\\"}\"],\"enabled\":true}"
         JSONAssert.assertEquals(eventJsonExpected, event.toJSON(), true)
 
         // clone
         val clone = AutomationEventObject(injector).fromJSON(eventJsonExpected)
 
-        // check title
+        // check id and title
+        assertThat(clone.id).isEqualTo(event.id)
         assertThat(clone.title).isEqualTo(event.title)
 
         // check trigger
@@ -70,6 +72,20 @@ class AutomationEventTest : TestBase() {
         JSONAssert.assertEquals(clone.toJSON(), clone.toJSON(), true)
     }
 
+    @Test fun idGeneratedForDefinitionWithoutId() {
+        val event = AutomationEventObject(injector)
+        event.title = "Test"
+        event.trigger = TriggerDummy(injector).instantiate(JSONObject(TriggerConnectorTest().oneItem)) as TriggerConnector
+        val withoutId = JSONObject(event.toJSON()).apply { remove("id") }.toString()
+
+        val loaded = AutomationEventObject(injector).fromJSON(withoutId)
+        val loadedAgain = AutomationEventObject(injector).fromJSON(withoutId)
+        assertThat(loaded.id).isNotEmpty()
+        assertThat(loaded.id).isNotEqualTo(loadedAgain.id)
+        // kept once stored
+        assertThat(AutomationEventObject(injector).fromJSON(loaded.toJSON()).id).isEqualTo(loaded.id)
+    }
+
     @Test fun hasStopProcessing() {
         val event = AutomationEventObject(injector)
         event.title = "Test"
@@ -4,13 +4,19 @@ import app.aaps.core.interfaces.aps.Loop
 import app.aaps.core.interfaces.constraints.ConstraintsChecker
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.validators.preferences.AdaptiveListPreference
+import app.aaps.plugins.automation.keys.AutomationStringKey
 import app.aaps.plugins.automation.services.LocationServiceHelper
+import app.aaps.plugins.automation.triggers.TriggerEvaluationContextFactory
 import app.aaps.plugins.automation.ui.TimerUtil
 import app.aaps.shared.tests.TestBaseWithProfile
 import com.google.common.truth.Truth.assertThat
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.whenever
 
 class AutomationPluginTest : TestBaseWithProfile() {
 
@@ -19,6 +25,7 @@ class AutomationPluginTest : TestBaseWithProfile() {
     @Mock lateinit var loop: Loop
     @Mock lateinit var locationServiceHelper: LocationServiceHelper
     @Mock lateinit var timerUtil: TimerUtil
+    @Mock lateinit var evaluationContextFactory: TriggerEvaluationContextFactory
     private lateinit var automationPlugin: AutomationPlugin
 
     init {
@@ -32,10 +39,66 @@ class AutomationPluginTest : TestBaseWithProfile() {
     @BeforeEach fun prepare() {
         automationPlugin = AutomationPlugin(
             injector, aapsLogger, rh, preferences, context, fabricPrivacy, loop, rxBus, constraintChecker,
-            aapsSchedulers, config, locationServiceHelper, dateUtil, activePlugin, timerUtil
+            aapsSchedulers, config, locationServiceHelper, dateUtil, activePlugin, timerUtil, evaluationContextFactory
         )
     }
 
+    /** Run state kept in preferences mock */
+    private fun storeRunStateInMemory() {
+        var runState = ""
+        doAnswer { runState = it.getArgument(1) }.whenever(preferences).put(eq(AutomationStringKey.AutomationRunState), any<String>())
+        whenever(preferences.get(AutomationStringKey.AutomationRunState)).thenAnswer { runState }
+    }
+
+    private fun event(title: String, lastRun: Long) =
+        AutomationEventObject(injector).also {
+            it.title = title
+            it.lastRun = lastRun
+        }
+
+    @Test
+    fun runStateRoundTrip() {
+        storeRunStateInMemory()
+        val first = event("First", 1000L).also { automationPlugin.add(it) }
+        val second = event("Second", 0L).also { automationPlugin.add(it) }
+        automationPlugin.storeRunState()
+
+        first.lastRun = 0L
+        second.lastRun = 5L
+        automationPlugin.loadRunState()
+        assertThat(first.lastRun).isEqualTo(1000L)
+        assertThat(second.lastRun).isEqualTo(0L)
+    }
+
+    @Test
+    fun runStateSurvivesRename() {
+        storeRunStateInMemory()
+        val rule = event("Old title", 1000L).also { automationPlugin.add(it) }
+        automationPlugin.storeRunState()
+
+        // edit dialog stores a copy with the same id
+        val edited = AutomationEventObject(injector).fromJSON(rule.toJSON()).also { it.title = "New title" }
+        automationPlugin.set(edited, 0)
+        assertThat(edited.lastRun).isEqualTo(1000L)
+        edited.lastRun = 0L
+        automationPlugin.loadRunState()
+        assertThat(edited.lastRun).isEqualTo(1000L)
+    }
+
+    @Test
+    fun runStateOfDuplicateTitlesIsSeparate() {
+        storeRunStateInMemory()
+        val first = event("Same", 1000L).also { automationPlugin.add(it) }
+        val second = event("Same", 2000L).also { automationPlugin.add(it) }
+        automationPlugin.storeRunState()
+
+        first.lastRun = 0L
+        second.lastRun = 0L
+        automationPlugin.loadRunState()
+        assertThat(first.lastRun).isEqualTo(1000L)
+        assertThat(second.lastRun).isEqualTo(2000L)
+    }
+
     @Test
     fun preferenceScreenTest() {
         val screen = preferenceManager.createPreferenceScreen(context)
@@ -0,0 +1,85 @@
+package app.aaps.plugins.automation.triggers
+
+import app.aaps.core.data.iob.CobInfo
+import app.aaps.core.data.iob.InMemoryGlucoseValue
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.plugins.automation.elements.Comparator
+import app.aaps.plugins.automation.elements.InputDelta.DeltaType
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mockito.clearInvocations
+import org.mockito.Mockito.mockingDetails
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.mockito.Mockito.`when`
+
+class TriggerEvaluationContextTest : TriggerTestBase() {
+
+    @BeforeEach
+    fun prepare() {
+        `when`(profileFunction.getUnits()).thenReturn(GlucoseUnit.MGDL)
+        `when`(profileFunction.getProfile()).thenReturn(validProfile)
+        `when`(autosensDataStore.getBucketedDataTableCopy()).thenReturn(generateBgData())
+        `when`(iobCobCalculator.calculateFromTreatmentsAndTemps(anyLong(), anyObject())).thenReturn(IobTotal(now).also { it.iob = 1.0 })
+        `when`(iobCobCalculator.getCobInfo("AutomationTriggerCOB")).thenReturn(CobInfo(now, 6.0, 2.0))
+    }
+
+    @Test
+    fun sharedContextLoadsInputsOnce() {
+        val rules = generateRules(20)
+        val context = evaluationContextFactory.create()
+        val results = rules.map { it.shouldRun(context) }
+
+        verify(autosensDataStore, times(1)).getBucketedDataTableCopy()
+        verify(iobCobCalculator, times(1)).calculateFromTreatmentsAndTemps(anyLong(), anyObject())
+        verify(iobCobCalculator, times(1)).getCobInfo("AutomationTriggerCOB")
+        // same decisions as triggers evaluated on their own
+        assertThat(results).isEqualTo(rules.map { it.shouldRun() })
+    }
+
+    @Test
+    fun sharedLoadsDoNotGrowWithRuleCount() {
+        for (ruleCount in listOf(1, 10, 50, 100)) {
+            val rules = generateRules(ruleCount)
+
+            clearInvocations(autosensDataStore, iobCobCalculator)
+            rules.forEach { it.shouldRun() }
+            assertThat(loads()).isEqualTo(4 * ruleCount)
+
+            clearInvocations(autosensDataStore, iobCobCalculator)
+            val context = evaluationContextFactory.create()
+            rules.forEach { it.shouldRun(context) }
+            assertThat(loads()).isEqualTo(3)
+        }
+    }
+
+    /**
+     * Glucose status, IOB and COB calculations done since last clearInvocations
+     */
+    private fun loads(): Int =
+        mockingDetails(autosensDataStore).invocations.count { it.method.name == "getBucketedDataTableCopy" } +
+            mockingDetails(iobCobCalculator).invocations.count { it.method.name == "calculateFromTreatmentsAndTemps" || it.method.name == "getCobInfo" }
+
+    /**
+     * Typical user rules: BG and delta to catch lows or highs, limited by IOB and COB
+     */
+    private fun generateRules(count: Int): List<TriggerConnector> =
+        List(count) { i ->
+            TriggerConnector(injector, TriggerConnector.Type.AND).also {
+                it.list.add(TriggerBg(injector).setUnits(GlucoseUnit.MGDL).setValue(80.0 + i).comparator(Comparator.Compare.IS_EQUAL_OR_GREATER))
+                it.list.add(TriggerDelta(injector).units(GlucoseUnit.MGDL).setValue(-2.0, DeltaType.DELTA).comparator(Comparator.Compare.IS_GREATER))
+                it.list.add(TriggerIob(injector).setValue(0.5 + i / 10.0).comparator(Comparator.Compare.IS_EQUAL_OR_LESSER))
+                it.list.add(TriggerCOB(injector).setValue(i.toDouble()).comparator(Comparator.Compare.IS_EQUAL_OR_GREATER))
+            }
+        }
+
+    private fun generateBgData(): MutableList<InMemoryGlucoseValue> =
+        MutableList(12) { i ->
+            InMemoryGlucoseValue(value = 150.0 - i * 2, timestamp = now - 1 - i * 5 * 60 * 1000L, trendArrow = TrendArrow.FLAT, sourceSensor = SourceSensor.UNKNOWN)
+        }
+}
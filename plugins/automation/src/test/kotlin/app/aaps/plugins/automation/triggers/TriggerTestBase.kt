@@ -19,6 +19,11 @@ open class TriggerTestBase : TestBaseWithProfile() {
     @Mock lateinit var receiverStatusStore: ReceiverStatusStore
     @Mock lateinit var persistenceLayer: PersistenceLayer
 
+    private val glucoseStatusProvider by lazy { GlucoseStatusProviderImpl(aapsLogger, iobCobCalculator, dateUtil, decimalFormatter) }
+    val evaluationContextFactory by lazy {
+        TriggerEvaluationContextFactory(aapsLogger, dateUtil, glucoseStatusProvider, profileFunction, iobCobCalculator, persistenceLayer)
+    }
+
     @BeforeEach
     fun prepareMock1() {
         `when`(iobCobCalculator.ads).thenReturn(autosensDataStore)
@@ -36,8 +41,9 @@ open class TriggerTestBase : TestBaseWithProfile() {
                 it.persistenceLayer = persistenceLayer
                 it.activePlugin = activePlugin
                 it.iobCobCalculator = iobCobCalculator
-                it.glucoseStatusProvider = GlucoseStatusProviderImpl(aapsLogger, iobCobCalculator, dateUtil, decimalFormatter)
+                it.glucoseStatusProvider = glucoseStatusProvider
                 it.dateUtil = dateUtil
+                it.evaluationContextFactory = evaluationContextFactory
                 it.profileUtil = profileUtil
             }
             if (it is TriggerBg) {
@@ -0,0 +1,127 @@
+package app.aaps.plugins.configuration.maintenance
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.maintenance.FileListProvider
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.EventAppExit
+import app.aaps.core.interfaces.storage.Storage
+import io.reactivex.rxjava3.disposables.CompositeDisposable
+import io.reactivex.rxjava3.kotlin.plusAssign
+import org.json.JSONObject
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Appends APS results to [FileListProvider.rollingResultFile], one JSON object per line.
+ *
+ * Results are serialized when added and written in batches from a single background thread
+ * instead of scheduling one WorkManager job per loop run. A batch is written after [FLUSH_DELAY_SECONDS],
+ * or sooner when [MAX_PENDING] results or [MAX_PENDING_CHARS] characters are waiting.
+ * Pending results are written on [EventAppExit].
+ */
+@Singleton
+class ApsResultExportWriter @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val prefFileList: FileListProvider,
+    private val storage: Storage,
+    rxBus: RxBus
+) {
+
+    companion object {
+
+        private const val FLUSH_DELAY_SECONDS = 30L
+        private const val MAX_PENDING = 20
+        private const val MAX_PENDING_CHARS = 256 * 1024
+        private const val SHUTDOWN_TIMEOUT_SECONDS = 5L
+    }
+
+    private val pending = ConcurrentLinkedQueue<String>()
+    private val pendingCount = AtomicInteger()
+    private val pendingChars = AtomicInteger()
+    private val worker = Executors.newSingleThreadScheduledExecutor()
+    private var scheduledFlush: ScheduledFuture<*>? = null
+    private var stopped = false
+    private val disposable = CompositeDisposable()
+
+    init {
+        // no observeOn: exitApp ends the process right after sending the event
+        disposable += rxBus
+            .toObservable(EventAppExit::class.java)
+            .subscribe({ shutdown() }, { aapsLogger.error(LTag.CORE, "Unhandled exception", it) })
+    }
+
+    fun add(algorithm: String?, input: JSONObject, output: JSONObject?) {
+        val line = JSONObject().apply {
+            put("algorithm", algorithm)
+            put("input", input)
+            put("output", output)
+        }.toString()
+        pending.add(line)
+        val chars = pendingChars.addAndGet(line.length)
+        if (pendingCount.incrementAndGet() >= MAX_PENDING || chars >= MAX_PENDING_CHARS) flushNow()
+        else scheduleFlush()
+    }
+
+    /**
+     * Write pending results and stop the background thread. Results added afterwards are not written.
+     */
+    fun shutdown() {
+        synchronized(this) {
+            if (stopped) return
+            stopped = true
+            disposable.clear()
+            scheduledFlush?.cancel(false)
+            scheduledFlush = null
+            // batch already submitted is still written
+            worker.shutdown()
+        }
+        try {
+            if (!worker.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                aapsLogger.error(LTag.CORE, "APS result export not finished in $SHUTDOWN_TIMEOUT_SECONDS s")
+                return
+            }
+        } catch (_: InterruptedException) {
+            Thread.currentThread().interrupt()
+            return
+        }
+        flush()
+    }
+
+    @Synchronized
+    private fun scheduleFlush() {
+        if (scheduledFlush == null && !stopped)
+            scheduledFlush = worker.schedule({ flush() }, FLUSH_DELAY_SECONDS, TimeUnit.SECONDS)
+    }
+
+    @Synchronized
+    private fun flushNow() {
+        if (stopped) return
+        scheduledFlush?.cancel(false)
+        scheduledFlush = worker.submit { flush() }
+    }
+
+    private fun flush() {
+        synchronized(this) { scheduledFlush = null }
+        val batch = StringBuilder()
+        while (true) {
+            val line = pending.poll() ?: break
+            pendingCount.decrementAndGet()
+            pendingChars.addAndGet(-line.length)
+            batch.append(line).append('\n')
+        }
+        if (batch.isEmpty()) return
+        try {
+            prefFileList.ensureResultDirExists()
+            storage.appendFileContents(prefFileList.rollingResultFile(), batch.toString())
+        } catch (e: Exception) {
+            // thrown on the worker it would only end up in a future nobody reads
+            aapsLogger.error(LTag.CORE, "Unable to write APS results", e)
+        }
+    }
+}
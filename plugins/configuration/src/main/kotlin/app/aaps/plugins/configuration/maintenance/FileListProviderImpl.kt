@@ -189,9 +189,9 @@ class FileListProviderImpl @Inject constructor(
         return dir?.createFile("application/${ZipWatchfaceFormat.CWF_EXTENSION}", if (withDate) "${filename}_$timeLocal" else filename)
     }
 
-    override fun newResultFile(): File {
-        val timeLocal = LocalDateTime.now().toString(DateTimeFormat.forPattern("yyyy-MM-dd'_'HHmmss"))
-        return File(resultPath, "$timeLocal.json")
+    override fun rollingResultFile(): File {
+        val dateLocal = LocalDateTime.now().toString(DateTimeFormat.forPattern("yyyy-MM-dd"))
+        return File(resultPath, "${dateLocal}_results.jsonl")
     }
 
     // check metadata for known issues, change their status and add info with explanations
@@ -8,6 +8,7 @@ import android.content.pm.PackageManager
 import android.os.Build
 import android.provider.Settings
 import androidx.annotation.StringRes
+import androidx.annotation.VisibleForTesting
 import androidx.appcompat.app.AppCompatActivity
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
@@ -20,7 +21,6 @@ import androidx.work.WorkManager
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import app.aaps.core.data.model.TE
-import app.aaps.core.data.model.UE
 import app.aaps.core.data.time.T
 import app.aaps.core.data.ue.Action
 import app.aaps.core.data.ue.Sources
@@ -58,7 +58,6 @@ import app.aaps.core.ui.dialogs.OKDialog
 import app.aaps.core.ui.dialogs.TwoMessagesAlertDialog
 import app.aaps.core.ui.dialogs.WarningDialog
 import app.aaps.core.ui.toast.ToastUtils
-import app.aaps.core.utils.receivers.DataWorkerStorage
 import app.aaps.plugins.configuration.R
 import app.aaps.plugins.configuration.activities.DaggerAppCompatActivityWithResult
 import app.aaps.plugins.configuration.maintenance.data.PrefFileNotFoundError
@@ -100,7 +99,7 @@ class ImportExportPrefsImpl @Inject constructor(
     private val dateUtil: DateUtil,
     private val uiInteraction: UiInteraction,
     private val context: Context,
-    private val dataWorkerStorage: DataWorkerStorage,
+    private val apsResultExportWriter: ApsResultExportWriter,
     private val activePlugin: ActivePlugin,
     private val configBuilder: ConfigBuilder
 ) : ImportExportPrefs {
@@ -468,12 +467,12 @@ class ImportExportPrefsImpl @Inject constructor(
         @Inject lateinit var persistenceLayer: PersistenceLayer
 
         override suspend fun doWorkAndLog(): Result {
-            val entries = persistenceLayer.getUserEntryFilteredDataFromTime(MidnightTime.calc() - T.days(90).msecs()).blockingGet()
+            val from = MidnightTime.calc() - T.days(90).msecs()
             prefFileList.ensureExportDirExists()
             val newFile = prefFileList.newExportCsvFile() ?: return Result.failure()
             var ret = Result.success()
             try {
-                saveCsv(newFile, entries)
+                saveCsv(newFile, from)
                 ToastUtils.okToast(context, rh.gs(R.string.ue_exported))
             } catch (e: FileNotFoundException) {
                 ToastUtils.errorToast(context, rh.gs(R.string.filenotfound) + " " + newFile)
@@ -487,10 +486,11 @@ class ImportExportPrefsImpl @Inject constructor(
             return ret
         }
 
-        private fun saveCsv(file: DocumentFile, userEntries: List<UE>) {
+        private fun saveCsv(file: DocumentFile, from: Long) {
             try {
-                val contents = userEntryPresentationHelper.userEntriesToCsv(userEntries)
-                storage.putFileContents(context.contentResolver, file, contents)
+                storage.putFileContents(context.contentResolver, file) { writer ->
+                    userEntryPresentationHelper.userEntriesToCsv(userEntries(persistenceLayer, from), writer)
+                }
             } catch (_: FileNotFoundException) {
                 throw PrefFileNotFoundError(file.name ?: "UNKNOWN")
             } catch (_: IOException) {
@@ -500,53 +500,32 @@ class ImportExportPrefsImpl @Inject constructor(
                 throw PrefFileNotFoundError(file.name ?: "UNKNOWN")
             }
         }
-    }
-
-    override fun exportApsResult(algorithm: String?, input: JSONObject, output: JSONObject?) {
-        WorkManager.getInstance(context).enqueueUniqueWork(
-            "export",
-            ExistingWorkPolicy.APPEND,
-            OneTimeWorkRequest.Builder(ApsResultExportWorker::class.java)
-                .setInputData(dataWorkerStorage.storeInputData(ApsResultExportWorker.ApsResultData(algorithm, input, output)))
-                .build()
-        )
-    }
 
-    class ApsResultExportWorker(
-        context: Context,
-        params: WorkerParameters
-    ) : LoggingWorker(context, params, Dispatchers.IO) {
-
-        @Inject lateinit var prefFileList: FileListProvider
-        @Inject lateinit var storage: Storage
-        @Inject lateinit var config: Config
-        @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-
-        data class ApsResultData(val algorithm: String?, val input: JSONObject, val output: JSONObject?)
-
-        override suspend fun doWorkAndLog(): Result {
-            if (!config.isEngineeringMode()) return Result.success(workDataOf("Result" to "Export not enabled"))
-            val apsResultData = dataWorkerStorage.pickupObject(inputData.getLong(DataWorkerStorage.STORE_KEY, -1)) as ApsResultData?
-                ?: return Result.failure(workDataOf("Error" to "missing input data"))
-
-            prefFileList.ensureResultDirExists()
-            val newFile = prefFileList.newResultFile()
-            var ret = Result.success()
-            try {
-                val jsonObject = JSONObject().apply {
-                    put("algorithm", apsResultData.algorithm)
-                    put("input", apsResultData.input)
-                    put("output", apsResultData.output)
-                }
-                storage.putFileContents(newFile, jsonObject.toString())
-            } catch (e: FileNotFoundException) {
-                aapsLogger.error(LTag.CORE, "Unhandled exception", e)
-                ret = Result.failure(workDataOf("Error" to "Error FileNotFoundException"))
-            } catch (e: IOException) {
-                aapsLogger.error(LTag.CORE, "Unhandled exception", e)
-                ret = Result.failure(workDataOf("Error" to "Error IOException"))
+        companion object {
+
+            private const val PAGE_SIZE = 500
+
+            /**
+             * Entries newer than [from], newest first, loaded [pageSize] rows at a time while the CSV is written
+             */
+            @VisibleForTesting
+            internal fun userEntries(persistenceLayer: PersistenceLayer, from: Long, pageSize: Int = PAGE_SIZE) = sequence {
+                var beforeTimestamp = Long.MAX_VALUE
+                var beforeId = Long.MAX_VALUE
+                do {
+                    val page = persistenceLayer.getUserEntryFilteredDataPage(from, beforeTimestamp, beforeId, pageSize)
+                    yieldAll(page)
+                    page.lastOrNull()?.let {
+                        beforeTimestamp = it.timestamp
+                        beforeId = it.id
+                    }
+                } while (page.size == pageSize)
             }
-            return ret
         }
     }
+
+    override fun exportApsResult(algorithm: String?, input: JSONObject, output: JSONObject?) {
+        if (!config.isEngineeringMode()) return
+        apsResultExportWriter.add(algorithm, input, output)
+    }
 }
\ No newline at end of file
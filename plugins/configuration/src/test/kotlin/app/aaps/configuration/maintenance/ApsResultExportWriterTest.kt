@@ -0,0 +1,103 @@
+package app.aaps.configuration.maintenance
+
+import app.aaps.core.interfaces.maintenance.FileListProvider
+import app.aaps.core.interfaces.rx.events.EventAppExit
+import app.aaps.core.interfaces.storage.Storage
+import app.aaps.plugins.configuration.maintenance.ApsResultExportWriter
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.json.JSONObject
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.timeout
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.File
+import java.io.IOException
+
+class ApsResultExportWriterTest : TestBase() {
+
+    @Mock lateinit var fileListProvider: FileListProvider
+    @Mock lateinit var storage: Storage
+
+    private lateinit var sut: ApsResultExportWriter
+    private val file = File("results.jsonl")
+    private val written = mutableListOf<String>()
+
+    @BeforeEach
+    fun prepare() {
+        written.clear()
+        whenever(fileListProvider.rollingResultFile()).thenReturn(file)
+        doAnswer { synchronized(written) { written.add(it.getArgument(1)) } }.whenever(storage).appendFileContents(eq(file), any())
+        sut = ApsResultExportWriter(aapsLogger, fileListProvider, storage, rxBus)
+    }
+
+    @AfterEach
+    fun stop() {
+        sut.shutdown()
+    }
+
+    @Test
+    fun countThresholdFlushesWithoutDelay() {
+        repeat(20) { sut.add("SMB", input(it), null) }
+        // long before the delayed flush
+        verify(storage, timeout(5000)).appendFileContents(eq(file), any())
+        assertThat(lines()).hasSize(20)
+    }
+
+    @Test
+    fun sizeThresholdFlushesWithoutDelay() {
+        sut.add("SMB", JSONObject().put("data", "x".repeat(300 * 1024)), null)
+        verify(storage, timeout(5000)).appendFileContents(eq(file), any())
+        assertThat(lines()).hasSize(1)
+    }
+
+    @Test
+    fun shutdownWritesPendingInOrder() {
+        repeat(3) { sut.add("SMB", input(it), null) }
+        sut.shutdown()
+        assertThat(written).hasSize(1)
+        assertThat(lines().map { JSONObject(it).getJSONObject("input").getInt("tick") }).containsExactly(0, 1, 2).inOrder()
+        sut.add("SMB", input(3), null)
+        sut.shutdown()
+        assertThat(lines()).hasSize(3)
+    }
+
+    @Test
+    fun appExitWritesPending() {
+        sut.add("SMB", input(0), JSONObject().put("rate", 1.0))
+        rxBus.send(EventAppExit())
+        val line = JSONObject(lines().single())
+        assertThat(line.getString("algorithm")).isEqualTo("SMB")
+        assertThat(line.getJSONObject("output").getDouble("rate")).isEqualTo(1.0)
+    }
+
+    @Test
+    fun failedWriteDoesNotStopLaterBatches() {
+        whenever(fileListProvider.ensureResultDirExists()).thenThrow(SecurityException("no access")).thenReturn(file)
+        repeat(20) { sut.add("SMB", input(it), null) }
+        verify(fileListProvider, timeout(5000)).ensureResultDirExists()
+        sut.add("SMB", input(20), null)
+        sut.shutdown()
+        // first batch lost, the next one written
+        assertThat(lines()).hasSize(1)
+        verify(storage).appendFileContents(eq(file), any())
+    }
+
+    @Test
+    fun ioErrorIsNotThrownToCaller() {
+        doAnswer { throw IOException("full") }.whenever(storage).appendFileContents(eq(file), any())
+        sut.add("SMB", input(0), null)
+        sut.shutdown()
+        assertThat(written).isEmpty()
+    }
+
+    private fun input(tick: Int) = JSONObject().put("tick", tick)
+
+    private fun lines() = synchronized(written) { written.flatMap { it.trimEnd('\n').split('\n') } }
+}
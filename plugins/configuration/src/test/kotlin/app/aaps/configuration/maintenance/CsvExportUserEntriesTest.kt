@@ -0,0 +1,83 @@
+package app.aaps.configuration.maintenance
+
+import app.aaps.core.data.model.UE
+import app.aaps.core.data.ue.Action
+import app.aaps.core.data.ue.Sources
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.plugins.configuration.maintenance.ImportExportPrefsImpl
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+
+class CsvExportUserEntriesTest : TestBase() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+
+    private val stored = mutableListOf<UE>()
+    private var pages = 0
+
+    @BeforeEach
+    fun prepare() {
+        stored.clear()
+        pages = 0
+        // same filter and order as UserEntryDao.getUserEntryFilteredDataPage
+        whenever(persistenceLayer.getUserEntryFilteredDataPage(any(), any(), any(), any())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val beforeTimestamp = invocation.getArgument<Long>(1)
+            val beforeId = invocation.getArgument<Long>(2)
+            pages++
+            stored
+                .filter { it.timestamp >= from && (it.timestamp < beforeTimestamp || it.timestamp == beforeTimestamp && it.id < beforeId) }
+                .sortedWith(compareByDescending<UE> { it.timestamp }.thenByDescending { it.id })
+                .take(invocation.getArgument(3))
+        }
+    }
+
+    @Test
+    fun allEntriesNewestFirst() {
+        // 3 entries sharing each timestamp, so pages end inside a group
+        for (id in 1L..25L) stored.add(entry(id, 1000L + (id - 1) / 3 * 1000))
+        val exported = ImportExportPrefsImpl.CsvExportWorker.userEntries(persistenceLayer, 0, pageSize = 4).toList()
+        assertThat(exported.map { it.id }).isEqualTo((25L downTo 1L).toList())
+        // 6 full pages and a partial one
+        assertThat(pages).isEqualTo(7)
+    }
+
+    @Test
+    fun olderEntriesAreSkipped() {
+        for (id in 1L..10L) stored.add(entry(id, id * 1000))
+        val exported = ImportExportPrefsImpl.CsvExportWorker.userEntries(persistenceLayer, 6000, pageSize = 4).toList()
+        assertThat(exported.map { it.id }).containsExactly(10L, 9L, 8L, 7L, 6L).inOrder()
+    }
+
+    @Test
+    fun fullLastPageEndsWithEmptyPage() {
+        for (id in 1L..8L) stored.add(entry(id, id * 1000))
+        assertThat(ImportExportPrefsImpl.CsvExportWorker.userEntries(persistenceLayer, 0, pageSize = 4).count()).isEqualTo(8)
+        assertThat(pages).isEqualTo(3)
+    }
+
+    @Test
+    fun pagesAreLoadedWhileReading() {
+        for (id in 1L..10L) stored.add(entry(id, id * 1000))
+        val exported = ImportExportPrefsImpl.CsvExportWorker.userEntries(persistenceLayer, 0, pageSize = 4).iterator()
+        assertThat(pages).isEqualTo(0)
+        repeat(4) { exported.next() }
+        assertThat(pages).isEqualTo(1)
+        exported.next()
+        assertThat(pages).isEqualTo(2)
+    }
+
+    @Test
+    fun noEntries() {
+        assertThat(ImportExportPrefsImpl.CsvExportWorker.userEntries(persistenceLayer, 0).toList()).isEmpty()
+        assertThat(pages).isEqualTo(1)
+    }
+
+    private fun entry(id: Long, timestamp: Long) =
+        UE(id = id, timestamp = timestamp, utcOffset = 0, action = Action.BOLUS, source = Sources.InsulinDialog, note = "", values = emptyList())
+}
@@ -4,6 +4,8 @@ import android.content.ContentResolver
 import androidx.documentfile.provider.DocumentFile
 import app.aaps.core.interfaces.storage.Storage
 import java.io.File
+import java.io.StringWriter
+import java.io.Writer
 
 class SingleStringStorage(var contents: String) : Storage {
 
@@ -19,6 +21,14 @@ class SingleStringStorage(var contents: String) : Storage {
         this.contents = contents
     }
 
+    override fun putFileContents(contentResolver: ContentResolver, file: DocumentFile, write: (Writer) -> Unit) {
+        this.contents = StringWriter().also { write(it) }.toString()
+    }
+
+    override fun appendFileContents(file: File, contents: String) {
+        this.contents += contents
+    }
+
     override fun toString(): String {
         return contents
     }
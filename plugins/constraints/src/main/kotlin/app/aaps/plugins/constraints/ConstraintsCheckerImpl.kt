@@ -20,7 +20,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isLoopInvocationAllowed(): Constraint<Boolean> = isLoopInvocationAllowed(ConstraintObject(true, aapsLogger))
 
     override fun isLoopInvocationAllowed(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -32,7 +32,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isClosedLoopAllowed(): Constraint<Boolean> = isClosedLoopAllowed(ConstraintObject(true, aapsLogger))
 
     override fun isClosedLoopAllowed(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -44,7 +44,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isLgsForced(): Constraint<Boolean> = isLgsForced(ConstraintObject(false, aapsLogger))
 
     override fun isLgsForced(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -56,7 +56,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAutosensModeEnabled(): Constraint<Boolean> = isAutosensModeEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isAutosensModeEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -68,7 +68,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isSMBModeEnabled(): Constraint<Boolean> = isSMBModeEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isSMBModeEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -80,7 +80,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isUAMEnabled(): Constraint<Boolean> = isUAMEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isUAMEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -92,7 +92,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAdvancedFilteringEnabled(): Constraint<Boolean> = isAdvancedFilteringEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isAdvancedFilteringEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -104,7 +104,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isSuperBolusEnabled(): Constraint<Boolean> = isSuperBolusEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isSuperBolusEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -116,7 +116,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAutomationEnabled(): Constraint<Boolean> = isAutomationEnabled(ConstraintObject(true, aapsLogger))
 
     override fun applyBasalConstraints(absoluteRate: Constraint<Double>, profile: Profile): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -126,7 +126,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyBasalPercentConstraints(percentRate: Constraint<Int>, profile: Profile): Constraint<Int> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -136,7 +136,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyBolusConstraints(insulin: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -146,7 +146,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyExtendedBolusConstraints(insulin: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -156,7 +156,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyCarbsConstraints(carbs: Constraint<Int>): Constraint<Int> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -166,7 +166,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyMaxIOBConstraints(maxIob: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -176,7 +176,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun isAutomationEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
+        val constraintsPlugins = activePlugin.getPluginsByInterface(PluginConstraints::class.java)
         for (p in constraintsPlugins) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
@@ -22,6 +22,7 @@ import app.aaps.core.keys.DoubleKey
 import app.aaps.core.keys.IntKey
 import app.aaps.core.keys.StringKey
 import app.aaps.implementation.iob.GlucoseStatusProviderImpl
+import app.aaps.implementation.plugin.PluginStore
 import app.aaps.plugins.aps.openAPSAMA.DetermineBasalAMA
 import app.aaps.plugins.aps.openAPSAMA.OpenAPSAMAPlugin
 import app.aaps.plugins.aps.openAPSSMB.DetermineBasalSMB
@@ -45,6 +46,7 @@ import com.google.common.truth.Truth.assertThat
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
+import org.mockito.Mockito.mock
 import org.mockito.Mockito.`when`
 
 /**
@@ -80,6 +82,7 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
     private lateinit var insightPlugin: InsightPlugin
     private lateinit var openAPSSMBPlugin: OpenAPSSMBPlugin
     private lateinit var openAPSAMAPlugin: OpenAPSAMAPlugin
+    private val constraintsPluginsList = ArrayList<PluginBase>()
 
     init {
         addInjector {
@@ -162,7 +165,7 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
                 aapsLogger, rh, preferences, constraintChecker, activePlugin, hardLimits,
                 config, persistenceLayer, dateUtil, uiInteraction, decimalFormatter
             )
-        val constraintsPluginsList = ArrayList<PluginBase>()
+        constraintsPluginsList.clear()
         constraintsPluginsList.add(safetyPlugin)
         constraintsPluginsList.add(objectivesPlugin)
         constraintsPluginsList.add(danaRPlugin)
@@ -170,7 +173,7 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
         constraintsPluginsList.add(insightPlugin)
         constraintsPluginsList.add(openAPSAMAPlugin)
         constraintsPluginsList.add(openAPSSMBPlugin)
-        `when`(activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)).thenReturn(constraintsPluginsList)
+        `when`(activePlugin.getPluginsByInterface(PluginConstraints::class.java)).thenReturn(constraintsPluginsList)
     }
 
     // Combo & Objectives
@@ -366,4 +369,43 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
         assertThat(d.reasonList).hasSize(2)
         assertThat(d.getMostLimitedReasons()).isEqualTo("OpenAPSSMB: Limiting IOB to 3.0 U because of max value in preferences")
     }
+
+    @Test
+    fun indexedLoopConstraintPass() {
+        `when`(loop.runningMode).thenReturn(RM.Mode.CLOSED_LOOP)
+        `when`(activePlugin.activeBgSource).thenReturn(glimpPlugin)
+        `when`(activePlugin.activePump).thenReturn(danaRPlugin)
+        `when`(preferences.get(DoubleKey.ApsMaxBasal)).thenReturn(1.0)
+        `when`(preferences.get(DoubleKey.ApsMaxCurrentBasalMultiplier)).thenReturn(4.0)
+        `when`(preferences.get(DoubleKey.ApsMaxDailyMultiplier)).thenReturn(3.0)
+        `when`(preferences.get(DoubleKey.ApsSmbMaxIob)).thenReturn(3.0)
+        `when`(preferences.get(StringKey.SafetyAge)).thenReturn("teenage")
+        openAPSSMBPlugin.setPluginEnabled(PluginType.APS, true)
+        danaRPlugin.setPluginEnabled(PluginType.PUMP, true)
+        // registry of app size, other plugins don't implement constraints
+        val pluginStore = PluginStore(aapsLogger)
+        pluginStore.plugins = constraintsPluginsList + List(80) { mock(PluginBase::class.java) }
+        val indexedChecker = ConstraintsCheckerImpl(pluginStore, aapsLogger)
+        assertThat(pluginStore.getPluginsByInterface(PluginConstraints::class.java)).containsExactlyElementsIn(constraintsPluginsList).inOrder()
+
+        // index is built once, not per check
+        assertThat(pluginStore.getPluginsByInterface(PluginConstraints::class.java)).isSameInstanceAs(pluginStore.getPluginsByInterface(PluginConstraints::class.java))
+        assertThat(loopPass(indexedChecker)).isEqualTo(loopPass(constraintChecker))
+    }
+
+    /**
+     * Constraints evaluated by one loop run
+     */
+    private fun loopPass(checker: ConstraintsCheckerImpl): List<Any> = listOf(
+        checker.isLoopInvocationAllowed().value(),
+        checker.isClosedLoopAllowed().value(),
+        checker.isLgsForced().value(),
+        checker.isAutosensModeEnabled().value(),
+        checker.isSMBModeEnabled().value(),
+        checker.isUAMEnabled().value(),
+        checker.isAdvancedFilteringEnabled().value(),
+        checker.getMaxBasalAllowed(validProfile).value(),
+        checker.getMaxBasalPercentAllowed(validProfile).value(),
+        checker.getMaxIOBAllowed().value()
+    )
 }
@@ -38,9 +38,15 @@ class AutosensDataStoreObject : AutosensDataStore {
         @Synchronized get
 
     override var bucketedData: MutableList<InMemoryGlucoseValue>? = null
-        @Synchronized set
+        @Synchronized set(value) {
+            field = value
+            bucketedDataVersion++
+        }
         @Synchronized get
 
+    @Volatile override var bucketedDataVersion = 0L
+        private set
+
     override fun clone(): AutosensDataStore =
         AutosensDataStoreObject().also {
             synchronized(dataLock) {
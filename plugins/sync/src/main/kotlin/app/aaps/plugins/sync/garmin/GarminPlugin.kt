@@ -15,6 +15,7 @@ import app.aaps.core.interfaces.plugin.PluginDescription
 import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.EventNewBG
+import app.aaps.core.interfaces.rx.events.EventNewHistoryData
 import app.aaps.core.interfaces.rx.events.EventPreferenceChange
 import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.core.validators.DefaultEditTextValidator
@@ -38,12 +39,15 @@ import java.net.URI
 import java.time.Clock
 import java.time.Duration
 import java.time.Instant
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.withTimeoutOrNull
 import java.util.Date
-import java.util.concurrent.locks.Condition
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
 import javax.inject.Singleton
-import kotlin.concurrent.withLock
 import kotlin.math.roundToInt
 
 /** Support communication with Garmin devices.
@@ -107,11 +111,17 @@ class GarminPlugin @Inject constructor(
     @VisibleForTesting
     var clock: Clock = Clock.systemUTC()
 
-    private val valueLock = ReentrantLock()
-
+    /** Timestamp of the last glucose value, long-poll requests suspend until it changes. */
     @VisibleForTesting
-    var newValue: Condition = valueLock.newCondition()
-    private var lastGlucoseValueTimestamp: Long? = null
+    val lastGlucoseValueTimestamp = MutableStateFlow<Long?>(null)
+
+    /** Incremented on every change of glucose values, cache read before the last change is stale. */
+    private val glucoseGeneration = AtomicLong()
+
+    /** Glucose values and their encoding, shared by all devices until glucose values change. */
+    private class GlucoseCache(val generation: Long, val glucoseValues: List<GV>, val encodedGlucose: String)
+
+    @Volatile private var glucoseCache: GlucoseCache? = null
     private val glucoseUnitStr get() = if (loopHub.glucoseUnit == GlucoseUnit.MGDL) "mgdl" else "mmoll"
     private val garminAapsKey get() = preferences.get(GarminStringKey.RequestKey)
 
@@ -153,6 +163,13 @@ class GarminPlugin @Inject constructor(
                 .observeOn(Schedulers.io())
                 .subscribe(::onNewBloodGlucose)
         )
+        disposable.add(
+            rxBus
+                .toObservable(EventNewHistoryData::class.java)
+                .filter { it.reloadBgData }
+                .observeOn(Schedulers.io())
+                .subscribe { invalidateGlucoseCache() }
+        )
         setupHttpServer()
         if (garminAapsKey.isNotEmpty())
             setupGarminMessenger()
@@ -193,20 +210,25 @@ class GarminPlugin @Inject constructor(
 
     /** Receive new blood glucose events.
      *
-     * Stores new blood glucose values in lastGlucoseValue to make sure we return
-     * these values immediately when values are requested by Garmin device.
-     * Sends a message to the Garmin devices via the ciqMessenger. */
+     * The event is sent for every change of glucose values, including invalidated
+     * or updated older values, so the cached glucose values are always dropped.
+     * A newer timestamp is stored in lastGlucoseValueTimestamp and resumes waiting requests. */
     @VisibleForTesting
     fun onNewBloodGlucose(event: EventNewBG) {
+        // before the timestamp, resumed requests must not get the old cache
+        invalidateGlucoseCache()
         val timestamp = event.glucoseValueTimestamp ?: return
         aapsLogger.info(LTag.GARMIN, "onNewBloodGlucose ${Date(timestamp)}")
-        valueLock.withLock {
-            if ((lastGlucoseValueTimestamp ?: 0) >= timestamp) return
-            lastGlucoseValueTimestamp = timestamp
-            newValue.signalAll()
+        lastGlucoseValueTimestamp.update { last ->
+            if ((last ?: 0) >= timestamp) return
+            timestamp
         }
     }
 
+    private fun invalidateGlucoseCache() {
+        glucoseGeneration.incrementAndGet()
+    }
+
     @VisibleForTesting
     fun onConnectDevice(device: GarminDevice) {
         if (garminAapsKey.isNotEmpty()) {
@@ -228,7 +250,7 @@ class GarminPlugin @Inject constructor(
         "key" to garminAapsKey,
         "command" to "glucose",
         "profile" to loopHub.currentProfileName.first().toString(),
-        "encodedGlucose" to encodedGlucose(getGlucoseValues()),
+        "encodedGlucose" to getGlucoseCache().encodedGlucose,
         "remainingInsulin" to loopHub.insulinOnboard,
         "remainingBasalInsulin" to loopHub.insulinBasalOnboard,
         "glucoseUnit" to glucoseUnitStr,
@@ -240,28 +262,43 @@ class GarminPlugin @Inject constructor(
 
     /** Gets the last 2+ hours of glucose values. */
     @VisibleForTesting
-    fun getGlucoseValues(): List<GV> {
+    fun getGlucoseValues(): List<GV> = getGlucoseCache().glucoseValues
+
+    /** Gets the last 2+ hours of glucose values with their encoding.
+     *
+     * The values are queried once and reused until glucose values change or
+     * the oldest value drops out of the time window. */
+    private fun getGlucoseCache(): GlucoseCache {
         val from = clock.instant().minus(Duration.ofHours(2).plusMinutes(9))
-        return loopHub.getGlucoseValues(from, true)
+        // Read before the query: a change during the query makes the result stale.
+        val generation = glucoseGeneration.get()
+        glucoseCache?.let { cache ->
+            if (cache.generation == generation && (cache.glucoseValues.firstOrNull()?.timestamp ?: 0L) >= from.toEpochMilli()) return cache
+        }
+        val glucoseValues = loopHub.getGlucoseValues(from, true)
+        return GlucoseCache(generation, glucoseValues, encodedGlucose(glucoseValues)).also { cache ->
+            // Don't remember an empty result, values may show up before the next event.
+            if (glucoseValues.isNotEmpty() && glucoseGeneration.get() == generation) glucoseCache = cache
+        }
     }
 
     /** Get the last 2+ hours of glucose values and waits in case a new value should arrive soon. */
-    private fun getGlucoseValues(maxWait: Duration): List<GV> {
+    private suspend fun getGlucoseCache(maxWait: Duration): GlucoseCache {
         val glucoseFrequency = Duration.ofMinutes(5)
-        val glucoseValues = getGlucoseValues()
-        val last = glucoseValues.lastOrNull() ?: return emptyList()
+        val cache = getGlucoseCache()
+        val last = cache.glucoseValues.lastOrNull() ?: return cache
         val delay = Duration.ofMillis(clock.millis() - last.timestamp)
         return if (!maxWait.isZero
             && delay > glucoseFrequency
             && delay < glucoseFrequency.plusMinutes(1)
         ) {
-            valueLock.withLock {
-                aapsLogger.debug(LTag.GARMIN, "waiting for new glucose (delay=$delay)")
-                newValue.awaitNanos(maxWait.toNanos())
+            aapsLogger.debug(LTag.GARMIN, "waiting for new glucose (delay=$delay)")
+            withTimeoutOrNull(maxWait.toMillis()) {
+                lastGlucoseValueTimestamp.first { timestamp -> (timestamp ?: 0L) > last.timestamp }
             }
-            getGlucoseValues()
+            getGlucoseCache()
         } else {
-            glucoseValues
+            cache
         }
     }
 
@@ -276,13 +313,13 @@ class GarminPlugin @Inject constructor(
     }
 
     @VisibleForTesting
-    fun requestHandler(action: (URI) -> CharSequence) = { caller: SocketAddress, uri: URI, _: String? ->
+    fun requestHandler(action: suspend (URI) -> CharSequence): suspend (SocketAddress, URI, String?) -> Pair<Int, CharSequence> = { caller: SocketAddress, uri: URI, _: String? ->
         val key = garminAapsKey
         val deviceKey = getQueryParameter(uri, "key")
         if (key.isNotEmpty() && key != deviceKey) {
             aapsLogger.warn(LTag.GARMIN, "Invalid AAPS Key from $caller, got '$deviceKey' want '$key' $uri")
             sendPhoneAppMessage()
-            Thread.sleep(1000L)
+            delay(1000L)
             HttpURLConnection.HTTP_UNAUTHORIZED to "{}"
         } else {
             aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri")
@@ -297,13 +334,13 @@ class GarminPlugin @Inject constructor(
      * Also, gets the heart rate readings from the device.
      */
     @VisibleForTesting
-    fun onGetBloodGlucose(uri: URI): CharSequence {
+    suspend fun onGetBloodGlucose(uri: URI): CharSequence {
         receiveHeartRate(uri)
         val profileName = loopHub.currentProfileName
         val waitSec = getQueryParameter(uri, "wait", 0L)
-        val glucoseValues = getGlucoseValues(Duration.ofSeconds(waitSec))
+        val glucoseCache = getGlucoseCache(Duration.ofSeconds(waitSec))
         val jo = JsonObject()
-        jo.addProperty("encodedGlucose", encodedGlucose(glucoseValues))
+        jo.addProperty("encodedGlucose", glucoseCache.encodedGlucose)
         jo.addProperty("remainingInsulin", loopHub.insulinOnboard)
         jo.addProperty("remainingBasalInsulin", loopHub.insulinBasalOnboard)
         loopHub.lowGlucoseMark.takeIf { it > 0.0 }?.let {
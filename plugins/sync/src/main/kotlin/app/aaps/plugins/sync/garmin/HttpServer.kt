@@ -1,102 +1,112 @@
 package app.aaps.plugins.sync.garmin
 
-import android.os.StrictMode
 import androidx.annotation.VisibleForTesting
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
-import app.aaps.core.utils.pump.ThreadUtil
-import java.io.BufferedOutputStream
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.CoroutineName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.Closeable
 import java.io.IOException
 import java.io.InputStream
-import java.io.OutputStream
-import java.lang.Thread.UncaughtExceptionHandler
 import java.net.HttpURLConnection
 import java.net.Inet4Address
 import java.net.InetSocketAddress
-import java.net.ServerSocket
-import java.net.Socket
 import java.net.SocketAddress
 import java.net.SocketTimeoutException
 import java.net.URI
+import java.nio.ByteBuffer
+import java.nio.channels.AsynchronousCloseException
+import java.nio.channels.AsynchronousServerSocketChannel
+import java.nio.channels.AsynchronousSocketChannel
+import java.nio.channels.CompletionHandler
+import java.nio.channels.InterruptedByTimeoutException
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
 import java.time.Duration
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.Executor
-import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import java.util.regex.Pattern
 import kotlin.concurrent.withLock
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
-/** Basic HTTP server to communicate with Garmin device via localhost. */
+/** Basic HTTP server to communicate with Garmin device via localhost.
+ *
+ * Sockets are served with asynchronous channels from coroutines, so a request that
+ * waits for data (e.g. a long-poll for the next glucose value) is a suspended
+ * continuation and doesn't block a thread. Endpoints run on a small bounded
+ * dispatcher regardless of how many devices are connected.
+ */
 class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val port: Int) : Closeable {
 
-    private val serverThread: Thread
-    private val workerExecutor: Executor = Executors.newCachedThreadPool()
-    private val endpoints: MutableMap<String, (SocketAddress, URI, String?) -> Pair<Int, CharSequence>> =
+    private val scope = CoroutineScope(
+        SupervisorJob() +
+            Dispatchers.IO.limitedParallelism(MAX_PARALLEL_ENDPOINTS) +
+            CoroutineName("GarminHttpServer") +
+            CoroutineExceptionHandler { _, e -> aapsLogger.error(LTag.GARMIN, "uncaught in HTTP server", e) }
+    )
+    private val endpoints: MutableMap<String, suspend (SocketAddress, URI, String?) -> Pair<Int, CharSequence>> =
         ConcurrentHashMap()
-    private var serverSocket: ServerSocket? = null
+    @Volatile private var serverChannel: AsynchronousServerSocketChannel? = null
     private val readyLock = ReentrantLock()
     private val readyCond = readyLock.newCondition()
 
     init {
-        serverThread = Thread { runServer() }
-        serverThread.name = "GarminHttpServer"
-        serverThread.isDaemon = true
-        serverThread.uncaughtExceptionHandler = UncaughtExceptionHandler { _, e ->
-            e.printStackTrace()
-            aapsLogger.error(LTag.GARMIN, "uncaught in HTTP server", e)
-            serverSocket?.use {}
-        }
-        serverThread.start()
+        scope.launch { runServer() }
     }
 
     override fun close() {
         try {
-            serverSocket?.close()
-            serverSocket = null
+            serverChannel?.close()
+            serverChannel = null
         } catch (_: IOException) {
         }
-        try {
-            serverThread.join(10_000L)
-        } catch (_: InterruptedException) {
-        }
+        scope.cancel()
     }
 
     /** Wait for the server to start listing to requests. */
     fun awaitReady(wait: Duration): Boolean {
         var waitNanos = wait.toNanos()
         readyLock.withLock {
-            while (serverSocket?.isBound != true && waitNanos > 0L) {
+            while (serverChannel?.isOpen != true && waitNanos > 0L) {
                 waitNanos = readyCond.awaitNanos(waitNanos)
             }
         }
-        return serverSocket?.isBound == true
+        return serverChannel?.isOpen == true
     }
 
     /** Register an endpoint (path) to handle requests. */
-    fun registerEndpoint(path: String, endpoint: (SocketAddress, URI, String?) -> Pair<Int, CharSequence>) {
+    fun registerEndpoint(path: String, endpoint: suspend (SocketAddress, URI, String?) -> Pair<Int, CharSequence>) {
         aapsLogger.info(LTag.GARMIN, "Register: '$path'")
         endpoints[path] = endpoint
     }
 
-    // @Suppress("all")
-    private fun respond(
+    private suspend fun respond(
         @Suppress("SameParameterValue") code: Int,
         body: CharSequence,
         @Suppress("SameParameterValue") contentType: String,
-        out: OutputStream
+        channel: AsynchronousSocketChannel
     ) {
-        respond(code, body.toString().toByteArray(Charset.forName("UTF8")), contentType, out)
+        respond(code, body.toString().toByteArray(Charset.forName("UTF8")), contentType, channel)
     }
 
-    private fun respond(code: Int, out: OutputStream) {
-        respond(code, null as ByteArray?, null, out)
+    private suspend fun respond(code: Int, channel: AsynchronousSocketChannel) {
+        respond(code, null as ByteArray?, null, channel)
     }
 
-    private fun respond(code: Int, body: ByteArray?, contentType: String?, out: OutputStream) {
+    private suspend fun respond(code: Int, body: ByteArray?, contentType: String?, channel: AsynchronousSocketChannel) {
         val header = StringBuilder()
         header.append("HTTP/1.1 ").append(code).append(" OK\r\n")
         if (body != null) {
@@ -106,33 +116,60 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
             appendHeader("Content-Type", contentType, header)
         }
         header.append("\r\n")
-        val bout = BufferedOutputStream(out)
-        bout.write(header.toString().toByteArray(StandardCharsets.US_ASCII))
+        val headerBytes = header.toString().toByteArray(StandardCharsets.US_ASCII)
+        val buffer = ByteBuffer.allocate(headerBytes.size + (body?.size ?: 0))
+        buffer.put(headerBytes)
         if (body != null) {
-            bout.write(body)
+            buffer.put(body)
+        }
+        buffer.flip()
+        while (buffer.hasRemaining()) {
+            channel.writeSuspending(buffer)
+        }
+    }
+
+    /** Reads the raw request (header and body) without blocking a thread. */
+    private suspend fun readRequest(channel: AsynchronousSocketChannel): ByteArray {
+        val request = ByteArrayOutputStream(BUFFER_SIZE)
+        val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        var expectedLength = -1
+        while (request.size() < MAX_REQUEST_SIZE) {
+            buffer.clear()
+            val read = try {
+                channel.readSuspending(buffer, READ_TIMEOUT)
+            } catch (e: InterruptedByTimeoutException) {
+                // Body without content length, take what we have.
+                if (expectedLength >= 0) break
+                throw SocketTimeoutException("read timed out").apply { initCause(e) }
+            }
+            if (read < 0) break
+            request.write(buffer.array(), 0, read)
+            if (expectedLength < 0) expectedLength = expectedRequestLength(request.toByteArray())
+            if (expectedLength >= 0 && request.size() >= expectedLength) break
         }
-        bout.flush()
+        return request.toByteArray()
     }
 
-    private fun handleRequest(s: Socket) {
-        val out = s.getOutputStream()
+    private suspend fun handleRequest(channel: AsynchronousSocketChannel) {
         try {
-            val (uri, reqBody) = parseRequest(s.getInputStream())
+            val (uri, reqBody) = parseRequest(ByteArrayInputStream(readRequest(channel)))
             if ("favicon.ico" == uri.path) {
-                respond(HttpURLConnection.HTTP_NOT_FOUND, out)
+                respond(HttpURLConnection.HTTP_NOT_FOUND, channel)
                 return
             }
             val endpoint = endpoints[uri.path ?: ""]
             if (endpoint == null) {
                 aapsLogger.error(LTag.GARMIN, "request path not found '" + uri.path + "'")
-                respond(HttpURLConnection.HTTP_NOT_FOUND, out)
+                respond(HttpURLConnection.HTTP_NOT_FOUND, channel)
             } else {
                 try {
-                    val (code, body) = endpoint(s.remoteSocketAddress, uri, reqBody)
-                    respond(code, body, "application/json", out)
+                    val (code, body) = endpoint(channel.remoteAddress, uri, reqBody)
+                    respond(code, body, "application/json", channel)
+                } catch (e: CancellationException) {
+                    throw e
                 } catch (e: Exception) {
                     aapsLogger.error(LTag.GARMIN, "endpoint " + uri.path + " failed", e)
-                    respond(HttpURLConnection.HTTP_INTERNAL_ERROR, out)
+                    respond(HttpURLConnection.HTTP_INTERNAL_ERROR, channel)
                 }
             }
         } catch (e: SocketTimeoutException) {
@@ -141,55 +178,64 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
             return
         } catch (e: IOException) {
             aapsLogger.error(LTag.GARMIN, "Invalid request", e)
-            respond(HttpURLConnection.HTTP_BAD_REQUEST, out)
+            respond(HttpURLConnection.HTTP_BAD_REQUEST, channel)
             return
         }
     }
 
-    private fun runServer() = try {
-        // Policy won't work in unit tests, so ignore NULL builder.
-        @Suppress("UNNECESSARY_SAFE_CALL")
-        val policy = StrictMode.ThreadPolicy.Builder()?.permitAll()?.build()
-        if (policy != null) StrictMode.setThreadPolicy(policy)
-        readyLock.withLock {
-            serverSocket = ServerSocket()
-            serverSocket!!.bind(
-                // Garmin will only connect to IP4 localhost. Therefore, we need to explicitly listen
-                // on that loopback interface and cannot use InetAddress.getLoopbackAddress(). That
-                // gives ::1 (IP6 localhost).
-                InetSocketAddress(Inet4Address.getByAddress(byteArrayOf(127, 0, 0, 1)), port)
-            )
-            readyCond.signalAll()
-        }
-        aapsLogger.info(LTag.GARMIN, "accept connections on " + serverSocket!!.localSocketAddress)
-        while (true) {
-            val socket = serverSocket!!.accept()
-            aapsLogger.info(LTag.GARMIN, "accept " + socket.remoteSocketAddress)
-            workerExecutor.execute {
-                Thread.currentThread().name = "worker" + ThreadUtil.threadId()
-                try {
-                    socket.use { s ->
-                        s.soTimeout = 10_000
-                        handleRequest(s)
+    private suspend fun runServer() {
+        try {
+            readyLock.withLock {
+                serverChannel = AsynchronousServerSocketChannel.open().apply {
+                    bind(
+                        // Garmin will only connect to IP4 localhost. Therefore, we need to explicitly listen
+                        // on that loopback interface and cannot use InetAddress.getLoopbackAddress(). That
+                        // gives ::1 (IP6 localhost).
+                        InetSocketAddress(Inet4Address.getByAddress(byteArrayOf(127, 0, 0, 1)), port)
+                    )
+                }
+                readyCond.signalAll()
+            }
+            aapsLogger.info(LTag.GARMIN, "accept connections on " + serverChannel?.localAddress)
+            while (scope.isActive) {
+                val channel = serverChannel?.acceptSuspending() ?: break
+                aapsLogger.info(LTag.GARMIN, "accept " + channel.remoteAddress)
+                scope.launch {
+                    try {
+                        channel.use { handleRequest(it) }
+                    } catch (e: IOException) {
+                        aapsLogger.error(LTag.GARMIN, "response failed", e)
                     }
-                } catch (e: Exception) {
-                    aapsLogger.error(LTag.GARMIN, "response failed", e)
                 }
             }
-        }
-    } catch (e: IOException) {
-        aapsLogger.error("Server crashed", e)
-    } finally {
-        try {
-            serverSocket?.close()
-            serverSocket = null
+        } catch (_: AsynchronousCloseException) {
+            // Server closed.
         } catch (e: IOException) {
-            aapsLogger.error(LTag.GARMIN, "Socked close failed", e)
+            aapsLogger.error(LTag.GARMIN, "Server crashed", e)
+        } finally {
+            try {
+                serverChannel?.close()
+                serverChannel = null
+            } catch (e: IOException) {
+                aapsLogger.error(LTag.GARMIN, "Socked close failed", e)
+            }
         }
     }
 
+    /** Resumes the continuation given as attachment from an asynchronous channel operation. */
+    private class ContinuationHandler<T> : CompletionHandler<T, CancellableContinuation<T>> {
+
+        override fun completed(result: T, attachment: CancellableContinuation<T>) = attachment.resume(result)
+        override fun failed(exc: Throwable, attachment: CancellableContinuation<T>) = attachment.resumeWithException(exc)
+    }
+
     companion object {
 
+        private const val MAX_PARALLEL_ENDPOINTS = 4
+        private const val BUFFER_SIZE = 1024
+        private const val MAX_REQUEST_SIZE = 64 * 1024
+        private val READ_TIMEOUT = Duration.ofSeconds(10)
+
         private val REQUEST_HEADER = Pattern.compile("(GET|POST) (\\S*) HTTP/1.1")
         private val HEADER_LINE = Pattern.compile("([A-Za-z-]+)\\s*:\\s*(.*)")
 
@@ -262,6 +308,38 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
             return Pair(uri, body?.takeUnless(String::isBlank))
         }
 
+        /** Returns the length of the complete request in [request] or -1 if the header isn't complete yet. */
+        @VisibleForTesting
+        internal fun expectedRequestLength(request: ByteArray): Int {
+            var headerEnd = -1
+            for (i in 1 until request.size) {
+                if (request[i] != '\n'.code.toByte()) continue
+                if (request[i - 1] == '\n'.code.toByte()) {
+                    headerEnd = i + 1
+                } else if (i >= 3 && request[i - 1] == '\r'.code.toByte() && request[i - 2] == '\n'.code.toByte()) {
+                    headerEnd = i + 1
+                }
+                if (headerEnd >= 0) break
+            }
+            if (headerEnd < 0) return -1
+            val header = String(request, 0, headerEnd, StandardCharsets.US_ASCII)
+            if (!header.startsWith("POST")) return headerEnd
+            val contentLength = header.lineSequence()
+                .map { line -> HEADER_LINE.matcher(line.trimEnd()) }
+                .firstOrNull { m -> m.matches() && m.group(1) == "Content-Length" }
+                ?.group(2)?.toIntOrNull()
+            return if (contentLength == null) Int.MAX_VALUE else headerEnd + contentLength
+        }
+
+        private suspend fun AsynchronousServerSocketChannel.acceptSuspending(): AsynchronousSocketChannel =
+            suspendCancellableCoroutine { cont -> accept(cont, ContinuationHandler()) }
+
+        private suspend fun AsynchronousSocketChannel.readSuspending(dst: ByteBuffer, timeout: Duration): Int =
+            suspendCancellableCoroutine { cont -> read(dst, timeout.toMillis(), TimeUnit.MILLISECONDS, cont, ContinuationHandler()) }
+
+        private suspend fun AsynchronousSocketChannel.writeSuspending(src: ByteBuffer): Int =
+            suspendCancellableCoroutine { cont -> write(src, cont, ContinuationHandler()) }
+
         private fun appendHeader(name: String, value: String, header: StringBuilder) {
             header.append(name)
             header.append(": ")
@@ -7,6 +7,7 @@ import android.content.Context
 import android.content.Intent
 import android.util.DisplayMetrics
 import android.view.WindowManager
+import androidx.annotation.VisibleForTesting
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
 import androidx.preference.PreferenceCategory
@@ -22,6 +23,7 @@ import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.PeriodicWorkRequestBuilder
 import androidx.work.WorkManager
 import app.aaps.core.data.model.HasIDs
+import app.aaps.core.data.model.NE
 import app.aaps.core.data.model.data.Block
 import app.aaps.core.data.plugin.PluginType
 import app.aaps.core.interfaces.db.PersistenceLayer
@@ -50,12 +52,14 @@ import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.withContext
 import org.json.JSONArray
 import org.json.JSONObject
-import java.io.ByteArrayOutputStream
+import java.io.File
+import java.security.DigestOutputStream
 import java.security.MessageDigest
 import java.text.SimpleDateFormat
 import java.util.Locale
 import java.util.TimeZone
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
@@ -137,10 +141,13 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         }
     }
 
-    private fun String.sha256(): String {
+    // Pump serials repeat in every record, hash each of them once
+    private val pumpSerialHashes = ConcurrentHashMap<String, String>()
+
+    private fun String.sha256(): String = pumpSerialHashes.getOrPut(this) {
         val messageDigest = MessageDigest.getInstance("SHA-256")
         messageDigest.update(toByteArray())
-        return messageDigest.digest().toHexString()
+        messageDigest.digest().toHexString()
     }
 
     private fun <T : HasIDs> ZipOutputStream.writeDBEntryFile(name: String, list: List<T>, block: JSONObject.(entry: T) -> Unit) = writeJSONArrayFile(name, list) {
@@ -158,14 +165,22 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         block(it)
     }
 
-    private fun <T> ZipOutputStream.writeJSONArrayFile(name: String, list: List<T>, block: JSONObject.(entry: T) -> Unit) {
-        val jsonArray = JSONArray()
-        list.forEach { entry ->
+    /**
+     * Same content as JSONArray of all records but encoded record by record
+     * so only one record is held as JSON at a time
+     */
+    @VisibleForTesting
+    internal fun <T> ZipOutputStream.writeJSONArrayFile(name: String, list: List<T>, block: JSONObject.(entry: T) -> Unit) {
+        putNextEntry(ZipEntry(name))
+        write('['.code)
+        list.forEachIndexed { index, entry ->
+            if (index > 0) write(','.code)
             val jsonObject = JSONObject()
             jsonObject.block(entry)
-            jsonArray.put(jsonObject)
+            write(jsonObject.toString().toByteArray())
         }
-        writeFile(name, jsonArray.toString().toByteArray())
+        write(']'.code)
+        closeEntry()
     }
 
     private fun ZipOutputStream.writeFile(name: String, bytes: ByteArray) {
@@ -230,8 +245,39 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         }
         if (!hasData) return false
 
-        val baos = ByteArrayOutputStream()
-        val zos = ZipOutputStream(baos)
+        val uploadNumber = this.uploadCounter++
+        val uploadDate = System.currentTimeMillis()
+        // Archive is streamed to a temp file, MD5 needed for upload metadata is computed on the way
+        val archive = File.createTempFile("oh-upload", ".zip", context.cacheDir)
+        try {
+            val md5 = MessageDigest.getInstance("MD5")
+            val tags = ZipOutputStream(DigestOutputStream(archive.outputStream().buffered(), md5)).use { zos ->
+                zos.writeEntries(data, until, uploadNumber, uploadDate)
+            }
+
+            val fileName = "upload-num$uploadNumber-ver2-date${FILE_NAME_DATE_FORMAT.format(uploadDate)}-appid${appId.toString().replace("-", "")}.zip"
+
+            val metaData = OpenHumansAPI.FileMetadata(
+                tags = tags,
+                description = "AAPS Database Upload",
+                md5 = md5.digest().toHexString(),
+                creationDate = uploadDate
+            )
+
+            refreshAccessTokenIfNeeded()
+
+            val preparedUpload = openHumansAPI.prepareFileUpload(openHumansState!!.accessToken, fileName, metaData)
+            openHumansAPI.uploadFile(preparedUpload.uploadURL, archive)
+            openHumansAPI.completeFileUpload(openHumansState!!.accessToken, preparedUpload.fileId)
+        } finally {
+            archive.delete()
+        }
+
+        return true
+    }
+
+    private fun ZipOutputStream.writeEntries(data: NE, until: Long, uploadNumber: Long, uploadDate: Long): List<String> {
+        val zos = this
         val tags = mutableListOf<String>()
 
         val applicationInfo = JSONObject()
@@ -270,8 +316,6 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         zos.writeFile("DisplayInfo.json", displayInfo.toString().toByteArray())
         tags.add("DisplayInfo")
 
-        val uploadNumber = this.uploadCounter++
-        val uploadDate = System.currentTimeMillis()
         val uploadInfo = JSONObject()
         uploadInfo.put("fileVersion", 2)
         uploadInfo.put("counter", uploadNumber)
@@ -544,25 +588,7 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
                 }
         */
 
-        zos.close()
-        val bytes = baos.toByteArray()
-
-        val fileName = "upload-num$uploadNumber-ver2-date${FILE_NAME_DATE_FORMAT.format(uploadDate)}-appid${appId.toString().replace("-", "")}.zip"
-
-        val metaData = OpenHumansAPI.FileMetadata(
-            tags = tags,
-            description = "AAPS Database Upload",
-            md5 = MessageDigest.getInstance("MD5").digest(bytes).toHexString(),
-            creationDate = uploadDate
-        )
-
-        refreshAccessTokenIfNeeded()
-
-        val preparedUpload = openHumansAPI.prepareFileUpload(openHumansState!!.accessToken, fileName, metaData)
-        openHumansAPI.uploadFile(preparedUpload.uploadURL, bytes)
-        openHumansAPI.completeFileUpload(openHumansState!!.accessToken, preparedUpload.fileId)
-
-        return true
+        return tags
     }
 
     private fun cancelWorker() = WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME_PERIODIC)
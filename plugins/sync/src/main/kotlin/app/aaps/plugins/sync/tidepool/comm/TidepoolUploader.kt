@@ -3,6 +3,7 @@ package app.aaps.plugins.sync.tidepool.comm
 import android.content.Context
 import android.os.PowerManager
 import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -22,12 +23,14 @@ import app.aaps.plugins.sync.tidepool.messages.AuthRequestMessage
 import app.aaps.plugins.sync.tidepool.messages.DatasetReplyMessage
 import app.aaps.plugins.sync.tidepool.messages.OpenDatasetRequestMessage
 import app.aaps.plugins.sync.tidepool.messages.UploadReplyMessage
-import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.OkHttpClient
-import okhttp3.RequestBody.Companion.toRequestBody
 import okhttp3.logging.HttpLoggingInterceptor
 import retrofit2.Retrofit
 import retrofit2.converter.gson.GsonConverterFactory
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -54,9 +57,16 @@ class TidepoolUploader @Inject constructor(
         private const val PRODUCTION_BASE_URL = "https://api.tidepool.org"
         internal const val VERSION = "0.0.1"
         const val PUMP_TYPE = "Tandem"
+        private const val MIN_UPLOAD_INTERVAL = 3000L
     }
 
     private var retrofit: Retrofit? = null
+    @VisibleForTesting internal var baseUrl: String? = null
+
+    // Next chunk is loaded from database while the current one is uploaded
+    private val chunkPreparer = Executors.newSingleThreadExecutor()
+    private var preparedChunk: Future<UploadChunk.Chunk>? = null
+    private var lastUploadStart = 0L
 
     private var session: Session? = null
 
@@ -80,7 +90,7 @@ class TidepoolUploader @Inject constructor(
                 }.build()
 
             retrofit = Retrofit.Builder()
-                .baseUrl(if (preferences.get(BooleanKey.TidepoolUseTestServers)) INTEGRATION_BASE_URL else PRODUCTION_BASE_URL)
+                .baseUrl(baseUrl ?: if (preferences.get(BooleanKey.TidepoolUseTestServers)) INTEGRATION_BASE_URL else PRODUCTION_BASE_URL)
                 .client(client)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build()
@@ -95,6 +105,7 @@ class TidepoolUploader @Inject constructor(
 
     fun resetInstance() {
         retrofit = null
+        discardPreparedChunk()
         aapsLogger.debug(LTag.TIDEPOOL, "Instance reset")
         connectionStatus = ConnectionStatus.DISCONNECTED
     }
@@ -221,14 +232,14 @@ class TidepoolUploader @Inject constructor(
             }
             extendWakeLock(60000)
             session.iterations++
-            val chunk = uploadChunk.getNext(session)
+            val chunk = uploadChunk.getNext(session, takePreparedChunk())
             when {
                 chunk == null -> {
                     aapsLogger.error("Upload chunk is null, cannot proceed")
                     releaseWakeLock()
                 }
 
-                chunk.length == 2 -> {
+                chunk.records.isEmpty() -> {
                     aapsLogger.debug(LTag.TIDEPOOL, "Empty dataset - marking as succeeded")
                     rxBus.send(EventTidepoolStatus(("No data to upload")))
                     releaseWakeLock()
@@ -236,11 +247,12 @@ class TidepoolUploader @Inject constructor(
                 }
 
                 else -> {
-                    val body = chunk.toRequestBody("application/json".toMediaTypeOrNull())
+                    val body = chunk.toRequestBody()
 
                     rxBus.send(EventTidepoolStatus(("Uploading")))
                     if (session.service != null && session.token != null && session.datasetReply != null) {
                         val call = session.service.doUpload(session.token!!, session.datasetReply!!.getUploadId()!!, body)
+                        lastUploadStart = SystemClock.elapsedRealtime()
                         call.enqueue(TidepoolCallback<UploadReplyMessage>(
                             aapsLogger, rxBus, session, "Data Upload",
                             {
@@ -250,11 +262,14 @@ class TidepoolUploader @Inject constructor(
                                 releaseWakeLock()
                                 uploadNext()
                             }, {
+                                discardPreparedChunk()
                                 connectionStatus = ConnectionStatus.DISCONNECTED
                                 rxBus.send(EventTidepoolStatus(("Upload FAILED")))
                                 releaseWakeLock()
                             })
                         )
+                        // load next chunk while this one is in flight
+                        prepareNextChunk(chunk.end)
                     }
                 }
             }
@@ -268,12 +283,41 @@ class TidepoolUploader @Inject constructor(
             return
         }
         if (uploadChunk.getLastEnd() < dateUtil.now() - T.hours(3).msecs() - T.mins(1).msecs()) {
-            SystemClock.sleep(3000)
+            // keep uploads at least 3 s apart, time spent uploading counts
+            val wait = MIN_UPLOAD_INTERVAL - (SystemClock.elapsedRealtime() - lastUploadStart)
+            if (wait > 0) SystemClock.sleep(wait)
             aapsLogger.debug(LTag.TIDEPOOL, "Restarting doUpload. Last: " + dateUtil.dateAndTimeString(uploadChunk.getLastEnd()))
             doUpload()
         }
     }
 
+    @Synchronized
+    private fun prepareNextChunk(start: Long) {
+        discardPreparedChunk()
+        if (start < dateUtil.now() - T.hours(3).msecs() - T.mins(1).msecs())
+            preparedChunk = chunkPreparer.submit<UploadChunk.Chunk> { uploadChunk.prepare(start, uploadChunk.nextEnd(start)) }
+    }
+
+    @Synchronized
+    private fun takePreparedChunk(): UploadChunk.Chunk? {
+        val prepared = preparedChunk ?: return null
+        preparedChunk = null
+        return try {
+            prepared.get()
+        } catch (e: ExecutionException) {
+            aapsLogger.error(LTag.TIDEPOOL, "Preparing upload chunk failed", e)
+            null
+        } catch (_: CancellationException) {
+            null
+        }
+    }
+
+    @Synchronized
+    private fun discardPreparedChunk() {
+        preparedChunk?.cancel(true)
+        preparedChunk = null
+    }
+
     fun deleteDataSet() {
         if (session?.datasetReply?.id != null) {
             extendWakeLock(60000)
@@ -7,11 +7,13 @@ import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.plugin.ActivePlugin
+import app.aaps.core.interfaces.profile.Profile
 import app.aaps.core.interfaces.profile.ProfileFunction
 import app.aaps.core.interfaces.profile.ProfileUtil
 import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.keys.interfaces.Preferences
+import app.aaps.core.objects.profile.ProfileSealed
 import app.aaps.plugins.sync.tidepool.elements.BasalElement
 import app.aaps.plugins.sync.tidepool.elements.BaseElement
 import app.aaps.plugins.sync.tidepool.elements.BloodGlucoseElement
@@ -22,6 +24,10 @@ import app.aaps.plugins.sync.tidepool.elements.WizardElement
 import app.aaps.plugins.sync.tidepool.events.EventTidepoolStatus
 import app.aaps.plugins.sync.tidepool.keys.TidepoolLongKey
 import app.aaps.plugins.sync.tidepool.utils.GsonInstance
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
+import okhttp3.RequestBody
+import okio.BufferedSink
 import java.util.LinkedList
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -42,42 +48,76 @@ class UploadChunk @Inject constructor(
 
     private val maxUploadSize = T.days(7).msecs() // don't change this
 
-    fun getNext(session: Session?): String? {
+    /**
+     * Records of one upload between [start] and [end]
+     */
+    class Chunk(val start: Long, val end: Long, val records: List<BaseElement>) {
+
+        /**
+         * JSON array of [records] serialized straight into the request
+         */
+        fun toRequestBody(): RequestBody = object : RequestBody() {
+            override fun contentType(): MediaType? = "application/json".toMediaTypeOrNull()
+
+            override fun writeTo(sink: BufferedSink) {
+                val writer = sink.outputStream().writer()
+                GsonInstance.defaultGsonInstance().toJson(records, writer)
+                writer.flush()
+            }
+        }
+    }
+
+    /**
+     * Next chunk to upload starting at last uploaded end.
+     * [prepared] chunk is used if it starts there, otherwise data is loaded now.
+     */
+    fun getNext(session: Session?, prepared: Chunk? = null): Chunk? {
         session ?: return null
 
-        session.start = getLastEnd()
-        // do not upload last 3h, TBR can be still running
-        session.end = min(session.start + maxUploadSize, dateUtil.now() - T.hours(3).msecs())
+        val start = getLastEnd()
+        val chunk = prepared?.takeIf { it.start == start } ?: prepare(start, nextEnd(start))
+        session.start = chunk.start
+        session.end = chunk.end
 
-        val result = get(session.start, session.end)
-        if (result.length < 3) {
+        if (chunk.records.isEmpty()) {
             aapsLogger.debug(LTag.TIDEPOOL, "No records in this time period, setting start to best end time")
             setLastEnd(session.end)
         }
-        return result
+        return chunk
     }
 
-    fun get(start: Long, end: Long): String {
+    // do not upload last 3h, TBR can be still running
+    fun nextEnd(start: Long): Long = min(start + maxUploadSize, dateUtil.now() - T.hours(3).msecs())
+
+    fun get(start: Long, end: Long): String = GsonInstance.defaultGsonInstance().toJson(prepare(start, end).records)
+
+    /**
+     * Load records between [start] and [end] without touching upload progress,
+     * so the next chunk can be prepared while the previous one is uploaded
+     */
+    fun prepare(start: Long, end: Long): Chunk {
 
         aapsLogger.debug(LTag.TIDEPOOL, "Syncing data between: " + dateUtil.dateAndTimeString(start) + " -> " + dateUtil.dateAndTimeString(end))
         if (end <= start) {
             aapsLogger.debug(LTag.TIDEPOOL, "End is <= start: " + dateUtil.dateAndTimeString(start) + " " + dateUtil.dateAndTimeString(end))
-            return ""
+            return Chunk(start, end, emptyList())
         }
         if (end - start > maxUploadSize) {
             aapsLogger.debug(LTag.TIDEPOOL, "More than max range - rejecting")
-            return ""
+            return Chunk(start, end, emptyList())
         }
 
-        val records = LinkedList<BaseElement>()
+        // one scan of profile switches serves both basal rates and profile records
+        val profileSwitches = persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(start, end, true)
+        val records = ArrayList<BaseElement>()
 
         records.addAll(getTreatments(start, end))
         records.addAll(getBloodTests(start, end))
-        records.addAll(getBasals(start, end))
+        records.addAll(getBasals(start, end, profileSwitches))
         records.addAll(getBgReadings(start, end))
-        records.addAll(getProfiles(start, end))
+        records.addAll(getProfiles(profileSwitches))
 
-        return GsonInstance.defaultGsonInstance().toJson(records)
+        return Chunk(start, end, records)
     }
 
     fun getLastEnd(): Long {
@@ -127,20 +167,30 @@ class UploadChunk @Inject constructor(
         return selection
     }
 
-    private fun fromTemporaryBasals(tbrList: List<TB>, start: Long, end: Long): List<BasalElement> {
+    /**
+     * Profile of every TBR is resolved by walking [profileSwitches] along the sorted TBRs
+     * instead of looking up the profile switch active at each TBR in the database
+     */
+    private fun fromTemporaryBasals(tbrList: List<TB>, start: Long, end: Long, profileSwitches: List<EPS>): List<BasalElement> {
         val results = LinkedList<BasalElement>()
+        if (tbrList.isEmpty()) return results
+        var profile: Profile? = persistenceLayer.getEffectiveProfileSwitchActiveAt(start)?.let { ProfileSealed.EPS(it, activePlugin) }
+        var nextSwitch = 0
         for (tbr in tbrList) {
-            if (tbr.timestamp in start..end)
-                profileFunction.getProfile(tbr.timestamp)?.let {
+            if (tbr.timestamp in start..end) {
+                while (nextSwitch < profileSwitches.size && profileSwitches[nextSwitch].timestamp <= tbr.timestamp)
+                    profile = ProfileSealed.EPS(profileSwitches[nextSwitch++], activePlugin)
+                (profile ?: profileFunction.getProfile(tbr.timestamp))?.let {
                     results.add(BasalElement(tbr, it, dateUtil))
                 }
+            }
         }
         return results
     }
 
-    private fun getBasals(start: Long, end: Long): List<BasalElement> {
+    private fun getBasals(start: Long, end: Long, profileSwitches: List<EPS>): List<BasalElement> {
         val temporaryBasals = persistenceLayer.getTemporaryBasalsStartingFromTimeToTime(start, end, true)
-        val selection = fromTemporaryBasals(temporaryBasals, start, end)
+        val selection = fromTemporaryBasals(temporaryBasals, start, end, profileSwitches)
         if (selection.isNotEmpty())
             rxBus.send(EventTidepoolStatus("${selection.size} TBRs selected for upload"))
         return selection
@@ -152,8 +202,7 @@ class UploadChunk @Inject constructor(
         null
     }
 
-    private fun getProfiles(start: Long, end: Long): List<ProfileElement> {
-        val pss = persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(start, end, true)
+    private fun getProfiles(pss: List<EPS>): List<ProfileElement> {
         val selection = LinkedList<ProfileElement>()
         for (ps in pss) {
             newInstanceOrNull(ps)?.let {
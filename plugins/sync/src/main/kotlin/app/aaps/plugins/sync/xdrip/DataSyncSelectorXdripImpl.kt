@@ -1,5 +1,6 @@
 package app.aaps.plugins.sync.xdrip
 
+import app.aaps.core.data.model.HasIDs
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -71,7 +72,6 @@ class DataSyncSelectorXdripImpl @Inject constructor(
 
     private val maxAge get() = T.days(1).msecs()
     private fun isOld(timestamp: Long) = timestamp < dateUtil.now() - maxAge
-    private val preparedEntries = mutableListOf<DataSyncSelector.DataPair>()
     private val preparedTreatments = mutableListOf<DataSyncSelector.DataPair>()
     private val preparedFoods = mutableListOf<DataSyncSelector.DataPair>()
 
@@ -134,42 +134,55 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         else preferences.remove(XdripLongKey.DeviceStatusLastSyncedId)
     }
 
-    private fun confirmLastGlucoseValueIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.GlucoseValueLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting GlucoseValue data sync from $lastSynced")
-            preferences.put(XdripLongKey.GlucoseValueLastSyncedId, lastSynced)
+    /**
+     * Sync records changed after last synced id page by page
+     *
+     * Every page is loaded by one query, prepared records are broadcast in bundles
+     * of at most [BUNDLE_SIZE] and the sync position is stored once per page.
+     * More changes of the same record within a page are sent once.
+     *
+     * @param load page of pairs current record - changed record after id
+     * @param prepare data for xDrip or null if record is not sent
+     */
+    private fun <T : HasIDs> processChanged(
+        name: String,
+        collection: String,
+        key: XdripLongKey,
+        lastDbId: Long,
+        remaining: (Long) -> Unit,
+        load: (Long, Int) -> PersistenceLayer.SyncPage<T>,
+        prepare: (Pair<T, T>) -> DataSyncSelector.DataPair?
+    ) {
+        var startId = preferences.get(key)
+        if (startId > lastDbId) {
+            preferences.put(key, 0)
+            startId = 0
         }
-    }
-
-    private fun processChangedGlucoseValues() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastGlucoseValueId() ?: 0L
         while (true) {
             if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.GlucoseValueLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.GlucoseValueLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.gvsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementGlucoseValue(startId).blockingGet()?.let { gv ->
-                aapsLogger.info(LTag.XDRIP, "Loading GlucoseValue data Start: $startId ${gv.first} forID: ${gv.second.id} ")
-                if (!isOld(gv.first.timestamp))
-                    preparedEntries.add(DataSyncSelector.PairGlucoseValue(gv.first, gv.second.id))
-                sendEntries(force = false, progress)
-                confirmLastGlucoseValueIdIfGreater(gv.second.id)
-            } ?: break
-        }
-        sendEntries(force = true, progress)
-    }
-
-    private fun sendEntries(force: Boolean, progress: String) {
-        if (preparedEntries.isNotEmpty() && (preparedEntries.size >= 100 || force)) {
-            xdripPlugin.sendToXdrip("entries", preparedEntries.toList(), progress)
-            preparedEntries.clear()
-        }
-    }
+            remaining(lastDbId - startId)
+            val page = load(startId, PAGE_SIZE)
+            if (page.rawCount == 0) break
+            val progress = "$startId/$lastDbId"
+            val prepared = LinkedHashMap<Long, DataSyncSelector.DataPair>()
+            for (pair in page.pairs) prepare(pair)?.let { prepared[pair.first.id] = it }
+            aapsLogger.info(LTag.XDRIP, "Loading $name data Start: $startId records: ${page.rawCount} prepared: ${prepared.size}")
+            for (bundle in prepared.values.chunked(BUNDLE_SIZE)) xdripPlugin.sendToXdrip(collection, bundle, progress)
+            // skipped records (current version missing) move the position too
+            startId = page.lastId
+            preferences.put(key, startId)
+            if (page.rawCount < PAGE_SIZE) break
+        }
+        remaining(lastDbId - startId)
+    }
+
+    private fun processChangedGlucoseValues() =
+        processChanged(
+            name = "GlucoseValue", collection = "entries", key = XdripLongKey.GlucoseValueLastSyncedId,
+            lastDbId = persistenceLayer.getLastGlucoseValueId() ?: 0L,
+            remaining = { queueCounter.gvsRemaining = it },
+            load = persistenceLayer::getNextSyncElementsGlucoseValue
+        ) { gv -> if (!isOld(gv.first.timestamp)) DataSyncSelector.PairGlucoseValue(gv.first, gv.second.id) else null }
 
     private fun sendTreatments(force: Boolean, progress: String) {
         if (preparedTreatments.isNotEmpty() && (preparedTreatments.size >= 100 || force)) {
@@ -185,65 +198,21 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         }
     }
 
-    private fun confirmLastBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.BolusLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting Bolus data sync from $lastSynced")
-            preferences.put(XdripLongKey.BolusLastSyncedId, lastSynced)
-        }
-    }
+    private fun processChangedBoluses() =
+        processChanged(
+            name = "Bolus", collection = "treatments", key = XdripLongKey.BolusLastSyncedId,
+            lastDbId = persistenceLayer.getLastBolusId() ?: 0L,
+            remaining = { queueCounter.bolusesRemaining = it },
+            load = persistenceLayer::getNextSyncElementsBolus
+        ) { bolus -> if (!isOld(bolus.first.timestamp)) DataSyncSelector.PairBolus(bolus.first, bolus.second.id) else null }
 
-    private fun processChangedBoluses() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastBolusId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.BolusLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.BolusLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.bolusesRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementBolus(startId).blockingGet()?.let { bolus ->
-                aapsLogger.info(LTag.XDRIP, "Loading Bolus data Start: $startId ${bolus.first} forID: ${bolus.second.id} ")
-                if (!isOld(bolus.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairBolus(bolus.first, bolus.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastBolusIdIfGreater(bolus.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
-    private fun confirmLastCarbsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.CarbsLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting Carbs data sync from $lastSynced")
-            preferences.put(XdripLongKey.CarbsLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedCarbs() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastCarbsId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.CarbsLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.CarbsLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.carbsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementCarbs(startId).blockingGet()?.let { carb ->
-                aapsLogger.info(LTag.XDRIP, "Loading Carbs data Start: $startId ${carb.first} forID: ${carb.second.id} ")
-                if (!isOld(carb.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairCarbs(carb.first, carb.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastCarbsIdIfGreater(carb.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
+    private fun processChangedCarbs() =
+        processChanged(
+            name = "Carbs", collection = "treatments", key = XdripLongKey.CarbsLastSyncedId,
+            lastDbId = persistenceLayer.getLastCarbsId() ?: 0L,
+            remaining = { queueCounter.carbsRemaining = it },
+            load = persistenceLayer::getNextSyncElementsCarbs
+        ) { carb -> if (!isOld(carb.first.timestamp)) DataSyncSelector.PairCarbs(carb.first, carb.second.id) else null }
 
     private fun confirmLastBolusCalculatorResultsIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.BolusCalculatorLastSyncedId)) {
@@ -275,35 +244,13 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendTreatments(force = true, progress)
     }
 
-    private fun confirmLastTempTargetsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.TemporaryTargetLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting TemporaryTarget data sync from $lastSynced")
-            preferences.put(XdripLongKey.TemporaryTargetLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedTempTargets() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastTemporaryTargetId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.TemporaryTargetLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.TemporaryTargetLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.ttsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementTemporaryTarget(startId).blockingGet()?.let { tt ->
-                aapsLogger.info(LTag.XDRIP, "Loading TemporaryTarget data Start: $startId ${tt.first} forID: ${tt.second.id} ")
-                if (!isOld(tt.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairTemporaryTarget(tt.first, tt.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastTempTargetsIdIfGreater(tt.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
+    private fun processChangedTempTargets() =
+        processChanged(
+            name = "TemporaryTarget", collection = "treatments", key = XdripLongKey.TemporaryTargetLastSyncedId,
+            lastDbId = persistenceLayer.getLastTemporaryTargetId() ?: 0L,
+            remaining = { queueCounter.ttsRemaining = it },
+            load = persistenceLayer::getNextSyncElementsTemporaryTarget
+        ) { tt -> if (!isOld(tt.first.timestamp)) DataSyncSelector.PairTemporaryTarget(tt.first, tt.second.id) else null }
 
     private fun confirmLastFoodIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.FoodLastSyncedId)) {
@@ -334,35 +281,13 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendFoods(force = true, progress)
     }
 
-    private fun confirmLastTherapyEventIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.TherapyEventLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting TherapyEvents data sync from $lastSynced")
-            preferences.put(XdripLongKey.TherapyEventLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedTherapyEvents() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastTherapyEventId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.TherapyEventLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.TherapyEventLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.tesRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementTherapyEvent(startId).blockingGet()?.let { te ->
-                aapsLogger.info(LTag.XDRIP, "Loading TherapyEvents data Start: $startId ${te.first} forID: ${te.second.id} ")
-                if (!isOld(te.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairTherapyEvent(te.first, te.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastTherapyEventIdIfGreater(te.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
+    private fun processChangedTherapyEvents() =
+        processChanged(
+            name = "TherapyEvent", collection = "treatments", key = XdripLongKey.TherapyEventLastSyncedId,
+            lastDbId = persistenceLayer.getLastTherapyEventId() ?: 0L,
+            remaining = { queueCounter.tesRemaining = it },
+            load = persistenceLayer::getNextSyncElementsTherapyEvent
+        ) { te -> if (!isOld(te.first.timestamp)) DataSyncSelector.PairTherapyEvent(te.first, te.second.id) else null }
 
     private fun confirmLastDeviceStatusIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.DeviceStatusLastSyncedId)) {
@@ -420,68 +345,31 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendTreatments(force = true, progress)
     }
 
-    private fun confirmLastExtendedBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.ExtendedBolusLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting ExtendedBolus data sync from $lastSynced")
-            preferences.put(XdripLongKey.ExtendedBolusLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedExtendedBoluses() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastExtendedBolusId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.ExtendedBolusLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.ExtendedBolusLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.ebsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementExtendedBolus(startId).blockingGet()?.let { eb ->
-                aapsLogger.info(LTag.XDRIP, "Loading ExtendedBolus data Start: $startId ${eb.first} forID: ${eb.second.id} ")
-                val profile = profileFunction.getProfile(eb.first.timestamp)
-                if (profile != null && !isOld(eb.first.timestamp)) {
-                    preparedTreatments.add(DataSyncSelector.PairExtendedBolus(eb.first, eb.second.id))
-                    sendTreatments(force = false, progress)
-                } else
+    private fun processChangedExtendedBoluses() =
+        processChanged(
+            name = "ExtendedBolus", collection = "treatments", key = XdripLongKey.ExtendedBolusLastSyncedId,
+            lastDbId = persistenceLayer.getLastExtendedBolusId() ?: 0L,
+            remaining = { queueCounter.ebsRemaining = it },
+            load = persistenceLayer::getNextSyncElementsExtendedBolus
+        ) { eb ->
+            when {
+                isOld(eb.first.timestamp)                              -> null
+                profileFunction.getProfile(eb.first.timestamp) == null -> {
                     aapsLogger.info(LTag.XDRIP, "Ignoring ExtendedBolus. No profile: ${eb.second.id} ")
-                confirmLastExtendedBolusIdIfGreater(eb.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
-    private fun confirmLastProfileSwitchIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.ProfileSwitchLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting ProfileSwitch data sync from $lastSynced")
-            preferences.put(XdripLongKey.ProfileSwitchLastSyncedId, lastSynced)
-        }
-    }
+                    null
+                }
 
-    private fun processChangedProfileSwitches() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastProfileSwitchId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.ProfileSwitchLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.ProfileSwitchLastSyncedId, 0)
-                startId = 0
+                else                                                   -> DataSyncSelector.PairExtendedBolus(eb.first, eb.second.id)
             }
-            queueCounter.pssRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementProfileSwitch(startId).blockingGet()?.let { ps ->
-                aapsLogger.info(LTag.XDRIP, "Loading ProfileSwitch data Start: $startId ${ps.first} forID: ${ps.second.id} ")
-                if (!isOld(ps.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairProfileSwitch(ps.first, ps.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastProfileSwitchIdIfGreater(ps.second.id)
-            } ?: break
         }
-        sendTreatments(force = true, progress)
-    }
+
+    private fun processChangedProfileSwitches() =
+        processChanged(
+            name = "ProfileSwitch", collection = "treatments", key = XdripLongKey.ProfileSwitchLastSyncedId,
+            lastDbId = persistenceLayer.getLastProfileSwitchId() ?: 0L,
+            remaining = { queueCounter.pssRemaining = it },
+            load = persistenceLayer::getNextSyncElementsProfileSwitch
+        ) { ps -> if (!isOld(ps.first.timestamp)) DataSyncSelector.PairProfileSwitch(ps.first, ps.second.id) else null }
 
     private fun confirmLastEffectiveProfileSwitchIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.EffectiveProfileSwitchLastSyncedId)) {
@@ -569,4 +457,10 @@ class DataSyncSelectorXdripImpl @Inject constructor(
             processChangedProfileStore()
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private const val PAGE_SIZE = 500
+        private const val BUNDLE_SIZE = 100
+    }
+}
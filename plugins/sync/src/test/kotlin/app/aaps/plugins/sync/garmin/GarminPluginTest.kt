@@ -16,6 +16,9 @@ import app.aaps.plugins.sync.garmin.keys.GarminIntKey
 import app.aaps.plugins.sync.garmin.keys.GarminStringKey
 import app.aaps.shared.tests.TestBaseWithProfile
 import com.google.common.truth.Truth
+import kotlinx.coroutines.async
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
@@ -23,7 +26,6 @@ import org.junit.jupiter.api.Assertions.assertThrows
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.ArgumentCaptor
-import org.mockito.ArgumentMatchers.anyLong
 import org.mockito.Mock
 import org.mockito.Mockito.atMost
 import org.mockito.Mockito.mock
@@ -44,7 +46,6 @@ import java.time.Duration
 import java.time.Instant
 import java.time.ZoneId
 import java.time.temporal.ChronoUnit
-import java.util.concurrent.locks.Condition
 import kotlin.ranges.LongProgression.Companion.fromClosedRange
 
 class GarminPluginTest : TestBaseWithProfile() {
@@ -165,15 +166,67 @@ class GarminPluginTest : TestBaseWithProfile() {
         val from = getGlucoseValuesFrom
         val lastTimestamp = clock.instant()
         val prev = createGlucoseValue(clock.instant())
-        gp.newValue = mock(Condition::class.java)
         `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev))
         gp.onNewBloodGlucose(EventNewBG(lastTimestamp.toEpochMilli()))
         assertArrayEquals(arrayOf(prev), gp.getGlucoseValues().toTypedArray())
 
-        verify(gp.newValue).signalAll()
+        assertEquals(lastTimestamp.toEpochMilli(), gp.lastGlucoseValueTimestamp.value)
         verify(loopHub).getGlucoseValues(from, true)
     }
 
+    @Test
+    fun testGetGlucoseValues_Cached() {
+        val from = getGlucoseValuesFrom
+        val prev = createGlucoseValue(clock.instant().minusSeconds(310))
+        val last = createGlucoseValue(clock.instant())
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev))
+        assertArrayEquals(arrayOf(prev), gp.getGlucoseValues().toTypedArray())
+        assertArrayEquals(arrayOf(prev), gp.getGlucoseValues().toTypedArray())
+        verify(loopHub).getGlucoseValues(from, true)
+
+        // New value invalidates the cache.
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev, last))
+        gp.onNewBloodGlucose(EventNewBG(last.timestamp))
+        assertArrayEquals(arrayOf(prev, last), gp.getGlucoseValues().toTypedArray())
+        assertArrayEquals(arrayOf(prev, last), gp.getGlucoseValues().toTypedArray())
+        verify(loopHub, times(2)).getGlucoseValues(from, true)
+    }
+
+    @Test
+    fun testGetGlucoseValues_ChangedOlderValueInvalidatesCache() {
+        val from = getGlucoseValuesFrom
+        val prev = createGlucoseValue(clock.instant().minusSeconds(610))
+        val last = createGlucoseValue(clock.instant().minusSeconds(310))
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev, last))
+        gp.onNewBloodGlucose(EventNewBG(last.timestamp))
+        assertArrayEquals(arrayOf(prev, last), gp.getGlucoseValues().toTypedArray())
+
+        // prev invalidated, event carries its older timestamp
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(last))
+        gp.onNewBloodGlucose(EventNewBG(prev.timestamp))
+        assertArrayEquals(arrayOf(last), gp.getGlucoseValues().toTypedArray())
+        assertEquals(last.timestamp, gp.lastGlucoseValueTimestamp.value)
+        verify(loopHub, times(2)).getGlucoseValues(from, true)
+    }
+
+    @Test
+    fun testGetGlucoseValues_ChangeDuringQueryNotCached() {
+        val from = getGlucoseValuesFrom
+        val prev = createGlucoseValue(clock.instant().minusSeconds(310))
+        val last = createGlucoseValue(clock.instant())
+        // glucose values change while the first query is running
+        `when`(loopHub.getGlucoseValues(from, true))
+            .thenAnswer {
+                gp.onNewBloodGlucose(EventNewBG(last.timestamp))
+                listOf(prev)
+            }
+            .thenReturn(listOf(prev, last))
+        assertArrayEquals(arrayOf(prev), gp.getGlucoseValues().toTypedArray())
+        assertArrayEquals(arrayOf(prev, last), gp.getGlucoseValues().toTypedArray())
+        assertArrayEquals(arrayOf(prev, last), gp.getGlucoseValues().toTypedArray())
+        verify(loopHub, times(2)).getGlucoseValues(from, true)
+    }
+
     @Test
     fun setupHttpServer_enabled() {
         `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("")
@@ -217,7 +270,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun requestHandler_NoKey() {
+    fun requestHandler_NoKey() = runTest {
         `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("")
         val uri = createUri(emptyMap())
         val handler = gp.requestHandler { u: URI -> assertEquals(uri, u); "OK" }
@@ -228,7 +281,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun requestHandler_KeyProvided() {
+    fun requestHandler_KeyProvided() = runTest {
         `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("")
         val uri = createUri(mapOf("key" to "foo"))
         val handler = gp.requestHandler { u: URI -> assertEquals(uri, u); "OK" }
@@ -239,7 +292,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun requestHandler_KeyRequiredAndProvided() {
+    fun requestHandler_KeyRequiredAndProvided() = runTest {
         `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("foo")
         val uri = createUri(mapOf("key" to "foo"))
         val handler = gp.requestHandler { u: URI -> assertEquals(uri, u); "OK" }
@@ -251,7 +304,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun requestHandler_KeyRequired() {
+    fun requestHandler_KeyRequired() = runTest {
         gp.garminMessengerField = mock(GarminMessenger::class.java)
 
         `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("foo")
@@ -310,7 +363,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun testOnGetBloodGlucose() {
+    fun testOnGetBloodGlucose() = runTest {
         `when`(loopHub.isConnected).thenReturn(true)
         `when`(loopHub.insulinOnboard).thenReturn(3.14)
         `when`(loopHub.insulinBasalOnboard).thenReturn(2.71)
@@ -348,7 +401,7 @@ class GarminPluginTest : TestBaseWithProfile() {
     }
 
     @Test
-    fun testOnGetBloodGlucose_Wait() {
+    fun testOnGetBloodGlucose_Wait() = runTest {
         `when`(loopHub.isConnected).thenReturn(true)
         `when`(loopHub.insulinOnboard).thenReturn(3.14)
         `when`(loopHub.temporaryBasal).thenReturn(0.8)
@@ -360,7 +413,6 @@ class GarminPluginTest : TestBaseWithProfile() {
         val params = createHeartRate(99).toMutableMap()
         params["wait"] = 10
         val uri = createUri(params)
-        gp.newValue = mock(Condition::class.java)
         val result = gp.onGetBloodGlucose(uri)
         assertEquals(
             """{"encodedGlucose":"/wS6AQ==",""" +
@@ -369,8 +421,8 @@ class GarminPluginTest : TestBaseWithProfile() {
                 """"profile":"D","connected":true}""",
             result.toString()
         )
-        verify(gp.newValue).awaitNanos(anyLong())
-        verify(loopHub, times(2)).getGlucoseValues(from, true)
+        // Timed out without a new value, so the cached values are returned.
+        verify(loopHub).getGlucoseValues(from, true)
         verify(loopHub).insulinOnboard
         verify(loopHub).temporaryBasal
         verify(loopHub).isConnected
@@ -385,6 +437,30 @@ class GarminPluginTest : TestBaseWithProfile() {
         )
     }
 
+    @Test
+    fun testOnGetBloodGlucose_WaitNewValue() = runTest {
+        `when`(loopHub.glucoseUnit).thenReturn(GlucoseUnit.MGDL)
+        val from = getGlucoseValuesFrom
+        val prev = createGlucoseValue(clock.instant().minusSeconds(330))
+        val last = createGlucoseValue(clock.instant().minusSeconds(10))
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev))
+        val result = async { gp.onGetBloodGlucose(createUri(mapOf("wait" to 10))) }
+        runCurrent()
+        // Request is suspended, waiting for the next glucose value.
+        Truth.assertThat(result.isActive).isTrue()
+
+        `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev, last))
+        gp.onNewBloodGlucose(EventNewBG(last.timestamp))
+        Truth.assertThat(result.await().toString()).contains("\"glucoseUnit\":\"mgdl\"")
+        verify(loopHub, times(2)).getGlucoseValues(from, true)
+        verify(loopHub).insulinOnboard
+        verify(loopHub).temporaryBasal
+        verify(loopHub).isConnected
+        verify(loopHub).glucoseUnit
+        verify(loopHub).lowGlucoseMark
+        verify(loopHub).highGlucoseMark
+    }
+
     @Test
     fun testOnPostCarbs() {
         val uri = createUri(mapOf("carbs" to "12"))
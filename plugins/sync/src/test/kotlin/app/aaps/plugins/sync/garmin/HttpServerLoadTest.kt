@@ -0,0 +1,63 @@
+package app.aaps.plugins.sync.garmin
+
+import app.aaps.shared.tests.TestBase
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.SocketAddress
+import java.net.URI
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/** Load harness that simulates many Garmin devices long-polling the local HTTP server. */
+internal class HttpServerLoadTest : TestBase() {
+
+    private val devices = 64
+    private val port = 28897
+
+    @Test fun testManyDevicesLongPoll() {
+        val value = MutableStateFlow(0)
+        val waiting = AtomicInteger()
+        HttpServer(aapsLogger, port).use { server ->
+            server.registerEndpoint("/get") { _: SocketAddress, _: URI, _: String? ->
+                waiting.incrementAndGet()
+                val v = withTimeoutOrNull(20_000L) { value.first { it > 0 } }
+                waiting.decrementAndGet()
+                HttpURLConnection.HTTP_OK to "{\"value\":$v}"
+            }
+            assertTrue(server.awaitReady(Duration.ofSeconds(10)))
+
+            val done = CountDownLatch(devices)
+            val ok = AtomicInteger()
+            repeat(devices) { device ->
+                Thread {
+                    try {
+                        val resp = URI("http://127.0.0.1:$port/get?device=$device").toURL().openConnection() as HttpURLConnection
+                        resp.readTimeout = 30_000
+                        if (resp.responseCode == 200 &&
+                            (resp.content as InputStream).reader().use { r -> r.readText() } == "{\"value\":1}"
+                        ) ok.incrementAndGet()
+                    } finally {
+                        done.countDown()
+                    }
+                }.apply { isDaemon = true }.start()
+            }
+
+            // All devices are parked on the server without holding a server thread each.
+            val deadline = System.currentTimeMillis() + 10_000L
+            while (waiting.get() < devices && System.currentTimeMillis() < deadline) Thread.sleep(10)
+            assertEquals(devices, waiting.get())
+
+            value.value = 1
+            assertTrue(done.await(30, TimeUnit.SECONDS))
+            assertEquals(devices, ok.get())
+        }
+    }
+}
@@ -96,4 +96,35 @@ internal class HttpServerTest: TestBase() {
             assertEquals(404, resp.responseCode)
         }
     }
+
+    @Test fun testExpectedRequestLength_Get() {
+        assertEquals(-1, HttpServer.expectedRequestLength("GET /foo HTTP/1.1\r\nHost: x\r\n".toByteArray()))
+        val req = "GET /foo HTTP/1.1\r\nHost: x\r\n\r\n".toByteArray()
+        assertEquals(req.size, HttpServer.expectedRequestLength(req))
+    }
+
+    @Test fun testExpectedRequestLength_Post() {
+        val header = "POST /foo HTTP/1.1\r\nContent-Length: 7\r\n\r\n"
+        assertEquals(header.length + 7, HttpServer.expectedRequestLength((header + "a=1").toByteArray()))
+        assertEquals(Int.MAX_VALUE, HttpServer.expectedRequestLength("POST /foo HTTP/1.1\n\na=1".toByteArray()))
+    }
+
+    @Test fun testRequest_PostBody() {
+        val port = 28896
+        val reqUri = URI("http://127.0.0.1:$port/foo")
+        HttpServer(aapsLogger, port).use { server ->
+            server.registerEndpoint("/foo") { _: SocketAddress, uri: URI, _: String? ->
+                HttpURLConnection.HTTP_OK to (uri.query ?: "")
+            }
+            assertTrue(server.awaitReady(Duration.ofSeconds(10)))
+            val resp = reqUri.toURL().openConnection() as HttpURLConnection
+            resp.requestMethod = "POST"
+            resp.doOutput = true
+            resp.setRequestProperty("Content-Type", "application/x-www-form-urlencoded")
+            resp.outputStream.use { out -> out.write("a=1&b=2".toByteArray()) }
+            assertEquals(200, resp.responseCode)
+            val content = (resp.content as InputStream).reader().use { r -> r.readText() }
+            assertEquals("a=1&b=2", content)
+        }
+    }
 }
@@ -7,8 +7,13 @@ import app.aaps.plugins.sync.openhumans.delegates.OHStateDelegate
 import app.aaps.shared.tests.TestBaseWithProfile
 import com.google.common.truth.Truth.assertThat
 import org.junit.jupiter.api.BeforeEach
+import org.json.JSONArray
+import org.json.JSONObject
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
+import java.io.ByteArrayOutputStream
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
 
 class OpenHumansUploaderPluginTest : TestBaseWithProfile() {
 
@@ -33,4 +38,30 @@ class OpenHumansUploaderPluginTest : TestBaseWithProfile() {
         openHumansUploaderPlugin.addPreferenceScreen(preferenceManager, screen, context, null)
         assertThat(screen.preferenceCount).isGreaterThan(0)
     }
+
+    @Test
+    fun jsonArrayFileIsStreamedRecordByRecord() {
+        val records = listOf(1L to "first", 2L to "quote \" and ,", 3L to "third")
+        val block: JSONObject.(Pair<Long, String>) -> Unit = { put("id", it.first); put("value", it.second) }
+        val expected = JSONArray().also { array -> records.forEach { array.put(JSONObject().apply { block(it) }) } }.toString()
+
+        val bytes = ByteArrayOutputStream()
+        ZipOutputStream(bytes).use { zos ->
+            with(openHumansUploaderPlugin) {
+                zos.writeJSONArrayFile("Records.json", records, block)
+                zos.writeJSONArrayFile("Empty.json", emptyList(), block)
+            }
+        }
+
+        ZipInputStream(bytes.toByteArray().inputStream()).use { zis ->
+            assertThat(zis.nextEntry!!.name).isEqualTo("Records.json")
+            val content = zis.readBytes().decodeToString()
+            // same bytes as JSONArray of all records
+            assertThat(content).isEqualTo(expected)
+            assertThat(JSONArray(content).getJSONObject(1).getString("value")).isEqualTo("quote \" and ,")
+            assertThat(zis.nextEntry!!.name).isEqualTo("Empty.json")
+            assertThat(zis.readBytes().decodeToString()).isEqualTo("[]")
+            assertThat(zis.nextEntry).isNull()
+        }
+    }
 }
@@ -0,0 +1,142 @@
+package app.aaps.plugins.sync.tidepool.comm
+
+import android.content.Context
+import android.os.PowerManager
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.logging.L
+import app.aaps.core.interfaces.logging.LogElement
+import app.aaps.core.keys.StringKey
+import app.aaps.plugins.sync.nsclient.ReceiverDelegate
+import app.aaps.plugins.sync.tidepool.keys.TidepoolLongKey
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import com.google.gson.JsonParser
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import io.reactivex.rxjava3.core.Single
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mock
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.`when`
+import java.net.InetSocketAddress
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Catch-up of two months of CGM data against a local mock of the Tidepool API
+ * with slow database queries and slow uploads. Checks the order of loads and uploads, not the throughput.
+ */
+class TidepoolUploaderLoadTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var receiverDelegate: ReceiverDelegate
+    @Mock lateinit var l: L
+    @Mock lateinit var logElement: LogElement
+    @Mock lateinit var powerManager: PowerManager
+
+    private val dbLatency = 100L
+    private val uploadLatency = 150L
+
+    private lateinit var server: HttpServer
+    private lateinit var tidepoolUploader: TidepoolUploader
+    private lateinit var uploadChunk: UploadChunk
+
+    private val lastEnd = AtomicLong(0)
+    private val uploadedRecords = AtomicInteger()
+
+    /** Order of database loads and uploads, both numbered from one [step] sequence */
+    private val step = AtomicInteger()
+    private val loadStarts = Collections.synchronizedList(mutableListOf<Int>())
+    private val uploadEnds = Collections.synchronizedList(mutableListOf<Int>())
+
+    @BeforeEach
+    fun prepare() {
+        server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0).apply {
+            executor = Executors.newCachedThreadPool()
+            createContext("/auth/login") {
+                it.responseHeaders.add(SESSION_TOKEN_HEADER, "token")
+                it.reply("{\"userid\":\"user\"}")
+            }
+            createContext("/v1/users/user/data_sets") { it.reply("[{\"id\":\"dataset\",\"uploadId\":\"upload\"}]") }
+            createContext("/v1/datasets/upload/data") {
+                val body = it.requestBody.reader().readText()
+                uploadedRecords.addAndGet(JsonParser.parseString(body).asJsonArray.size())
+                Thread.sleep(uploadLatency)
+                uploadEnds.add(step.incrementAndGet())
+                it.reply("{\"data\":[]}")
+            }
+            start()
+        }
+
+        `when`(context.getSystemService(Context.POWER_SERVICE)).thenReturn(powerManager)
+        `when`(receiverDelegate.allowed).thenReturn(true)
+        `when`(l.findByName(anyString())).thenReturn(logElement)
+        `when`(config.APPLICATION_ID).thenReturn("app.aaps")
+        `when`(config.VERSION_NAME).thenReturn("3.3")
+        `when`(preferences.get(StringKey.TidepoolUsername)).thenReturn("user")
+        `when`(preferences.get(StringKey.TidepoolPassword)).thenReturn("password")
+        `when`(preferences.get(TidepoolLongKey.LastEnd)).thenAnswer { lastEnd.get() }
+        doAnswer { lastEnd.set(it.getArgument(1)) }.`when`(preferences).put(eq(TidepoolLongKey.LastEnd), anyLong())
+        `when`(persistenceLayer.getTherapyEventDataFromToTime(anyLong(), anyLong())).thenReturn(Single.just(emptyList()))
+        `when`(persistenceLayer.getBgReadingsDataFromTimeToTime(anyLong(), anyLong(), anyBoolean())).thenAnswer {
+            loadStarts.add(step.incrementAndGet())
+            Thread.sleep(dbLatency)
+            generateBgReadings(it.getArgument(0), it.getArgument(1))
+        }
+
+        uploadChunk = UploadChunk(preferences, rxBus, aapsLogger, profileFunction, profileUtil, activePlugin, persistenceLayer, dateUtil)
+        tidepoolUploader = TidepoolUploader(aapsLogger, rxBus, context, rh, preferences, uploadChunk, dateUtil, receiverDelegate, config, l)
+        tidepoolUploader.baseUrl = "http://127.0.0.1:${server.address.port}"
+    }
+
+    @AfterEach
+    fun stop() {
+        server.stop(0)
+    }
+
+    @Test
+    fun catchUpLoadsNextChunkDuringUpload() {
+        val from = uploadChunk.getLastEnd()
+        val to = now - T.hours(3).msecs()
+        val expectedRecords = generateBgReadings(from, to).size
+
+        tidepoolUploader.doLogin(doUpload = true)
+        val deadline = System.currentTimeMillis() + 30_000
+        while (lastEnd.get() < to && System.currentTimeMillis() < deadline) Thread.sleep(10)
+
+        assertThat(lastEnd.get()).isEqualTo(to)
+        assertThat(uploadedRecords.get()).isEqualTo(expectedRecords)
+        val chunks = uploadEnds.size
+        assertThat(chunks).isGreaterThan(1)
+        // every chunk but the first one was loaded before upload of the previous one finished
+        assertThat(loadStarts).hasSize(chunks)
+        for (i in 1 until chunks)
+            assertThat(loadStarts[i]).isLessThan(uploadEnds[i - 1])
+    }
+
+    private fun generateBgReadings(start: Long, end: Long): List<GV> {
+        val first = start - start % T.mins(5).msecs() + T.mins(5).msecs()
+        return (first..end step T.mins(5).msecs()).map {
+            GV(timestamp = it, raw = null, value = 100.0 + it / T.mins(5).msecs() % 50, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.UNKNOWN)
+        }
+    }
+
+    private fun HttpExchange.reply(body: String) {
+        val bytes = body.toByteArray()
+        responseHeaders.add("Content-Type", "application/json")
+        sendResponseHeaders(200, bytes.size.toLong())
+        responseBody.use { it.write(bytes) }
+    }
+}
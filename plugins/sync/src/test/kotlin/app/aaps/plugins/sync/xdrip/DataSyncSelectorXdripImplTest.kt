@@ -0,0 +1,132 @@
+package app.aaps.plugins.sync.xdrip
+
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.sync.DataSyncSelector
+import app.aaps.core.interfaces.sync.XDripBroadcast
+import app.aaps.plugins.sync.xdrip.keys.XdripLongKey
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import dagger.Lazy
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.whenever
+
+class DataSyncSelectorXdripImplTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var xDripBroadcast: XDripBroadcast
+
+    private lateinit var sut: DataSyncSelectorXdripImpl
+
+    /** Glucose value table, history records reference current record by referenceId */
+    private val table = mutableListOf<GV>()
+    private val synced = HashMap<XdripLongKey, Long>()
+    private val bundles = mutableListOf<List<DataSyncSelector.DataPair>>()
+    private var queries = 0
+
+    @BeforeEach
+    fun prepare() {
+        sut = DataSyncSelectorXdripImpl(aapsLogger, dateUtil, profileFunction, activePlugin, Lazy { xDripBroadcast }, persistenceLayer, rxBus, preferences)
+        table.clear()
+        synced.clear()
+        bundles.clear()
+        queries = 0
+        whenever(xDripBroadcast.isEnabled()).thenReturn(true)
+        doAnswer {
+            bundles.add(it.getArgument(1))
+            null
+        }.whenever(xDripBroadcast).sendToXdrip(eq("entries"), any<List<DataSyncSelector.DataPair>>(), any())
+        whenever(preferences.get(any<XdripLongKey>())).thenAnswer { synced[it.getArgument(0)] ?: 0L }
+        doAnswer {
+            synced[it.getArgument(0)] = it.getArgument(1)
+            null
+        }.whenever(preferences).put(any<XdripLongKey>(), any<Long>())
+        whenever(persistenceLayer.getLastGlucoseValueId()).thenAnswer { table.lastOrNull()?.id }
+        whenever(persistenceLayer.getNextSyncElementsGlucoseValue(any(), any())).thenAnswer { invocation ->
+            queries++
+            val id = invocation.getArgument<Long>(0)
+            val limit = invocation.getArgument<Int>(1)
+            val loaded = table.filter { it.id > id }.take(limit)
+            // history records of removed current record are skipped like in AppRepository
+            val pairs = loaded.mapNotNull { record -> record.referenceId?.let { reference -> table.getOrNull((reference - 1).toInt())?.let { it to record } } ?: (record to record) }
+            PersistenceLayer.SyncPage(pairs, loaded.lastOrNull()?.id ?: 0L, loaded.size)
+        }
+    }
+
+    private fun insert(timestamp: Long, value: Double, referenceId: Long? = null) {
+        table.add(GV(id = table.size + 1L, referenceId = referenceId, timestamp = timestamp, raw = null, value = value, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.UNKNOWN))
+    }
+
+    /**
+     * Readings every 5 min for [days], every 20th reading corrected later (history record appended)
+     */
+    private fun generate(days: Long) {
+        var time = now - T.days(days).msecs()
+        while (time <= now) {
+            insert(time, 100.0 + table.size % 50)
+            if (table.size % 20 == 0) insert(time, 150.0, referenceId = table.size.toLong())
+            time += T.mins(5).msecs()
+        }
+    }
+
+    @Test
+    fun fullResyncSendsRecentRecordsOnce() = runBlocking {
+        generate(days = 3)
+        sut.doUpload()
+
+        val sent = bundles.flatten().map { it.value as GV }
+        val recent = table.filter { it.referenceId == null && it.timestamp >= now - T.days(1).msecs() }
+        assertThat(sent.map { it.id }.toSet()).containsExactlyElementsIn(recent.map { it.id })
+        // current version is sent, not the history record
+        assertThat(sent.all { it.referenceId == null }).isTrue()
+        assertThat(bundles.all { it.size <= 100 }).isTrue()
+        assertThat(synced[XdripLongKey.GlucoseValueLastSyncedId]).isEqualTo(table.last().id)
+    }
+
+    @Test
+    fun incrementalSyncContinuesFromLastPosition() = runBlocking {
+        generate(days = 1)
+        sut.doUpload()
+        bundles.clear()
+        queries = 0
+
+        insert(now + T.mins(5).msecs(), 120.0)
+        insert(now + T.mins(10).msecs(), 125.0)
+        sut.doUpload()
+
+        assertThat(queries).isEqualTo(1)
+        assertThat(bundles.flatten().map { (it.value as GV).value }).containsExactly(120.0, 125.0).inOrder()
+        assertThat(synced[XdripLongKey.GlucoseValueLastSyncedId]).isEqualTo(table.last().id)
+    }
+
+    @Test
+    fun fullResyncOfMonths() = runBlocking {
+        generate(days = 90)
+        sut.doUpload()
+
+        // one query per page instead of one per record
+        assertThat(queries).isAtMost(table.size / 500 + 1)
+        assertThat(synced[XdripLongKey.GlucoseValueLastSyncedId]).isEqualTo(table.last().id)
+    }
+
+    @Test
+    fun pageOfSkippedRecordsMovesPosition() = runBlocking {
+        // full page of history records without current record, then a new reading
+        repeat(500) { insert(now, 100.0, referenceId = 100_000L) }
+        insert(now, 120.0)
+        sut.doUpload()
+
+        assertThat(queries).isEqualTo(2)
+        assertThat(bundles.flatten().map { (it.value as GV).value }).containsExactly(120.0)
+        assertThat(synced[XdripLongKey.GlucoseValueLastSyncedId]).isEqualTo(table.last().id)
+    }
+}
@@ -32,12 +32,16 @@ package info.nightscout.comboctl.parser
  * @property pixels Boolean array housing the pixels.
  * @property numSetPixels Number of pixels in the array that are set
  *           (= whose value is true).
+ * @property rowBits The pixels of each row packed into a Long. Bit x of
+ *           a row is set if the pixel at x is set. Used by [findTokens]
+ *           to compare entire rows at once.
  */
 class Pattern(templateRows: Array<String>) {
     val width: Int
     val height: Int
     val pixels: BooleanArray
     val numSetPixels: Int
+    val rowBits: LongArray
 
     init {
         // Sanity checks. The pattern must have at least one row,
@@ -78,6 +82,19 @@ class Pattern(templateRows: Array<String>) {
         }
 
         numSetPixels = tempNumSetPixels
+
+        // Pack the rows for the bitwise comparison in findTokens().
+        if (width >= Long.SIZE_BITS)
+            throw IllegalArgumentException("Pattern is too wide; width: $width")
+
+        rowBits = LongArray(height) { y ->
+            var bits = 0L
+            for (x in 0 until width) {
+                if (pixels[x + y * width])
+                    bits = bits or (1L shl x)
+            }
+            bits
+        }
     }
 }
 
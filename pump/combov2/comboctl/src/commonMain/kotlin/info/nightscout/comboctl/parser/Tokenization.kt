@@ -68,6 +68,173 @@ fun checkIfPatternMatchesAt(displayFrame: DisplayFrame, pattern: Pattern, x: Int
     return true
 }
 
+/**
+ * [DisplayFrame] with the pixels of each row packed into two Longs.
+ *
+ * Bit x of a row is set if the pixel at x is set, the same layout
+ * as [Pattern.rowBits]. The first Long of a row contains the columns
+ * 0-63, the second one the columns 64-95.
+ *
+ * @param displayFrame [DisplayFrame] to pack.
+ */
+internal class PackedDisplayFrame(displayFrame: DisplayFrame) {
+    private val rows = LongArray(DISPLAY_FRAME_HEIGHT * 2)
+
+    init {
+        for (y in 0 until DISPLAY_FRAME_HEIGHT) {
+            var low = 0L
+            var high = 0L
+            for (x in 0 until DISPLAY_FRAME_WIDTH) {
+                if (!displayFrame.getPixelAt(x, y))
+                    continue
+                if (x < Long.SIZE_BITS)
+                    low = low or (1L shl x)
+                else
+                    high = high or (1L shl (x - Long.SIZE_BITS))
+            }
+            rows[y * 2 + 0] = low
+            rows[y * 2 + 1] = high
+        }
+    }
+
+    /**
+     * Returns a horizontal run of pixels from a row.
+     *
+     * @param x X-coordinate of the first pixel of the run.
+     * @param y Y-coordinate of the row.
+     * @param width Number of pixels in the run. Must be less than 64.
+     * @return The pixels, packed like in [Pattern.rowBits].
+     */
+    fun getRowBitsAt(x: Int, y: Int, width: Int): Long {
+        val low = rows[y * 2 + 0]
+        val high = rows[y * 2 + 1]
+        // Shifting by 64 is a no-op, which is why x == 0 is handled separately.
+        val bits = when {
+            x == 0              -> low
+            x >= Long.SIZE_BITS -> high ushr (x - Long.SIZE_BITS)
+            else                -> (low ushr x) or (high shl (Long.SIZE_BITS - x))
+        }
+        return bits and ((1L shl width) - 1)
+    }
+}
+
+/**
+ * Index over [glyphPatterns] used by [findTokens].
+ *
+ * Patterns are grouped by width. Within each group, the patterns are
+ * looked up by their first row, which is a single shift-and-mask step
+ * in a [PackedDisplayFrame]. This skips all patterns that cannot match
+ * at a given position without comparing them. The candidates for a
+ * first row are sorted by their position in [glyphPatterns], since that
+ * order decides which pattern wins if several match at the same spot.
+ */
+private class GlyphPatternIndex(glyphPatterns: Map<Glyph, Pattern>) {
+    class Group(val width: Int, val firstRows: LongArray, val candidates: Array<IntArray>)
+
+    val glyphs = glyphPatterns.keys.toTypedArray()
+    val patterns = glyphPatterns.values.toTypedArray()
+    val groups = patterns.indices
+        .groupBy { patterns[it].width }
+        .map { (width, indices) ->
+            val byFirstRow = indices.groupBy { patterns[it].rowBits[0] }.entries.sortedBy { it.key }
+            Group(
+                width,
+                byFirstRow.map { it.key }.toLongArray(),
+                byFirstRow.map { it.value.toIntArray() }.toTypedArray()
+            )
+        }
+        .toTypedArray()
+}
+
+private val glyphPatternIndex by lazy { GlyphPatternIndex(glyphPatterns) }
+
+/**
+ * Checks if the pattern rows below the first one match at the given coordinates.
+ *
+ * The first row and the horizontal bounds are already covered by
+ * the [GlyphPatternIndex] lookup in [findTokens].
+ */
+private fun checkIfPackedPatternMatchesAt(packedFrame: PackedDisplayFrame, pattern: Pattern, x: Int, y: Int): Boolean {
+    if ((y + pattern.height) > DISPLAY_FRAME_HEIGHT)
+        return false
+
+    for (py in 1 until pattern.height) {
+        if (packedFrame.getRowBitsAt(x, y + py, pattern.width) != pattern.rowBits[py])
+            return false
+    }
+
+    return true
+}
+
+/**
+ * Checks if the bounding rectangles of two tokens overlap.
+ */
+private fun checkIfTokensOverlap(tokenA: Token, tokenB: Token): Boolean {
+    // Get the coordinates of the top-left (x1,y1) and bottom-right (x2,y2)
+    // corners of the bounding rectangles of both matches. The (x2,y2)
+    // coordinates are inclusive, that is, still inside the rectangle, and
+    // at the rectangle's bottom right corner. (That's why there's the -1
+    // in the calculations below; it avoids a fencepost error.)
+
+    val tokenAx1 = tokenA.x
+    val tokenAy1 = tokenA.y
+    val tokenAx2 = tokenA.x + tokenA.pattern.width - 1
+    val tokenAy2 = tokenA.y + tokenA.pattern.height - 1
+
+    val tokenBx1 = tokenB.x
+    val tokenBy1 = tokenB.y
+    val tokenBx2 = tokenB.x + tokenB.pattern.width - 1
+    val tokenBy2 = tokenB.y + tokenB.pattern.height - 1
+
+    /* Overlap detection:
+
+    Given two rectangles A and B:
+
+    Example of non-overlap:
+
+    <                  A                  >
+                                                    <                  B                  >
+                                          |---xd2---|
+
+    |-----------------------------------------xd1-----------------------------------------|
+
+    Example of overlap:
+
+    <                  A                  >
+                  <                  B                  >
+                  |----------xd2----------|
+
+    |------------------------xd1------------------------|
+
+    xd1 = distance from A.x1 to B.x2
+    xd2 = distance from A.x2 to B.x1
+
+    If B is fully to the right of A, then both xd1 and xd2 are positive.
+    If B is fully to the left of A, then both xd1 and xd2 are negative.
+    If xd1 is positive and xd2 is negative (or vice versa), then A and B are overlapping in the X direction.
+
+    The same tests are done in Y direction.
+
+    If A and B overlap in both X and Y direction, they overlap overall.
+
+    It follows that:
+    if (xd1 is positive and xd2 is negative) or (xd1 is negative and xd2 is positive) and
+       (yd1 is positive and yd2 is negative) or (yd1 is negative and yd2 is positive) -> A and B overlap.
+
+    The (xd1 is positive and xd2 is negative) or (xd1 is negative and xd2 is positive) check
+    can be shorted to: (sign(xd1) != sign(xd2)). The same applies to the checks in the Y direction.
+
+    -> Final check: if (sign(xd1) != sign(xd2)) and (sign(yd1) != sign(yd2)) -> A and B overlap.
+    */
+
+    val xd1 = (tokenBx2 - tokenAx1)
+    val xd2 = (tokenBx1 - tokenAx2)
+    val yd1 = (tokenBy2 - tokenAy1)
+    val yd2 = (tokenBy1 - tokenAy2)
+
+    return (xd1.sign != xd2.sign) && (yd1.sign != yd2.sign)
+}
+
 /**
  * Look for regions in the display frame that can  be turned into tokens.
  *
@@ -77,11 +244,17 @@ fun checkIfPatternMatchesAt(displayFrame: DisplayFrame, pattern: Pattern, x: Int
  * the character L, but in case of such an overlap, we are interested in the former).
  * The remaining matches are output as tokens.
  *
+ * The search compares entire pattern rows at once in a [PackedDisplayFrame]. It yields
+ * the same tokens as trying [checkIfPatternMatchesAt] with every pattern in
+ * [glyphPatterns] at every position.
+ *
  * @param displayFrame [DisplayFrame] to search for tokens.
  * @return Tokens found in this frame.
  */
 fun findTokens(displayFrame: DisplayFrame): Tokens {
     val tokens = mutableListOf<Token>()
+    val packedFrame = PackedDisplayFrame(displayFrame)
+    val index = glyphPatternIndex
 
     // Scan through the display frame and look for tokens.
 
@@ -91,20 +264,39 @@ fun findTokens(displayFrame: DisplayFrame): Tokens {
         var x = 0
 
         while (x < DISPLAY_FRAME_WIDTH) {
-            for ((glyph, pattern) in glyphPatterns) {
-                if (checkIfPatternMatchesAt(displayFrame, pattern, x, y)) {
-                    // Current region in the display frame matches this pattern.
-                    // Create a token out of the pattern, glyph, and coordinates,
-                    // add the token to the list of found tokens, and move past the
-                    // matched pattern horizontally. (There's no point in advancing
-                    // pixel by pixel horizontally since the next pattern.width pixels
-                    // are guaranteed to be part of the already discovered token).
-                    tokens.add(Token(pattern, glyph, x, y))
-                    x += pattern.width - 1 // -1 since the x value is incremented below.
-                    break
+            // Look for the first pattern in glyphPatterns that matches here.
+            var matchIndex = Int.MAX_VALUE
+
+            for (group in index.groups) {
+                if ((x + group.width) > DISPLAY_FRAME_WIDTH)
+                    continue
+
+                val firstRowIndex = group.firstRows.binarySearch(packedFrame.getRowBitsAt(x, y, group.width))
+                if (firstRowIndex < 0)
+                    continue
+
+                for (candidate in group.candidates[firstRowIndex]) {
+                    if (candidate >= matchIndex)
+                        break
+                    if (checkIfPackedPatternMatchesAt(packedFrame, index.patterns[candidate], x, y)) {
+                        matchIndex = candidate
+                        break
+                    }
                 }
             }
 
+            if (matchIndex != Int.MAX_VALUE) {
+                // Current region in the display frame matches this pattern.
+                // Create a token out of the pattern, glyph, and coordinates,
+                // add the token to the list of found tokens, and move past the
+                // matched pattern horizontally. (There's no point in advancing
+                // pixel by pixel horizontally since the next pattern.width pixels
+                // are guaranteed to be part of the already discovered token).
+                val pattern = index.patterns[matchIndex]
+                tokens.add(Token(pattern, index.glyphs[matchIndex], x, y))
+                x += pattern.width - 1 // -1 since the x value is incremented below.
+            }
+
             x++
         }
 
@@ -120,97 +312,44 @@ fun findTokens(displayFrame: DisplayFrame): Tokens {
 
     val tokensToRemove = mutableSetOf<Token>()
 
-    // First, determine what tokens to remove.
-    for (tokenB in tokens) {
-        for (tokenA in tokens) {
-            // Get the coordinates of the top-left (x1,y1) and bottom-right (x2,y2)
-            // corners of the bounding rectangles of both matches. The (x2,y2)
-            // coordinates are inclusive, that is, still inside the rectangle, and
-            // at the rectangle's bottom right corner. (That's why there's the -1
-            // in the calculations below; it avoids a fencepost error.)
-
-            val tokenAx1 = tokenA.x
-            val tokenAy1 = tokenA.y
-            val tokenAx2 = tokenA.x + tokenA.pattern.width - 1
-            val tokenAy2 = tokenA.y + tokenA.pattern.height - 1
-
-            val tokenBx1 = tokenB.x
-            val tokenBy1 = tokenB.y
-            val tokenBx2 = tokenB.x + tokenB.pattern.width - 1
-            val tokenBy2 = tokenB.y + tokenB.pattern.height - 1
-
-            /* Overlap detection:
-
-            Given two rectangles A and B:
-
-            Example of non-overlap:
-
-            <                  A                  >
-                                                            <                  B                  >
-                                                  |---xd2---|
-
-            |-----------------------------------------xd1-----------------------------------------|
-
-            Example of overlap:
-
-            <                  A                  >
-                          <                  B                  >
-                          |----------xd2----------|
-
-            |------------------------xd1------------------------|
-
-            xd1 = distance from A.x1 to B.x2
-            xd2 = distance from A.x2 to B.x1
-
-            If B is fully to the right of A, then both xd1 and xd2 are positive.
-            If B is fully to the left of A, then both xd1 and xd2 are negative.
-            If xd1 is positive and xd2 is negative (or vice versa), then A and B are overlapping in the X direction.
-
-            The same tests are done in Y direction.
-
-            If A and B overlap in both X and Y direction, they overlap overall.
-
-            It follows that:
-            if (xd1 is positive and xd2 is negative) or (xd1 is negative and xd2 is positive) and
-               (yd1 is positive and yd2 is negative) or (yd1 is negative and yd2 is positive) -> A and B overlap.
-
-            The (xd1 is positive and xd2 is negative) or (xd1 is negative and xd2 is positive) check
-            can be shorted to: (sign(xd1) != sign(xd2)). The same applies to the checks in the Y direction.
-
-            -> Final check: if (sign(xd1) != sign(xd2)) and (sign(yd1) != sign(yd2)) -> A and B overlap.
-            */
-
-            val xd1 = (tokenBx2 - tokenAx1)
-            val xd2 = (tokenBx1 - tokenAx2)
-            val yd1 = (tokenBy2 - tokenAy1)
-            val yd2 = (tokenBy1 - tokenAy2)
-
-            val tokensOverlap = (xd1.sign != xd2.sign) && (yd1.sign != yd2.sign)
-
-            if (tokensOverlap) {
-                // Heuristic for checking if one of the two overlapping tokens
-                // needs to be removed:
-                //
-                // 1. If one token has a large pattern and the other doesn't,
-                //    keep the large one and discard the smaller one. Parts of larger
-                //    patterns can be misintepreted as some of the smaller patterns,
-                //    which is the reason for this heuristic.
-                // 2. If one token has a larger numSetPixels value than the other,
-                //    pick that one. A higher number of set pixels is considered to
-                //    indicate a more "complex" or "informative" pattern. For example,
-                //    the 2 blocks of 2x2 pixels at the top ends of the large 'U'
-                //    character token can also be interpreted as a large dot token.
-                //    However, the large dot token has 4 set pixels, while the large
-                //    'U' character token has many more, so the latter "wins".
-                if (tokenA.glyph.isLarge && !tokenB.glyph.isLarge)
-                    tokensToRemove.add(tokenB)
-                else if (!tokenA.glyph.isLarge && tokenB.glyph.isLarge)
-                    tokensToRemove.add(tokenA)
-                else if (tokenA.pattern.numSetPixels > tokenB.pattern.numSetPixels)
-                    tokensToRemove.add(tokenB)
-                else if (tokenA.pattern.numSetPixels < tokenB.pattern.numSetPixels)
-                    tokensToRemove.add(tokenA)
-            }
+    // First, determine what tokens to remove. This is a sweep along the X axis.
+    // With the tokens sorted by their left edge, the only tokens that can overlap
+    // with token A are those that follow it and start before its right edge.
+    val tokensSortedByX = tokens.sortedBy { it.x }
+    for (indexA in tokensSortedByX.indices) {
+        val tokenA = tokensSortedByX[indexA]
+        val tokenAx2 = tokenA.x + tokenA.pattern.width - 1
+
+        for (indexB in (indexA + 1) until tokensSortedByX.size) {
+            val tokenB = tokensSortedByX[indexB]
+            if (tokenB.x > tokenAx2)
+                break
+
+            if (!checkIfTokensOverlap(tokenA, tokenB))
+                continue
+
+            // Heuristic for checking if one of the two overlapping tokens
+            // needs to be removed:
+            //
+            // 1. If one token has a large pattern and the other doesn't,
+            //    keep the large one and discard the smaller one. Parts of larger
+            //    patterns can be misintepreted as some of the smaller patterns,
+            //    which is the reason for this heuristic.
+            // 2. If one token has a larger numSetPixels value than the other,
+            //    pick that one. A higher number of set pixels is considered to
+            //    indicate a more "complex" or "informative" pattern. For example,
+            //    the 2 blocks of 2x2 pixels at the top ends of the large 'U'
+            //    character token can also be interpreted as a large dot token.
+            //    However, the large dot token has 4 set pixels, while the large
+            //    'U' character token has many more, so the latter "wins".
+            if (tokenA.glyph.isLarge && !tokenB.glyph.isLarge)
+                tokensToRemove.add(tokenB)
+            else if (!tokenA.glyph.isLarge && tokenB.glyph.isLarge)
+                tokensToRemove.add(tokenA)
+            else if (tokenA.pattern.numSetPixels > tokenB.pattern.numSetPixels)
+                tokensToRemove.add(tokenB)
+            else if (tokenA.pattern.numSetPixels < tokenB.pattern.numSetPixels)
+                tokensToRemove.add(tokenA)
         }
     }
 
@@ -1,11 +1,106 @@
 package info.nightscout.comboctl.parser
 
+import info.nightscout.comboctl.base.DISPLAY_FRAME_HEIGHT
+import info.nightscout.comboctl.base.DISPLAY_FRAME_WIDTH
+import info.nightscout.comboctl.base.DisplayFrame
+import kotlin.math.sign
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
+import kotlin.test.assertNotEquals
 import kotlin.test.assertTrue
 
 class TokenizationTest {
+    // All frames from TestDisplayFrames.kt, including those in its objects.
+    private val testDisplayFrames: List<DisplayFrame> by lazy {
+        listOf(
+            Class.forName("info.nightscout.comboctl.parser.TestDisplayFramesKt") to null,
+            TbrPercentageAndDurationScreens::class.java to TbrPercentageAndDurationScreens,
+            AlertSnoozeAndConfirmScreens::class.java to AlertSnoozeAndConfirmScreens
+        ).flatMap { (frameClass, instance) ->
+            frameClass.declaredMethods
+                .filter { (it.parameterCount == 0) && (it.returnType == DisplayFrame::class.java) }
+                .sortedBy { it.name }
+                .map { it.invoke(instance) as DisplayFrame }
+        }
+    }
+
+    // The original brute force tokenizer: Tries every pattern at every
+    // position and compares every token with every other one for overlaps.
+    private fun findTokensBruteForce(displayFrame: DisplayFrame): Tokens {
+        val tokens = mutableListOf<Token>()
+
+        var y = 0
+        while (y < DISPLAY_FRAME_HEIGHT) {
+            var x = 0
+            while (x < DISPLAY_FRAME_WIDTH) {
+                for ((glyph, pattern) in glyphPatterns) {
+                    if (checkIfPatternMatchesAt(displayFrame, pattern, x, y)) {
+                        tokens.add(Token(pattern, glyph, x, y))
+                        x += pattern.width - 1
+                        break
+                    }
+                }
+                x++
+            }
+            y++
+        }
+
+        val tokensToRemove = mutableSetOf<Token>()
+        for (tokenB in tokens) {
+            for (tokenA in tokens) {
+                val xd1 = (tokenB.x + tokenB.pattern.width - 1 - tokenA.x)
+                val xd2 = (tokenB.x - (tokenA.x + tokenA.pattern.width - 1))
+                val yd1 = (tokenB.y + tokenB.pattern.height - 1 - tokenA.y)
+                val yd2 = (tokenB.y - (tokenA.y + tokenA.pattern.height - 1))
+
+                if ((xd1.sign != xd2.sign) && (yd1.sign != yd2.sign)) {
+                    if (tokenA.glyph.isLarge && !tokenB.glyph.isLarge)
+                        tokensToRemove.add(tokenB)
+                    else if (!tokenA.glyph.isLarge && tokenB.glyph.isLarge)
+                        tokensToRemove.add(tokenA)
+                    else if (tokenA.pattern.numSetPixels > tokenB.pattern.numSetPixels)
+                        tokensToRemove.add(tokenB)
+                    else if (tokenA.pattern.numSetPixels < tokenB.pattern.numSetPixels)
+                        tokensToRemove.add(tokenA)
+                }
+            }
+        }
+        tokens.removeAll(tokensToRemove)
+
+        return tokens
+    }
+
+    @Test
+    fun checkPackedRowBits() {
+        val pattern = glyphPatterns.getValue(Glyph.LargeSymbol(LargeSymbol.BASAL))
+        val packedFrame = PackedDisplayFrame(testFrameMainScreenWithTimeSeparator)
+
+        for (py in 0 until pattern.height)
+            assertEquals(pattern.rowBits[py], packedFrame.getRowBitsAt(0, 8 + py, pattern.width))
+        assertNotEquals(pattern.rowBits[1], packedFrame.getRowBitsAt(1, 9, pattern.width))
+
+        // Runs crossing and beyond the 64 pixel boundary of the packed rows.
+        for (y in 0 until DISPLAY_FRAME_HEIGHT) {
+            for (x in listOf(0, 50, 60, 63, 64, 70, DISPLAY_FRAME_WIDTH - 12)) {
+                var expected = 0L
+                for (px in 0 until 12) {
+                    if (testFrameMainScreenWithTimeSeparator.getPixelAt(x + px, y))
+                        expected = expected or (1L shl px)
+                }
+                assertEquals(expected, packedFrame.getRowBitsAt(x, y, 12))
+            }
+        }
+    }
+
+    @Test
+    fun checkTokenizationMatchesBruteForce() {
+        assertTrue(testDisplayFrames.size > 100)
+
+        for (displayFrame in testDisplayFrames)
+            assertEquals(findTokensBruteForce(displayFrame), findTokens(displayFrame))
+    }
+
     @Test
     fun checkBasicPatternMatch() {
         // Try to match the LARGE_BASAL symbol pattern in the testFrameMainScreenWithTimeSeparator.
@@ -20,4 +20,5 @@ enum class DanaBooleanKey(
     UseExtended("danar_useextended", true, defaultedBySM = true),
     LogCannulaChange("rs_logcanulachange", true),
     LogInsulinChange("rs_loginsulinchange", true),
+    LargeBleWrites("danars_large_ble_writes", false),
 }
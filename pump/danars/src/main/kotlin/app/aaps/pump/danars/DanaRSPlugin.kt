@@ -705,6 +705,7 @@ class DanaRSPlugin @Inject constructor(
             )
             addPreference(AdaptiveSwitchPreference(ctx = context, booleanKey = DanaBooleanKey.LogInsulinChange, title = app.aaps.pump.dana.R.string.rs_loginsulinchange_title, summary = app.aaps.pump.dana.R.string.rs_loginsulinchange_summary))
             addPreference(AdaptiveSwitchPreference(ctx = context, booleanKey = DanaBooleanKey.LogCannulaChange, title = app.aaps.pump.dana.R.string.rs_logcanulachange_title, summary = app.aaps.pump.dana.R.string.rs_logcanulachange_summary))
+            addPreference(AdaptiveSwitchPreference(ctx = context, booleanKey = DanaBooleanKey.LargeBleWrites, title = app.aaps.pump.dana.R.string.danars_large_ble_writes_title, summary = app.aaps.pump.dana.R.string.danars_large_ble_writes_summary))
         }
     }
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ import android.content.pm.PackageManager
 import android.os.Build
 import android.os.SystemClock
 import android.util.Base64
+import androidx.annotation.VisibleForTesting
 import androidx.core.app.ActivityCompat
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -31,10 +32,9 @@ import app.aaps.core.interfaces.ui.UiInteraction
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.core.ui.toast.ToastUtils
-import app.aaps.core.utils.notifyAll
-import app.aaps.core.utils.waitMillis
 import app.aaps.pump.dana.DanaPump
 import app.aaps.pump.dana.R
+import app.aaps.pump.dana.keys.DanaBooleanKey
 import app.aaps.pump.dana.keys.DanaLongKey
 import app.aaps.pump.dana.keys.DanaStringComposedKey
 import app.aaps.pump.dana.keys.DanaStringKey
@@ -67,7 +67,8 @@ class BLEComm @Inject internal constructor(
     private val pumpSync: PumpSync,
     private val dateUtil: DateUtil,
     private val uiInteraction: UiInteraction,
-    private val preferences: Preferences
+    private val preferences: Preferences,
+    private val responseMonitor: DanaRSResponseMonitor
 ) {
 
     companion object {
@@ -77,18 +78,20 @@ class BLEComm @Inject internal constructor(
         private const val UART_WRITE_UUID = "0000fff2-0000-1000-8000-00805f9b34fb"
         private const val UART_BLE5_UUID = "00002902-0000-1000-8000-00805f9b34fb"
 
-        private const val PACKET_START_BYTE = 0xA5.toByte()
-        private const val PACKET_END_BYTE = 0x5A.toByte()
-        private const val BLE5_PACKET_START_BYTE = 0xAA.toByte()
-        private const val BLE5_PACKET_END_BYTE = 0xEE.toByte()
+        // 244 bytes of write fit one link layer packet with data length extension
+        // requested only when enabled in preferences, not every pump firmware accepts writes above 20 bytes
+        private const val REQUESTED_MTU = 247
     }
 
     private var scheduledDisconnection: ScheduledFuture<*>? = null
     private var processedMessage: DanaRSPacket? = null
-    private val mSendQueue = ArrayList<ByteArray>()
+    private val writeQueue = DanaRSWriteQueue()
+    private var largeWritesFailed = false
+    private val frameReader = DanaRSFrameReader(aapsLogger)
     private val bluetoothAdapter: BluetoothAdapter? get() = (context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager?)?.adapter
     private var connectDeviceName: String? = null
-    private var bluetoothGatt: BluetoothGatt? = null
+    @VisibleForTesting
+    internal var bluetoothGatt: BluetoothGatt? = null
 
     private var encryption: EncryptionType = EncryptionType.ENCRYPTION_DEFAULT
         set(newValue) {
@@ -142,7 +145,7 @@ class BLEComm @Inject internal constructor(
         encryptedDataRead = false
         encryptedCommandSent = false
         isConnecting = true
-        bufferLength = 0
+        frameReader.clear()
         aapsLogger.debug(LTag.PUMPBTCOMM, "Trying to create a new connection from: $from")
         connectDeviceName = device.name
         bluetoothGatt = device.connectGatt(context, false, mGattCallback)
@@ -208,6 +211,7 @@ class BLEComm @Inject internal constructor(
         isConnected = false
         encryptedDataRead = false
         encryptedCommandSent = false
+        responseMonitor.signal()
         SystemClock.sleep(2000)
     }
 
@@ -259,17 +263,17 @@ class BLEComm @Inject internal constructor(
             // for v3 after initial handshake it's encrypted - useless
             // aapsLogger.debug(LTag.PUMPBTCOMM, "onCharacteristicWrite: " + DanaRS_Packet.toHexString(characteristic.value))
             Thread {
-                synchronized(mSendQueue) {
-                    // after message sent, check if there is the rest of the message waiting and send it
-                    if (mSendQueue.isNotEmpty()) {
-                        val bytes = mSendQueue[0]
-                        mSendQueue.removeAt(0)
-                        writeCharacteristicNoResponse(uartWriteBTGattChar, bytes)
-                    }
-                }
+                // after message sent, check if there is the rest of the message waiting and send it
+                writeQueue.poll()?.let { writeCharacteristicNoResponse(uartWriteBTGattChar, it) }
             }.start()
         }
 
+        override fun onMtuChanged(gatt: BluetoothGatt, mtu: Int, status: Int) {
+            aapsLogger.debug(LTag.PUMPBTCOMM, "onMtuChanged $mtu status $status")
+            if (status == BluetoothGatt.GATT_SUCCESS) writeQueue.fragmentSize = mtu - 3
+            gatt.discoverServices()
+        }
+
         override fun onDescriptorWrite(gatt: BluetoothGatt?, descriptor: BluetoothGattDescriptor?, status: Int) {
             super.onDescriptorWrite(gatt, descriptor, status)
             //aapsLogger.debug(LTag.PUMPBTCOMM, "onDescriptorWrite " + status)
@@ -365,7 +369,10 @@ class BLEComm @Inject internal constructor(
     private fun onConnectionStateChangeSynchronized(gatt: BluetoothGatt, newState: Int) {
         aapsLogger.debug(LTag.PUMPBTCOMM, "onConnectionStateChange")
         if (newState == BluetoothProfile.STATE_CONNECTED) {
-            gatt.discoverServices()
+            // services are discovered after MTU negotiation
+            writeQueue.fragmentSize = DanaRSWriteQueue.DEFAULT_FRAGMENT_SIZE
+            val largeWrites = preferences.get(DanaBooleanKey.LargeBleWrites) && !largeWritesFailed
+            if (!largeWrites || !gatt.requestMtu(REQUESTED_MTU)) gatt.discoverServices()
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
             close()
             isConnected = false
@@ -375,29 +382,12 @@ class BLEComm @Inject internal constructor(
             encryptedCommandSent = false
             rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTED))
             aapsLogger.debug(LTag.PUMPBTCOMM, "Device was disconnected " + gatt.device.name) //Device was disconnected
-        }
-    }
-
-    private val readBuffer = ByteArray(1024)
-    @Volatile private var bufferLength = 0
-
-    private fun addToReadBuffer(buffer: ByteArray) {
-        //log.debug("addToReadBuffer " + DanaRS_Packet.toHexString(buffer));
-        if (buffer.isEmpty()) return
-
-        synchronized(readBuffer) {
-            // Append incoming data to input buffer
-            System.arraycopy(buffer, 0, readBuffer, bufferLength, buffer.size)
-            bufferLength += buffer.size
+            responseMonitor.signal()
         }
     }
 
     private fun readDataParsing(receivedData: ByteArray) {
         //aapsLogger.debug(LTag.PUMPBTCOMM, "<<<<< readDataParsing " + DanaRS_Packet.toHexString(receivedData))
-        var packetIsValid = false
-        var isProcessing: Boolean
-        isProcessing = true
-        var inputBuffer: ByteArray?
 
         // decrypt 2nd level after successful connection
         val incomingBuffer =
@@ -407,109 +397,51 @@ class BLEComm @Inject internal constructor(
                     preferences.put(DanaLongKey.LastClearKeyRequest, 0L)
                 }
             else receivedData
-        addToReadBuffer(incomingBuffer)
+        frameReader.append(incomingBuffer)
         //aapsLogger.debug(LTag.PUMPBTCOMM, "incomingBuffer " + DanaRS_Packet.toHexString(incomingBuffer))
 
-        while (isProcessing) {
-            var length = 0
-            synchronized(readBuffer) {
-                // Find packet start [A5 A5] or [AA AA]
-                if (bufferLength >= 6) {
-                    for (idxStartByte in 0 until bufferLength - 2) {
-                        if (readBuffer[idxStartByte] == PACKET_START_BYTE && readBuffer[idxStartByte + 1] == PACKET_START_BYTE ||
-                            readBuffer[idxStartByte] == BLE5_PACKET_START_BYTE && readBuffer[idxStartByte + 1] == BLE5_PACKET_START_BYTE
-                        ) {
-                            if (idxStartByte > 0) {
-                                // if buffer doesn't start with signature remove the leading trash
-                                aapsLogger.debug(LTag.PUMPBTCOMM, "Shifting the input buffer by $idxStartByte bytes")
-                                System.arraycopy(readBuffer, idxStartByte, readBuffer, 0, bufferLength - idxStartByte)
-                                bufferLength -= idxStartByte
-                                if (bufferLength < 0) bufferLength = 0
-                            }
-                            // A5 A5 LEN TYPE CODE PARAMS CHECKSUM1 CHECKSUM2 5A 5A    or
-                            // AA AA LEN TYPE CODE PARAMS CHECKSUM1 CHECKSUM2 EE EE
-                            //           ^---- LEN -----^
-                            // total packet length 2 + 1 + readBuffer[2] + 2 + 2
-                            length = readBuffer[2].toInt()
-                            // test if there is enough data loaded
-                            if (length + 7 > bufferLength)
-                                return
-                            // Verify packed end [5A 5A]
-                            if (readBuffer[length + 5] == PACKET_END_BYTE && readBuffer[length + 6] == PACKET_END_BYTE ||
-                                readBuffer[length + 5] == BLE5_PACKET_END_BYTE && readBuffer[length + 6] == BLE5_PACKET_END_BYTE
-                            ) {
-                                packetIsValid = true
-                            } else {
-                                aapsLogger.error(LTag.PUMPBTCOMM, "Error in input data. Resetting buffer.")
-                                bufferLength = 0
-                            }
-                            break
-                        }
-                        break
-                    }
-                }
-            }
-            if (packetIsValid) {
-                inputBuffer = ByteArray(length + 7)
-                // copy packet to input buffer
-                System.arraycopy(readBuffer, 0, inputBuffer, 0, length + 7)
-                // Cut off the message from readBuffer
-                try {
-                    System.arraycopy(readBuffer, length + 7, readBuffer, 0, bufferLength - (length + 7))
-                } catch (e: Exception) {
-                    aapsLogger.error(LTag.PUMPBTCOMM, "length: " + length + "bufferLength: " + bufferLength)
-                    throw e
-                }
-                bufferLength -= length + 7
-                // now we have encrypted packet in inputBuffer
-
-                // decrypt the packet
-                val decrypted = bleEncryption.getDecryptedPacket(inputBuffer)
-                decrypted?.let { decryptedBuffer ->
-                    if (decryptedBuffer[0] == BleEncryption.DANAR_PACKET__TYPE_ENCRYPTION_RESPONSE.toByte()) {
-                        when (decryptedBuffer[1]) {
-                            // 1st packet exchange
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PUMP_CHECK.toByte()          ->
-                                processConnectResponse(decryptedBuffer)
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__TIME_INFORMATION.toByte()    ->
-                                processEncryptionResponse(decryptedBuffer)
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__CHECK_PASSKEY.toByte()       ->
-                                processPasskeyCheck(decryptedBuffer)
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PASSKEY_REQUEST.toByte()     ->
-                                processPairingRequest(decryptedBuffer)
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PASSKEY_RETURN.toByte()      ->
-                                processPairingRequest2(decryptedBuffer)
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__GET_PUMP_CHECK.toByte()      -> {
-                                // not easy mode, request time info
-                                if (decryptedBuffer[2] == 0x05.toByte()) sendTimeInfo()
-                                // easy mode
-                                else sendEasyMenuCheck()
-                            }
-
-                            BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__GET_EASY_MENU_CHECK.toByte() ->
-                                processEasyMenuCheck(decryptedBuffer)
+        while (true) {
+            // next complete encrypted packet
+            val inputBuffer = frameReader.nextFrame() ?: break
+
+            // decrypt the packet
+            val decrypted = bleEncryption.getDecryptedPacket(inputBuffer)
+            decrypted?.let { decryptedBuffer ->
+                if (decryptedBuffer[0] == BleEncryption.DANAR_PACKET__TYPE_ENCRYPTION_RESPONSE.toByte()) {
+                    when (decryptedBuffer[1]) {
+                        // 1st packet exchange
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PUMP_CHECK.toByte()          ->
+                            processConnectResponse(decryptedBuffer)
+
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__TIME_INFORMATION.toByte()    ->
+                            processEncryptionResponse(decryptedBuffer)
+
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__CHECK_PASSKEY.toByte()       ->
+                            processPasskeyCheck(decryptedBuffer)
+
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PASSKEY_REQUEST.toByte()     ->
+                            processPairingRequest(decryptedBuffer)
+
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__PASSKEY_RETURN.toByte()      ->
+                            processPairingRequest2(decryptedBuffer)
+
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__GET_PUMP_CHECK.toByte()      -> {
+                            // not easy mode, request time info
+                            if (decryptedBuffer[2] == 0x05.toByte()) sendTimeInfo()
+                            // easy mode
+                            else sendEasyMenuCheck()
                         }
 
-                    } else {
-                        // Retrieve message code from received buffer and last message sent
-                        processMessage(decryptedBuffer)
+                        BleEncryption.DANAR_PACKET__OPCODE_ENCRYPTION__GET_EASY_MENU_CHECK.toByte() ->
+                            processEasyMenuCheck(decryptedBuffer)
                     }
+
+                } else {
+                    // Retrieve message code from received buffer and last message sent
+                    processMessage(decryptedBuffer)
                 }
-                checkNotNull(decrypted) { "Null decryptedInputBuffer" }
-                packetIsValid = false
-                if (bufferLength < 6) {
-                    // stop the loop
-                    isProcessing = false
-                }
-            } else {
-                // stop the loop
-                isProcessing = false
             }
+            checkNotNull(decrypted) { "Null decryptedInputBuffer" }
         }
     }
 
@@ -586,19 +518,19 @@ class BLEComm @Inject internal constructor(
             // response PUMP : error status
         } else if (decryptedBuffer.size == 6 && decryptedBuffer[2] == 'P'.code.toByte() && decryptedBuffer[3] == 'U'.code.toByte() && decryptedBuffer[4] == 'M'.code.toByte() && decryptedBuffer[5] == 'P'.code.toByte()) {
             aapsLogger.debug(LTag.PUMPBTCOMM, "<<<<< " + "ENCRYPTION__PUMP_CHECK (PUMP)" + " " + DanaRSPacket.toHexString(decryptedBuffer))
-            mSendQueue.clear()
+            writeQueue.clear()
             rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTED, rh.gs(R.string.pumperror)))
             pumpSync.insertAnnouncement(rh.gs(R.string.pumperror), null, danaPump.pumpType(), danaPump.serialNumber)
             uiInteraction.addNotification(Notification.PUMP_ERROR, rh.gs(R.string.pumperror), Notification.URGENT)
             // response BUSY: error status
         } else if (decryptedBuffer.size == 6 && decryptedBuffer[2] == 'B'.code.toByte() && decryptedBuffer[3] == 'U'.code.toByte() && decryptedBuffer[4] == 'S'.code.toByte() && decryptedBuffer[5] == 'Y'.code.toByte()) {
             aapsLogger.debug(LTag.PUMPBTCOMM, "<<<<< " + "ENCRYPTION__PUMP_CHECK (BUSY)" + " " + DanaRSPacket.toHexString(decryptedBuffer))
-            mSendQueue.clear()
+            writeQueue.clear()
             rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTED, rh.gs(app.aaps.core.ui.R.string.pump_busy)))
         } else {
             // ERROR in response, wrong serial number
             aapsLogger.debug(LTag.PUMPBTCOMM, "<<<<< " + "ENCRYPTION__PUMP_CHECK (ERROR)" + " " + DanaRSPacket.toHexString(decryptedBuffer))
-            mSendQueue.clear()
+            writeQueue.clear()
             rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTED, rh.gs(app.aaps.core.ui.R.string.connection_error)))
             danaRSPlugin.clearPairing()
             uiInteraction.addNotification(Notification.WRONG_SERIAL_NUMBER, rh.gs(app.aaps.core.ui.R.string.password_cleared), Notification.URGENT)
@@ -702,6 +634,7 @@ class BLEComm @Inject internal constructor(
                 aapsLogger.debug(LTag.PUMPBTCOMM, "RS connected and status read")
             }
         }
+        responseMonitor.signal()
     }
 
     // 3rd packet v1 existing pairing
@@ -786,61 +719,24 @@ class BLEComm @Inject internal constructor(
         if (encryption != EncryptionType.ENCRYPTION_DEFAULT)
             bytes = bleEncryption.encryptSecondLevelPacket(bytes)
         // If there is another message not completely sent, add to queue only
-        if (mSendQueue.isNotEmpty()) {
-            // Split to parts per 20 bytes max
-            while (true) {
-                if (bytes.size > 20) {
-                    val addBytes = ByteArray(20)
-                    System.arraycopy(bytes, 0, addBytes, 0, addBytes.size)
-                    val reBytes = ByteArray(bytes.size - addBytes.size)
-                    System.arraycopy(bytes, addBytes.size, reBytes, 0, reBytes.size)
-                    bytes = reBytes
-                    synchronized(mSendQueue) { mSendQueue.add(addBytes) }
-                } else {
-                    synchronized(mSendQueue) { mSendQueue.add(bytes) }
-                    break
-                }
-            }
-        } else {
-            if (bytes.size > 20) {
-                // Cut first 20 bytes
-                val sendBytes = ByteArray(20)
-                System.arraycopy(bytes, 0, sendBytes, 0, sendBytes.size)
-                var reBytes = ByteArray(bytes.size - sendBytes.size)
-                System.arraycopy(bytes, sendBytes.size, reBytes, 0, reBytes.size)
-                bytes = reBytes
-                // and send
-                writeCharacteristicNoResponse(uartWriteBTGattChar, sendBytes)
-                // The rest split to parts per 20 bytes max
-                while (true) {
-                    if (bytes.size > 20) {
-                        val addBytes = ByteArray(20)
-                        System.arraycopy(bytes, 0, addBytes, 0, addBytes.size)
-                        reBytes = ByteArray(bytes.size - addBytes.size)
-                        System.arraycopy(bytes, addBytes.size, reBytes, 0, reBytes.size)
-                        bytes = reBytes
-                        synchronized(mSendQueue) { mSendQueue.add(addBytes) }
-                    } else {
-                        synchronized(mSendQueue) { mSendQueue.add(bytes) }
-                        break
-                    }
-                }
-            } else {
-                writeCharacteristicNoResponse(uartWriteBTGattChar, bytes)
-            }
-        }
+        writeQueue.add(bytes)?.let { writeCharacteristicNoResponse(uartWriteBTGattChar, it) }
         // The rest from queue is send from onCharacteristicWrite (after sending 1st part)
-        synchronized(message) {
-            try {
-                message.waitMillis(5000)
-            } catch (e: InterruptedException) {
-                aapsLogger.error(LTag.PUMPBTCOMM, "sendMessage InterruptedException", e)
-            }
+        try {
+            // reply may be processed before we start waiting
+            responseMonitor.await(5000) { message.isReceived }
+        } catch (e: InterruptedException) {
+            aapsLogger.error(LTag.PUMPBTCOMM, "sendMessage InterruptedException", e)
         }
 
         //SystemClock.sleep(200);
         if (!message.isReceived) {
             aapsLogger.warn(LTag.PUMPBTCOMM, "Reply not received " + message.friendlyName)
+            if (writeQueue.fragmentSize > DanaRSWriteQueue.DEFAULT_FRAGMENT_SIZE) {
+                // pump may accept the MTU but not the writes, use 20 bytes until restart
+                aapsLogger.warn(LTag.PUMPBTCOMM, "Disabling writes of ${writeQueue.fragmentSize} bytes")
+                largeWritesFailed = true
+                writeQueue.fragmentSize = DanaRSWriteQueue.DEFAULT_FRAGMENT_SIZE
+            }
             message.handleMessageNotReceived()
             disconnect("Reply not received")
         }
@@ -850,7 +746,8 @@ class BLEComm @Inject internal constructor(
     }
 
     // process common packet response
-    private fun processMessage(decryptedBuffer: ByteArray) {
+    @VisibleForTesting
+    internal fun processMessage(decryptedBuffer: ByteArray) {
         val originalCommand = processedMessage?.command ?: 0xFFFF
         val receivedCommand = DanaRSPacket(injector).getCommand(decryptedBuffer)
         val message: DanaRSPacket? = if (originalCommand == receivedCommand) {
@@ -865,10 +762,8 @@ class BLEComm @Inject internal constructor(
             // process received data
             message.handleMessage(decryptedBuffer)
             message.setReceived()
-            synchronized(message) {
-                // notify to sendMessage
-                message.notifyAll()
-            }
+            // notify to sendMessage and waiting session
+            responseMonitor.signal()
         } else aapsLogger.error(LTag.PUMPBTCOMM, "Unknown message received " + DanaRSPacket.toHexString(decryptedBuffer))
     }
 
@@ -0,0 +1,98 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+
+/**
+ * Reassembles pump packets from received notifications
+ *
+ * A5 A5 LEN TYPE CODE PARAMS CHECKSUM1 CHECKSUM2 5A 5A    or
+ * AA AA LEN TYPE CODE PARAMS CHECKSUM1 CHECKSUM2 EE EE
+ *           ^---- LEN -----^
+ *
+ * Data is kept in a ring buffer. Leading trash and consumed packets only move the start,
+ * so remaining bytes are never shifted.
+ */
+class DanaRSFrameReader(private val aapsLogger: AAPSLogger) {
+
+    private val buffer = ByteArray(CAPACITY)
+    private var start = 0
+    private var length = 0
+
+    val size: Int @Synchronized get() = length
+
+    @Synchronized
+    fun append(data: ByteArray) {
+        if (length + data.size > CAPACITY) {
+            aapsLogger.error(LTag.PUMPBTCOMM, "Input buffer overflow. Resetting buffer.")
+            clear()
+            if (data.size > CAPACITY) return
+        }
+        val end = (start + length) and MASK
+        val firstPart = minOf(data.size, CAPACITY - end)
+        System.arraycopy(data, 0, buffer, end, firstPart)
+        System.arraycopy(data, firstPart, buffer, 0, data.size - firstPart)
+        length += data.size
+    }
+
+    /**
+     * @return next complete packet including start and end bytes or null if more data is needed
+     */
+    @Synchronized
+    fun nextFrame(): ByteArray? {
+        // if buffer doesn't start with signature remove the leading trash
+        var trash = 0
+        while (length >= 2 && !isStart(byteAt(0), byteAt(1))) {
+            skip(1)
+            trash++
+        }
+        if (trash > 0) aapsLogger.debug(LTag.PUMPBTCOMM, "Shifting the input buffer by $trash bytes")
+        if (length < 6) return null
+        // total packet length 2 + 1 + LEN + 2 + 2
+        val frameLength = (byteAt(2).toInt() and 0xFF) + 7
+        // test if there is enough data loaded
+        if (frameLength > length) return null
+        if (!isEnd(byteAt(frameLength - 2), byteAt(frameLength - 1))) {
+            aapsLogger.error(LTag.PUMPBTCOMM, "Error in input data. Resetting buffer.")
+            clear()
+            return null
+        }
+        val frame = ByteArray(frameLength)
+        val firstPart = minOf(frameLength, CAPACITY - start)
+        System.arraycopy(buffer, start, frame, 0, firstPart)
+        System.arraycopy(buffer, 0, frame, firstPart, frameLength - firstPart)
+        skip(frameLength)
+        return frame
+    }
+
+    @Synchronized
+    fun clear() {
+        start = 0
+        length = 0
+    }
+
+    private fun byteAt(index: Int): Byte = buffer[(start + index) and MASK]
+
+    private fun skip(count: Int) {
+        start = (start + count) and MASK
+        length -= count
+    }
+
+    private fun isStart(first: Byte, second: Byte): Boolean =
+        first == PACKET_START_BYTE && second == PACKET_START_BYTE || first == BLE5_PACKET_START_BYTE && second == BLE5_PACKET_START_BYTE
+
+    private fun isEnd(first: Byte, second: Byte): Boolean =
+        first == PACKET_END_BYTE && second == PACKET_END_BYTE || first == BLE5_PACKET_END_BYTE && second == BLE5_PACKET_END_BYTE
+
+    companion object {
+
+        // power of 2
+        private const val CAPACITY = 1024
+        private const val MASK = CAPACITY - 1
+
+        private const val PACKET_START_BYTE = 0xA5.toByte()
+        private const val PACKET_END_BYTE = 0x5A.toByte()
+        private const val BLE5_PACKET_START_BYTE = 0xAA.toByte()
+        private const val BLE5_PACKET_END_BYTE = 0xEE.toByte()
+    }
+}
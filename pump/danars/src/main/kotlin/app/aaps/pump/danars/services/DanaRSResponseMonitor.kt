@@ -0,0 +1,40 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.core.utils.notifyAll
+import app.aaps.core.utils.waitMillis
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Completion signal of pump communication
+ *
+ * [BLEComm] signals after every processed packet and connection change. Waiting threads
+ * reevaluate their condition then, so the session continues as soon as the pump answers
+ * instead of sleeping fixed intervals.
+ */
+@Singleton
+class DanaRSResponseMonitor @Inject constructor() {
+
+    private val lock = Object()
+
+    fun signal() {
+        synchronized(lock) { lock.notifyAll() }
+    }
+
+    /**
+     * Block until [condition] holds or [timeoutMillis] passes
+     *
+     * @return true if [condition] holds
+     */
+    fun await(timeoutMillis: Long, condition: () -> Boolean): Boolean {
+        val end = System.currentTimeMillis() + timeoutMillis
+        synchronized(lock) {
+            while (!condition()) {
+                val remaining = end - System.currentTimeMillis()
+                if (remaining <= 0) return false
+                lock.waitMillis(remaining)
+            }
+        }
+        return true
+    }
+}
@@ -112,10 +112,13 @@ class DanaRSService : DaggerService() {
     @Inject lateinit var pumpSync: PumpSync
     @Inject lateinit var dateUtil: DateUtil
     @Inject lateinit var instantiator: Instantiator
+    @Inject lateinit var responseMonitor: DanaRSResponseMonitor
 
     private val disposable = CompositeDisposable()
     private val mBinder: IBinder = LocalBinder()
     private var lastApproachingDailyLimit: Long = 0
+    // time of last command creating history record in pump
+    private var historyChangedAt: Long = 0
 
     override fun onCreate() {
         super.onCreate()
@@ -264,12 +267,15 @@ class DanaRSService : DaggerService() {
             result.comment = "pump not initialized"
             return result
         }
-        SystemClock.sleep(1000)
+        // give pump time to store record of last command
+        val settleTime = historyChangedAt + HISTORY_SETTLE_MILLIS - System.currentTimeMillis()
+        if (settleTime > 0) SystemClock.sleep(settleTime)
         val msg = DanaRSPacketAPSHistoryEvents(injector, danaPump.readHistoryFrom)
         aapsLogger.debug(LTag.PUMPCOMM, "Loading event history from: " + dateUtil.dateAndTimeString(danaPump.readHistoryFrom))
         sendMessage(msg)
+        // records are stored by BLEComm as they arrive, the last one marks the end
         while (!danaPump.historyDoneReceived && bleComm.isConnected) {
-            SystemClock.sleep(100)
+            responseMonitor.await(T.secs(1).msecs()) { danaPump.historyDoneReceived || !bleComm.isConnected }
         }
         danaPump.readHistoryFrom = if (danaPump.lastEventTimeLoaded != 0L) danaPump.lastEventTimeLoaded - T.mins(1).msecs() else 0
         aapsLogger.debug(LTag.PUMPCOMM, "Events loaded")
@@ -302,6 +308,7 @@ class DanaRSService : DaggerService() {
 //            sendMessage(msg);
             val msgSetHistoryEntryV2 = DanaRSPacketAPSSetEventHistory(injector, DanaPump.HistoryEntry.CARBS.value, carbTime, carbs, 0)
             sendMessage(msgSetHistoryEntryV2)
+            historyChangedAt = System.currentTimeMillis()
             danaPump.readHistoryFrom = min(danaPump.readHistoryFrom, carbTime - T.mins(1).msecs())
             if (!msgSetHistoryEntryV2.isReceived || msgSetHistoryEntryV2.failed)
                 uiInteraction.runAlarm(rh.gs(R.string.carbs_store_error), rh.gs(app.aaps.core.ui.R.string.error), app.aaps.core.ui.R.raw.boluserror)
@@ -315,14 +322,21 @@ class DanaRSService : DaggerService() {
                 return false
             }
             while (!danaPump.bolusStopped && !start.failed && !danaPump.bolusDone) {
-                SystemClock.sleep(100)
-                if (System.currentTimeMillis() - danaPump.bolusProgressLastTimeStamp > 15 * 1000L) { // if i didn't receive status for more than 20 sec expecting broken comm
+                val lastProgress = danaPump.bolusProgressLastTimeStamp
+                val silence = System.currentTimeMillis() - lastProgress
+                if (silence > BOLUS_PROGRESS_TIMEOUT_MILLIS) { // if i didn't receive status for more than 15 sec expecting broken comm
                     danaPump.bolusStopped = true
                     danaPump.bolusStopForced = true
                     aapsLogger.debug(LTag.PUMPCOMM, "Communication stopped")
                     bleComm.disconnect("Communication stopped")
+                } else {
+                    // woken by progress, delivery complete or stop
+                    responseMonitor.await(BOLUS_PROGRESS_TIMEOUT_MILLIS - silence + 1) {
+                        danaPump.bolusStopped || danaPump.bolusDone || danaPump.bolusProgressLastTimeStamp != lastProgress
+                    }
                 }
             }
+            historyChangedAt = System.currentTimeMillis()
         }
         val bolusingEvent = EventOverviewBolusProgress
         bolusingEvent.t = t
@@ -335,7 +349,8 @@ class DanaRSService : DaggerService() {
             2 -> speed = 60
         }
         val bolusDurationInMSec = (insulin * speed * 1000).toLong()
-        val expectedEnd = bolusStart + bolusDurationInMSec + 2000
+        // delivery complete notification received, no need to wait for estimated end
+        val expectedEnd = if (danaPump.bolusDone) 0 else bolusStart + bolusDurationInMSec + 2000
         while (System.currentTimeMillis() < expectedEnd) {
             val waitTime = expectedEnd - System.currentTimeMillis()
             bolusingEvent.status = rh.gs(R.string.waitingforestimatedbolusend, waitTime / 1000)
@@ -363,10 +378,11 @@ class DanaRSService : DaggerService() {
             sendMessage(stop)
             while (!danaPump.bolusStopped) {
                 sendMessage(stop)
-                SystemClock.sleep(200)
+                responseMonitor.await(200) { danaPump.bolusStopped }
             }
         } else {
             danaPump.bolusStopped = true
+            responseMonitor.signal()
         }
     }
 
@@ -378,14 +394,12 @@ class DanaRSService : DaggerService() {
         if (status.isTempBasalInProgress) {
             rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingtempbasal)))
             sendMessage(DanaRSPacketBasalSetCancelTemporaryBasal(injector))
-            SystemClock.sleep(500)
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketBasalSetTemporaryBasal(injector, percent, durationInHours)
         sendMessage(msgTBR)
-        SystemClock.sleep(200)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val tbr = pumpSync.expectedPumpState().temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -399,13 +413,12 @@ class DanaRSService : DaggerService() {
         if (status.isTempBasalInProgress) {
             rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingtempbasal)))
             sendMessage(DanaRSPacketBasalSetCancelTemporaryBasal(injector))
-            SystemClock.sleep(500)
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketAPSBasalSetTemporaryBasal(injector, percent)
         sendMessage(msgTBR)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val tbr = pumpSync.expectedPumpState().temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -423,13 +436,12 @@ class DanaRSService : DaggerService() {
         if (status.isTempBasalInProgress) {
             rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingtempbasal)))
             sendMessage(DanaRSPacketBasalSetCancelTemporaryBasal(injector))
-            SystemClock.sleep(500)
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketAPSBasalSetTemporaryBasal(injector, percent)
         sendMessage(msgTBR)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val tbr = pumpSync.expectedPumpState().temporaryBasal
         aapsLogger.debug(LTag.PUMPCOMM, "Expected TBR found: $tbr")
         danaPump.fromTemporaryBasal(tbr)
@@ -442,8 +454,8 @@ class DanaRSService : DaggerService() {
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingtempbasal)))
         val msgCancel = DanaRSPacketBasalSetCancelTemporaryBasal(injector)
         sendMessage(msgCancel)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val tbr = pumpSync.expectedPumpState().temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -455,9 +467,8 @@ class DanaRSService : DaggerService() {
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingextendedbolus)))
         val msgExtended = DanaRSPacketBolusSetExtendedBolus(injector, insulin, durationInHalfHours)
         sendMessage(msgExtended)
-        SystemClock.sleep(200)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val eb = pumpSync.expectedPumpState().extendedBolus
         danaPump.fromExtendedBolus(eb)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -469,8 +480,8 @@ class DanaRSService : DaggerService() {
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingextendedbolus)))
         val msgStop = DanaRSPacketBolusSetExtendedBolusCancel(injector)
         sendMessage(msgStop)
+        historyChangedAt = System.currentTimeMillis()
         loadEvents()
-        SystemClock.sleep(4500)
         val eb = pumpSync.expectedPumpState().extendedBolus
         danaPump.fromExtendedBolus(eb)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -511,12 +522,10 @@ class DanaRSService : DaggerService() {
         }
         if (msg != null) {
             sendMessage(DanaRSPacketGeneralSetHistoryUploadMode(injector, 1))
-            SystemClock.sleep(200)
             sendMessage(msg)
             while (!msg.done && isConnected) {
-                SystemClock.sleep(100)
+                responseMonitor.await(T.secs(1).msecs()) { msg.done || !isConnected }
             }
-            SystemClock.sleep(200)
             sendMessage(DanaRSPacketGeneralSetHistoryUploadMode(injector, 0))
         }
         result.success = msg?.success() == true
@@ -546,4 +555,11 @@ class DanaRSService : DaggerService() {
             SystemClock.sleep(min(timeToWholeMinute, 100))
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private const val BOLUS_PROGRESS_TIMEOUT_MILLIS = 15 * 1000L
+        // time for pump to store record of last command before reading history
+        private const val HISTORY_SETTLE_MILLIS = 1200L
+    }
+}
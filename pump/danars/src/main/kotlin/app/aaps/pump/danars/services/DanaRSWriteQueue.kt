@@ -0,0 +1,66 @@
+package app.aaps.pump.danars.services
+
+/**
+ * Outgoing packets split to writes of negotiated size
+ *
+ * Packets are kept whole and the position of the next write is tracked by offset,
+ * so only the written fragment is copied. First fragment of a packet is returned by [add]
+ * when nothing else is being sent, the rest is taken by [poll] after every finished write.
+ */
+class DanaRSWriteQueue {
+
+    private val packets = ArrayDeque<ByteArray>()
+    private var offset = 0
+
+    /**
+     * Max bytes of one write, ATT MTU - 3
+     */
+    @set:Synchronized @get:Synchronized
+    var fragmentSize = DEFAULT_FRAGMENT_SIZE
+        set(value) {
+            field = value.coerceIn(DEFAULT_FRAGMENT_SIZE, MAX_FRAGMENT_SIZE)
+        }
+
+    /**
+     * Queue [packet]
+     *
+     * @return fragment to write now if queue was empty, null if previous packet is still being sent
+     */
+    @Synchronized
+    fun add(packet: ByteArray): ByteArray? {
+        val idle = packets.isEmpty()
+        if (packet.isNotEmpty()) packets.addLast(packet)
+        return if (idle) poll() else null
+    }
+
+    /**
+     * @return next fragment to write or null when everything was sent
+     */
+    @Synchronized
+    fun poll(): ByteArray? {
+        val packet = packets.firstOrNull() ?: return null
+        val end = minOf(offset + fragmentSize, packet.size)
+        val fragment = packet.copyOfRange(offset, end)
+        if (end == packet.size) {
+            packets.removeFirst()
+            offset = 0
+        } else offset = end
+        return fragment
+    }
+
+    @Synchronized
+    fun clear() {
+        packets.clear()
+        offset = 0
+    }
+
+    val isEmpty: Boolean @Synchronized get() = packets.isEmpty()
+
+    companion object {
+
+        // default ATT MTU 23
+        const val DEFAULT_FRAGMENT_SIZE = 20
+        // max length of characteristic value
+        const val MAX_FRAGMENT_SIZE = 512
+    }
+}
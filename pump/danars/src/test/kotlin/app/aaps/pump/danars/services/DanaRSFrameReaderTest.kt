@@ -0,0 +1,133 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+class DanaRSFrameReaderTest : TestBase() {
+
+    private lateinit var sut: DanaRSFrameReader
+
+    @BeforeEach
+    fun prepare() {
+        sut = DanaRSFrameReader(aapsLogger)
+    }
+
+    @Test
+    fun frameSplitToNotificationsIsReassembled() {
+        val frame = frame(1, 30)
+        sut.append(frame.copyOfRange(0, 4))
+        assertThat(sut.nextFrame()).isNull()
+        sut.append(frame.copyOfRange(4, 20))
+        assertThat(sut.nextFrame()).isNull()
+        sut.append(frame.copyOfRange(20, frame.size))
+        assertThat(sut.nextFrame()).isEqualTo(frame)
+        assertThat(sut.size).isEqualTo(0)
+    }
+
+    @Test
+    fun moreFramesInOneNotification() {
+        val first = frame(1, 3)
+        val second = frame(2, 10, ble5 = true)
+        sut.append(first + second + second.copyOfRange(0, 5))
+        assertThat(sut.nextFrame()).isEqualTo(first)
+        assertThat(sut.nextFrame()).isEqualTo(second)
+        assertThat(sut.nextFrame()).isNull()
+        assertThat(sut.size).isEqualTo(5)
+    }
+
+    @Test
+    fun leadingTrashIsSkipped() {
+        val frame = frame(3, 8)
+        sut.append(byteArrayOf(0x01, 0xA5.toByte(), 0x02) + frame)
+        assertThat(sut.nextFrame()).isEqualTo(frame)
+    }
+
+    @Test
+    fun wrongEndResetsBuffer() {
+        val broken = frame(4, 8)
+        broken[broken.size - 1] = 0
+        sut.append(broken)
+        assertThat(sut.nextFrame()).isNull()
+        assertThat(sut.size).isEqualTo(0)
+        val frame = frame(5, 8)
+        sut.append(frame)
+        assertThat(sut.nextFrame()).isEqualTo(frame)
+    }
+
+    @Test
+    fun framesAcrossBufferWrap() {
+        // 1024 byte ring is wrapped many times
+        repeat(100) { i ->
+            val frame = frame(i, 200 + i % 50)
+            for (from in frame.indices step 20) sut.append(frame.copyOfRange(from, minOf(from + 20, frame.size)))
+            assertThat(sut.nextFrame()).isEqualTo(frame)
+        }
+    }
+
+    @Test
+    fun overflowResetsBuffer() {
+        sut.append(ByteArray(1000))
+        val frame = frame(6, 100)
+        sut.append(frame)
+        assertThat(sut.nextFrame()).isEqualTo(frame)
+    }
+
+    @Test
+    fun historyDownloadWithLargeFragments() {
+        // requests of history download and responses with history events
+        val requests = List(HISTORY_RECORDS) { frame(it, if (it % 20 == 0) 60 else 6) }
+        val responses = List(HISTORY_RECORDS) { frame(it, 18) }
+        val small = transfer(DanaRSWriteQueue.DEFAULT_FRAGMENT_SIZE, requests, responses)
+        val large = transfer(247 - 3, requests, responses)
+        assertThat(large.writes).isLessThan(small.writes)
+        assertThat(large.notifications).isAtMost(small.notifications / 2)
+        assertThat(large.airMillis).isLessThan(small.airMillis)
+    }
+
+    private class Transfer(val writes: Int, val notifications: Int, val airMillis: Long)
+
+    /**
+     * Simulated peripheral reassembling written requests and notifying responses of the same fragment size
+     */
+    private fun transfer(fragmentSize: Int, requests: List<ByteArray>, responses: List<ByteArray>): Transfer {
+        val writeQueue = DanaRSWriteQueue().also { it.fragmentSize = fragmentSize }
+        val peripheral = DanaRSFrameReader(aapsLogger)
+        var writes = 0
+        var notifications = 0
+        for (i in requests.indices) {
+            var fragment = writeQueue.add(requests[i])
+            while (fragment != null) {
+                writes++
+                peripheral.append(fragment)
+                fragment = writeQueue.poll()
+            }
+            assertThat(peripheral.nextFrame()).isEqualTo(requests[i])
+            for (from in responses[i].indices step fragmentSize) {
+                notifications++
+                sut.append(responses[i].copyOfRange(from, minOf(from + fragmentSize, responses[i].size)))
+            }
+            assertThat(sut.nextFrame()).isEqualTo(responses[i])
+        }
+        return Transfer(writes, notifications, writes * WRITE_PACING_MILLIS + notifications * CONNECTION_INTERVAL_MILLIS)
+    }
+
+    private fun frame(seed: Int, length: Int, ble5: Boolean = false): ByteArray {
+        val frame = ByteArray(length + 7) { (seed * 31 + it).toByte() }
+        frame[0] = if (ble5) 0xAA.toByte() else 0xA5.toByte()
+        frame[1] = frame[0]
+        frame[2] = length.toByte()
+        frame[length + 5] = if (ble5) 0xEE.toByte() else 0x5A.toByte()
+        frame[length + 6] = frame[length + 5]
+        return frame
+    }
+
+    companion object {
+
+        private const val HISTORY_RECORDS = 1000
+        // write delay and sleep of BLEComm.writeCharacteristicNoResponse
+        private const val WRITE_PACING_MILLIS = 100L
+        private const val CONNECTION_INTERVAL_MILLIS = 15L
+    }
+}
@@ -0,0 +1,226 @@
+package app.aaps.pump.danars.services
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothManager
+import android.content.Context
+import app.aaps.core.interfaces.pump.DetailedBolusInfoStorage
+import app.aaps.core.interfaces.pump.PumpSync
+import app.aaps.core.interfaces.pump.TemporaryBasalStorage
+import app.aaps.core.interfaces.queue.CommandQueue
+import app.aaps.core.interfaces.rx.events.EventOverviewBolusProgress
+import app.aaps.pump.danars.DanaRSPlugin
+import app.aaps.pump.danars.DanaRSTestBase
+import app.aaps.pump.danars.comm.DanaRSMessageHashTable
+import app.aaps.pump.danars.comm.DanaRSPacket
+import app.aaps.pump.danars.comm.DanaRSPacketAPSHistoryEvents
+import app.aaps.pump.danars.comm.DanaRSPacketBolusSetStepBolusStart
+import app.aaps.pump.danars.comm.DanaRSPacketGeneralInitialScreenInformation
+import app.aaps.pump.danars.comm.DanaRSPacketNotifyDeliveryComplete
+import app.aaps.pump.danars.comm.DanaRSPacketNotifyDeliveryRateDisplay
+import com.google.common.truth.Truth.assertThat
+import dagger.android.AndroidInjector
+import dagger.android.HasAndroidInjector
+import info.nightscout.androidaps.danars.encryption.BleEncryption
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.Timeout
+import org.mockito.ArgumentMatchers.anyDouble
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.whenever
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+
+class DanaRSResponseMonitorTest : DanaRSTestBase() {
+
+    @Mock lateinit var danaRSMessageHashTable: DanaRSMessageHashTable
+    @Mock lateinit var danaRSPlugin: DanaRSPlugin
+    @Mock lateinit var bleEncryption: BleEncryption
+    @Mock lateinit var pumpSync: PumpSync
+    @Mock lateinit var commandQueue: CommandQueue
+    @Mock lateinit var detailedBolusInfoStorage: DetailedBolusInfoStorage
+    @Mock lateinit var temporaryBasalStorage: TemporaryBasalStorage
+    @Mock lateinit var bluetoothManager: BluetoothManager
+    @Mock lateinit var bluetoothAdapter: BluetoothAdapter
+    @Mock lateinit var bluetoothGatt: BluetoothGatt
+
+    private val packetInjector = HasAndroidInjector {
+        AndroidInjector {
+            if (it is DanaRSPacket) {
+                it.aapsLogger = aapsLogger
+                it.dateUtil = dateUtil
+                it.uiInteraction = uiInteraction
+            }
+            if (it is DanaRSPacketGeneralInitialScreenInformation) {
+                it.danaPump = danaPump
+            }
+            if (it is DanaRSPacketBolusSetStepBolusStart) {
+                it.danaPump = danaPump
+                it.constraintChecker = constraintsChecker
+            }
+            if (it is DanaRSPacketNotifyDeliveryRateDisplay) {
+                it.rxBus = rxBus
+                it.rh = rh
+                it.danaPump = danaPump
+            }
+            if (it is DanaRSPacketNotifyDeliveryComplete) {
+                it.rxBus = rxBus
+                it.rh = rh
+                it.danaPump = danaPump
+            }
+            if (it is DanaRSPacketAPSHistoryEvents) {
+                it.rxBus = rxBus
+                it.rh = rh
+                it.danaPump = danaPump
+                it.detailedBolusInfoStorage = detailedBolusInfoStorage
+                it.temporaryBasalStorage = temporaryBasalStorage
+                it.preferences = preferences
+                it.pumpSync = pumpSync
+            }
+        }
+    }
+
+    private lateinit var sut: DanaRSResponseMonitor
+    private lateinit var bleComm: BLEComm
+    private lateinit var service: DanaRSService
+    private lateinit var pump: FakePump
+
+    @BeforeEach
+    fun prepareMonitor() {
+        whenever(rh.gs(anyInt(), anyDouble())).thenReturn("SomeString")
+        whenever(constraintsChecker.applyBolusConstraints(any())).thenAnswer { it.getArgument(0) }
+        whenever(danaRSPlugin.isInitialized()).thenReturn(true)
+        // silence of bolus progress is measured against system time
+        whenever(dateUtil.now()).thenAnswer { System.currentTimeMillis() }
+        whenever(context.getSystemService(Context.BLUETOOTH_SERVICE)).thenReturn(bluetoothManager)
+        whenever(bluetoothManager.adapter).thenReturn(bluetoothAdapter)
+        whenever(danaRSMessageHashTable.findMessage(anyInt())).thenAnswer {
+            when (it.getArgument<Int>(0)) {
+                DanaRSPacketNotifyDeliveryRateDisplay(packetInjector).command -> DanaRSPacketNotifyDeliveryRateDisplay(packetInjector)
+                DanaRSPacketNotifyDeliveryComplete(packetInjector).command    -> DanaRSPacketNotifyDeliveryComplete(packetInjector)
+                else                                                          -> DanaRSPacket(packetInjector)
+            }
+        }
+        sut = DanaRSResponseMonitor()
+        bleComm = BLEComm(
+            packetInjector, aapsLogger, rh, context, rxBus, danaRSMessageHashTable, danaPump, danaRSPlugin, bleEncryption,
+            pumpSync, dateUtil, uiInteraction, preferences, sut
+        )
+        bleComm.bluetoothGatt = bluetoothGatt
+        bleComm.isConnected = true
+        service = DanaRSService().also {
+            it.injector = packetInjector
+            it.aapsLogger = aapsLogger
+            it.rxBus = rxBus
+            it.preferences = preferences
+            it.rh = rh
+            it.commandQueue = commandQueue
+            it.danaRSPlugin = danaRSPlugin
+            it.danaPump = danaPump
+            it.uiInteraction = uiInteraction
+            it.bleComm = bleComm
+            it.dateUtil = dateUtil
+            it.instantiator = instantiator
+            it.responseMonitor = sut
+        }
+        pump = FakePump()
+    }
+
+    @AfterEach
+    fun shutdown() {
+        pump.close()
+    }
+
+    @Test
+    fun signalledConditionIsNotLost() {
+        val packet = DanaRSPacketGeneralInitialScreenInformation(packetInjector)
+        // answered and signalled before anybody waits
+        packet.setReceived()
+        sut.signal()
+        assertThat(sut.await(5000) { packet.isReceived }).isTrue()
+    }
+
+    @Test
+    fun awaitTimesOut() {
+        assertThat(sut.await(50) { false }).isFalse()
+    }
+
+    // without signal from BLEComm the progress loop would wait 15 s after the last notification
+    @Test @Timeout(10)
+    fun bolusEndsOnDeliveryComplete() {
+        val treatment = EventOverviewBolusProgress.Treatment(0.0, 0, true, 0)
+
+        assertThat(service.bolus(1.0, 0, 0, treatment)).isTrue()
+        pump.log.add("bolus end")
+
+        assertThat(pump.log).containsExactlyElementsIn(listOf("start") + List(10) { "progress" } + listOf("complete", "bolus end")).inOrder()
+        assertThat(danaPump.bolusDone).isTrue()
+        assertThat(treatment.insulin).isWithin(0.01).of(1.0)
+    }
+
+    @Test @Timeout(10)
+    fun loadEventsWaitsForLastRecord() {
+        val result = service.loadEvents()
+        pump.log.add("load end")
+
+        assertThat(pump.log).containsExactly("history", "status", "load end").inOrder()
+        assertThat(result.success).isTrue()
+        assertThat(danaPump.historyDoneReceived).isTrue()
+    }
+
+    /**
+     * Pump side of GATT connection answering writes on its own thread like Bluetooth callbacks
+     *
+     * Encryption is mocked, so answers are passed to [BLEComm.processMessage] as decrypted packets.
+     * Every answer is logged before it is processed.
+     */
+    private inner class FakePump {
+
+        val log = CopyOnWriteArrayList<String>()
+        private val executor = Executors.newSingleThreadExecutor()
+        @Volatile private var request = 0
+
+        init {
+            whenever(bleEncryption.getEncryptedPacket(anyInt(), anyOrNull(), anyOrNull())).thenAnswer {
+                request = it.getArgument(0)
+                byteArrayOf(request.toByte())
+            }
+            whenever(bluetoothGatt.writeCharacteristic(any())).thenAnswer {
+                val opCode = request
+                executor.execute { answer(opCode) }
+                true
+            }
+        }
+
+        private fun answer(opCode: Int) {
+            when (opCode) {
+                BleEncryption.DANAR_PACKET__OPCODE_BOLUS__SET_STEP_BOLUS_START           -> {
+                    send("start", BleEncryption.DANAR_PACKET__TYPE_RESPONSE, opCode, 0)
+                    for (i in 1..10)
+                        send("progress", BleEncryption.DANAR_PACKET__TYPE_NOTIFY, BleEncryption.DANAR_PACKET__OPCODE_NOTIFY__DELIVERY_RATE_DISPLAY, i * 10, 0)
+                    send("complete", BleEncryption.DANAR_PACKET__TYPE_NOTIFY, BleEncryption.DANAR_PACKET__OPCODE_NOTIFY__DELIVERY_COMPLETE, 100, 0)
+                }
+
+                // no records, only the last record mark
+                BleEncryption.DANAR_PACKET__OPCODE__APS_HISTORY_EVENTS                  ->
+                    send("history", BleEncryption.DANAR_PACKET__TYPE_RESPONSE, opCode, 0xFF)
+
+                BleEncryption.DANAR_PACKET__OPCODE_REVIEW__INITIAL_SCREEN_INFORMATION ->
+                    send("status", BleEncryption.DANAR_PACKET__TYPE_RESPONSE, opCode, *IntArray(15))
+            }
+        }
+
+        private fun send(name: String, type: Int, opCode: Int, vararg data: Int) {
+            log.add(name)
+            bleComm.processMessage(byteArrayOf(type.toByte(), opCode.toByte()) + ByteArray(data.size) { data[it].toByte() })
+        }
+
+        fun close() {
+            executor.shutdownNow()
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package app.aaps.pump.danars.services
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class DanaRSWriteQueueTest {
+
+    private val sut = DanaRSWriteQueue()
+
+    @Test
+    fun firstFragmentIsReturnedWhenIdle() {
+        val packet = ByteArray(45) { it.toByte() }
+        val first = sut.add(packet)
+        assertThat(first).isEqualTo(packet.copyOfRange(0, 20))
+        assertThat(sut.poll()).isEqualTo(packet.copyOfRange(20, 40))
+        assertThat(sut.poll()).isEqualTo(packet.copyOfRange(40, 45))
+        assertThat(sut.poll()).isNull()
+        assertThat(sut.isEmpty).isTrue()
+    }
+
+    @Test
+    fun packetIsQueuedWhilePreviousIsBeingSent() {
+        val first = ByteArray(30) { 1 }
+        val second = ByteArray(10) { 2 }
+        assertThat(sut.add(first)).hasLength(20)
+        assertThat(sut.add(second)).isNull()
+        // fragments never mix packets
+        assertThat(sut.poll()).isEqualTo(ByteArray(10) { 1 })
+        assertThat(sut.poll()).isEqualTo(second)
+        assertThat(sut.poll()).isNull()
+        // last fragment was taken, next packet is sent immediately
+        assertThat(sut.add(second)).isEqualTo(second)
+    }
+
+    @Test
+    fun fragmentSizeFollowsMtu() {
+        sut.fragmentSize = 247 - 3
+        val packet = ByteArray(300) { it.toByte() }
+        assertThat(sut.add(packet)).hasLength(244)
+        assertThat(sut.poll()).hasLength(56)
+        sut.fragmentSize = 5
+        assertThat(sut.fragmentSize).isEqualTo(DanaRSWriteQueue.DEFAULT_FRAGMENT_SIZE)
+        sut.fragmentSize = 1000
+        assertThat(sut.fragmentSize).isEqualTo(DanaRSWriteQueue.MAX_FRAGMENT_SIZE)
+    }
+
+    @Test
+    fun clearDropsRestOfPacket() {
+        sut.add(ByteArray(50))
+        sut.clear()
+        assertThat(sut.poll()).isNull()
+        assertThat(sut.add(ByteArray(5))).hasLength(5)
+    }
+}
@@ -1,5 +1,6 @@
 package app.aaps.pump.medtronic.data
 
+import androidx.annotation.VisibleForTesting
 import app.aaps.core.data.model.TE
 import app.aaps.core.data.pump.defs.PumpType
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -14,7 +15,6 @@ import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.core.utils.DateTimeUtil
 import app.aaps.core.utils.StringUtil
 import app.aaps.pump.common.sync.PumpDbEntry
-import app.aaps.pump.common.sync.PumpDbEntryBolus
 import app.aaps.pump.common.sync.PumpDbEntryCarbs
 import app.aaps.pump.common.sync.PumpDbEntryTBR
 import app.aaps.pump.common.sync.PumpSyncStorage
@@ -39,7 +39,9 @@ import com.google.gson.Gson
 import com.google.gson.GsonBuilder
 import org.apache.commons.lang3.StringUtils
 import org.joda.time.LocalDateTime
+import java.util.Collections
 import java.util.GregorianCalendar
+import java.util.IdentityHashMap
 import java.util.Locale
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -84,29 +86,39 @@ class MedtronicHistoryData @Inject constructor(
     fun addNewHistory(result: PumpHistoryResult) {
         val validEntries: List<PumpHistoryEntry> = result.validEntries
         val newEntries: MutableList<PumpHistoryEntry> = mutableListOf()
+        val allHistoryByPumpId = getEntriesByPumpId(allHistory)
+        // PumpHistoryEntry.hashCode() doesn't match equals(), so track removed entries by identity
+        val removeList: MutableSet<PumpHistoryEntry> = Collections.newSetFromMap(IdentityHashMap())
         for (validEntry in validEntries) {
             if (!allPumpIds.contains(validEntry.pumpId)) {
                 newEntries.add(validEntry)
             } else {
-                val entryByPumpId = getEntryByPumpId(validEntry.pumpId)
+                val entryByPumpId = allHistoryByPumpId[validEntry.pumpId]
 
                 if (entryByPumpId != null && entryByPumpId.hasBolusChanged(validEntry)) {
                     newEntries.add(validEntry)
-                    allHistory.remove(entryByPumpId)
+                    removeList.add(entryByPumpId)
+                    allHistoryByPumpId.remove(validEntry.pumpId)
                     allPumpIds.remove(validEntry.pumpId)
                 }
             }
         }
+        if (removeList.isNotEmpty()) {
+            allHistory.removeAll { removeList.contains(it) }
+        }
         newHistory = newEntries
         showLogs("List of history (before filtering): [" + newHistory.size + "]", gson.toJson(newHistory))
     }
 
-    private fun getEntryByPumpId(pumpId: Long): PumpHistoryEntry? {
-        val findFirst = this.allHistory.stream()
-            .filter { f -> f.pumpId == pumpId }
-            .findFirst()
-
-        return if (findFirst.isPresent) findFirst.get() else null
+    /**
+     * Map of entries by pumpId, first entry wins if pumpId is duplicated.
+     */
+    private fun getEntriesByPumpId(entries: List<PumpHistoryEntry>): MutableMap<Long, PumpHistoryEntry> {
+        val entriesByPumpId: MutableMap<Long, PumpHistoryEntry> = HashMap(entries.size * 2)
+        for (entry in entries) {
+            entriesByPumpId.putIfAbsent(entry.pumpId, entry)
+        }
+        return entriesByPumpId
     }
 
     private fun showLogs(header: String?, data: String) {
@@ -170,12 +182,10 @@ class MedtronicHistoryData @Inject constructor(
     }
 
     private fun extendBolusRecords(bolusEstimates: MutableList<PumpHistoryEntry>, newHistory2: MutableList<PumpHistoryEntry>) {
-        val boluses: MutableList<PumpHistoryEntry> = getFilteredItems(newHistory2, PumpHistoryEntryType.Bolus)
+        val boluses = TimeIndex(getFilteredItems(newHistory2, PumpHistoryEntryType.Bolus)) { it.atechDateTime }
         for (bolusEstimate in bolusEstimates) {
-            for (bolus in boluses) {
-                if (bolusEstimate.atechDateTime == bolus.atechDateTime) {
-                    bolus.addDecodedData("Estimate", bolusEstimate.decodedData.getValue("Object"))
-                }
+            for (bolus in boluses.at(bolusEstimate.atechDateTime)) {
+                bolus.addDecodedData("Estimate", bolusEstimate.decodedData.getValue("Object"))
             }
         }
     }
@@ -276,8 +286,9 @@ class MedtronicHistoryData @Inject constructor(
             newAndAll.addAll(allHistory)
         }
         if (isCollectionNotEmpty(newHistory)) {
+            val pumpIds: MutableSet<Long> = newAndAll.mapTo(HashSet()) { it.pumpId }
             for (pumpHistoryEntry in newHistory) {
-                if (!newAndAll.contains(pumpHistoryEntry)) {
+                if (pumpIds.add(pumpHistoryEntry.pumpId)) {
                     newAndAll.add(pumpHistoryEntry)
                 }
             }
@@ -590,6 +601,7 @@ class MedtronicHistoryData @Inject constructor(
     private fun processBolusEntries(entryList: MutableList<PumpHistoryEntry>) {
 
         val boluses = pumpSyncStorage.getBoluses()
+        val bolusIndex = TimeIndex(boluses) { it.date }
 
         for (bolus in entryList) {
 
@@ -611,8 +623,7 @@ class MedtronicHistoryData @Inject constructor(
             var temporaryId: Long? = null
 
             if (!multiWave) {
-                @Suppress("Unchecked_Cast")
-                val entryWithTempId = findDbEntry(bolus, boluses as MutableList<PumpDbEntry>) as PumpDbEntryBolus?
+                val entryWithTempId = findDbEntry(bolus, bolusIndex)
 
                 aapsLogger.debug(LTag.PUMP, "DD: entryWithTempId=$entryWithTempId")
 
@@ -622,6 +633,7 @@ class MedtronicHistoryData @Inject constructor(
                     temporaryId = entryWithTempId.temporaryId
                     pumpSyncStorage.removeBolusWithTemporaryId(temporaryId)
                     boluses.remove(entryWithTempId)
+                    bolusIndex.remove(entryWithTempId)
                     //type = entryWithTempId.bolusType
                 }
             }
@@ -728,6 +740,7 @@ class MedtronicHistoryData @Inject constructor(
         }
 
         val tbrRecords = pumpSyncStorage.getTBRs()
+        val tbrIndex = TimeIndex(tbrRecords) { it.date }
 
         val processList: MutableList<TempBasalProcessDTO> = createTBRProcessList(entryList)
 
@@ -738,8 +751,7 @@ class MedtronicHistoryData @Inject constructor(
                 //aapsLogger.debug(LTag.PUMP, "DD: tempBasalProcessDTO.itemOne: " + gson.toJson(tempBasalProcessDTO.itemOne))
                 //aapsLogger.debug(LTag.PUMP, "DD: tempBasalProcessDTO.itemTwo: " + (if (tempBasalProcessDTO.itemTwo == null) "null" else gson.toJson(tempBasalProcessDTO.itemTwo!!)))
 
-                @Suppress("Unchecked_Cast")
-                val entryWithTempId = findDbEntry(tempBasalProcessDTO.itemOne, tbrRecords as MutableList<PumpDbEntry>) as PumpDbEntryTBR?
+                val entryWithTempId = findDbEntry(tempBasalProcessDTO.itemOne, tbrIndex)
 
                 aapsLogger.debug(LTag.PUMP, "DD: entryWithTempId: " + (entryWithTempId?.toString() ?: "null"))
 
@@ -787,6 +799,7 @@ class MedtronicHistoryData @Inject constructor(
 
                         pumpSyncStorage.removeTemporaryBasalWithTemporaryId(entryWithTempId.temporaryId)
                         tbrRecords.remove(entryWithTempId)
+                        tbrIndex.remove(entryWithTempId)
 
                         entryWithTempId.pumpId = tempBasalProcessDTO.pumpId
                         entryWithTempId.date = tryToGetByLocalTime(tempBasalProcessDTO.atechDateTime)
@@ -988,12 +1001,14 @@ class MedtronicHistoryData @Inject constructor(
      * is no treatment at all. For now we look fro treatment that was from 0s - 1m59s within pump entry.
      *
      * @param treatment          Pump Entry
-     * @param temporaryEntries entries from history
+     * @param temporaryEntries entries from history, indexed by date
      * @return DbObject from AAPS (if found)
      *
-     * Looks at all boluses that have temporaryId and find one that is correct for us (if such entry exists)
+     * Looks at all boluses that have temporaryId and find one that is correct for us (if such entry exists).
+     * Each tolerance step is a range query on the index, so this doesn't depend on the size of the history.
      */
-    private fun findDbEntry(treatment: PumpHistoryEntry, temporaryEntries: MutableList<PumpDbEntry>): PumpDbEntry? {
+    @VisibleForTesting
+    internal fun <T : PumpDbEntry> findDbEntry(treatment: PumpHistoryEntry, temporaryEntries: TimeIndex<T>): T? {
 
         if (temporaryEntries.isEmpty()) {
             return null
@@ -1004,14 +1019,7 @@ class MedtronicHistoryData @Inject constructor(
         // pumpTime should never be null, but it can theoretically happen if reading of time from pump fails
         this.pumpTime?.let { proposedTime += (it.timeDifference * 1000) }
 
-        val proposedTimeDiff: LongArray = longArrayOf(proposedTime - (2 * 60 * 1000), proposedTime + (2L * 60L * 1000L))
-        val tempEntriesList: MutableList<PumpDbEntry> = mutableListOf()
-
-        for (temporaryEntry in temporaryEntries) {
-            if (temporaryEntry.date > proposedTimeDiff[0] && temporaryEntry.date < proposedTimeDiff[1]) {
-                tempEntriesList.add(temporaryEntry)
-            }
-        }
+        val tempEntriesList: List<T> = temporaryEntries.between(proposedTime - (2 * 60 * 1000), proposedTime + (2L * 60L * 1000L))
 
         if (tempEntriesList.isEmpty()) {
             return null
@@ -1019,51 +1027,36 @@ class MedtronicHistoryData @Inject constructor(
             return tempEntriesList[0]
         }
 
-        var min = 0
-        while (min < 2) {
-            var sec = 0
-            while (sec <= 50) {
-                if (min == 1 && sec == 50) {
-                    sec = 59
-                }
-                val diff = sec * 1000
-                val outList = mutableListOf<PumpDbEntry>()
-                for (treatment1 in tempEntriesList) {
-                    if (treatment1.date > proposedTime - diff && treatment1.date < proposedTime + diff) {
-                        outList.add(treatment1)
-                    }
-                }
-                if (outList.size == 1) {
-                    if (doubleBolusDebug) aapsLogger.debug(
-                        LTag.PUMP,
-                        String.format(
-                            Locale.ENGLISH,
-                            "DoubleBolusDebug: findDbEntry Treatment={}, FromDb={}. Type=EntrySelected, AtTimeMin={}, AtTimeSec={}",
-                            treatment,
-                            outList[0],
-                            min,
-                            sec
-                        )
+        for (sec in dbEntryToleranceSeconds) {
+            val diff = sec * 1000
+            val outList = temporaryEntries.between(proposedTime - diff, proposedTime + diff)
+            if (outList.size == 1) {
+                if (doubleBolusDebug) aapsLogger.debug(
+                    LTag.PUMP,
+                    String.format(
+                        Locale.ENGLISH,
+                        "DoubleBolusDebug: findDbEntry Treatment={}, FromDb={}. Type=EntrySelected, AtTimeSec={}",
+                        treatment,
+                        outList[0],
+                        sec
                     )
-                    return outList[0]
-                }
-                if (min == 0 && sec == 10 && outList.size > 1) {
-                    aapsLogger.error(
-                        String.format(
-                            Locale.ENGLISH, "Too many entries (with too small diff): (timeDiff=[min=%d,sec=%d],count=%d,list=%s)",
-                            min, sec, outList.size, gson.toJson(outList)
-                        )
+                )
+                return outList[0]
+            }
+            if (sec == 10 && outList.size > 1) {
+                aapsLogger.error(
+                    String.format(
+                        Locale.ENGLISH, "Too many entries (with too small diff): (timeDiff=[sec=%d],count=%d,list=%s)",
+                        sec, outList.size, gson.toJson(outList)
                     )
-                    if (doubleBolusDebug) aapsLogger.debug(
-                        LTag.PUMP, String.format(
-                            Locale.ENGLISH, "DoubleBolusDebug: findDbEntry Error - Too many entries (with too small diff): (timeDiff=[min=%d,sec=%d],count=%d,list=%s)",
-                            min, sec, outList.size, gson.toJson(outList)
-                        )
+                )
+                if (doubleBolusDebug) aapsLogger.debug(
+                    LTag.PUMP, String.format(
+                        Locale.ENGLISH, "DoubleBolusDebug: findDbEntry Error - Too many entries (with too small diff): (timeDiff=[sec=%d],count=%d,list=%s)",
+                        sec, outList.size, gson.toJson(outList)
                     )
-                }
-                sec += 10
+                )
             }
-            min += 1
         }
         return null
     }
@@ -1429,6 +1422,11 @@ class MedtronicHistoryData @Inject constructor(
          * in case we need it again. Code that turns this on is commented out RileyLinkMedtronicService#verifyConfiguration()
          */
         const val doubleBolusDebug = false
+
+        /**
+         * Growing tolerances (in seconds) tried by findDbEntry, until exactly one DB entry is within the tolerance.
+         */
+        private val dbEntryToleranceSeconds = intArrayOf(10, 20, 30, 40, 50, 59)
     }
 
 }
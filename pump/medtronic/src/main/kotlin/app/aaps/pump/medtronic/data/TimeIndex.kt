@@ -0,0 +1,81 @@
+package app.aaps.pump.medtronic.data
+
+/**
+ * Entries sorted by time, so that looking up all entries in a time range is a binary search
+ * instead of a scan over the whole list. Used for matching pump history entries with each
+ * other and with DB entries, which both grow over the lifetime of the pump.
+ *
+ * Entries that have been matched can be removed from the index. The time of an entry is
+ * taken once, when the index is created.
+ *
+ * @param entries entries to index, entries with equal time keep their order
+ * @param timeOf time of an entry (millis or aTech date, as long as one index uses only one)
+ */
+class TimeIndex<T>(entries: Collection<T>, private val timeOf: (T) -> Long) {
+
+    private val sortedEntries: List<T> = entries.sortedBy(timeOf)
+    private val times = LongArray(sortedEntries.size) { timeOf(sortedEntries[it]) }
+    private val removed = BooleanArray(sortedEntries.size)
+    private var removedCount = 0
+
+    val size: Int
+        get() = sortedEntries.size - removedCount
+
+    fun isEmpty(): Boolean = size == 0
+
+    /**
+     * Returns all entries with time after [from] and before [to] (both exclusive), oldest first.
+     */
+    fun between(from: Long, to: Long): List<T> {
+        val result = mutableListOf<T>()
+        if (from == Long.MAX_VALUE) return result
+        var index = firstIndexNotBefore(from + 1)
+        while (index < times.size && times[index] < to) {
+            if (!removed[index]) result.add(sortedEntries[index])
+            index++
+        }
+        return result
+    }
+
+    /**
+     * Returns all entries with exactly this time.
+     */
+    fun at(time: Long): List<T> {
+        val result = mutableListOf<T>()
+        var index = firstIndexNotBefore(time)
+        while (index < times.size && times[index] == time) {
+            if (!removed[index]) result.add(sortedEntries[index])
+            index++
+        }
+        return result
+    }
+
+    /**
+     * Removes the entry (by identity) from the index.
+     *
+     * @return true if the entry was in the index
+     */
+    fun remove(entry: T): Boolean {
+        val time = timeOf(entry)
+        var index = firstIndexNotBefore(time)
+        while (index < times.size && times[index] == time) {
+            if (!removed[index] && sortedEntries[index] === entry) {
+                removed[index] = true
+                removedCount++
+                return true
+            }
+            index++
+        }
+        return false
+    }
+
+    private fun firstIndexNotBefore(time: Long): Int {
+        var low = 0
+        var high = times.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (times[mid] < time) low = mid + 1 else high = mid
+        }
+        return low
+    }
+}
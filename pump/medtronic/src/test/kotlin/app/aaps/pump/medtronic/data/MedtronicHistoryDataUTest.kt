@@ -1,9 +1,12 @@
 package app.aaps.pump.medtronic.data
 
+import app.aaps.core.data.model.BS
 import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.pump.defs.PumpType
 import app.aaps.core.interfaces.ui.UiInteraction
 import app.aaps.core.keys.StringKey
 import app.aaps.core.utils.DateTimeUtil
+import app.aaps.pump.common.sync.PumpDbEntryBolus
 import app.aaps.pump.medtronic.MedtronicTestBase
 import app.aaps.pump.medtronic.comm.history.pump.MedtronicPumpHistoryDecoder
 import app.aaps.pump.medtronic.comm.history.pump.PumpHistoryEntry
@@ -12,6 +15,7 @@ import app.aaps.pump.medtronic.data.dto.TempBasalPair
 import app.aaps.pump.medtronic.defs.MedtronicDeviceType
 import app.aaps.pump.medtronic.driver.MedtronicPumpStatus
 import app.aaps.pump.medtronic.util.MedtronicUtil
+import com.google.common.truth.Truth.assertThat
 import com.google.gson.Gson
 import com.google.gson.internal.LinkedTreeMap
 import com.google.gson.reflect.TypeToken
@@ -21,6 +25,7 @@ import org.mockito.Mock
 import org.mockito.Mockito.verify
 import org.mockito.Mockito.`when`
 import java.lang.reflect.Type
+import kotlin.random.Random
 
 @Suppress("UNCHECKED_CAST")
 class MedtronicHistoryDataUTest : MedtronicTestBase() {
@@ -163,4 +168,76 @@ class MedtronicHistoryDataUTest : MedtronicTestBase() {
 
     }
 
+    @Test
+    fun findDbEntry_MatchesLinearSearchOnMultiWeekHistory() {
+
+        val unitToTest = MedtronicHistoryData(aapsLogger, preferences, rh, medtronicUtil, decoder, medtronicPumpStatus, pumpSync, pumpSyncStorage, uiInteraction, profileUtil)
+
+        // 4 weeks of boluses, DB entries are a bit off from pump time, some boluses are close together,
+        // some are missing in DB and some DB entries have no pump entry
+        val random = Random(28)
+        val pumpEntries = mutableListOf<PumpHistoryEntry>()
+        val dbEntries = mutableListOf<PumpDbEntryBolus>()
+        var time = 1709251200000L // 2024-03-01
+        val end = time + 28L * 24 * 60 * 60 * 1000
+        while (time < end) {
+            val count = if (random.nextInt(10) == 0) 2 else 1
+            repeat(count) {
+                val bolusTime = time + it * (15 + random.nextInt(30)) * 1000L
+                pumpEntries.add(PumpHistoryEntry().also { entry -> entry.atechDateTime = DateTimeUtil.toATechDate(bolusTime) })
+                if (random.nextInt(10) != 0)
+                    dbEntries.add(dbBolus(dbEntries.size.toLong(), bolusTime + random.nextInt(-50_000, 50_000)))
+            }
+            if (random.nextInt(20) == 0)
+                dbEntries.add(dbBolus(dbEntries.size.toLong(), time + random.nextInt(-100_000, 100_000)))
+            time += (20 + random.nextInt(160)) * 60 * 1000L
+        }
+        dbEntries.shuffle(random)
+
+        val linearEntries = dbEntries.toMutableList()
+        val index = TimeIndex(dbEntries) { it.date }
+        var matched = 0
+        for (pumpEntry in pumpEntries) {
+            val expected = findDbEntryLinear(pumpEntry, linearEntries)
+            val found = unitToTest.findDbEntry(pumpEntry, index)
+
+            assertThat(found).isSameInstanceAs(expected)
+            if (found != null) {
+                matched++
+                linearEntries.remove(found)
+                index.remove(found)
+            }
+        }
+        assertThat(matched).isGreaterThan(pumpEntries.size / 2)
+        assertThat(index.size).isEqualTo(linearEntries.size)
+    }
+
+    private fun dbBolus(temporaryId: Long, date: Long) =
+        PumpDbEntryBolus(
+            temporaryId = temporaryId, date = date, pumpType = PumpType.MEDTRONIC_523_723_REVEL, serialNumber = "123456",
+            insulin = 1.0, carbs = 0.0, bolusType = BS.Type.NORMAL
+        )
+
+    /**
+     * Matching as it was done before entries were indexed: a scan over all DB entries for each tolerance.
+     */
+    private fun findDbEntryLinear(treatment: PumpHistoryEntry, temporaryEntries: List<PumpDbEntryBolus>): PumpDbEntryBolus? {
+        if (temporaryEntries.isEmpty()) return null
+        val proposedTime = DateTimeUtil.toMillisFromATD(treatment.atechDateTime)
+        val tempEntriesList = temporaryEntries.filter { it.date > proposedTime - (2 * 60 * 1000) && it.date < proposedTime + (2 * 60 * 1000) }
+        if (tempEntriesList.isEmpty()) return null
+        if (tempEntriesList.size == 1) return tempEntriesList[0]
+        for (min in 0..1) {
+            var sec = 0
+            while (sec <= 50) {
+                if (min == 1 && sec == 50) sec = 59
+                val diff = sec * 1000
+                val outList = tempEntriesList.filter { it.date > proposedTime - diff && it.date < proposedTime + diff }
+                if (outList.size == 1) return outList[0]
+                sec += 10
+            }
+        }
+        return null
+    }
+
 }
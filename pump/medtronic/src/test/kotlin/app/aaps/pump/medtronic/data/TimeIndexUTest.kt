@@ -0,0 +1,62 @@
+package app.aaps.pump.medtronic.data
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class TimeIndexUTest {
+
+    private data class Entry(val name: String, val time: Long)
+
+    private val a = Entry("a", 10)
+    private val b = Entry("b", 20)
+    private val c1 = Entry("c1", 30)
+    private val c2 = Entry("c2", 30)
+    private val d = Entry("d", 40)
+
+    private fun index() = TimeIndex(listOf(d, c1, a, c2, b)) { it.time }
+
+    @Test
+    fun between() {
+        val index = index()
+        assertThat(index.between(10, 40)).containsExactly(b, c1, c2).inOrder()
+        assertThat(index.between(9, 41)).containsExactly(a, b, c1, c2, d).inOrder()
+        assertThat(index.between(30, 31)).isEmpty()
+        assertThat(index.between(40, 10)).isEmpty()
+        assertThat(index.between(Long.MIN_VALUE, Long.MAX_VALUE)).hasSize(5)
+        assertThat(index.between(Long.MAX_VALUE, Long.MAX_VALUE)).isEmpty()
+    }
+
+    @Test
+    fun at() {
+        val index = index()
+        assertThat(index.at(30)).containsExactly(c1, c2).inOrder()
+        assertThat(index.at(10)).containsExactly(a)
+        assertThat(index.at(15)).isEmpty()
+        assertThat(index.at(50)).isEmpty()
+    }
+
+    @Test
+    fun remove() {
+        val index = index()
+        assertThat(index.size).isEqualTo(5)
+        assertThat(index.remove(c2)).isTrue()
+        assertThat(index.remove(c2)).isFalse()
+        // equal but not the same entry
+        assertThat(index.remove(Entry("a", 10))).isFalse()
+        assertThat(index.size).isEqualTo(4)
+        assertThat(index.at(30)).containsExactly(c1)
+        assertThat(index.between(0, 100)).containsExactly(a, b, c1, d).inOrder()
+
+        listOf(a, b, c1, d).forEach { index.remove(it) }
+        assertThat(index.isEmpty()).isTrue()
+        assertThat(index.between(0, 100)).isEmpty()
+    }
+
+    @Test
+    fun empty() {
+        val index = TimeIndex(emptyList<Entry>()) { it.time }
+        assertThat(index.isEmpty()).isTrue()
+        assertThat(index.between(0, 100)).isEmpty()
+        assertThat(index.at(0)).isEmpty()
+    }
+}
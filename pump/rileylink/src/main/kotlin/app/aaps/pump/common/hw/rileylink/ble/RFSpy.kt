@@ -1,6 +1,7 @@
 package app.aaps.pump.common.hw.rileylink.ble
 
 import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.resources.ResourceHelper
@@ -37,6 +38,7 @@ import java.util.Optional
 import java.util.UUID
 import javax.inject.Inject
 import javax.inject.Singleton
+import kotlin.math.ceil
 import kotlin.math.pow
 
 /**
@@ -60,7 +62,8 @@ class RFSpy @Inject constructor(
     private val batteryLevelUUID: UUID = UUID.fromString(GattAttributes.CHARA_BATTERY_LEVEL)
     var notConnectedCount: Int = 0
 
-    private var reader: RFSpyReader = RFSpyReader(aapsLogger, rileyLinkBle)
+    @VisibleForTesting internal var reader: RFSpyReader = RFSpyReader(aapsLogger, rileyLinkBle)
+    private val latency = RFSpyLatency()
     private var bleVersion: String? = null // We don't use it so no need of sophisticated logic
     private var currentFrequencyMHz: Double? = null
     private var nextBatteryCheck: Long = 0
@@ -137,7 +140,7 @@ class RFSpy @Inject constructor(
             // So that we can adjust other commands accordingly afterwords
 
             val getVersionRaw = getByteArray(RileyLinkCommandType.GetVersion.code)
-            val response = writeToDataRaw(getVersionRaw, 5000)
+            val response = writeToDataRaw(getVersionRaw, 0)
 
             aapsLogger.debug(LTag.PUMPBTCOMM, String.format(Locale.ENGLISH, "Firmware Version. GetVersion [response=%s]", shortHexString(response)))
 
@@ -157,9 +160,16 @@ class RFSpy @Inject constructor(
         return null
     }
 
-    private fun writeToDataRaw(bytes: ByteArray, responseTimeoutMs: Int): ByteArray? {
-        SystemClock.sleep(100)
-        // FIXME drain read queue?
+    /**
+     * Write command and wait for response
+     *
+     * Write returns after acknowledge from RileyLink and response is read on notification,
+     * so the only wait is for the response within [radioTimeMs] and Bluetooth latency allowance.
+     *
+     * @param radioTimeMs maximal time the command keeps radio busy
+     */
+    private fun writeToDataRaw(bytes: ByteArray, radioTimeMs: Int): ByteArray? {
+        // late response of previous command
         var junkInBuffer = reader.poll(0)
 
         while (junkInBuffer != null) {
@@ -175,6 +185,7 @@ class RFSpy @Inject constructor(
 
         aapsLogger.debug(LTag.PUMPBTCOMM, String.format(Locale.ENGLISH, "writeToData (raw=%s)", shortHexString(prepended)))
 
+        val start = System.currentTimeMillis()
         val writeCheck = rileyLinkBle.writeCharacteristicBlocking(
             radioServiceUUID, radioDataUUID,
             prepended
@@ -184,15 +195,16 @@ class RFSpy @Inject constructor(
             return null // will be a null (invalid) response
         }
 
-        SystemClock.sleep(100)
-
-        return reader.poll(responseTimeoutMs)
+        val response = reader.poll(radioTimeMs + latency.allowanceMs())
+        if (response != null) latency.onResponse(if (radioTimeMs == 0) System.currentTimeMillis() - start else null)
+        else latency.onMissingResponse()
+        return response
     }
 
     // The caller has to know how long the RFSpy will be busy with what was sent to it.
-    private fun writeToData(command: RileyLinkCommand, responseTimeoutMs: Int): RFSpyResponse? {
+    private fun writeToData(command: RileyLinkCommand, radioTimeMs: Int): RFSpyResponse? {
         val bytes = command.getRaw()
-        val rawResponse = writeToDataRaw(bytes, responseTimeoutMs)
+        val rawResponse = writeToDataRaw(bytes, radioTimeMs)
 
         if (rawResponse == null) {
             aapsLogger.error(LTag.PUMPBTCOMM, "writeToData: No response from RileyLink")
@@ -229,15 +241,16 @@ class RFSpy @Inject constructor(
         pkt: RadioPacket, sendChannel: Byte, repeatCount: Byte, delayMs: Byte,
         listenChannel: Byte, timeoutMs: Int, retryCount: Byte, extendPreambleMs: Int = 0
     ): RFSpyResponse? {
-        val sendDelay = repeatCount * delayMs
-        val receiveDelay = timeoutMs * (retryCount + 1)
+        val radioTimeMs = sendAndListenTimeMs(
+            pkt, repeatCount.toInt() and 0xff, delayMs.toInt() and 0xff, timeoutMs, retryCount.toInt() and 0xff, extendPreambleMs
+        )
 
         val command = SendAndListen(
             rileyLinkServiceData, sendChannel, repeatCount, delayMs.toInt(), listenChannel, timeoutMs,
             retryCount, extendPreambleMs, pkt
         )
 
-        val rfSpyResponse = writeToData(command, sendDelay + receiveDelay + EXPECTED_MAX_BLUETOOTH_LATENCY_MS)
+        val rfSpyResponse = writeToData(command, radioTimeMs)
 
         if (System.currentTimeMillis() >= nextBatteryCheck) {
             updateBatteryLevel()
@@ -246,6 +259,31 @@ class RFSpy @Inject constructor(
         return rfSpyResponse
     }
 
+    /**
+     * Time SendAndListen keeps radio busy: packet sent once and [repeatCount] times more with [delayMs] between,
+     * resent once on every retry, and listening [timeoutMs] for each try
+     */
+    @VisibleForTesting
+    internal fun sendAndListenTimeMs(pkt: RadioPacket, repeatCount: Int, delayMs: Int, timeoutMs: Int, retryCount: Int, extendPreambleMs: Int): Int {
+        val transmissions = 1 + repeatCount + retryCount
+        return transmissions * airtimeMs(pkt) + extendPreambleMs + repeatCount * delayMs + timeoutMs * (retryCount + 1)
+    }
+
+    /**
+     * Time on air of one transmission of [pkt] with preamble and sync word
+     */
+    private fun airtimeMs(pkt: RadioPacket): Int {
+        val symbols = PREAMBLE_SYNC_BYTES * 8 + when (rileyLinkUtil.encoding) {
+            // 2 symbols per bit
+            RileyLinkEncodingType.Manchester               -> pkt.pkt.size * 16
+            // 6 symbols per nibble, CRC included
+            RileyLinkEncodingType.FourByteSixByteRileyLink -> (pkt.pkt.size + 1) * 12
+            else                                           -> pkt.getEncoded().size * 8
+        }
+        val symbolRate = if (rileyLinkUtil.encoding == RileyLinkEncodingType.Manchester) OMNIPOD_SYMBOL_RATE else MEDTRONIC_SYMBOL_RATE
+        return ceil(symbols * 1000.0 / symbolRate).toInt()
+    }
+
     private fun updateBatteryLevel() {
         rileyLinkServiceData.batteryLevel = retrieveBatteryLevel()
         nextBatteryCheck = System.currentTimeMillis() +
@@ -257,7 +295,7 @@ class RFSpy @Inject constructor(
     }
 
     private fun updateRegister(reg: CC111XRegister, `val`: Int): RFSpyResponse? {
-        return writeToData(UpdateRegister(reg, `val`.toByte()), EXPECTED_MAX_BLUETOOTH_LATENCY_MS)
+        return writeToData(UpdateRegister(reg, `val`.toByte()), 0)
     }
 
     fun setBaseFrequency(freqMHz: Double) {
@@ -343,7 +381,7 @@ class RFSpy @Inject constructor(
 
     private fun setPreamble(@Suppress("SameParameterValue") preamble: Int): RFSpyResponse? {
         try {
-            return writeToData(SetPreamble(rileyLinkServiceData, preamble), EXPECTED_MAX_BLUETOOTH_LATENCY_MS)
+            return writeToData(SetPreamble(rileyLinkServiceData, preamble), 0)
         } catch (e: Exception) {
             aapsLogger.error("Failed to set preamble", e)
         }
@@ -351,7 +389,7 @@ class RFSpy @Inject constructor(
     }
 
     fun setRileyLinkEncoding(encoding: RileyLinkEncodingType): RFSpyResponse? {
-        val resp = writeToData(SetHardwareEncoding(encoding), EXPECTED_MAX_BLUETOOTH_LATENCY_MS)
+        val resp = writeToData(SetHardwareEncoding(encoding), 0)
 
         if (resp?.isOK() == true) {
             reader.setRileyLinkEncodingType(encoding)
@@ -382,7 +420,11 @@ class RFSpy @Inject constructor(
         private const val LOW_BATTERY_BATTERY_CHECK_INTERVAL_MILLIS = 10 * 60 * 1000L // 10 minutes;
         private const val LOW_BATTERY_PERCENTAGE_THRESHOLD = 20
         private const val RILEYLINK_FREQ_XTAL: Long = 24000000
-        private const val EXPECTED_MAX_BLUETOOTH_LATENCY_MS = 7500 // 1500
+        // symbols per second of radio configuration in configureRadioForRegion
+        private const val MEDTRONIC_SYMBOL_RATE = 16384
+        private const val OMNIPOD_SYMBOL_RATE = 40625
+        // 24 bytes preamble of mdmcfg1 + 2 bytes sync word
+        private const val PREAMBLE_SYNC_BYTES = 26
         fun getFirmwareVersion(aapsLogger: AAPSLogger, bleVersion: String, cc1110Version: String?): RileyLinkFirmwareVersionBase {
             if (cc1110Version != null) {
                 val version = RileyLinkFirmwareVersion.getByVersionString(cc1110Version)
@@ -0,0 +1,64 @@
+package app.aaps.pump.common.hw.rileylink.ble
+
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Bluetooth part of RileyLink command response timeout
+ *
+ * Round trip of commands without radio activity is smoothed like TCP retransmission timeout (RFC 6298).
+ * Allowance is smoothed round trip plus 4 times its deviation, doubled after every missing response
+ * and kept between [MIN_ALLOWANCE_MS] and [MAX_ALLOWANCE_MS]. Until the first measurement it's [MIN_ALLOWANCE_MS].
+ *
+ * Allowance never drops below [MIN_ALLOWANCE_MS]: response arriving later is drained as junk
+ * by the next command and result of the (maybe not idempotent) pump command is lost.
+ */
+class RFSpyLatency {
+
+    private var smoothedMs = 0.0
+    private var deviationMs = 0.0
+    private var measured = false
+    private var backoff = 1
+
+    /**
+     * Time to wait for response on top of time the command keeps radio busy
+     */
+    @Synchronized
+    fun allowanceMs(): Int {
+        val allowance = (if (measured) max(MIN_ALLOWANCE_MS.toDouble(), smoothedMs + 4 * deviationMs) else MIN_ALLOWANCE_MS.toDouble()) * backoff
+        return min(MAX_ALLOWANCE_MS.toDouble(), max(MIN_ALLOWANCE_MS.toDouble(), allowance)).toInt()
+    }
+
+    /**
+     * Response received
+     *
+     * @param roundTripMs time from write to response of command without radio activity, null otherwise
+     */
+    @Synchronized
+    fun onResponse(roundTripMs: Long?) {
+        backoff = 1
+        roundTripMs ?: return
+        if (!measured) {
+            smoothedMs = roundTripMs.toDouble()
+            deviationMs = roundTripMs / 2.0
+            measured = true
+        } else {
+            deviationMs = 0.75 * deviationMs + 0.25 * abs(smoothedMs - roundTripMs)
+            smoothedMs = 0.875 * smoothedMs + 0.125 * roundTripMs
+        }
+    }
+
+    @Synchronized
+    fun onMissingResponse() {
+        if (backoff < MAX_BACKOFF) backoff *= 2
+    }
+
+    companion object {
+
+        // Android BLE stalls of several seconds are common, 1500 ms was not enough
+        const val MIN_ALLOWANCE_MS = 7500
+        const val MAX_ALLOWANCE_MS = 30000
+        private const val MAX_BACKOFF = 4
+    }
+}
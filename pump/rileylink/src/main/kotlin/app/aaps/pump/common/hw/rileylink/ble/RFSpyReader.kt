@@ -1,6 +1,6 @@
 package app.aaps.pump.common.hw.rileylink.ble
 
-import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.utils.pump.ByteUtil
@@ -31,21 +31,20 @@ class RFSpyReader internal constructor(private val aapsLogger: AAPSLogger, priva
     }
 
     // This timeout must be coordinated with the length of the RFSpy radio operation or Bad Things Happen.
+    // 0 timeout is used for drain queue in RFSpy.writeToDataRaw before sending new command
     fun poll(timeoutMs: Int): ByteArray? {
-        aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}Entering poll at t==${SystemClock.uptimeMillis()}, timeout is $timeoutMs mDataQueue size is ${mDataQueue.size}")
-        if (mDataQueue.isEmpty() || timeoutMs == 0) { //0 timeout is used for drain queue in RFSpy.writeToDataRaw before sending new command
-            try {
-                // block until timeout or data available.
-                // returns null if timeout.
-                val dataFromQueue = mDataQueue.poll(timeoutMs.toLong(), TimeUnit.MILLISECONDS)
-                if (dataFromQueue != null)
-                    aapsLogger.debug(LTag.PUMPBTCOMM, "Got data [${ByteUtil.shortHexString(dataFromQueue)}] at t==${SystemClock.uptimeMillis()}")
-                else
-                    aapsLogger.debug(LTag.PUMPBTCOMM, "Got data [null] at t==" + SystemClock.uptimeMillis())
-                return dataFromQueue
-            } catch (_: InterruptedException) {
-                aapsLogger.error(LTag.PUMPBTCOMM, "poll: Interrupted waiting for data")
-            }
+        aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}Entering poll at t==${System.currentTimeMillis()}, timeout is $timeoutMs mDataQueue size is ${mDataQueue.size}")
+        try {
+            // block until timeout or data available.
+            // returns null if timeout.
+            val dataFromQueue = mDataQueue.poll(timeoutMs.toLong(), TimeUnit.MILLISECONDS)
+            if (dataFromQueue != null)
+                aapsLogger.debug(LTag.PUMPBTCOMM, "Got data [${ByteUtil.shortHexString(dataFromQueue)}] at t==${System.currentTimeMillis()}")
+            else
+                aapsLogger.debug(LTag.PUMPBTCOMM, "Got data [null] at t==" + System.currentTimeMillis())
+            return dataFromQueue
+        } catch (_: InterruptedException) {
+            aapsLogger.error(LTag.PUMPBTCOMM, "poll: Interrupted waiting for data")
         }
         return null
     }
@@ -53,11 +52,12 @@ class RFSpyReader internal constructor(private val aapsLogger: AAPSLogger, priva
     // Call this from the "response count" notification handler.
     fun newDataIsAvailable() {
         releaseCount++
-        aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}waitForRadioData released(count=$releaseCount) at t=${SystemClock.uptimeMillis()}")
+        aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}waitForRadioData released(count=$releaseCount) at t=${System.currentTimeMillis()}")
         waitForRadioData.release()
     }
 
     fun start() {
+        if (executor.isShutdown) executor = Executors.newSingleThreadExecutor()
         executor.execute {
             val serviceUUID = UUID.fromString(GattAttributes.SERVICE_RADIO)
             val radioDataUUID = UUID.fromString(GattAttributes.CHARA_RADIO_DATA)
@@ -65,10 +65,9 @@ class RFSpyReader internal constructor(private val aapsLogger: AAPSLogger, priva
                 try {
                     acquireCount++
                     waitForRadioData.acquire()
-                    aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}waitForRadioData acquired (count=$acquireCount) at t=${SystemClock.uptimeMillis()}")
-                    SystemClock.sleep(100)
-                    var result = rileyLinkBle.readCharacteristicBlocking(serviceUUID, radioDataUUID)
-                    SystemClock.sleep(100)
+                    aapsLogger.debug(LTag.PUMPBTCOMM, "${ThreadUtil.sig()}waitForRadioData acquired (count=$acquireCount) at t=${System.currentTimeMillis()}")
+                    // response count notification is sent when response is ready to read
+                    val result = rileyLinkBle.readCharacteristicBlocking(serviceUUID, radioDataUUID)
                     if (result.resultCode == BLECommOperationResult.RESULT_SUCCESS) {
                         if (stopAtNull) {
                             // only data up to the first null is valid
@@ -92,8 +91,17 @@ class RFSpyReader internal constructor(private val aapsLogger: AAPSLogger, priva
                         aapsLogger.error(LTag.PUMPBTCOMM, "FAIL: got invalid result code: ${result.resultCode}")
                 } catch (_: InterruptedException) {
                     aapsLogger.error(LTag.PUMPBTCOMM, "Interrupted while waiting for data")
+                    return@execute
                 }
             }
         }
     }
+
+    /**
+     * Interrupt reading thread, [start] creates a new one
+     */
+    @VisibleForTesting
+    internal fun stop() {
+        executor.shutdownNow()
+    }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package app.aaps.pump.common.hw.rileylink.ble.data.encoding
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.utils.pump.ByteUtil.shortHexString
+import app.aaps.pump.common.hw.rileylink.ble.RileyLinkCommunicationException
+import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkBLEError
+import java.util.Locale
+
+/**
+ * Table driven 4b6b codec, output is the same as [Encoding4b6bGeoff]
+ *
+ * Every byte is encoded by one lookup of both 6 bit codes and every 6 bit code is decoded
+ * by a 64 entry reverse table. Result is written straight into a buffer of final size
+ * and the diagnostic message is built only when decoding fails.
+ */
+class Encoding4b6bTable(private val aapsLogger: AAPSLogger) : Encoding4b6bAbstract() {
+
+    override fun encode4b6b(data: ByteArray): ByteArray =
+        ByteArray(encodedSize(data.size)).also { encode(data, data.size, it, 0) }
+
+    @Throws(RileyLinkCommunicationException::class)
+    override fun decode4b6b(raw: ByteArray): ByteArray =
+        ByteArray(decodedSize(raw.size)).also { decode(raw, 0, raw.size, it, 0) }
+
+    /**
+     * Encode [length] bytes of [data] into [out] from [offset]
+     *
+     * @return number of bytes written, [encodedSize] of [length]
+     */
+    fun encode(data: ByteArray, length: Int, out: ByteArray, offset: Int): Int {
+        var acc = 0
+        var bitCount = 0
+        var position = offset
+        for (i in 0 until length) {
+            acc = (acc shl 12) or ENCODE[data[i].toInt() and 0xff]
+            bitCount += 12
+            while (bitCount >= 8) {
+                bitCount -= 8
+                out[position++] = (acc shr bitCount).toByte()
+            }
+            acc = acc and ((1 shl bitCount) - 1)
+        }
+        // odd number of bytes, marks uneven packet boundary
+        if (bitCount > 0) out[position++] = (((acc shl 6) or 0x14) shr (bitCount - 2)).toByte()
+        return position - offset
+    }
+
+    /**
+     * Decode [length] bytes of [raw] from [rawOffset] into [out] from [offset]
+     *
+     * @return number of bytes written, [decodedSize] of [length]
+     * @throws RileyLinkCommunicationException on invalid code or end marker
+     */
+    @Throws(RileyLinkCommunicationException::class)
+    fun decode(raw: ByteArray, rawOffset: Int, length: Int, out: ByteArray, offset: Int): Int {
+        var x = 0
+        var availableBits = 0
+        var position = offset
+        var codingErrors = 0
+        for (i in rawOffset until rawOffset + length) {
+            x = (x shl 8) or (raw[i].toInt() and 0xff)
+            availableBits += 8
+            if (availableBits >= 12) {
+                val high = DECODE[(x shr (availableBits - 6)) and 0x3F]
+                val low = DECODE[(x shr (availableBits - 12)) and 0x3F]
+                if (high >= 0 && low >= 0) out[position++] = ((high shl 4) or low).toByte()
+                else codingErrors++
+                availableBits -= 12
+                x = x and ((1 shl availableBits) - 1)
+            }
+        }
+        // 4 bits of end marker are the normal end on uneven boundary
+        if (codingErrors > 0 || (availableBits != 0 && (availableBits != 4 || x != 0x05))) {
+            val input = raw.copyOfRange(rawOffset, rawOffset + length)
+            val errorMessage = diagnostics(input)
+            writeError(aapsLogger, input, errorMessage)
+            throw RileyLinkCommunicationException(RileyLinkBLEError.CodingErrors, errorMessage)
+        }
+        return position - offset
+    }
+
+    /**
+     * Error report of failed decoding in the same format as [Encoding4b6bGeoff]
+     */
+    private fun diagnostics(raw: ByteArray): String {
+        val errorMessageBuilder = StringBuilder()
+        errorMessageBuilder.append("Input data: " + shortHexString(raw) + "\n")
+        if ((raw.size % 2) != 0) errorMessageBuilder.append("Warn: odd number of bytes.\n")
+        var x = 0
+        var availableBits = 0
+        var codingErrors = 0
+        for (i in raw.indices) {
+            x = (x shl 8) + (raw[i].toInt() and 0xff)
+            availableBits += 8
+            if (availableBits >= 12) {
+                val highCode = (x shr (availableBits - 6)) and 0x3F
+                val lowCode = (x shr (availableBits - 12)) and 0x3F
+                if (DECODE[highCode] < 0 || DECODE[lowCode] < 0) {
+                    errorMessageBuilder.append(
+                        String.format(
+                            Locale.ENGLISH,
+                            "decode4b6b: i=%d,x=%08X, coding error: highcode=0x%02X, lowcode=0x%02X, %d bits remaining.\n",
+                            i, x, highCode, lowCode, availableBits
+                        )
+                    )
+                    codingErrors++
+                }
+                availableBits -= 12
+                x = x and (0x0000ffff shr (16 - availableBits))
+            }
+        }
+        if (availableBits != 0 && (availableBits != 4 || x != 0x05)) {
+            errorMessageBuilder.append("decode4b6b: failed clean decode -- extra bits available (not marker)($availableBits)\n")
+            codingErrors++
+        }
+        errorMessageBuilder.append("decode4b6b: $codingErrors coding errors encountered.")
+        return errorMessageBuilder.toString()
+    }
+
+    companion object {
+
+        /** Both 6 bit codes of a byte as 12 bit value */
+        private val ENCODE = IntArray(256) { (encode4b6bList[it shr 4].toInt() shl 6) or encode4b6bList[it and 0x0f].toInt() }
+
+        /** 4 bit value of a 6 bit code or -1 for invalid code */
+        private val DECODE = IntArray(64) { -1 }.also { table -> encode4b6bList.forEachIndexed { value, code -> table[code.toInt()] = value } }
+
+        fun encodedSize(length: Int): Int = (3 * length + 1) / 2
+
+        fun decodedSize(length: Int): Int = length * 2 / 3
+    }
+}
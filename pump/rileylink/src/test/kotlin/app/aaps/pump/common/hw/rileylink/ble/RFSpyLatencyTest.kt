@@ -0,0 +1,44 @@
+package app.aaps.pump.common.hw.rileylink.ble
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class RFSpyLatencyTest {
+
+    private val sut = RFSpyLatency()
+
+    @Test
+    fun minimalAllowanceBeforeMeasurement() {
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MIN_ALLOWANCE_MS)
+        // radio commands are not measured
+        sut.onResponse(null)
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MIN_ALLOWANCE_MS)
+    }
+
+    @Test
+    fun fastLinkKeepsMinimalAllowance() {
+        repeat(20) { sut.onResponse(40) }
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MIN_ALLOWANCE_MS)
+    }
+
+    @Test
+    fun slowLinkRaisesAllowance() {
+        repeat(20) { sut.onResponse(if (it % 2 == 0) 6000 else 9000) }
+        assertThat(sut.allowanceMs()).isGreaterThan(RFSpyLatency.MIN_ALLOWANCE_MS)
+        assertThat(sut.allowanceMs()).isLessThan(RFSpyLatency.MAX_ALLOWANCE_MS)
+        // and back when link recovers
+        repeat(100) { sut.onResponse(40) }
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MIN_ALLOWANCE_MS)
+    }
+
+    @Test
+    fun missingResponseBacksOff() {
+        sut.onMissingResponse()
+        assertThat(sut.allowanceMs()).isEqualTo(2 * RFSpyLatency.MIN_ALLOWANCE_MS)
+        repeat(5) { sut.onMissingResponse() }
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MAX_ALLOWANCE_MS)
+        // any response resets back off
+        sut.onResponse(null)
+        assertThat(sut.allowanceMs()).isEqualTo(RFSpyLatency.MIN_ALLOWANCE_MS)
+    }
+}
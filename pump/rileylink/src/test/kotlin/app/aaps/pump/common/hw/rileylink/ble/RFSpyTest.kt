@@ -1,12 +1,122 @@
 package app.aaps.pump.common.hw.rileylink.ble
 
+import app.aaps.core.interfaces.resources.ResourceHelper
+import app.aaps.core.keys.interfaces.Preferences
+import app.aaps.pump.common.hw.rileylink.RileyLinkUtil
+import app.aaps.pump.common.hw.rileylink.ble.data.GattAttributes
+import app.aaps.pump.common.hw.rileylink.ble.data.RadioPacket
+import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkCommandType
+import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkEncodingType
 import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkFirmwareVersionBase
+import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkTargetFrequency
+import app.aaps.pump.common.hw.rileylink.ble.operations.BLECommOperationResult
+import app.aaps.pump.common.hw.rileylink.service.RileyLinkServiceData
 import app.aaps.shared.tests.TestBase
 import com.google.common.truth.Truth
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.whenever
+import java.util.UUID
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 @Suppress("SpellCheckingInspection") class RFSpyTest : TestBase() {
 
+    @Mock lateinit var rh: ResourceHelper
+    @Mock lateinit var preferences: Preferences
+    @Mock lateinit var rileyLinkBle: RileyLinkBLE
+
+    private lateinit var rileyLink: SimulatedRileyLink
+    private lateinit var rileyLinkUtil: RileyLinkUtil
+    private lateinit var sut: RFSpy
+
+    @BeforeEach fun prepare() {
+        rileyLink = SimulatedRileyLink(bleLatencyMs = 1, radioMs = 5)
+        rileyLinkUtil = RileyLinkUtil(aapsLogger)
+        val rileyLinkServiceData = RileyLinkServiceData(aapsLogger, rileyLinkUtil, rxBus)
+        rileyLinkServiceData.rileyLinkTargetFrequency = RileyLinkTargetFrequency.MedtronicUS
+        sut = RFSpy(aapsLogger, rh, preferences, rxBus, rileyLinkBle, rileyLinkServiceData, rileyLinkUtil)
+    }
+
+    @AfterEach fun stop() {
+        sut.reader.stop()
+        rileyLink.close()
+    }
+
+    @Test fun commandsGetTheirOwnResponses() {
+        sut.startReader()
+        sut.setBaseFrequency(916.55)
+        Truth.assertThat(rileyLink.commands.getAndSet(0)).isEqualTo(8)
+        Truth.assertThat(rileyLinkUtil.encoding).isEqualTo(RileyLinkEncodingType.FourByteSixByteLocal)
+
+        // frames of history page
+        repeat(16) {
+            val response = sut.transmitThenReceive(RadioPacket(rileyLinkUtil, byteArrayOf(0xa7.toByte(), 0x12, 0x34, 0x56, 0x06, 0x00)), 0, 0, 0, 0, 500, 0)
+            Truth.assertThat(response?.looksLikeRadioPacket()).isTrue()
+        }
+        Truth.assertThat(rileyLink.commands.get()).isEqualTo(16)
+        Truth.assertThat(sut.notConnectedCount).isEqualTo(0)
+    }
+
+    @Test fun sendAndListenTimeIncludesAirtime() {
+        rileyLinkUtil.encoding = RileyLinkEncodingType.FourByteSixByteLocal
+        val wakeUp = RadioPacket(rileyLinkUtil, byteArrayOf(0xa7.toByte(), 0x12, 0x34, 0x56, 0x8d.toByte(), 0x00))
+        // Medtronic wake up: 201 transmissions with no delay, each at least 26 bytes of preamble and sync word at 16384 symbols/s
+        Truth.assertThat(sut.sendAndListenTimeMs(wakeUp, 200, 0, 25000, 0, 0)).isAtLeast(25000 + 201 * 13)
+        Truth.assertThat(sut.sendAndListenTimeMs(wakeUp, 200, 0, 25000, 0, 0)).isAtMost(25000 + 201 * 25)
+
+        rileyLinkUtil.encoding = RileyLinkEncodingType.Manchester
+        val podMessage = RadioPacket(rileyLinkUtil, ByteArray(10))
+        // (26 + 10 * 2) bytes at 40625 symbols/s is 9.06 ms, packet sent again on each of 2 retries
+        Truth.assertThat(sut.sendAndListenTimeMs(podMessage, 0, 0, 100, 2, 1000)).isEqualTo(3 * 10 + 1000 + 3 * 100)
+        Truth.assertThat(sut.sendAndListenTimeMs(podMessage, 3, 20, 100, 0, 0)).isEqualTo(4 * 10 + 3 * 20 + 100)
+    }
+
+    /**
+     * RileyLink stand-in behind mocked [RileyLinkBLE]
+     *
+     * Write is acknowledged after [bleLatencyMs], response count notification follows after radio time
+     * of the command and reading of response takes [bleLatencyMs] again.
+     */
+    private inner class SimulatedRileyLink(private val bleLatencyMs: Long, private val radioMs: Long) {
+
+        val commands = AtomicInteger()
+        private val radio = Executors.newSingleThreadScheduledExecutor()
+        private var notifier: Runnable? = null
+        @Volatile private var response = byteArrayOf()
+
+        init {
+            doAnswer { notifier = it.getArgument(0); null }.whenever(rileyLinkBle).registerRadioResponseCountNotification(any())
+            whenever(rileyLinkBle.writeCharacteristicBlocking(any(), any(), any())).thenAnswer {
+                val command = it.getArgument<ByteArray>(2)
+                Thread.sleep(bleLatencyMs)
+                commands.incrementAndGet()
+                // command is prepended by length
+                val sendAndListen = command[1] == RileyLinkCommandType.SendAndListen.code
+                response = if (sendAndListen) byteArrayOf(0x52, 0x01, 0xa9.toByte(), 0x6c, 0x72, 0x65) else byteArrayOf(0xdd.toByte())
+                radio.schedule({ notifier?.run() }, if (sendAndListen) radioMs else 1, TimeUnit.MILLISECONDS)
+                BLECommOperationResult().apply { resultCode = BLECommOperationResult.RESULT_SUCCESS }
+            }
+            whenever(rileyLinkBle.readCharacteristicBlocking(any(), any())).thenAnswer {
+                Thread.sleep(bleLatencyMs)
+                val battery = it.getArgument<UUID>(1) == UUID.fromString(GattAttributes.CHARA_BATTERY_LEVEL)
+                BLECommOperationResult().apply {
+                    resultCode = BLECommOperationResult.RESULT_SUCCESS
+                    value = if (battery) byteArrayOf(90) else response
+                }
+            }
+        }
+
+        fun close() {
+            radio.shutdownNow()
+        }
+    }
+
     @Test fun testGetFirmwareVersion() {
         Truth.assertThat(RFSpy.getFirmwareVersion(aapsLogger, "", "subg_rfspy 1.0")).isEqualTo(RileyLinkFirmwareVersionBase.Version_1_0)
         Truth.assertThat(RFSpy.getFirmwareVersion(aapsLogger, "", "subg_rfspy 1.1")).isEqualTo(RileyLinkFirmwareVersionBase.Version_1_x)
@@ -0,0 +1,98 @@
+package app.aaps.pump.common.hw.rileylink.ble.data.encoding
+
+import app.aaps.core.utils.pump.ByteUtil
+import app.aaps.pump.common.hw.rileylink.ble.RileyLinkCommunicationException
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class Encoding4b6bTableTest : TestBase() {
+
+    private lateinit var sut: Encoding4b6bTable
+    private lateinit var reference: Encoding4b6bGeoff
+
+    @BeforeEach
+    fun prepare() {
+        sut = Encoding4b6bTable(aapsLogger)
+        reference = Encoding4b6bGeoff(aapsLogger)
+    }
+
+    @Test
+    fun knownValues() {
+        assertThat(sut.encode4b6b(byteArrayOf(0xa7.toByte()))).isEqualTo(byteArrayOf(0xa9.toByte(), 0x65))
+        assertThat(sut.encode4b6b(byteArrayOf(0xa7.toByte(), 0x12))).isEqualTo(byteArrayOf(0xa9.toByte(), 0x6c, 0x72))
+        assertThat(sut.encode4b6b(byteArrayOf(0xa7.toByte(), 0x12, 0xa7.toByte()))).isEqualTo(byteArrayOf(0xa9.toByte(), 0x6c, 0x72, 0xa9.toByte(), 0x65))
+        assertThat(sut.decode4b6b(byteArrayOf(0xa9.toByte(), 0x65))).isEqualTo(byteArrayOf(0xa7.toByte()))
+        assertThat(sut.decode4b6b(byteArrayOf(0xa9.toByte(), 0x6c, 0x72))).isEqualTo(byteArrayOf(0xa7.toByte(), 0x12))
+        assertThat(sut.encode4b6b(byteArrayOf())).isEmpty()
+        assertThat(sut.decode4b6b(byteArrayOf())).isEmpty()
+    }
+
+    @Test
+    fun sameResultAsReference() {
+        val random = Random(4)
+        for (size in 0..150) {
+            val data = random.nextBytes(size)
+            val encoded = sut.encode4b6b(data)
+            assertThat(encoded).isEqualTo(reference.encode4b6b(data))
+            assertThat(sut.decode4b6b(encoded)).isEqualTo(data)
+            assertThat(sut.decode4b6b(encoded)).isEqualTo(reference.decode4b6b(encoded))
+        }
+    }
+
+    @Test
+    fun decodeIntoBuffer() {
+        val data = ByteUtil.createByteArrayFromHexString(HISTORY_PAGE)
+        val encoded = ByteArray(Encoding4b6bTable.encodedSize(FRAME_SIZE) + 2)
+        val decoded = ByteArray(FRAME_SIZE + 1)
+        val length = sut.encode(data, FRAME_SIZE, encoded, 2)
+        assertThat(length).isEqualTo(Encoding4b6bTable.encodedSize(FRAME_SIZE))
+        assertThat(sut.decode(encoded, 2, length, decoded, 1)).isEqualTo(FRAME_SIZE)
+        assertThat(decoded.copyOfRange(1, FRAME_SIZE + 1)).isEqualTo(data.copyOfRange(0, FRAME_SIZE))
+    }
+
+    @Test
+    fun invalidCodeIsReported() {
+        val encoded = sut.encode4b6b(byteArrayOf(0xa7.toByte(), 0x12))
+        // 0x00 is not valid 6 bit code
+        encoded[1] = 0
+        val expected = assertThrows(RileyLinkCommunicationException::class.java) { reference.decode4b6b(encoded) }
+        val exception = assertThrows(RileyLinkCommunicationException::class.java) { sut.decode4b6b(encoded) }
+        assertThat(exception.extendedErrorText).isEqualTo(expected.extendedErrorText)
+    }
+
+    @Test
+    fun missingMarkerIsReported() {
+        val encoded = byteArrayOf(0xa9.toByte(), 0x6f)
+        val expected = assertThrows(RileyLinkCommunicationException::class.java) { reference.decode4b6b(encoded) }
+        val exception = assertThrows(RileyLinkCommunicationException::class.java) { sut.decode4b6b(encoded) }
+        assertThat(exception.extendedErrorText).isEqualTo(expected.extendedErrorText)
+    }
+
+    @Test
+    fun historyPageMatchesReference() {
+        val page = ByteUtil.createByteArrayFromHexString(HISTORY_PAGE)
+        // page is transferred in frames of 64 bytes and frame number
+        val frames = (0 until page.size / FRAME_SIZE).map { frame ->
+            byteArrayOf((frame + 1).toByte()) + page.copyOfRange(frame * FRAME_SIZE, (frame + 1) * FRAME_SIZE)
+        }
+        assertThat(frames).isNotEmpty()
+        frames.forEach { frame ->
+            val encoded = reference.encode4b6b(frame)
+            assertThat(sut.encode4b6b(frame)).isEqualTo(encoded)
+            assertThat(sut.decode4b6b(encoded)).isEqualTo(reference.decode4b6b(encoded))
+        }
+    }
+
+    companion object {
+
+        private const val FRAME_SIZE = 64
+
+        // recorded page of Medtronic 515 history
+        private const val HISTORY_PAGE =
+            "16 00 08 D0 0E 51 15 33 60 0A D0 0E 51 15 00 16 01 0A D0 0E 51 15 33 00 07 DF 0E 51 15 00 16 00 07 DF 0E 51 15 33 6C 09 DF 0E 51 15 00 16 01 09 DF 0E 51 15 33 00 25 ED 0E 51 15 00 16 00 25 ED 0E 51 15 33 2C 27 ED 0E 51 15 00 16 01 27 ED 0E 51 15 33 00 07 F4 0E 51 15 00 16 00 07 F4 0E 51 15 33 00 09 F4 0E 51 15 00 16 01 09 F4 0E 51 15 33 2C 25 D5 0F 51 15 00 16 01 25 D5 0F 51 15 01 3C 3C 00 30 D5 4F 51 15 33 2C 25 F7 0F 51 15 00 16 01 25 F7 0F 51 15 33 00 07 C6 10 51 15 00 16 00 07 C6 10 51 15 33 30 09 C6 10 51 15 00 16 01 09 C6 10 51 15 33 30 25 E8 10 51 15 00 16 01 25 E8 10 51 15 33 30 24 CF 11 51 15 00 16 01 24 CF 11 51 15 33 00 23 E4 11 51 15 00 16 00 23 E4 11 51 15 33 3C 25 E4 11 51 15 00 16 01 25 E4 11 51 15 33 00 23 E8 11 51 15 00 16 00 23 E8 11 51 15 33 4A 25 E8 11 51 15 00 16 01 25 E8 11 51 15 33 00 19 EE 11 51 15 00 16 00 19 EE 11 51 15 33 30 1B EE 11 51 15 00 16 01 1B EE 11 51 15 33 00 23 F2 11 51 15 00 16 00 23 F2 11 51 15 33 3E 25 F2 11 51 15 00 16 01 25 F2 11 51 15 33 00 24 C0 12 51 15 00 16 00 24 C0 12 51 15 33 5E 25 C0 12 51 15 00 16 01 25 C0 12 51 15 33 00 23 CF 12 51 15 00 16 00 23 CF 12 51 15 33 64 25 CF 12 51 15 00 16 01 25 CF 12 51 15 33 00 23 D9 12 51 15 00 16 00 23 D9 12 51 15 33 6A 25 D9 12 51 15 00 16 01 25 D9 12 51 15 33 00 23 E9 12 51 15 00 16 00 23 E9 12 51 15 33 30 25 E9 12 51 15 00 16 01 25 E9 12 51 15 01 16 16 00 10 C2 53 51 15 33 30 24 CF 13 51 15 00 16 01 24 CF 13 51 15 33 30 04 EE 13 51 15 00 16 01 04 EE 13 51 15 01 14 14 00 3B F0 53 51 15 33 00 22 C0 14 51 15 00 16 00 22 C0 14 51 15 33 22 24 C0 14 51 15 00 16 01 24 C0 14 51 15 33 22 03 DF 14 51 15 00 16 01 03 DF 14 51 15 1E 00 37 E1 14 11 15 1F 00 01 EE 14 11 15 33 22 03 C6 15 51 15 00 16 01 03 C6 15 51 15 33 00 20 D9 15 51 15 00 16 00 20 D9 15 51 15 33 34 22 D9 15 51 15 00 16 01 22 D9 15 51 15 39 14 0E DF 35 71 15 83 92 40 01 0B 0B 00 37 E0 55 51 15 33 00 21 E3 15 51 15 00 16 00 21 E3 15 51 15 33 22 22 E3 15 51 15 00 16 01 22 E3 15 51 15 33 00 21 E8 15 51 15 00 16 00 21 E8 15 51 15 33 30 23 E8 15 51 15 00 16 01 23 E8 15 51 15 33 00 20 ED 15 51 15 00 16 00 20 ED 15 51 15 33 22 22 ED 15 51 15 00 16 01 22 ED 15 51 15 33 00 03 F8 15 51 15 00 16 00 03 F8 15 51 15 33 32 05 F8 15 51 15 00 16 01 05 F8 15 51 15 33 00 01 CB 16 51 15 00 16 00 01 CB 16 51 15 33 20 03 CB 16 51 15 00 16 01 03 CB 16 51 15 33 2A 20 ED 16 51 15 00 16 01 20 ED 16 51 15 33 00 02 F8 16 51 15 00 16 00 02 F8 16 51 15 33 2C 04 F8 16 51 15 00 16 01 04 F8 16 51 15 33 00 1F CA 17 51 15 00 16 00 1F CA 17 51 15 33 34 21 CA 17 51 15 00 16 01 21 CA 17 51 15 33 00 1F D4 17 51 15 00 16 00 1F D4 17 51 15 33 38 21 D4 17 51 15 00 16 01 21 D4 17 51 15 33 00 15 EE 17 51 15 00 16 00 15 EE 17 51 15 33 42 17 EE 17 51 15 00 16 01 17 EE 17 51 15 07 00 00 08 0A 31 95 6C 31 95 05 00 A1 A1 A1 01 00 00 08 0A 04 8E 39 03 7C 2B 00 00 03 7C 2B 00 00 00 00 00 00 03 7C 64 07 00 00 00 07 33 00 05 C1 00 52 15 00 16 00 05 C1 00 52 15 33 50 07 C1 00 52 15 00 16 01 07 C1 00 52 15 33 00 01 CB 00 52 15 00 16 00 01 CB 00 52 15 33 26 03 CB 00 52 15 00 16 01 03 CB 00 52 15 33 00 1E DE 00 52 15 00 00 00 8F 0E"
+    }
+}
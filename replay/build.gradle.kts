@@ -0,0 +1,40 @@
+plugins {
+    alias(libs.plugins.android.library)
+    id("kotlin-android")
+    id("android-module-dependencies")
+    id("test-module-dependencies")
+}
+
+android {
+    namespace = "app.aaps.replay"
+
+    // Loop inputs recorded for ReplayApsResultsTest are replayed on the JVM too
+    sourceSets["test"].resources.srcDir("$rootDir/app/src/androidTest/assets")
+}
+
+dependencies {
+    testImplementation(project(":core:data"))
+    testImplementation(project(":core:interfaces"))
+    testImplementation(project(":core:keys"))
+    testImplementation(project(":core:objects"))
+    testImplementation(project(":core:utils"))
+    testImplementation(project(":implementation"))
+    testImplementation(project(":plugins:aps"))
+    testImplementation(project(":plugins:insulin"))
+    testImplementation(project(":plugins:main"))
+    testImplementation(project(":plugins:sensitivity"))
+    testImplementation(project(":shared:impl"))
+    testImplementation(project(":shared:tests"))
+}
+
+tasks.withType<Test>().configureEach {
+    // Benchmarks are left out of the regular unit test run
+    // ./gradlew :replay:testFullDebugUnitTest -Preplay.benchmark -Preplay.budget.determineBasal.p50Us=800
+    useJUnitPlatform {
+        if (!project.hasProperty("replay.benchmark")) excludeTags("benchmark")
+    }
+    project.properties.filterKeys { it.startsWith("replay.") }.forEach { (key, value) -> systemProperty(key, value.toString()) }
+    // Every test class runs in a fresh JVM, one at a time, so JIT and heap state left by one don't skew latency of another
+    forkEvery = 1
+    maxParallelForks = 1
+}
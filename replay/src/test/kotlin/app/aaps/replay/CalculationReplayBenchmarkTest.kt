@@ -0,0 +1,175 @@
+package app.aaps.replay
+
+import app.aaps.core.data.configuration.Constants
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.aps.AutosensResult
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.ui.UiInteraction
+import app.aaps.core.interfaces.workflow.CalculationWorkflow
+import app.aaps.core.keys.DoubleKey
+import app.aaps.core.utils.MidnightUtils
+import app.aaps.implementation.iob.AutosensDataObject
+import app.aaps.plugins.aps.openAPSSMB.DetermineBasalSMB
+import app.aaps.plugins.insulin.InsulinOrefRapidActingPlugin
+import app.aaps.plugins.main.iob.iobCobCalculator.IobCobCalculatorPlugin
+import app.aaps.plugins.main.iob.iobCobCalculator.data.AutosensDataStoreObject
+import app.aaps.plugins.sensitivity.SensitivityOref1Plugin
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.kotlin.whenever
+import kotlin.math.abs
+
+/**
+ * Replays loop inputs through the calculation hot path on the JVM and reports latency and allocation per stage:
+ *  - bucketing: AutosensDataStoreObject.createBucketedData for 5 min and 1 min CGM data
+ *  - iob: IobCobCalculatorPlugin IOB for every bucket of the autosens window (cold cache)
+ *  - iobForSmb: IobCobCalculatorPlugin.calculateIobArrayForSMB of one loop cycle
+ *  - sensitivity: SensitivityOref1Plugin.detectSensitivity over 24h of autosens data
+ *  - determineBasal: DetermineBasalSMB for every recorded SMB and DynamicISF result, outputs compared to recorded ones
+ *
+ * Tagged `benchmark`, so it runs only with `-Preplay.benchmark`. Output correctness is covered by [DetermineBasalReplayTest].
+ * Set `replay.budget.<stage>.p50Us` / `replay.budget.<stage>.allocKb` gradle properties to fail on regressions.
+ */
+@Tag("benchmark")
+class CalculationReplayBenchmarkTest : TestBaseWithProfile() {
+
+    @Mock lateinit var overviewData: OverviewData
+    @Mock lateinit var calculationWorkflow: CalculationWorkflow
+    @Mock lateinit var uiInteraction: UiInteraction
+
+    private val logger = SilentLogger()
+    private val benchmark = StageBenchmark()
+    private val results = mutableListOf<StageBenchmark.Result>()
+
+    private lateinit var corpus: LoopCorpus
+    private lateinit var iobCobCalculator: IobCobCalculatorPlugin
+    private lateinit var sensitivityOref1Plugin: SensitivityOref1Plugin
+    private lateinit var determineBasalSMB: DetermineBasalSMB
+
+    @BeforeEach
+    fun prepare() {
+        val insulin = InsulinOrefRapidActingPlugin(rh, profileFunction, rxBus, logger, config, hardLimits, uiInteraction)
+        whenever(activePlugin.activeInsulin).thenReturn(insulin)
+        whenever(profileFunction.getProfile()).thenReturn(validProfile)
+        whenever(profileFunction.getProfile(anyLong())).thenReturn(validProfile)
+        whenever(preferences.get(DoubleKey.ApsAmaBolusSnoozeDivisor)).thenReturn(2.0)
+        whenever(preferences.get(DoubleKey.AutosensMin)).thenReturn(0.7)
+        whenever(preferences.get(DoubleKey.AutosensMax)).thenReturn(1.2)
+
+        corpus = LoopCorpus(end = now)
+        val persistenceLayer = corpus.persistenceLayer()
+        iobCobCalculator = IobCobCalculatorPlugin(
+            logger, aapsSchedulers, rxBus, preferences, rh, profileFunction, activePlugin, fabricPrivacy, dateUtil,
+            persistenceLayer, overviewData, calculationWorkflow, decimalFormatter, processedTbrEbData
+        )
+        sensitivityOref1Plugin = SensitivityOref1Plugin(logger, rh, preferences, profileFunction, dateUtil, persistenceLayer)
+        determineBasalSMB = DetermineBasalSMB(profileUtil, fabricPrivacy)
+    }
+
+    @AfterEach
+    fun report() {
+        results.forEach { println("REPLAY $it") }
+        val violations = results.flatMap { it.budgetViolations() }
+        assertWithMessage("Budget exceeded").that(violations).isEmpty()
+    }
+
+    @Test
+    fun bucketing() {
+        val ads = AutosensDataStoreObject().also { it.bgReadings = corpus.glucoseValues }
+        results += benchmark.run("bucketing", 1) {
+            ads.createBucketedData(logger, dateUtil)
+            ads.bucketedData
+        }
+        assertThat(ads.bucketedData!!.size).isAtLeast(corpus.glucoseValues.size - 2)
+
+        val oneMinute = LoopCorpus(end = now, cgmIntervalMinutes = 1)
+        val adsOneMinute = AutosensDataStoreObject().also { it.bgReadings = oneMinute.glucoseValues }
+        results += benchmark.run("bucketing1min", 1) {
+            adsOneMinute.createBucketedData(logger, dateUtil)
+            adsOneMinute.bucketedData
+        }
+        assertThat(adsOneMinute.lastUsed5minCalculation).isFalse()
+        assertThat(adsOneMinute.bucketedData!!.size).isAtLeast(oneMinute.glucoseValues.size / 5 - 2)
+    }
+
+    @Test
+    fun iob() {
+        val ads = bucketedStore()
+        val times = ads.bucketedData!!.map { ads.roundUpTime(it.timestamp) }
+        results += benchmark.run("iob", times.size, prepare = { iobCobCalculator.clearCache() }) {
+            times.sumOf { iobCobCalculator.calculateFromTreatmentsAndTemps(it, validProfile).iob }
+        }
+        results += benchmark.run("iobForSmb", 1) {
+            iobCobCalculator.calculateIobArrayForSMB(AutosensResult(), false, 0, false)
+        }
+        assertThat(iobCobCalculator.calculateIobArrayForSMB(AutosensResult(), false, 0, false)).hasLength(48)
+    }
+
+    @Test
+    fun sensitivity() {
+        val ads = bucketedStore()
+        fillAutosensData(ads, validProfile)
+        val toTime = ads.roundUpTime(ads.bucketedData!![0].timestamp)
+        val fromTime = toTime - T.hours(24).msecs()
+        results += benchmark.run("sensitivity", 1) {
+            sensitivityOref1Plugin.detectSensitivity(ads, fromTime, toTime)
+        }
+        val ratio = sensitivityOref1Plugin.detectSensitivity(ads, fromTime, toTime).ratio
+        assertThat(ratio).isAtLeast(0.7)
+        assertThat(ratio).isAtMost(1.2)
+    }
+
+    @Test
+    fun determineBasal() {
+        val inputs = RecordedLoopInput.load(dateUtil)
+        assertThat(inputs).isNotEmpty()
+        results += benchmark.run("determineBasal", inputs.size) {
+            inputs.map { determineBasalSMB.determine(it) }
+        }
+        // measured code must still give the recorded results
+        val differences = inputs.filter { it.comparable }.flatMap { it.differences(determineBasalSMB.determine(it)) }
+        assertWithMessage("Replayed output differs").that(differences).isEmpty()
+    }
+
+    private fun bucketedStore(): AutosensDataStoreObject =
+        AutosensDataStoreObject().also {
+            it.bgReadings = corpus.glucoseValues
+            it.createBucketedData(logger, dateUtil)
+        }
+
+    /**
+     * Deviations as IobCobOref1Stage computes them for a history without carbs absorption,
+     * enough to give detectSensitivity a realistic table.
+     */
+    private fun fillAutosensData(ads: AutosensDataStoreObject, profile: Profile) {
+        val bucketedData = ads.bucketedData!!
+        for (i in bucketedData.size - 4 downTo 0) {
+            val bgTime = ads.roundUpTime(bucketedData[i].timestamp)
+            val bg = bucketedData[i].recalculated
+            val sens = profile.getIsfMgdlTimeFromMidnight(MidnightUtils.secondsFromMidnight(bgTime))
+            val bgi = -iobCobCalculator.calculateFromTreatmentsAndTemps(bgTime, profile).activity * sens * 5
+            val deviation = bg - bucketedData[i + 1].recalculated - bgi
+            ads.autosensDataTable.put(bgTime, AutosensDataObject(logger, preferences, dateUtil).also {
+                it.time = bgTime
+                it.bg = bg
+                it.sens = sens
+                it.bgi = bgi
+                it.deviation = deviation
+                it.validDeviation = true
+                it.pastSensitivity = when {
+                    abs(deviation) < Constants.DEVIATION_TO_BE_EQUAL -> "="
+                    deviation > 0                                    -> "+"
+                    else                                             -> "-"
+                }
+            })
+        }
+    }
+}
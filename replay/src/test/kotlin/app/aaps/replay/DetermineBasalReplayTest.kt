@@ -0,0 +1,45 @@
+package app.aaps.replay
+
+import app.aaps.plugins.aps.openAPSSMB.DetermineBasalSMB
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+/**
+ * Every recorded SMB and DynamicISF loop input replayed through [DetermineBasalSMB] must give the recorded output,
+ * predictions included. Singleton prediction buffers are reused between calls, so the inputs run in one sequence
+ * and then once more in reverse order.
+ */
+class DetermineBasalReplayTest : TestBaseWithProfile() {
+
+    private lateinit var determineBasalSMB: DetermineBasalSMB
+
+    @BeforeEach
+    fun prepare() {
+        determineBasalSMB = DetermineBasalSMB(profileUtil, fabricPrivacy)
+    }
+
+    @Test
+    fun outputsMatchRecordedResults() {
+        val inputs = RecordedLoopInput.load(dateUtil).filter { it.comparable }
+        assertThat(inputs).isNotEmpty()
+        val differences = (inputs + inputs.reversed()).flatMap { it.differences(determineBasalSMB.determine(it)) }
+        assertWithMessage("Replayed output differs").that(differences).isEmpty()
+    }
+}
+
+internal fun DetermineBasalSMB.determine(input: RecordedLoopInput) =
+    determine_basal(
+        glucose_status = input.glucoseStatus,
+        currenttemp = input.currentTemp,
+        iob_data_array = input.iobData,
+        profile = input.profile,
+        autosens_data = input.autosensData,
+        meal_data = input.mealData,
+        microBolusAllowed = input.microBolusAllowed,
+        currentTime = input.currentTime,
+        flatBGsDetected = input.flatBGsDetected,
+        dynIsfMode = input.dynIsfMode
+    )
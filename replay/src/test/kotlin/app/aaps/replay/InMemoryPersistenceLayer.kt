@@ -0,0 +1,60 @@
+package app.aaps.replay
+
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.CA
+import app.aaps.core.data.model.EB
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.PS
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.model.TE
+import app.aaps.core.interfaces.db.PersistenceLayer
+import io.reactivex.rxjava3.core.Single
+import org.mockito.Mockito
+
+/**
+ * [PersistenceLayer] answering the queries of the calculation pipeline from lists in memory.
+ *
+ * Only reads used by IobCobCalculatorPlugin and SensitivityOref1Plugin are implemented, everything else
+ * goes to a mock. Queries are plain calls, so the fake doesn't add mocking overhead to measured code.
+ */
+class InMemoryPersistenceLayer(
+    private val glucoseValues: List<GV>,
+    private val boluses: List<BS>,
+    private val carbs: List<CA>,
+    private val temporaryBasals: List<TB>,
+    private val therapyEvents: List<TE> = emptyList(),
+    private val profileSwitches: List<PS> = emptyList()
+) : PersistenceLayer by Mockito.mock(PersistenceLayer::class.java) {
+
+    private fun <T> List<T>.ordered(ascending: Boolean, timestamp: (T) -> Long): List<T> =
+        if (ascending) sortedBy(timestamp) else sortedByDescending(timestamp)
+
+    override fun getNewestBolus(): BS? = boluses.filter { it.isValid }.maxByOrNull { it.timestamp }
+
+    override fun getBolusesFromTime(startTime: Long, ascending: Boolean): Single<List<BS>> =
+        Single.just(boluses.filter { it.isValid && it.timestamp >= startTime }.ordered(ascending) { it.timestamp })
+
+    override fun getBolusesFromTimeToTime(startTime: Long, endTime: Long, ascending: Boolean): List<BS> =
+        boluses.filter { it.isValid && it.timestamp >= startTime && it.timestamp <= endTime }.ordered(ascending) { it.timestamp }
+
+    override fun getCarbsFromTimeExpanded(startTime: Long, ascending: Boolean): List<CA> =
+        carbs.filter { it.isValid && it.timestamp >= startTime }.ordered(ascending) { it.timestamp }
+
+    override fun getCarbsFromTimeToTimeExpanded(startTime: Long, endTime: Long, ascending: Boolean): List<CA> =
+        carbs.filter { it.isValid && it.timestamp >= startTime && it.timestamp <= endTime }.ordered(ascending) { it.timestamp }
+
+    override fun getBgReadingsDataFromTimeToTime(start: Long, end: Long, ascending: Boolean): List<GV> =
+        glucoseValues.filter { it.isValid && it.timestamp >= start && it.timestamp <= end }.ordered(ascending) { it.timestamp }
+
+    // Copies, because the calculation shortens running temps and would change the stored records
+    override fun getTemporaryBasalsStartingFromTimeToTime(startTime: Long, endTime: Long, ascending: Boolean): List<TB> =
+        temporaryBasals.filter { it.isValid && it.timestamp >= startTime && it.timestamp <= endTime }.map { it.copy() }.ordered(ascending) { it.timestamp }
+
+    override fun getExtendedBolusesStartingFromTimeToTime(startTime: Long, endTime: Long, ascending: Boolean): List<EB> = emptyList()
+
+    override fun getTherapyEventDataFromTime(timestamp: Long, type: TE.Type, ascending: Boolean): List<TE> =
+        therapyEvents.filter { it.isValid && it.type == type && it.timestamp >= timestamp }.ordered(ascending) { it.timestamp }
+
+    override fun getProfileSwitchesFromTime(startTime: Long, ascending: Boolean): Single<List<PS>> =
+        Single.just(profileSwitches.filter { it.isValid && it.timestamp >= startTime }.ordered(ascending) { it.timestamp })
+}
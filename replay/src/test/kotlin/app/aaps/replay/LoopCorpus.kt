@@ -0,0 +1,97 @@
+package app.aaps.replay
+
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.CA
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import kotlin.math.PI
+import kotlin.math.exp
+import kotlin.math.roundToLong
+import kotlin.math.sin
+import kotlin.random.Random
+
+/**
+ * Deterministic history of a looping user ending at [end]: CGM readings, meals with carbs and bolus,
+ * SMBs and a temporary basal every 30 minutes.
+ *
+ * Recorded APS results contain only the inputs of determine_basal, so history needed by the stages
+ * before it (bucketing, IOB, autosens) is generated with the same shape as a real looping day.
+ *
+ * @param hours length of the history (autosens looks 24h back, IOB DIA hours before that)
+ * @param cgmIntervalMinutes 5 for Dexcom-like data, 1 for Libre-like data which must be recalculated to 5 min buckets
+ */
+class LoopCorpus(
+    end: Long,
+    hours: Int = 30,
+    cgmIntervalMinutes: Int = 5,
+    seed: Int = 29
+) {
+
+    val start = end - T.hours(hours.toLong()).msecs()
+    val glucoseValues: List<GV> // newest first, as in AutosensDataStore
+    val boluses = mutableListOf<BS>()
+    val carbs = mutableListOf<CA>()
+    val temporaryBasals = mutableListOf<TB>()
+
+    init {
+        val random = Random(seed)
+
+        // meals every 4-6 hours
+        val meals = mutableListOf<Pair<Long, Double>>()
+        var time = start + T.hours(1).msecs()
+        while (time < end - T.hours(1).msecs()) {
+            val amount = 20.0 + random.nextInt(60)
+            meals.add(time to amount)
+            carbs.add(CA(timestamp = time, amount = amount, duration = 0))
+            boluses.add(BS(timestamp = time + random.nextLong(-300_000, 300_000), amount = amount / 10.0, type = BS.Type.NORMAL))
+            time += T.mins(240L + random.nextInt(120)).msecs()
+        }
+
+        // SMBs every 15-45 minutes
+        time = start
+        while (time < end) {
+            boluses.add(BS(timestamp = time, amount = 0.1 * (1 + random.nextInt(5)), type = BS.Type.SMB))
+            time += T.mins(15L + random.nextInt(30)).msecs()
+        }
+        boluses.sortBy { it.timestamp }
+
+        // TBRs every 30 minutes, the last one finished before end
+        time = start
+        while (time + T.mins(30).msecs() <= end) {
+            temporaryBasals.add(
+                TB(timestamp = time, type = TB.Type.NORMAL, isAbsolute = true, rate = 0.05 * random.nextInt(40), duration = T.mins(30).msecs())
+            )
+            time += T.mins(30).msecs()
+        }
+
+        // glucose: daily curve + meal peaks + noise, timestamps with sensor jitter
+        val readings = mutableListOf<GV>()
+        val interval = T.mins(cgmIntervalMinutes.toLong()).msecs()
+        time = end - random.nextLong(0, 20_000)
+        while (time > start) {
+            var bg = 120.0 + 30.0 * sin(2 * PI * (time % T.days(1).msecs()) / T.days(1).msecs())
+            for ((mealTime, amount) in meals) {
+                val minutes = (time - mealTime) / 60_000.0
+                if (minutes > 0) bg += amount * 1.5 * (minutes / 60.0) * exp(1 - minutes / 60.0)
+            }
+            bg += random.nextDouble(-4.0, 4.0)
+            readings.add(
+                GV(
+                    timestamp = time,
+                    raw = null,
+                    value = bg.coerceIn(40.0, 400.0),
+                    trendArrow = TrendArrow.NONE,
+                    noise = null,
+                    sourceSensor = SourceSensor.UNKNOWN
+                )
+            )
+            time -= interval + (random.nextDouble(-10_000.0, 10_000.0) * cgmIntervalMinutes / 5).roundToLong()
+        }
+        glucoseValues = readings
+    }
+
+    fun persistenceLayer() = InMemoryPersistenceLayer(glucoseValues, boluses, carbs, temporaryBasals)
+}
@@ -0,0 +1,197 @@
+package app.aaps.replay
+
+import app.aaps.core.interfaces.aps.AutosensResult
+import app.aaps.core.interfaces.aps.CurrentTemp
+import app.aaps.core.interfaces.aps.GlucoseStatus
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.aps.MealData
+import app.aaps.core.interfaces.aps.OapsProfile
+import app.aaps.core.interfaces.aps.RT
+import app.aaps.core.interfaces.utils.DateUtil
+import org.json.JSONObject
+import java.io.File
+import kotlin.math.floor
+
+/**
+ * Inputs and output of one determine_basal call recorded by an SMB or DynamicISF loop
+ * (the same files ReplayApsResultsTest replays on a device).
+ */
+class RecordedLoopInput(
+    val filename: String,
+    val glucoseStatus: GlucoseStatus,
+    val currentTemp: CurrentTemp,
+    val iobData: Array<IobTotal>,
+    val profile: OapsProfile,
+    val autosensData: AutosensResult,
+    val mealData: MealData,
+    val microBolusAllowed: Boolean,
+    val currentTime: Long,
+    val flatBGsDetected: Boolean,
+    val dynIsfMode: Boolean,
+    val output: JSONObject
+) {
+
+    /**
+     * Recorded output can be compared. Whole number deltas like 2.0 were evaluated as Int 2
+     * by the JS algorithm that recorded them, so the results differ (excluded by ReplayApsResultsTest too).
+     */
+    val comparable: Boolean get() = floor(glucoseStatus.delta) != glucoseStatus.delta
+
+    /**
+     * Compare [result] to recorded output field by field like ReplayApsResultsTest compares Kotlin and JS results,
+     * predictions included
+     *
+     * @return description of every differing field, empty if equal
+     */
+    fun differences(result: RT): List<String> {
+        val differences = mutableListOf<String>()
+        fun compare(field: String, actual: Any?, expected: Any?) {
+            if (actual != expected) differences.add("$filename $field: $actual != $expected")
+        }
+        compare("tick", result.tick ?: "", output.optString("tick"))
+        compare("eventualBG", result.eventualBG ?: Double.NaN, output.optDouble("eventualBG"))
+        compare("targetBG", result.targetBG ?: Double.NaN, output.optDouble("targetBG"))
+        compare("insulinReq", result.insulinReq ?: Double.NaN, output.optDouble("insulinReq"))
+        compare("carbsReq", result.carbsReq ?: 0, output.optInt("carbsReq"))
+        compare("carbsReqWithin", result.carbsReqWithin ?: 0, output.optInt("carbsReqWithin"))
+        compare("units", result.units ?: Double.NaN, output.optDouble("units"))
+        compare("sensitivityRatio", result.sensitivityRatio ?: Double.NaN, output.optDouble("sensitivityRatio"))
+        compare("duration", result.duration ?: 0, output.optInt("duration"))
+        compare("rate", result.rate ?: Double.NaN, output.optDouble("rate"))
+        compare("COB", result.COB ?: Double.NaN, output.optDouble("COB"))
+        compare("IOB", result.IOB ?: Double.NaN, output.optDouble("IOB"))
+        if (dynIsfMode) compare("variable_sens", result.variable_sens ?: Double.NaN, output.optDouble("variable_sens"))
+        val predBGs = output.optJSONObject("predBGs")
+        compare("predBGs.IOB", result.predBGs?.IOB, predBGs?.toIntList("IOB"))
+        compare("predBGs.ZT", result.predBGs?.ZT, predBGs?.toIntList("ZT"))
+        compare("predBGs.COB", result.predBGs?.COB, predBGs?.toIntList("COB"))
+        compare("predBGs.UAM", result.predBGs?.UAM, predBGs?.toIntList("UAM"))
+        return differences
+    }
+
+    companion object {
+
+        private val algorithms = mapOf("OpenAPSSMBPlugin" to false, "OpenAPSSMBDynamicISFPlugin" to true)
+
+        /**
+         * Loads all recorded results of algorithms running DetermineBasalSMB, sorted by file name (time).
+         */
+        fun load(dateUtil: DateUtil): List<RecordedLoopInput> {
+            val directory = RecordedLoopInput::class.java.classLoader?.getResource("results")
+                ?: error("Recorded results not found on classpath")
+            return File(directory.toURI()).listFiles { file -> file.name.endsWith(".json") }.orEmpty()
+                .sortedBy { it.name }
+                .mapNotNull { file ->
+                    val result = JSONObject(file.readText())
+                    algorithms[result.optString("algorithm")]?.let { dynIsfMode ->
+                        result.toJSONObject("input").toLoopInput(file.name, dynIsfMode, result.toJSONObject("output"), dateUtil)
+                    }
+                }
+        }
+
+        private fun JSONObject.toJSONObject(name: String): JSONObject =
+            when (val value = get(name)) {
+                is JSONObject -> value
+                else          -> JSONObject(value.toString())
+            }
+
+        private fun JSONObject.toIntList(name: String): List<Int>? =
+            optJSONArray(name)?.let { array -> List(array.length()) { array.getInt(it) } }
+
+        private fun JSONObject.toIob(dateUtil: DateUtil): IobTotal =
+            IobTotal(
+                time = dateUtil.fromISODateString(getString("time")),
+                iob = getDouble("iob"),
+                basaliob = getDouble("basaliob"),
+                bolussnooze = getDouble("bolussnooze"),
+                activity = getDouble("activity"),
+                lastBolusTime = getLong("lastBolusTime"),
+                iobWithZeroTemp = optJSONObject("iobWithZeroTemp")?.toIob(dateUtil)
+            )
+
+        private fun JSONObject.toLoopInput(filename: String, dynIsfMode: Boolean, output: JSONObject, dateUtil: DateUtil): RecordedLoopInput {
+            val glucoseStatus = getJSONObject("glucoseStatus")
+            val currentTemp = getJSONObject("currenttemp")
+            val iobData = getJSONArray("iob_data")
+            val profile = getJSONObject("profile")
+            val mealData = getJSONObject("meal_data")
+            return RecordedLoopInput(
+                filename = filename,
+                glucoseStatus = GlucoseStatus(
+                    glucose = glucoseStatus.getDouble("glucose"),
+                    noise = glucoseStatus.getDouble("noise"),
+                    delta = glucoseStatus.getDouble("delta"),
+                    shortAvgDelta = glucoseStatus.getDouble("short_avgdelta"),
+                    longAvgDelta = glucoseStatus.getDouble("long_avgdelta"),
+                    date = glucoseStatus.getLong("date")
+                ),
+                currentTemp = CurrentTemp(
+                    duration = currentTemp.getInt("duration"),
+                    rate = currentTemp.getDouble("rate"),
+                    minutesrunning = null
+                ),
+                iobData = Array(iobData.length()) { iobData.getJSONObject(it).toIob(dateUtil) },
+                profile = OapsProfile(
+                    dia = 0.0,
+                    min_5m_carbimpact = 0.0,
+                    max_iob = profile.getDouble("max_iob"),
+                    max_daily_basal = profile.getDouble("max_daily_basal"),
+                    max_basal = profile.getDouble("max_basal"),
+                    min_bg = profile.getDouble("min_bg"),
+                    max_bg = profile.getDouble("max_bg"),
+                    target_bg = profile.getDouble("target_bg"),
+                    carb_ratio = profile.getDouble("carb_ratio"),
+                    sens = profile.getDouble("sens"),
+                    autosens_adjust_targets = false,
+                    max_daily_safety_multiplier = profile.getDouble("max_daily_safety_multiplier"),
+                    current_basal_safety_multiplier = profile.getDouble("current_basal_safety_multiplier"),
+                    // as ReplayApsResultsTest: SMB replayed without DynamicISF parameters
+                    lgsThreshold = if (dynIsfMode) profile.getInt("lgsThreshold") else null,
+                    high_temptarget_raises_sensitivity = profile.getBoolean("high_temptarget_raises_sensitivity"),
+                    low_temptarget_lowers_sensitivity = profile.getBoolean("low_temptarget_lowers_sensitivity"),
+                    sensitivity_raises_target = profile.getBoolean("sensitivity_raises_target"),
+                    resistance_lowers_target = profile.getBoolean("resistance_lowers_target"),
+                    adv_target_adjustments = profile.getBoolean("adv_target_adjustments"),
+                    exercise_mode = profile.getBoolean("exercise_mode"),
+                    half_basal_exercise_target = profile.getInt("half_basal_exercise_target"),
+                    maxCOB = profile.getInt("maxCOB"),
+                    skip_neutral_temps = profile.getBoolean("skip_neutral_temps"),
+                    remainingCarbsCap = profile.getInt("remainingCarbsCap"),
+                    enableUAM = profile.getBoolean("enableUAM"),
+                    A52_risk_enable = profile.getBoolean("A52_risk_enable"),
+                    SMBInterval = profile.getInt("SMBInterval"),
+                    enableSMB_with_COB = profile.getBoolean("enableSMB_with_COB"),
+                    enableSMB_with_temptarget = profile.getBoolean("enableSMB_with_temptarget"),
+                    allowSMB_with_high_temptarget = profile.getBoolean("allowSMB_with_high_temptarget"),
+                    enableSMB_always = profile.getBoolean("enableSMB_always"),
+                    enableSMB_after_carbs = profile.getBoolean("enableSMB_after_carbs"),
+                    maxSMBBasalMinutes = profile.getInt("maxSMBBasalMinutes"),
+                    maxUAMSMBBasalMinutes = profile.getInt("maxUAMSMBBasalMinutes"),
+                    bolus_increment = profile.getDouble("bolus_increment"),
+                    carbsReqThreshold = profile.getInt("carbsReqThreshold"),
+                    current_basal = profile.getDouble("current_basal"),
+                    temptargetSet = profile.getBoolean("temptargetSet"),
+                    autosens_max = profile.getDouble("autosens_max"),
+                    out_units = profile.optString("out_units"),
+                    variable_sens = if (dynIsfMode) profile.getDouble("variable_sens") else 0.0,
+                    insulinDivisor = if (dynIsfMode) profile.getInt("insulinDivisor") else 0,
+                    TDD = if (dynIsfMode) profile.getDouble("TDD") else 0.0
+                ),
+                autosensData = AutosensResult(ratio = getJSONObject("autosens_data").getDouble("ratio")),
+                mealData = MealData(
+                    carbs = mealData.getDouble("carbs"),
+                    mealCOB = mealData.getDouble("mealCOB"),
+                    slopeFromMaxDeviation = mealData.getDouble("slopeFromMaxDeviation"),
+                    slopeFromMinDeviation = mealData.getDouble("slopeFromMinDeviation"),
+                    lastBolusTime = mealData.getLong("lastBolusTime"),
+                    lastCarbTime = mealData.getLong("lastCarbTime")
+                ),
+                microBolusAllowed = getBoolean("microBolusAllowed"),
+                currentTime = getLong("currentTime"),
+                flatBGsDetected = getBoolean("flatBGsDetected"),
+                dynIsfMode = dynIsfMode,
+                output = output
+            )
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package app.aaps.replay
+
+import java.lang.management.ManagementFactory
+import java.util.Locale
+
+/**
+ * Minimal benchmark runner for one stage of the calculation pipeline.
+ *
+ * Each stage is run [warmupIterations] times to let the JIT settle and then [measuredIterations] times
+ * measuring wall time and bytes allocated by the calling thread.
+ *
+ * Budgets are read from system properties, so CI can gate regressions without changing the code:
+ *  - `replay.budget.<stage>.p50Us` median latency of one iteration in microseconds
+ *  - `replay.budget.<stage>.allocKb` allocation of one iteration in kilobytes
+ */
+class StageBenchmark(
+    private val warmupIterations: Int = 10,
+    private val measuredIterations: Int = 30
+) {
+
+    class Result(
+        val stage: String,
+        /** calls of the measured code in one iteration (loop cycles, buckets ...) */
+        val operations: Int,
+        val p50Nanos: Long,
+        val p95Nanos: Long,
+        val allocatedBytes: Long
+    ) {
+
+        override fun toString(): String =
+            String.format(
+                Locale.ENGLISH, "%-16s ops=%5d p50=%9.1f us p95=%9.1f us alloc=%9.1f kB (%7.2f us, %7.2f kB per op)",
+                stage, operations, p50Nanos / 1000.0, p95Nanos / 1000.0, allocatedBytes / 1024.0,
+                p50Nanos / 1000.0 / operations, allocatedBytes / 1024.0 / operations
+            )
+
+        /**
+         * @return violated budgets, empty if all are met or none is set
+         */
+        fun budgetViolations(): List<String> {
+            val violations = mutableListOf<String>()
+            System.getProperty("replay.budget.$stage.p50Us")?.toDouble()?.let { budget ->
+                if (p50Nanos / 1000.0 > budget) violations.add(String.format(Locale.ENGLISH, "%s: p50 %.1f us > %.1f us", stage, p50Nanos / 1000.0, budget))
+            }
+            System.getProperty("replay.budget.$stage.allocKb")?.toDouble()?.let { budget ->
+                if (allocatedBytes / 1024.0 > budget) violations.add(String.format(Locale.ENGLISH, "%s: alloc %.1f kB > %.1f kB", stage, allocatedBytes / 1024.0, budget))
+            }
+            return violations
+        }
+    }
+
+    private val threadMXBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+    @Volatile private var blackhole: Any? = null
+
+    /**
+     * @param prepare run before every iteration, not measured (i.e. clearing of caches)
+     * @param body measured code, result is kept so the JIT can't drop the work
+     */
+    fun run(stage: String, operations: Int, prepare: () -> Unit = {}, body: () -> Any?): Result {
+        var sink: Any? = null
+        repeat(warmupIterations) {
+            prepare()
+            sink = body()
+        }
+        val durations = LongArray(measuredIterations)
+        val allocations = LongArray(measuredIterations)
+        for (i in 0 until measuredIterations) {
+            prepare()
+            val allocatedBefore = allocatedBytes()
+            val start = System.nanoTime()
+            sink = body()
+            durations[i] = System.nanoTime() - start
+            allocations[i] = allocatedBytes() - allocatedBefore
+        }
+        blackhole = sink
+        durations.sort()
+        allocations.sort()
+        return Result(
+            stage = stage,
+            operations = operations,
+            p50Nanos = durations[measuredIterations / 2],
+            p95Nanos = durations[(measuredIterations * 95 / 100).coerceAtMost(measuredIterations - 1)],
+            allocatedBytes = allocations[measuredIterations / 2]
+        )
+    }
+
+    private fun allocatedBytes(): Long = threadMXBean?.currentThreadAllocatedBytes ?: 0L
+}
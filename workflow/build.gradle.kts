@@ -22,6 +22,11 @@ dependencies {
     implementation(project(":core:ui"))
     implementation(project(":core:utils"))
 
+    implementation(libs.kotlinx.coroutines.core)
+
+    testImplementation(project(":shared:tests"))
+    testImplementation(libs.kotlinx.coroutines.test)
+
     ksp(libs.com.google.dagger.compiler)
     ksp(libs.com.google.dagger.android.processor)
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.utils.MidnightUtils
+import java.time.Instant
+import java.time.ZoneId
+import javax.inject.Inject
+import kotlin.math.min
+
+/**
+ * Samples of basal graph where basal data can change
+ *
+ * Basal graph is sampled every minute from fromTime. Basal data of a sample depends only on
+ * effective profile switch, temporary basal and extended bolus running at the sample
+ * and on profile basal block of the sample. Merging start and end of all of them gives
+ * samples where basal data may differ from the previous sample, other samples repeat
+ * previous value and don't add any point to the graph.
+ *
+ * Profile basal blocks are expected to start at whole or half hour (see [Profile.isValid]).
+ */
+class BasalChangePoints @Inject constructor(
+    private val persistenceLayer: PersistenceLayer,
+    private val profileFunction: ProfileFunction
+) {
+
+    /**
+     * @param fromTime first sample
+     * @param endTime end of graph (exclusive)
+     * @return sorted times of samples needing evaluation, first sample is always included
+     */
+    fun sampleTimes(fromTime: Long, endTime: Long): LongArray {
+        val count = if (endTime > fromTime) ((endTime - fromTime + STEP - 1) / STEP).toInt() else 0
+        if (count == 0) return LongArray(0)
+        val marked = BooleanArray(count)
+        marked[0] = true
+        // basal data is resolved at sample rounded up to whole minute
+        val to = endTime + STEP
+
+        val profileSwitches = persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(fromTime, to, true)
+        val segments = ArrayList<Long>(profileSwitches.size + 1)
+        segments.add(fromTime)
+        for (eps in profileSwitches)
+            if (eps.timestamp > fromTime && eps.timestamp < to) {
+                mark(marked, fromTime, eps.timestamp)
+                segments.add(eps.timestamp)
+            }
+        for (index in segments.indices) {
+            val segmentEnd = if (index + 1 < segments.size) segments[index + 1] else to
+            val profile = profileFunction.getProfile(segments[index]) ?: continue
+            markBasalBlocks(marked, fromTime, segments[index], segmentEnd, profile)
+        }
+        for (tb in persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(fromTime, to)) {
+            mark(marked, fromTime, tb.timestamp)
+            mark(marked, fromTime, tb.timestamp + tb.duration)
+        }
+        for (eb in persistenceLayer.getExtendedBolusesActiveBetweenTimeAndTime(fromTime, to)) {
+            mark(marked, fromTime, eb.timestamp)
+            mark(marked, fromTime, eb.timestamp + eb.duration)
+        }
+
+        val result = LongArray(marked.count { it })
+        var position = 0
+        for (index in marked.indices)
+            if (marked[index]) result[position++] = fromTime + index * STEP
+        return result
+    }
+
+    /**
+     * Mark changes of profile basal inside segment using the same time of day as [Profile.getBasal]
+     */
+    private fun markBasalBlocks(marked: BooleanArray, fromTime: Long, segmentStart: Long, segmentEnd: Long, profile: Profile) {
+        val rules = ZoneId.systemDefault().rules
+        var time = segmentStart
+        var basal = profile.getBasal(time)
+        while (true) {
+            val seconds = MidnightUtils.secondsFromMidnight(time)
+            // next whole or half hour, or DST change moving time of day
+            var next = time - Math.floorMod(time, 1000L) + (HALF_HOUR - seconds % HALF_HOUR) * 1000L
+            rules.nextTransition(Instant.ofEpochMilli(time))?.let { next = min(next, it.instant.toEpochMilli()) }
+            if (next >= segmentEnd) break
+            val nextBasal = profile.getBasal(next)
+            if (nextBasal != basal) {
+                mark(marked, fromTime, next)
+                basal = nextBasal
+            }
+            time = next
+        }
+    }
+
+    /**
+     * Mark first sample seeing the change, ie. sample at or after [changeTime]
+     * and the one before as it may be rounded up over the change
+     */
+    private fun mark(marked: BooleanArray, fromTime: Long, changeTime: Long) {
+        for (time in longArrayOf(changeTime - STEP, changeTime)) {
+            if (time <= fromTime) continue
+            val index = (time - fromTime + STEP - 1) / STEP
+            if (index < marked.size) marked[index.toInt()] = true
+        }
+    }
+
+    companion object {
+
+        val STEP = T.mins(1).msecs()
+        private const val HALF_HOUR = 30 * 60
+    }
+}
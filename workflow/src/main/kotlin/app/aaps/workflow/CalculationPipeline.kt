@@ -0,0 +1,142 @@
+package app.aaps.workflow
+
+import android.content.Context
+import app.aaps.core.interfaces.aps.Loop
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.plugin.ActivePlugin
+import app.aaps.core.interfaces.profiling.Profiler
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.Event
+import app.aaps.core.interfaces.rx.events.EventIobCalculationProgress
+import app.aaps.core.interfaces.rx.events.EventNewBG
+import app.aaps.core.interfaces.rx.events.EventUpdateOverviewGraph
+import app.aaps.core.interfaces.rx.events.EventUpdateOverviewIobCob
+import app.aaps.core.interfaces.rx.events.EventUpdateOverviewSensitivity
+import app.aaps.core.interfaces.ui.UiInteraction
+import app.aaps.core.interfaces.workflow.CalculationWorkflow
+import app.aaps.core.interfaces.workflow.CalculationWorkflow.Companion.MAIN_CALCULATION
+import app.aaps.workflow.iob.IobCobOref1Stage
+import app.aaps.workflow.iob.IobCobOrefStage
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import javax.inject.Inject
+
+/**
+ * Stages of calculation for overview and loop
+ *
+ * Stages are called directly in the calling coroutine and results are passed in [IobCobCalculator] and [OverviewData].
+ * Cancellation of the coroutine is checked inside long running stages.
+ * Graph data not depending on each other are prepared in parallel.
+ * Duration of every stage is logged through [Profiler].
+ */
+class CalculationPipeline @Inject constructor(
+    private val context: Context,
+    private val aapsLogger: AAPSLogger,
+    private val rxBus: RxBus,
+    private val activePlugin: ActivePlugin,
+    private val profiler: Profiler,
+    private val loop: Loop,
+    private val uiInteraction: UiInteraction,
+    private val loadBgDataStage: LoadBgDataStage,
+    private val prepareBucketedDataStage: PrepareBucketedDataStage,
+    private val prepareBgDataStage: PrepareBgDataStage,
+    private val prepareTreatmentsDataStage: PrepareTreatmentsDataStage,
+    private val prepareBasalDataStage: PrepareBasalDataStage,
+    private val prepareTemporaryTargetDataStage: PrepareTemporaryTargetDataStage,
+    private val prepareRunningModeDataStage: PrepareRunningModeDataStage,
+    private val iobCobOrefStage: IobCobOrefStage,
+    private val iobCobOref1Stage: IobCobOref1Stage,
+    private val prepareIobAutosensGraphDataStage: PrepareIobAutosensGraphDataStage,
+    private val preparePredictionsStage: PreparePredictionsStage
+) {
+
+    suspend fun runCalculation(
+        job: String,
+        iobCobCalculator: IobCobCalculator,
+        overviewData: OverviewData,
+        reason: String,
+        end: Long,
+        bgDataReload: Boolean,
+        cause: Event?
+    ) {
+        val mainCalculation = job == MAIN_CALCULATION
+        if (bgDataReload) stage("LoadBgData") { loadBgDataStage.execute(iobCobCalculator, end) }
+        stage("PrepareBucketedData") { prepareBucketedDataStage.execute(iobCobCalculator, overviewData) }
+        stage("PrepareBgData") { prepareBgDataStage.execute(overviewData) }
+        updateGraph(job, CalculationWorkflow.ProgressData.DRAW_BG)
+        // every stage fills its own series of OverviewData
+        coroutineScope {
+            launch { stage("PrepareTreatmentsData") { prepareTreatmentsDataStage.execute(overviewData) } }
+            launch { stage("PrepareBasalData") { prepareBasalDataStage.execute(iobCobCalculator, overviewData) } }
+            launch { stage("PrepareTemporaryTargetData") { prepareTemporaryTargetDataStage.execute(overviewData) } }
+            launch { stage("PrepareRunningModeData") { prepareRunningModeDataStage.execute(overviewData) } }
+        }
+        updateGraph(job, CalculationWorkflow.ProgressData.DRAW_TT)
+        if (activePlugin.activeSensitivity.isOref1)
+            stage("IobCobOref1") { iobCobOref1Stage.execute(iobCobCalculator, reason, end, mainCalculation, cause) }
+        else
+            stage("IobCobOref") { iobCobOrefStage.execute(iobCobCalculator, reason, end, mainCalculation, cause) }
+        activePlugin.activeOverview.overviewBus.send(EventUpdateOverviewIobCob("CalculationPipeline"))
+        activePlugin.activeOverview.overviewBus.send(EventUpdateOverviewSensitivity("CalculationPipeline"))
+        stage("PrepareIobAutosensGraphData") { prepareIobAutosensGraphDataStage.execute(iobCobCalculator, overviewData) }
+        if (mainCalculation) {
+            updateGraph(job, CalculationWorkflow.ProgressData.DRAW_IOB)
+            stage("InvokeLoop") { invokeLoop(iobCobCalculator, cause) }
+            uiInteraction.updateWidget(context, "WorkFlow")
+            stage("PreparePredictions") { preparePredictionsStage.execute(overviewData) }
+        }
+        updateGraph(job, CalculationWorkflow.ProgressData.DRAW_FINAL)
+    }
+
+    fun runOnEventTherapyEventChange(overviewData: OverviewData) {
+        stage("PrepareTreatmentsData") { prepareTreatmentsDataStage.execute(overviewData) }
+        updateGraph(null, CalculationWorkflow.ProgressData.DRAW_FINAL)
+    }
+
+    fun runOnScaleChanged(iobCobCalculator: IobCobCalculator, overviewData: OverviewData) {
+        stage("PrepareBucketedData") { prepareBucketedDataStage.execute(iobCobCalculator, overviewData) }
+        stage("PrepareBgData") { prepareBgDataStage.execute(overviewData) }
+        updateGraph(null, CalculationWorkflow.ProgressData.DRAW_FINAL)
+    }
+
+    private inline fun <T> stage(name: String, block: () -> T): T {
+        val start = System.currentTimeMillis()
+        try {
+            return block()
+        } finally {
+            profiler.log(LTag.WORKER, "Stage $name", start)
+        }
+    }
+
+    private fun updateGraph(job: String?, pass: CalculationWorkflow.ProgressData) {
+        if (job == MAIN_CALCULATION)
+            activePlugin.activeOverview.overviewBus.send(EventUpdateOverviewGraph("CalculationPipeline"))
+        else
+            rxBus.send(EventUpdateOverviewGraph("CalculationPipeline"))
+        rxBus.send(EventIobCalculationProgress(pass, 100, null))
+    }
+
+    /*
+     This method is triggered once autosens calculation has completed, so the LoopPlugin
+     has current data to work with. However, autosens calculation can be triggered by multiple
+     sources and currently only a new BG should trigger a loop run. Hence we return early if
+     the event causing the calculation is not EventNewBG.
+    */
+    private fun invokeLoop(iobCobCalculator: IobCobCalculator, cause: Event?) {
+        if (cause !is EventNewBG) return
+        val glucoseValue = iobCobCalculator.ads.actualBg()
+        if (glucoseValue == null) {
+            aapsLogger.debug(LTag.WORKER, "InvokeLoop: bg outdated")
+            return
+        }
+        if (glucoseValue.timestamp <= loop.lastBgTriggeredRun) {
+            aapsLogger.debug(LTag.WORKER, "InvokeLoop: already looped with that value")
+            return
+        }
+        loop.lastBgTriggeredRun = glucoseValue.timestamp
+        loop.invoke("Calculation for $glucoseValue", true)
+    }
+}
@@ -1,41 +1,49 @@
 package app.aaps.workflow
 
-import android.content.Context
-import android.os.SystemClock
-import androidx.work.Data
-import androidx.work.ExistingWorkPolicy
-import androidx.work.OneTimeWorkRequest
-import androidx.work.WorkInfo
-import androidx.work.WorkManager
+import androidx.annotation.VisibleForTesting
 import app.aaps.core.interfaces.iob.IobCobCalculator
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.overview.OverviewData
-import app.aaps.core.interfaces.plugin.ActivePlugin
 import app.aaps.core.interfaces.rx.events.Event
 import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
-import app.aaps.core.interfaces.workflow.CalculationWorkflow.Companion.JOB
 import app.aaps.core.interfaces.workflow.CalculationWorkflow.Companion.MAIN_CALCULATION
-import app.aaps.core.interfaces.workflow.CalculationWorkflow.Companion.PASS
-import app.aaps.core.utils.receivers.DataWorkerStorage
-import app.aaps.core.utils.worker.then
-import app.aaps.workflow.iob.IobCobOref1Worker
-import app.aaps.workflow.iob.IobCobOrefWorker
-import dagger.android.HasAndroidInjector
+import dagger.Lazy
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import javax.inject.Inject
 import javax.inject.Singleton
 
+/**
+ * Runs [CalculationPipeline] in-process, one coroutine per job name.
+ *
+ * New calculation replaces running one of the same job (cancels it and starts after its end),
+ * partial updates are appended after running one.
+ */
 @Singleton
 class CalculationWorkflowImpl @Inject constructor(
-    private val context: Context,
-    private val injector: HasAndroidInjector,
     private val aapsLogger: AAPSLogger,
     private val dateUtil: DateUtil,
-    private val dataWorkerStorage: DataWorkerStorage,
-    private val activePlugin: ActivePlugin
+    private val fabricPrivacy: FabricPrivacy,
+    // lazy: stages depend on plugins depending on CalculationWorkflow
+    private val pipeline: Lazy<CalculationPipeline>
 ) : CalculationWorkflow {
 
+    @VisibleForTesting
+    internal var scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+    private val jobs = HashMap<String, Job>()
+
     init {
         // Verify definition
         var sumPercent = 0
@@ -43,13 +51,15 @@ class CalculationWorkflowImpl @Inject constructor(
         require(sumPercent == 100)
     }
 
+    /**
+     * Cancel running calculation of [job] without waiting for its end
+     *
+     * May be called from any thread including the pipeline itself.
+     * Next run of the same job starts only after the cancelled one is finished.
+     */
     override fun stopCalculation(job: String, from: String) {
         aapsLogger.debug(LTag.WORKER, "Stopping calculation thread: $from")
-        WorkManager.getInstance(context).cancelUniqueWork(job)
-        val workStatus = WorkManager.getInstance(context).getWorkInfosForUniqueWork(job).get()
-        while (workStatus.isNotEmpty() && workStatus[0].state == WorkInfo.State.RUNNING)
-            SystemClock.sleep(100)
-        aapsLogger.debug(LTag.WORKER, "Calculation thread stopped: $from")
+        synchronized(jobs) { jobs[job] }?.cancel()
     }
 
     override fun runCalculation(
@@ -62,134 +72,49 @@ class CalculationWorkflowImpl @Inject constructor(
         cause: Event?
     ) {
         aapsLogger.debug(LTag.WORKER, "Starting calculation worker: $reason to ${dateUtil.dateAndTimeAndSecondsString(end)}")
-
-        WorkManager.getInstance(context)
-            .beginUniqueWork(
-                job, ExistingWorkPolicy.REPLACE,
-                if (bgDataReload) OneTimeWorkRequest.Builder(LoadBgDataWorker::class.java).setInputData(dataWorkerStorage.storeInputData(LoadBgDataWorker.LoadBgData(iobCobCalculator, end))).build()
-                else OneTimeWorkRequest.Builder(DummyWorker::class.java).build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareBucketedDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareBucketedDataWorker.PrepareBucketedData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareBgDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareBgDataWorker.PrepareBgData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putString(JOB, job).putInt(PASS, CalculationWorkflow.ProgressData.DRAW_BG.pass).build())
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareTreatmentsDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareTreatmentsDataWorker.PrepareTreatmentsData(overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareBasalDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareBasalDataWorker.PrepareBasalData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareTemporaryTargetDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareTemporaryTargetDataWorker.PrepareTemporaryTargetData(overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareRunningModeDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareRunningModeDataWorker.PrepareRunningModeData(overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putString(JOB, job).putInt(PASS, CalculationWorkflow.ProgressData.DRAW_TT.pass).build())
-                    .build()
-            )
-            .then(
-                if (activePlugin.activeSensitivity.isOref1)
-                    OneTimeWorkRequest.Builder(IobCobOref1Worker::class.java)
-                        .setInputData(dataWorkerStorage.storeInputData(IobCobOref1Worker.IobCobOref1WorkerData(injector, iobCobCalculator, reason, end, job == MAIN_CALCULATION, cause)))
-                        .build()
-                else
-                    OneTimeWorkRequest.Builder(IobCobOrefWorker::class.java)
-                        .setInputData(dataWorkerStorage.storeInputData(IobCobOrefWorker.IobCobOrefWorkerData(injector, iobCobCalculator, reason, end, job == MAIN_CALCULATION, cause)))
-                        .build()
-            )
-            .then(OneTimeWorkRequest.Builder(UpdateIobCobSensWorker::class.java).build())
-            .then(
-                OneTimeWorkRequest.Builder(PrepareIobAutosensGraphDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareIobAutosensGraphDataWorker.PrepareIobAutosensData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                runIf = job == MAIN_CALCULATION,
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putString(JOB, job).putInt(PASS, CalculationWorkflow.ProgressData.DRAW_IOB.pass).build())
-                    .build()
-            )
-            .then(
-                runIf = job == MAIN_CALCULATION,
-                OneTimeWorkRequest.Builder(InvokeLoopWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(InvokeLoopWorker.InvokeLoopData(cause)))
-                    .build()
-            )
-            .then(
-                runIf = job == MAIN_CALCULATION,
-                OneTimeWorkRequest.Builder(UpdateWidgetWorker::class.java).build()
-            )
-            .then(
-                runIf = job == MAIN_CALCULATION,
-                OneTimeWorkRequest.Builder(PreparePredictionsWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PreparePredictionsWorker.PreparePredictionsData(overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putString(JOB, job).putInt(PASS, CalculationWorkflow.ProgressData.DRAW_FINAL.pass).build())
-                    .build()
-            )
-            .enqueue()
+        enqueue(job, replace = true) { runCalculation(job, iobCobCalculator, overviewData, reason, end, bgDataReload, cause) }
     }
 
     override fun runOnEventTherapyEventChange(overviewData: OverviewData) {
-        WorkManager.getInstance(context)
-            .beginUniqueWork(
-                MAIN_CALCULATION, ExistingWorkPolicy.APPEND,
-                OneTimeWorkRequest.Builder(PrepareTreatmentsDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareTreatmentsDataWorker.PrepareTreatmentsData(overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putInt(PASS, CalculationWorkflow.ProgressData.DRAW_FINAL.pass).build())
-                    .build()
-            )
-            .enqueue()
-
+        enqueue(MAIN_CALCULATION, replace = false) { runOnEventTherapyEventChange(overviewData) }
     }
 
     override fun runOnScaleChanged(iobCobCalculator: IobCobCalculator, overviewData: OverviewData) {
-        WorkManager.getInstance(context)
-            .beginUniqueWork(
-                MAIN_CALCULATION, ExistingWorkPolicy.APPEND,
-                OneTimeWorkRequest.Builder(PrepareBucketedDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareBucketedDataWorker.PrepareBucketedData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(PrepareBgDataWorker::class.java)
-                    .setInputData(dataWorkerStorage.storeInputData(PrepareBgDataWorker.PrepareBgData(iobCobCalculator, overviewData)))
-                    .build()
-            )
-            .then(
-                OneTimeWorkRequest.Builder(UpdateGraphWorker::class.java)
-                    .setInputData(Data.Builder().putInt(PASS, CalculationWorkflow.ProgressData.DRAW_FINAL.pass).build())
-                    .build()
-            )
-            .enqueue()
+        enqueue(MAIN_CALCULATION, replace = false) { runOnScaleChanged(iobCobCalculator, overviewData) }
+    }
+
+    /**
+     * Start [block] after previous run of [job] is finished
+     *
+     * @param replace cancel previous run first
+     */
+    @OptIn(DelicateCoroutinesApi::class)
+    @VisibleForTesting
+    internal fun enqueue(job: String, replace: Boolean, block: suspend CalculationPipeline.() -> Unit) {
+        synchronized(jobs) {
+            val previous = jobs[job]
+            if (replace) previous?.cancel()
+            // atomic start: run cancelled before it started still stops the one it waits for
+            jobs[job] = scope.launch(start = CoroutineStart.ATOMIC) {
+                try {
+                    previous?.join()
+                } catch (e: CancellationException) {
+                    // stopping appended run must stop the running one too
+                    withContext(NonCancellable) { previous?.cancelAndJoin() }
+                    throw e
+                }
+                val start = dateUtil.now()
+                try {
+                    pipeline.get().block()
+                    aapsLogger.debug(LTag.WORKER, "Calculation $job finished in ${dateUtil.now() - start} ms")
+                } catch (e: CancellationException) {
+                    aapsLogger.debug(LTag.WORKER, "Calculation $job cancelled after ${dateUtil.now() - start} ms")
+                    throw e
+                } catch (e: Exception) {
+                    aapsLogger.error(LTag.WORKER, "Calculation $job failed", e)
+                    fabricPrivacy.logException(e)
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
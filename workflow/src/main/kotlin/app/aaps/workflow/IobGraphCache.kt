@@ -0,0 +1,102 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.EventConfigBuilderChange
+import app.aaps.core.interfaces.rx.events.EventNewHistoryData
+import app.aaps.core.interfaces.rx.events.EventPreferenceChange
+import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
+import app.aaps.core.keys.IntKey
+import io.reactivex.rxjava3.disposables.CompositeDisposable
+import io.reactivex.rxjava3.kotlin.plusAssign
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * IOB of overview graph points computed by previous runs of [PrepareIobAutosensGraphDataStage]
+ *
+ * IOB of a point in the past depends only on history before the point. It's kept until older history
+ * changes or insulin settings change, so a new reading recomputes only points after last run
+ * and the window slides forward without recalculation. Points in the future are never stored.
+ */
+@Singleton
+class IobGraphCache @Inject constructor(
+    rxBus: RxBus,
+    fabricPrivacy: FabricPrivacy
+) {
+
+    class Point(val iob: IobTotal, val absIob: Double)
+
+    /**
+     * One graph preparation
+     *
+     * Reads points stored before [begin] and collects new ones, stored by [commit]
+     * only if nothing was invalidated meanwhile
+     */
+    class Run internal constructor(
+        internal val version: Long,
+        private val stored: Map<Long, Point>,
+        private val now: Long
+    ) {
+
+        internal val computed = HashMap<Long, Point>()
+        var reused = 0
+            private set
+
+        fun point(time: Long, calculate: () -> Point): Point {
+            stored[time]?.let {
+                reused++
+                return it
+            }
+            return calculate().also { if (time < now) computed[time] = it }
+        }
+    }
+
+    private val points = HashMap<Long, Point>()
+    private var version = 0L
+    private val disposable = CompositeDisposable()
+
+    init {
+        // handled on sender thread to invalidate before calculation triggered by the same event starts
+        disposable += rxBus
+            .toObservable(EventNewHistoryData::class.java)
+            .subscribe({ invalidate(it.oldDataTimestamp - T.mins(5).msecs()) }, fabricPrivacy::logException)
+        disposable += rxBus
+            .toObservable(EventConfigBuilderChange::class.java)
+            .subscribe({ invalidate(Long.MIN_VALUE) }, fabricPrivacy::logException)
+        disposable += rxBus
+            .toObservable(EventPreferenceChange::class.java)
+            .subscribe({ if (it.isChanged(IntKey.InsulinOrefPeak.key)) invalidate(Long.MIN_VALUE) }, fabricPrivacy::logException)
+    }
+
+    /**
+     * Drop points after [time]
+     */
+    @Synchronized
+    fun invalidate(time: Long) {
+        points.keys.removeIf { it > time }
+        version++
+    }
+
+    @Synchronized
+    fun begin(now: Long): Run = Run(version, HashMap(points), now)
+
+    /**
+     * Store points computed in [run] and drop points before [fromTime] when cache grows
+     */
+    @Synchronized
+    fun commit(run: Run, fromTime: Long) {
+        if (run.version != version) return
+        points.putAll(run.computed)
+        if (points.size > MAX_POINTS) points.keys.removeIf { it < fromTime }
+    }
+
+    val size: Int @Synchronized get() = points.size
+
+    companion object {
+
+        // more than 2 days of 5 min points, HistoryBrowser shares the cache
+        private const val MAX_POINTS = 600
+    }
+}
@@ -3,8 +3,6 @@ package app.aaps.workflow
 import android.content.Context
 import android.graphics.DashPathEffect
 import android.graphics.Paint
-import androidx.work.WorkerParameters
-import androidx.work.workDataOf
 import app.aaps.core.graph.data.LineGraphSeries
 import app.aaps.core.graph.data.ScaledDataPoint
 import app.aaps.core.interfaces.iob.IobCobCalculator
@@ -14,32 +12,23 @@ import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.EventIobCalculationProgress
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
-import app.aaps.core.objects.workflow.LoggingWorker
-import app.aaps.core.utils.receivers.DataWorkerStorage
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
 import javax.inject.Inject
+import kotlin.coroutines.coroutineContext
 
-class PrepareBasalDataWorker(
-    context: Context,
-    params: WorkerParameters
-) : LoggingWorker(context, params, Dispatchers.Default) {
-
-    @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-    @Inject lateinit var profileFunction: ProfileFunction
-    @Inject lateinit var rh: ResourceHelper
-    @Inject lateinit var rxBus: RxBus
-    private var ctx: Context = rh.getThemedCtx(context)
-
-    class PrepareBasalData(
-        val iobCobCalculator: IobCobCalculator, // cannot be injected : HistoryBrowser uses different instance
-        val overviewData: OverviewData
-    )
-
-    override suspend fun doWorkAndLog(): Result {
-
-        val data = dataWorkerStorage.pickupObject(inputData.getLong(DataWorkerStorage.STORE_KEY, -1)) as PrepareBasalData?
-            ?: return Result.failure(workDataOf("Error" to "missing input data"))
+class PrepareBasalDataStage @Inject constructor(
+    private val context: Context,
+    private val profileFunction: ProfileFunction,
+    private val basalChangePoints: BasalChangePoints,
+    private val rh: ResourceHelper,
+    private val rxBus: RxBus
+) {
 
+    /**
+     * @param iobCobCalculator cannot be injected : HistoryBrowser uses different instance
+     */
+    suspend fun execute(iobCobCalculator: IobCobCalculator, overviewData: OverviewData) {
+        val ctx = rh.getThemedCtx(context)
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_BASAL_DATA, 0, null))
         val baseBasalArray: MutableList<ScaledDataPoint> = ArrayList()
         val tempBasalArray: MutableList<ScaledDataPoint> = ArrayList()
@@ -49,19 +38,15 @@ class PrepareBasalDataWorker(
         var lastAbsoluteLineBasal = -1.0
         var lastBaseBasal = 0.0
         var lastTempBasal = 0.0
-        val endTime = data.overviewData.endTime
-        val fromTime = data.overviewData.fromTime
-        var time = fromTime
-        while (time < endTime) {
-            if (isStopped) return Result.failure(workDataOf("Error" to "stopped"))
+        val endTime = overviewData.endTime
+        val fromTime = overviewData.fromTime
+        // skipped samples would repeat previous values and add no points
+        for (time in basalChangePoints.sampleTimes(fromTime, endTime)) {
+            coroutineContext.ensureActive()
             val progress = (time - fromTime).toDouble() / (endTime - fromTime) * 100.0
             rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_BASAL_DATA, progress.toInt(), null))
-            val profile = profileFunction.getProfile(time)
-            if (profile == null) {
-                time += 60 * 1000L
-                continue
-            }
-            val basalData = data.iobCobCalculator.getBasalData(profile, time)
+            val profile = profileFunction.getProfile(time) ?: continue
+            val basalData = iobCobCalculator.getBasalData(profile, time)
             val baseBasalValue = basalData.basal
             var absoluteLineValue = baseBasalValue
             var tempBasalValue = 0.0
@@ -70,57 +55,56 @@ class PrepareBasalDataWorker(
                 tempBasalValue = basalData.tempBasalAbsolute
                 absoluteLineValue = tempBasalValue
                 if (tempBasalValue != lastTempBasal) {
-                    tempBasalArray.add(ScaledDataPoint(time, lastTempBasal, data.overviewData.basalScale))
-                    tempBasalArray.add(ScaledDataPoint(time, tempBasalValue.also { basal = it }, data.overviewData.basalScale))
+                    tempBasalArray.add(ScaledDataPoint(time, lastTempBasal, overviewData.basalScale))
+                    tempBasalArray.add(ScaledDataPoint(time, tempBasalValue.also { basal = it }, overviewData.basalScale))
                 }
                 if (lastBaseBasal != 0.0) {
-                    baseBasalArray.add(ScaledDataPoint(time, lastBaseBasal, data.overviewData.basalScale))
-                    baseBasalArray.add(ScaledDataPoint(time, 0.0, data.overviewData.basalScale))
+                    baseBasalArray.add(ScaledDataPoint(time, lastBaseBasal, overviewData.basalScale))
+                    baseBasalArray.add(ScaledDataPoint(time, 0.0, overviewData.basalScale))
                     lastBaseBasal = 0.0
                 }
             } else {
                 if (baseBasalValue != lastBaseBasal) {
-                    baseBasalArray.add(ScaledDataPoint(time, lastBaseBasal, data.overviewData.basalScale))
-                    baseBasalArray.add(ScaledDataPoint(time, baseBasalValue.also { basal = it }, data.overviewData.basalScale))
+                    baseBasalArray.add(ScaledDataPoint(time, lastBaseBasal, overviewData.basalScale))
+                    baseBasalArray.add(ScaledDataPoint(time, baseBasalValue.also { basal = it }, overviewData.basalScale))
                     lastBaseBasal = baseBasalValue
                 }
                 if (lastTempBasal != 0.0) {
-                    tempBasalArray.add(ScaledDataPoint(time, lastTempBasal, data.overviewData.basalScale))
-                    tempBasalArray.add(ScaledDataPoint(time, 0.0, data.overviewData.basalScale))
+                    tempBasalArray.add(ScaledDataPoint(time, lastTempBasal, overviewData.basalScale))
+                    tempBasalArray.add(ScaledDataPoint(time, 0.0, overviewData.basalScale))
                 }
             }
             if (baseBasalValue != lastLineBasal) {
-                basalLineArray.add(ScaledDataPoint(time, lastLineBasal, data.overviewData.basalScale))
-                basalLineArray.add(ScaledDataPoint(time, baseBasalValue, data.overviewData.basalScale))
+                basalLineArray.add(ScaledDataPoint(time, lastLineBasal, overviewData.basalScale))
+                basalLineArray.add(ScaledDataPoint(time, baseBasalValue, overviewData.basalScale))
             }
             if (absoluteLineValue != lastAbsoluteLineBasal) {
-                absoluteBasalLineArray.add(ScaledDataPoint(time, lastAbsoluteLineBasal, data.overviewData.basalScale))
-                absoluteBasalLineArray.add(ScaledDataPoint(time, basal, data.overviewData.basalScale))
+                absoluteBasalLineArray.add(ScaledDataPoint(time, lastAbsoluteLineBasal, overviewData.basalScale))
+                absoluteBasalLineArray.add(ScaledDataPoint(time, basal, overviewData.basalScale))
             }
             lastAbsoluteLineBasal = absoluteLineValue
             lastLineBasal = baseBasalValue
             lastTempBasal = tempBasalValue
-            time += 60 * 1000L
         }
 
         // final points
-        basalLineArray.add(ScaledDataPoint(endTime, lastLineBasal, data.overviewData.basalScale))
-        baseBasalArray.add(ScaledDataPoint(endTime, lastBaseBasal, data.overviewData.basalScale))
-        tempBasalArray.add(ScaledDataPoint(endTime, lastTempBasal, data.overviewData.basalScale))
-        absoluteBasalLineArray.add(ScaledDataPoint(endTime, lastAbsoluteLineBasal, data.overviewData.basalScale))
+        basalLineArray.add(ScaledDataPoint(endTime, lastLineBasal, overviewData.basalScale))
+        baseBasalArray.add(ScaledDataPoint(endTime, lastBaseBasal, overviewData.basalScale))
+        tempBasalArray.add(ScaledDataPoint(endTime, lastTempBasal, overviewData.basalScale))
+        absoluteBasalLineArray.add(ScaledDataPoint(endTime, lastAbsoluteLineBasal, overviewData.basalScale))
 
         // create series
-        data.overviewData.baseBasalGraphSeries = LineGraphSeries(Array(baseBasalArray.size) { i -> baseBasalArray[i] }).also {
+        overviewData.baseBasalGraphSeries = LineGraphSeries(Array(baseBasalArray.size) { i -> baseBasalArray[i] }).also {
             it.isDrawBackground = true
             it.backgroundColor = rh.gac(ctx, app.aaps.core.ui.R.attr.baseBasalColor)
             it.thickness = 0
         }
-        data.overviewData.tempBasalGraphSeries = LineGraphSeries(Array(tempBasalArray.size) { i -> tempBasalArray[i] }).also {
+        overviewData.tempBasalGraphSeries = LineGraphSeries(Array(tempBasalArray.size) { i -> tempBasalArray[i] }).also {
             it.isDrawBackground = true
             it.backgroundColor = rh.gac(ctx, app.aaps.core.ui.R.attr.tempBasalColor)
             it.thickness = 0
         }
-        data.overviewData.basalLineGraphSeries = LineGraphSeries(Array(basalLineArray.size) { i -> basalLineArray[i] }).also {
+        overviewData.basalLineGraphSeries = LineGraphSeries(Array(basalLineArray.size) { i -> basalLineArray[i] }).also {
             it.setCustomPaint(Paint().also { paint ->
                 paint.style = Paint.Style.STROKE
                 @Suppress("DEPRECATION")
@@ -129,7 +113,7 @@ class PrepareBasalDataWorker(
                 paint.color = rh.gac(ctx, app.aaps.core.ui.R.attr.basal)
             })
         }
-        data.overviewData.absoluteBasalGraphSeries = LineGraphSeries(Array(absoluteBasalLineArray.size) { i -> absoluteBasalLineArray[i] }).also {
+        overviewData.absoluteBasalGraphSeries = LineGraphSeries(Array(absoluteBasalLineArray.size) { i -> absoluteBasalLineArray[i] }).also {
             it.setCustomPaint(Paint().also { absolutePaint ->
                 absolutePaint.style = Paint.Style.STROKE
                 @Suppress("DEPRECATION")
@@ -138,6 +122,5 @@ class PrepareBasalDataWorker(
             })
         }
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_BASAL_DATA, 100, null))
-        return Result.success()
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.graph.data.DataPointWithLabelInterface
+import app.aaps.core.graph.data.GlucoseValueDataPoint
+import app.aaps.core.graph.data.PointsWithLabelGraphSeries
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.profile.ProfileUtil
+import app.aaps.core.interfaces.resources.ResourceHelper
+import app.aaps.core.interfaces.utils.Round
+import app.aaps.core.keys.UnitDoubleKey
+import app.aaps.core.keys.interfaces.Preferences
+import javax.inject.Inject
+
+class PrepareBgDataStage @Inject constructor(
+    private val profileUtil: ProfileUtil,
+    private val rh: ResourceHelper,
+    private val persistenceLayer: PersistenceLayer,
+    private val preferences: Preferences
+) {
+
+    fun execute(overviewData: OverviewData) {
+        val toTime = overviewData.toTime
+        val fromTime = overviewData.fromTime
+        overviewData.maxBgValue = Double.MIN_VALUE
+        overviewData.bgReadingsArray = persistenceLayer.getBgReadingsDataFromTimeToTime(fromTime, toTime, false)
+        val bgListArray: MutableList<DataPointWithLabelInterface> = ArrayList()
+        for (bg in overviewData.bgReadingsArray) {
+            if (bg.timestamp < fromTime || bg.timestamp > toTime) continue
+            if (bg.value > overviewData.maxBgValue) overviewData.maxBgValue = bg.value
+            bgListArray.add(GlucoseValueDataPoint(bg, profileUtil, rh))
+        }
+        bgListArray.sortWith { o1: DataPointWithLabelInterface, o2: DataPointWithLabelInterface -> o1.x.compareTo(o2.x) }
+        overviewData.bgReadingGraphSeries = PointsWithLabelGraphSeries(Array(bgListArray.size) { i -> bgListArray[i] })
+        overviewData.maxBgValue = profileUtil.fromMgdlToUnits(overviewData.maxBgValue)
+        if (preferences.get(UnitDoubleKey.OverviewHighMark) > overviewData.maxBgValue)
+            overviewData.maxBgValue = preferences.get(UnitDoubleKey.OverviewHighMark)
+        overviewData.maxBgValue = addUpperChartMargin(overviewData.maxBgValue)
+    }
+
+    private fun addUpperChartMargin(maxBgValue: Double) =
+        if (profileUtil.units == GlucoseUnit.MGDL) Round.roundTo(maxBgValue, 40.0) + 80 else Round.roundTo(maxBgValue, 2.0) + 4
+}
\ No newline at end of file
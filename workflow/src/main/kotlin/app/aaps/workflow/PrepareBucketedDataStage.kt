@@ -0,0 +1,40 @@
+package app.aaps.workflow
+
+import app.aaps.core.graph.data.DataPointWithLabelInterface
+import app.aaps.core.graph.data.InMemoryGlucoseValueDataPoint
+import app.aaps.core.graph.data.PointsWithLabelGraphSeries
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.interfaces.resources.ResourceHelper
+import app.aaps.core.keys.interfaces.Preferences
+import javax.inject.Inject
+
+class PrepareBucketedDataStage @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val profileFunction: ProfileFunction,
+    private val rh: ResourceHelper,
+    private val preferences: Preferences
+) {
+
+    /**
+     * @param iobCobCalculator cannot be injected : HistoryBrowser uses different instance
+     */
+    fun execute(iobCobCalculator: IobCobCalculator, overviewData: OverviewData) {
+        val toTime = overviewData.toTime
+        val fromTime = overviewData.fromTime
+        val bucketedData = iobCobCalculator.ads.getBucketedDataTableCopy() ?: return
+        if (bucketedData.isEmpty()) {
+            aapsLogger.debug("No bucketed data.")
+            return
+        }
+        val bucketedListArray: MutableList<DataPointWithLabelInterface> = ArrayList()
+        for (inMemoryGlucoseValue in bucketedData) {
+            if (inMemoryGlucoseValue.timestamp < fromTime || inMemoryGlucoseValue.timestamp > toTime) continue
+            bucketedListArray.add(InMemoryGlucoseValueDataPoint(inMemoryGlucoseValue, preferences, profileFunction, rh))
+        }
+        bucketedListArray.sortWith { o1: DataPointWithLabelInterface, o2: DataPointWithLabelInterface -> o1.x.compareTo(o2.x) }
+        overviewData.bucketedGraphSeries = PointsWithLabelGraphSeries(Array(bucketedListArray.size) { i -> bucketedListArray[i] })
+    }
+}
\ No newline at end of file
@@ -1,8 +1,6 @@
 package app.aaps.workflow
 
 import android.content.Context
-import androidx.work.WorkerParameters
-import androidx.work.workDataOf
 import app.aaps.core.graph.data.LineGraphSeries
 import app.aaps.core.interfaces.aps.Loop
 import app.aaps.core.interfaces.db.PersistenceLayer
@@ -14,46 +12,34 @@ import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.EventIobCalculationProgress
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
 import app.aaps.core.objects.extensions.target
-import app.aaps.core.objects.workflow.LoggingWorker
-import app.aaps.core.utils.receivers.DataWorkerStorage
 import com.jjoe64.graphview.series.DataPoint
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
 import javax.inject.Inject
+import kotlin.coroutines.coroutineContext
 import kotlin.math.max
 
-class PrepareTemporaryTargetDataWorker(
-    context: Context,
-    params: WorkerParameters
-) : LoggingWorker(context, params, Dispatchers.Default) {
-
-    @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-    @Inject lateinit var profileFunction: ProfileFunction
-    @Inject lateinit var profileUtil: ProfileUtil
-    @Inject lateinit var rh: ResourceHelper
-    @Inject lateinit var persistenceLayer: PersistenceLayer
-    @Inject lateinit var loop: Loop
-    @Inject lateinit var rxBus: RxBus
-    private var ctx: Context = rh.getThemedCtx(context)
-
-    class PrepareTemporaryTargetData(
-        val overviewData: OverviewData
-    )
-
-    override suspend fun doWorkAndLog(): Result {
-
-        val data = dataWorkerStorage.pickupObject(inputData.getLong(DataWorkerStorage.STORE_KEY, -1)) as PrepareTemporaryTargetData?
-            ?: return Result.failure(workDataOf("Error" to "missing input data"))
+class PrepareTemporaryTargetDataStage @Inject constructor(
+    private val context: Context,
+    private val profileFunction: ProfileFunction,
+    private val profileUtil: ProfileUtil,
+    private val rh: ResourceHelper,
+    private val persistenceLayer: PersistenceLayer,
+    private val loop: Loop,
+    private val rxBus: RxBus
+) {
 
+    suspend fun execute(overviewData: OverviewData) {
+        val ctx = rh.getThemedCtx(context)
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_TEMPORARY_TARGET_DATA, 0, null))
-        val profile = profileFunction.getProfile() ?: return Result.success(workDataOf("Error" to "missing profile"))
-        var endTime = data.overviewData.endTime
-        val fromTime = data.overviewData.fromTime
+        val profile = profileFunction.getProfile() ?: return
+        var endTime = overviewData.endTime
+        val fromTime = overviewData.fromTime
         val targetsSeriesArray: MutableList<DataPoint> = ArrayList()
         var lastTarget = -1.0
         loop.lastRun?.constraintsProcessed?.let { endTime = max(it.latestPredictionsTime, endTime) }
         var time = fromTime
         while (time < endTime) {
-            if (isStopped) return Result.failure(workDataOf("Error" to "stopped"))
+            coroutineContext.ensureActive()
             val progress = (time - fromTime).toDouble() / (endTime - fromTime) * 100.0
             rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_TEMPORARY_TARGET_DATA, progress.toInt(), null))
             val tt = persistenceLayer.getTemporaryTargetActiveAt(time)
@@ -72,12 +58,11 @@ class PrepareTemporaryTargetDataWorker(
         // final point
         targetsSeriesArray.add(DataPoint(endTime.toDouble(), lastTarget))
         // create series
-        data.overviewData.temporaryTargetSeries = LineGraphSeries(Array(targetsSeriesArray.size) { i -> targetsSeriesArray[i] }).also {
+        overviewData.temporaryTargetSeries = LineGraphSeries(Array(targetsSeriesArray.size) { i -> targetsSeriesArray[i] }).also {
             it.isDrawBackground = false
             it.color = rh.gac(ctx, app.aaps.core.ui.R.attr.tempTargetBackgroundColor)
             it.thickness = 2
         }
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_TEMPORARY_TARGET_DATA, 100, null))
-        return Result.success()
     }
 }
\ No newline at end of file
@@ -1,8 +1,5 @@
 package app.aaps.workflow
 
-import android.content.Context
-import androidx.work.WorkerParameters
-import androidx.work.workDataOf
 import app.aaps.core.data.model.BS
 import app.aaps.core.data.model.GlucoseUnit
 import app.aaps.core.data.time.T
@@ -27,41 +24,26 @@ import app.aaps.core.interfaces.utils.Round
 import app.aaps.core.interfaces.utils.Translator
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
 import app.aaps.core.keys.interfaces.Preferences
-import app.aaps.core.objects.workflow.LoggingWorker
-import app.aaps.core.utils.receivers.DataWorkerStorage
-import kotlinx.coroutines.Dispatchers
 import javax.inject.Inject
 
-class PrepareTreatmentsDataWorker(
-    context: Context,
-    params: WorkerParameters
-) : LoggingWorker(context, params, Dispatchers.Default) {
-
-    @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-    @Inject lateinit var profileUtil: ProfileUtil
-    @Inject lateinit var rh: ResourceHelper
-    @Inject lateinit var rxBus: RxBus
-    @Inject lateinit var translator: Translator
-    @Inject lateinit var activePlugin: ActivePlugin
-    @Inject lateinit var persistenceLayer: PersistenceLayer
-    @Inject lateinit var decimalFormatter: DecimalFormatter
-    @Inject lateinit var preferences: Preferences
-
-    class PrepareTreatmentsData(
-        val overviewData: OverviewData
-    )
-
-    override suspend fun doWorkAndLog(): Result {
-
-        val data = dataWorkerStorage.pickupObject(inputData.getLong(DataWorkerStorage.STORE_KEY, -1)) as PrepareTreatmentsData?
-            ?: return Result.failure(workDataOf("Error" to "missing input data"))
-
-        val endTime = data.overviewData.endTime
-        val fromTime = data.overviewData.fromTime
+class PrepareTreatmentsDataStage @Inject constructor(
+    private val profileUtil: ProfileUtil,
+    private val rh: ResourceHelper,
+    private val rxBus: RxBus,
+    private val translator: Translator,
+    private val activePlugin: ActivePlugin,
+    private val persistenceLayer: PersistenceLayer,
+    private val decimalFormatter: DecimalFormatter,
+    private val preferences: Preferences
+) {
+
+    fun execute(overviewData: OverviewData) {
+        val endTime = overviewData.endTime
+        val fromTime = overviewData.fromTime
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_TREATMENTS_DATA, 0, null))
-        data.overviewData.maxTreatmentsValue = 0.0
-        data.overviewData.maxTherapyEventValue = 0.0
-        data.overviewData.maxEpsValue = 0.0
+        overviewData.maxTreatmentsValue = 0.0
+        overviewData.maxTherapyEventValue = 0.0
+        overviewData.maxEpsValue = 0.0
         val filteredTreatments: MutableList<DataPointWithLabelInterface> = ArrayList()
         val filteredTherapyEvents: MutableList<DataPointWithLabelInterface> = ArrayList()
         val filteredEps: MutableList<DataPointWithLabelInterface> = ArrayList()
@@ -70,21 +52,21 @@ class PrepareTreatmentsDataWorker(
             .map { BolusDataPoint(it, rh, activePlugin.activePump.pumpDescription.bolusStep, preferences, decimalFormatter) }
             .filter { it.data.type == BS.Type.NORMAL || it.data.type == BS.Type.SMB }
             .forEach {
-                it.y = getNearestBg(data.overviewData, it.x.toLong())
+                it.y = getNearestBg(overviewData, it.x.toLong())
                 filteredTreatments.add(it)
             }
         persistenceLayer.getCarbsFromTimeToTimeExpanded(fromTime, endTime, true)
             .map { CarbsDataPoint(it, rh) }
             .forEach {
-                it.y = getNearestBg(data.overviewData, it.x.toLong())
+                it.y = getNearestBg(overviewData, it.x.toLong())
                 filteredTreatments.add(it)
             }
 
         // ProfileSwitch
         persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(fromTime, endTime, true)
-            .map { EffectiveProfileSwitchDataPoint(it, rh, data.overviewData.epsScale) }
+            .map { EffectiveProfileSwitchDataPoint(it, rh, overviewData.epsScale) }
             .forEach {
-                data.overviewData.maxEpsValue = maxOf(data.overviewData.maxEpsValue, it.data.originalPercentage.toDouble())
+                overviewData.maxEpsValue = maxOf(overviewData.maxEpsValue, it.data.originalPercentage.toDouble())
                 filteredEps.add(it)
             }
 
@@ -94,7 +76,7 @@ class PrepareTreatmentsDataWorker(
                 .map { ExtendedBolusDataPoint(it, rh) }
                 .filter { it.duration != 0L }
                 .forEach {
-                    it.y = getNearestBg(data.overviewData, it.x.toLong())
+                    it.y = getNearestBg(overviewData, it.x.toLong())
                     filteredTreatments.add(it)
                 }
         }
@@ -104,35 +86,34 @@ class PrepareTreatmentsDataWorker(
             .map { TherapyEventDataPoint(it, rh, profileUtil, translator) }
             .filterTimeframe(fromTime, endTime)
             .forEach {
-                if (it.y == 0.0) it.y = getNearestBg(data.overviewData, it.x.toLong())
+                if (it.y == 0.0) it.y = getNearestBg(overviewData, it.x.toLong())
                 filteredTherapyEvents.add(it)
             }
 
         // increase maxY if a treatment forces it's own height that's higher than a BG value
         filteredTreatments.maxOfOrNull { it.y }
             ?.let(::addUpperChartMargin)
-            ?.let { data.overviewData.maxTreatmentsValue = maxOf(data.overviewData.maxTreatmentsValue, it) }
+            ?.let { overviewData.maxTreatmentsValue = maxOf(overviewData.maxTreatmentsValue, it) }
         filteredTherapyEvents.maxOfOrNull { it.y }
             ?.let(::addUpperChartMargin)
-            ?.let { data.overviewData.maxTherapyEventValue = maxOf(data.overviewData.maxTherapyEventValue, it) }
+            ?.let { overviewData.maxTherapyEventValue = maxOf(overviewData.maxTherapyEventValue, it) }
 
-        data.overviewData.treatmentsSeries = PointsWithLabelGraphSeries(filteredTreatments.toTypedArray())
-        data.overviewData.therapyEventSeries = PointsWithLabelGraphSeries(filteredTherapyEvents.toTypedArray())
-        data.overviewData.epsSeries = PointsWithLabelGraphSeries(filteredEps.toTypedArray())
+        overviewData.treatmentsSeries = PointsWithLabelGraphSeries(filteredTreatments.toTypedArray())
+        overviewData.therapyEventSeries = PointsWithLabelGraphSeries(filteredTherapyEvents.toTypedArray())
+        overviewData.epsSeries = PointsWithLabelGraphSeries(filteredEps.toTypedArray())
 
-        data.overviewData.heartRateGraphSeries = PointsWithLabelGraphSeries<DataPointWithLabelInterface>(
+        overviewData.heartRateGraphSeries = PointsWithLabelGraphSeries<DataPointWithLabelInterface>(
             persistenceLayer.getHeartRatesFromTimeToTime(fromTime, endTime)
                 .map { hr -> HeartRateDataPoint(hr, rh) }
                 .toTypedArray()).apply { color = rh.gac(null, app.aaps.core.ui.R.attr.heartRateColor) }
 
-        data.overviewData.stepsCountGraphSeries = PointsWithLabelGraphSeries<DataPointWithLabelInterface>(
+        overviewData.stepsCountGraphSeries = PointsWithLabelGraphSeries<DataPointWithLabelInterface>(
             persistenceLayer.getStepsCountFromTimeToTime(fromTime, endTime)
                 .map { steps -> StepsDataPoint(steps, rh) }
                 .toTypedArray()).apply { color = rh.gac(null, app.aaps.core.ui.R.attr.stepsColor) }
 
 
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_TREATMENTS_DATA, 100, null))
-        return Result.success()
     }
 
     private fun addUpperChartMargin(maxBgValue: Double) =
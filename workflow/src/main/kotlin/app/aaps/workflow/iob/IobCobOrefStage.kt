@@ -1,22 +1,19 @@
 package app.aaps.workflow.iob
 
-import android.content.Context
 import android.os.SystemClock
-import androidx.work.WorkerParameters
-import androidx.work.workDataOf
 import app.aaps.core.data.configuration.Constants
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.aps.AutosensData
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.nsclient.ProcessedDeviceStatusData
 import app.aaps.core.interfaces.objects.Instantiator
 import app.aaps.core.interfaces.plugin.ActivePlugin
 import app.aaps.core.interfaces.profile.ProfileFunction
 import app.aaps.core.interfaces.profiling.Profiler
-import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.Event
 import app.aaps.core.interfaces.rx.events.EventAutosensCalculationFinished
@@ -26,75 +23,60 @@ import app.aaps.core.interfaces.utils.DecimalFormatter
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
 import app.aaps.core.keys.DoubleKey
 import app.aaps.core.keys.interfaces.Preferences
-import app.aaps.core.objects.workflow.LoggingWorker
-import app.aaps.core.utils.receivers.DataWorkerStorage
-import dagger.android.HasAndroidInjector
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.isActive
 import javax.inject.Inject
+import kotlin.coroutines.coroutineContext
 import kotlin.math.abs
 import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToLong
 
-class IobCobOrefWorker @Inject internal constructor(
-    context: Context,
-    params: WorkerParameters
-) : LoggingWorker(context, params, Dispatchers.Default) {
-
-    @Inject lateinit var preferences: Preferences
-    @Inject lateinit var rxBus: RxBus
-    @Inject lateinit var rh: ResourceHelper
-    @Inject lateinit var profileFunction: ProfileFunction
-    @Inject lateinit var context: Context
-    @Inject lateinit var activePlugin: ActivePlugin
-    @Inject lateinit var config: Config
-    @Inject lateinit var profiler: Profiler
-    @Inject lateinit var dateUtil: DateUtil
-    @Inject lateinit var persistenceLayer: PersistenceLayer
-    @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-    @Inject lateinit var instantiator: Instantiator
-    @Inject lateinit var decimalFormatter: DecimalFormatter
-    @Inject lateinit var processedDeviceStatusData: ProcessedDeviceStatusData
-
-    class IobCobOrefWorkerData(
-        val injector: HasAndroidInjector,
-        val iobCobCalculator: IobCobCalculator, // cannot be injected : HistoryBrowser uses different instance
-        val reason: String,
-        val end: Long,
-        val limitDataToOldestAvailable: Boolean,
-        val cause: Event?
-    )
-
-    override suspend fun doWorkAndLog(): Result {
-        val data = dataWorkerStorage.pickupObject(inputData.getLong(DataWorkerStorage.STORE_KEY, -1)) as IobCobOrefWorkerData?
-            ?: return Result.success(workDataOf("Error" to "missing input data"))
+class IobCobOrefStage @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val preferences: Preferences,
+    private val rxBus: RxBus,
+    private val profileFunction: ProfileFunction,
+    private val activePlugin: ActivePlugin,
+    private val config: Config,
+    private val profiler: Profiler,
+    private val dateUtil: DateUtil,
+    private val persistenceLayer: PersistenceLayer,
+    private val instantiator: Instantiator,
+    private val decimalFormatter: DecimalFormatter,
+    private val processedDeviceStatusData: ProcessedDeviceStatusData
+) {
 
+    /**
+     * @param iobCobCalculator cannot be injected : HistoryBrowser uses different instance
+     */
+    suspend fun execute(iobCobCalculator: IobCobCalculator, reason: String, end: Long, limitDataToOldestAvailable: Boolean, cause: Event?) {
         val start = dateUtil.now()
         try {
-            aapsLogger.debug(LTag.AUTOSENS) { "AUTOSENSDATA thread started: ${data.reason}" }
+            aapsLogger.debug(LTag.AUTOSENS) { "AUTOSENSDATA thread started: $reason" }
             if (!profileFunction.isProfileValid("IobCobThread")) {
-                aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (No profile): ${data.reason}" }
-                return Result.success(workDataOf("Error" to "app still initializing"))
+                aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (No profile): $reason" }
+                return
             }
             //log.debug("Locking calculateSensitivityData");
-            val oldestTimeWithData = data.iobCobCalculator.calculateDetectionStart(data.end, data.limitDataToOldestAvailable)
+            val oldestTimeWithData = iobCobCalculator.calculateDetectionStart(end, limitDataToOldestAvailable)
             // work on local copy and set back when finished
-            val ads = data.iobCobCalculator.ads.clone()
+            val ads = iobCobCalculator.ads.clone()
             val bucketedData = ads.bucketedData
             val autosensDataTable = ads.autosensDataTable
             if (bucketedData == null || bucketedData.size < 3) {
-                aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (No bucketed data available): ${data.reason}" }
-                return Result.success(workDataOf("Error" to "Aborting calculation thread (No bucketed data available): ${data.reason}"))
+                aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (No bucketed data available): $reason" }
+                return
             }
             val prevDataTime = ads.roundUpTime(bucketedData[bucketedData.size - 3].timestamp)
             aapsLogger.debug(LTag.AUTOSENS) { "Prev data time: " + dateUtil.dateAndTimeString(prevDataTime) }
             var previous = autosensDataTable[prevDataTime]
             // start from oldest to be able sub cob
             for (i in bucketedData.size - 4 downTo 0) {
-                rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.IOB_COB_OREF, 100 - (100.0 * i / bucketedData.size).toInt(), data.cause))
-                if (isStopped) {
-                    aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (trigger): ${data.reason}" }
-                    return Result.failure(workDataOf("Error" to "Aborting calculation thread (trigger): ${data.reason}"))
+                rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.IOB_COB_OREF, 100 - (100.0 * i / bucketedData.size).toInt(), cause))
+                if (!coroutineContext.isActive) {
+                    aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (trigger): $reason" }
+                    throw CancellationException("Aborting calculation thread (trigger): $reason")
                 }
                 // check if data already exists
                 var bgTime = bucketedData[i].timestamp
@@ -107,10 +89,10 @@ class IobCobOrefWorker @Inject internal constructor(
                 }
                 val profile = profileFunction.getProfile(bgTime)
                 if (profile == null) {
-                    aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (no profile): ${data.reason}" }
+                    aapsLogger.debug(LTag.AUTOSENS) { "Aborting calculation thread (no profile): $reason" }
                     continue  // profile not set yet
                 }
-                aapsLogger.debug(LTag.AUTOSENS) { "Processing calculation thread: ${data.reason} ($i/${bucketedData.size})" }
+                aapsLogger.debug(LTag.AUTOSENS) { "Processing calculation thread: $reason ($i/${bucketedData.size})" }
                 val autosensData = instantiator.provideAutosensDataObject()
                 autosensData.time = bgTime
                 if (previous != null) autosensData.activeCarbsList = previous.cloneCarbsList() else autosensData.activeCarbsList = ArrayList()
@@ -127,7 +109,7 @@ class IobCobOrefWorker @Inject internal constructor(
                 delta = bg - bucketedData[i + 1].recalculated
                 avgDelta = (bg - bucketedData[i + 3].recalculated) / 3
                 val sens = profile.getIsfMgdlForCarbs(bgTime, "IobCobOrefWorker", config, processedDeviceStatusData)
-                val iob = data.iobCobCalculator.calculateFromTreatmentsAndTemps(bgTime, profile)
+                val iob = iobCobCalculator.calculateFromTreatmentsAndTemps(bgTime, profile)
                 val bgi = -iob.activity * sens * 5
                 val deviation = delta - bgi
                 val avgDeviation = ((avgDelta - bgi) * 1000).roundToLong() / 1000.0
@@ -151,7 +133,7 @@ class IobCobOrefWorker @Inject internal constructor(
                             // if (ad == null) {
                             //     aapsLogger.debug(LTag.AUTOSENS, autosensDataTable.toString())
                             //     aapsLogger.debug(LTag.AUTOSENS, bucketedData.toString())
-                            //     //aapsLogger.debug(LTag.AUTOSENS, data.iobCobCalculatorPlugin.getBgReadingsDataTable().toString())
+                            //     //aapsLogger.debug(LTag.AUTOSENS, iobCobCalculatorPlugin.getBgReadingsDataTable().toString())
                             //     val notification = Notification(Notification.SEND_LOGFILES, rh.gs(R.string.send_logfiles), Notification.LOW)
                             //     rxBus.send(EventNewNotification(notification))
                             //     sp.putBoolean("log_AUTOSENS", true)
@@ -174,7 +156,7 @@ class IobCobOrefWorker @Inject internal constructor(
                         //     fabricPrivacy.logException(e)
                         //     aapsLogger.debug(autosensDataTable.toString())
                         //     aapsLogger.debug(bucketedData.toString())
-                        //     //aapsLogger.debug(data.iobCobCalculatorPlugin.getBgReadingsDataTable().toString())
+                        //     //aapsLogger.debug(iobCobCalculatorPlugin.getBgReadingsDataTable().toString())
                         //     val notification = Notification(Notification.SEND_LOGFILES, rh.gs(R.string.send_logfiles), Notification.LOW)
                         //     rxBus.send(EventNewNotification(notification))
                         //     sp.putBoolean("log_AUTOSENS", true)
@@ -264,16 +246,15 @@ class IobCobOrefWorker @Inject internal constructor(
                 autosensData.autosensResult = sensitivity
                 aapsLogger.debug(LTag.AUTOSENS, autosensData.toString())
             }
-            data.iobCobCalculator.ads = ads
+            iobCobCalculator.ads = ads
             Thread {
                 SystemClock.sleep(1000)
-                rxBus.send(EventAutosensCalculationFinished(data.cause))
+                rxBus.send(EventAutosensCalculationFinished(cause))
             }.start()
         } finally {
-            rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.IOB_COB_OREF, 100, data.cause))
-            aapsLogger.debug(LTag.AUTOSENS) { "AUTOSENSDATA thread ended: ${data.reason}" }
+            rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.IOB_COB_OREF, 100, cause))
+            aapsLogger.debug(LTag.AUTOSENS) { "AUTOSENSDATA thread ended: $reason" }
             profiler.log(LTag.AUTOSENS, "IobCobThread", start)
         }
-        return Result.success()
     }
 }
\ No newline at end of file
@@ -0,0 +1,171 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.model.EB
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.utils.MidnightUtils
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mock
+import org.mockito.Mockito.`when`
+import kotlin.random.Random
+
+class BasalChangePointsTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var profile1: Profile
+    @Mock lateinit var profile2: Profile
+
+    private lateinit var sut: BasalChangePoints
+    private var epss: List<EPS> = emptyList()
+    private var tbs: List<TB> = emptyList()
+    private var ebs: List<EB> = emptyList()
+
+    // the same as overview: whole hour + 100 sec
+    private val endTime = now - now % T.hours(1).msecs() + T.secs(100).msecs()
+
+    /**
+     * Basal data of one sample as produced by IobCobCalculator.getBasalData
+     */
+    private data class Sample(val hasProfile: Boolean, val basal: Double, val isTempBasalRunning: Boolean, val tempBasalAbsolute: Double)
+
+    @BeforeEach
+    fun prepare() {
+        sut = BasalChangePoints(persistenceLayer, profileFunction)
+        // hourly and half hourly basal blocks
+        `when`(profile1.getBasal(anyLong())).thenAnswer { 0.5 + MidnightUtils.secondsFromMidnight(it.getArgument(0)) / 3600 % 3 * 0.25 }
+        `when`(profile2.getBasal(anyLong())).thenAnswer { 0.3 + MidnightUtils.secondsFromMidnight(it.getArgument(0)) / 1800 % 4 * 0.1 }
+        `when`(profileFunction.getProfile(anyLong())).thenAnswer { invocation ->
+            val time = invocation.getArgument<Long>(0)
+            val index = epss.indexOfLast { it.timestamp <= time }
+            when {
+                index < 0      -> null
+                index % 2 == 0 -> profile1
+                else           -> profile2
+            }
+        }
+        `when`(persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(anyLong(), anyLong(), anyBoolean())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            epss.filter { it.timestamp in from..to }
+        }
+        `when`(persistenceLayer.getTemporaryBasalsActiveBetweenTimeAndTime(anyLong(), anyLong())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            tbs.filter { it.timestamp <= to && it.timestamp + it.duration > from }.sortedByDescending { it.timestamp }
+        }
+        `when`(persistenceLayer.getExtendedBolusesActiveBetweenTimeAndTime(anyLong(), anyLong())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            ebs.filter { it.timestamp <= to && it.timestamp + it.duration > from }.sortedByDescending { it.timestamp }
+        }
+    }
+
+    @Test
+    fun emptyWindow() {
+        assertThat(sut.sampleTimes(endTime, endTime)).isEmpty()
+    }
+
+    @Test
+    fun firstSampleOnlyWithoutChanges() {
+        assertThat(sut.sampleTimes(endTime - T.hours(6).msecs(), endTime).toList()).containsExactly(endTime - T.hours(6).msecs())
+    }
+
+    @Test
+    fun skippedSamplesRepeatPreviousValue() {
+        for (hours in listOf(6L, 12L, 24L)) {
+            val fromTime = endTime - T.hours(hours).msecs()
+            generateData(fromTime, hours)
+            val sampleTimes = sut.sampleTimes(fromTime, endTime)
+
+            var evaluated = 0
+            var last: Sample? = null
+            var time = fromTime
+            while (time < endTime) {
+                val expected = sample(time)
+                if (evaluated < sampleTimes.size && sampleTimes[evaluated] == time) {
+                    last = expected
+                    evaluated++
+                } else assertThat(expected).isEqualTo(last)
+                time += BasalChangePoints.STEP
+            }
+            // all returned samples are on the grid
+            assertThat(evaluated).isEqualTo(sampleTimes.size)
+            assertThat(evaluated).isLessThan((T.hours(hours).mins()).toInt())
+        }
+    }
+
+    @Test
+    fun windowsMatchPerMinute() {
+        for (hours in listOf(6L, 12L, 24L)) {
+            val fromTime = endTime - T.hours(hours).msecs()
+            generateData(fromTime, hours)
+            assertThat(changePoints(fromTime)).isEqualTo(perMinute(fromTime))
+        }
+    }
+
+    /**
+     * Equivalent of IobCobCalculatorPlugin.getBasalData with extended bolus converted to absolute rate
+     */
+    private fun sample(time: Long): Sample? {
+        val profile = profileFunction.getProfile(time) ?: return null
+        val rounded = if (time % 60000 == 0L) time else (time / 60000 + 1) * 60000
+        val basal = profile.getBasal(rounded)
+        val tb = tbs.filter { it.timestamp <= rounded && it.timestamp + it.duration > rounded }.maxByOrNull { it.timestamp }
+        if (tb != null) return Sample(true, basal, true, if (tb.isAbsolute) tb.rate else basal * tb.rate / 100)
+        val eb = ebs.filter { it.timestamp <= rounded && it.timestamp + it.duration > rounded }.maxByOrNull { it.timestamp }
+        if (eb != null) return Sample(true, basal, true, basal + eb.amount / T.msecs(eb.duration).mins() * 60)
+        return Sample(true, basal, false, basal)
+    }
+
+    /**
+     * Graph points (time of change and new value) produced by previous 1-minute walk
+     */
+    private fun perMinute(fromTime: Long): List<Pair<Long, Sample>> {
+        val changes = mutableListOf<Pair<Long, Sample>>()
+        var time = fromTime
+        while (time < endTime) {
+            sample(time)?.let { if (changes.lastOrNull()?.second != it) changes.add(time to it) }
+            time += BasalChangePoints.STEP
+        }
+        return changes
+    }
+
+    private fun changePoints(fromTime: Long): List<Pair<Long, Sample>> {
+        val changes = mutableListOf<Pair<Long, Sample>>()
+        for (time in sut.sampleTimes(fromTime, endTime))
+            sample(time)?.let { if (changes.lastOrNull()?.second != it) changes.add(time to it) }
+        return changes
+    }
+
+    /**
+     * Profile switches at odd times, window starting without profile,
+     * temporary basals with gaps, some cancelled by a newer one, extended boluses in gaps
+     */
+    private fun generateData(fromTime: Long, hours: Long) {
+        val random = Random(hours)
+        epss = (0 until hours / 4).map { effectiveProfileSwitch.copy(timestamp = fromTime + T.mins(17).msecs() + T.hours(it * 4).msecs() + it * 1234) }
+        val newTbs = mutableListOf<TB>()
+        val newEbs = mutableListOf<EB>()
+        var time = fromTime - T.hours(1).msecs() + 4321
+        while (time < endTime) {
+            val duration = T.mins(random.nextLong(1, 24) * 5).msecs()
+            newTbs.add(TB(timestamp = time, duration = duration, rate = random.nextInt(0, 200).toDouble(), isAbsolute = false, type = TB.Type.NORMAL))
+            when (random.nextInt(6)) {
+                0    -> newTbs.add(TB(timestamp = time + T.secs(397).msecs(), duration = T.mins(13).msecs(), rate = 0.5, isAbsolute = true, type = TB.Type.NORMAL))
+                1    -> newEbs.add(EB(timestamp = time + duration + T.secs(31).msecs(), duration = T.mins(30).msecs(), amount = 1.0))
+                else -> Unit
+            }
+            time += duration + T.mins(random.nextLong(0, 6) * 7).msecs()
+        }
+        tbs = newTbs
+        ebs = newEbs
+    }
+}
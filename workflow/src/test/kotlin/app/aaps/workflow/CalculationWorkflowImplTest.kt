@@ -0,0 +1,134 @@
+package app.aaps.workflow
+
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import dagger.Lazy
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import kotlin.coroutines.coroutineContext
+
+class CalculationWorkflowImplTest : TestBase() {
+
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var fabricPrivacy: FabricPrivacy
+    @Mock lateinit var pipeline: CalculationPipeline
+
+    private lateinit var sut: CalculationWorkflowImpl
+    private val log = mutableListOf<String>()
+
+    @BeforeEach
+    fun prepare() {
+        sut = CalculationWorkflowImpl(aapsLogger, dateUtil, fabricPrivacy, Lazy { pipeline })
+        log.clear()
+    }
+
+    @Test
+    fun replaceCancelsRunningAndStartsAfterItsEnd() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) { calculate("A") }
+        runCurrent()
+        sut.enqueue(JOB, replace = true) { calculate("B") }
+        advanceUntilIdle()
+        assertThat(log).containsExactly("A start", "A cleanup", "B start", "B end", "B cleanup").inOrder()
+    }
+
+    @Test
+    fun appendRunsAfterRunning() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) { calculate("A") }
+        runCurrent()
+        sut.enqueue(JOB, replace = false) { calculate("B") }
+        advanceUntilIdle()
+        assertThat(log).containsExactly("A start", "A end", "A cleanup", "B start", "B end", "B cleanup").inOrder()
+    }
+
+    @Test
+    fun otherJobIsNotAffected() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) { calculate("A") }
+        sut.enqueue(OTHER_JOB, replace = true) { calculate("B") }
+        runCurrent()
+        // both started without waiting for each other
+        assertThat(log).containsExactly("A start", "B start")
+        advanceUntilIdle()
+        assertThat(log).containsAtLeast("A end", "B end")
+    }
+
+    @Test
+    fun stopCancelsWithoutWaiting() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) { calculate("A") }
+        runCurrent()
+        // nothing runs on test dispatcher until advanced, blocking call would never return
+        sut.stopCalculation(JOB, "test")
+        assertThat(log).containsExactly("A start")
+        advanceUntilIdle()
+        assertThat(log).containsExactly("A start", "A cleanup").inOrder()
+    }
+
+    @Test
+    fun stopOfAppendedRunStopsRunningOne() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) { calculate("A") }
+        runCurrent()
+        sut.enqueue(JOB, replace = false) { calculate("B") }
+        sut.stopCalculation(JOB, "test")
+        advanceUntilIdle()
+        assertThat(log).containsExactly("A start", "A cleanup").inOrder()
+    }
+
+    @Test
+    fun stopFromInsidePipeline() = runTest {
+        useTestScope()
+        sut.enqueue(JOB, replace = true) {
+            log.add("A start")
+            sut.stopCalculation(JOB, "pipeline")
+            coroutineContext.ensureActive()
+            log.add("A end")
+        }
+        advanceUntilIdle()
+        sut.enqueue(JOB, replace = false) { calculate("B") }
+        advanceUntilIdle()
+        assertThat(log).containsExactly("A start", "B start", "B end", "B cleanup").inOrder()
+    }
+
+    private fun TestScope.useTestScope() {
+        sut.scope = CoroutineScope(SupervisorJob() + StandardTestDispatcher(testScheduler))
+    }
+
+    /**
+     * Calculation taking 1 s with cleanup finished even when cancelled
+     */
+    private suspend fun calculate(name: String) {
+        log.add("$name start")
+        try {
+            delay(1000)
+            log.add("$name end")
+        } finally {
+            withContext(NonCancellable) {
+                delay(100)
+                log.add("$name cleanup")
+            }
+        }
+    }
+
+    companion object {
+
+        private const val JOB = "job"
+        private const val OTHER_JOB = "other"
+    }
+}
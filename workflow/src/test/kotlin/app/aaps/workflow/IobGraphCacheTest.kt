@@ -0,0 +1,122 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.rx.events.EventConfigBuilderChange
+import app.aaps.core.interfaces.rx.events.EventNewHistoryData
+import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import kotlin.math.exp
+
+class IobGraphCacheTest : TestBase() {
+
+    @Mock lateinit var fabricPrivacy: FabricPrivacy
+
+    private lateinit var sut: IobGraphCache
+    private val boluses = mutableListOf<Pair<Long, Double>>()
+    private var calculations = 0
+
+    private val start = 1656358822000L
+    private val step = T.mins(5).msecs()
+
+    @BeforeEach
+    fun prepare() {
+        sut = IobGraphCache(rxBus, fabricPrivacy)
+        boluses.clear()
+        for (i in 0 until 40) boluses.add(start - T.hours(30).msecs() + i * T.mins(47).msecs() to 1.0 + i % 3)
+        calculations = 0
+    }
+
+    @Test
+    fun futurePointsAreNotStored() {
+        val now = start
+        val run = sut.begin(now)
+        run.point(now - step) { calculate(now - step) }
+        run.point(now + step) { calculate(now + step) }
+        sut.commit(run, now - T.hours(24).msecs())
+        assertThat(sut.size).isEqualTo(1)
+    }
+
+    @Test
+    fun invalidatedRunIsNotStored() {
+        val run = sut.begin(start)
+        run.point(start - step) { calculate(start - step) }
+        rxBus.send(EventNewHistoryData(start - T.hours(1).msecs(), false))
+        sut.commit(run, start - T.hours(24).msecs())
+        assertThat(sut.size).isEqualTo(0)
+    }
+
+    @Test
+    fun historyChangeDropsNewerPoints() {
+        graph(start)
+        val stored = sut.size
+        rxBus.send(EventNewHistoryData(start - T.hours(2).msecs(), false))
+        // 2 hours + 5 min back
+        assertThat(sut.size).isEqualTo(stored - 25)
+        rxBus.send(EventConfigBuilderChange())
+        assertThat(sut.size).isEqualTo(0)
+    }
+
+    @Test
+    fun slidingWindowMatchesFullCalculation() {
+        var cachedCalculations = 0
+        var fullCalculations = 0
+        val readings = 48
+        for (reading in 0 until readings) {
+            val now = start + reading * step
+            // late bolus from NS in the middle of the test
+            if (reading == readings / 2) {
+                boluses.add(now - T.hours(2).msecs() to 2.0)
+                rxBus.send(EventNewHistoryData(now - T.hours(2).msecs(), false))
+            }
+            calculations = 0
+            val full = graph(now, cache = false)
+            fullCalculations += calculations
+
+            calculations = 0
+            val cached = graph(now, cache = true)
+            cachedCalculations += calculations
+
+            assertThat(cached).isEqualTo(full)
+        }
+        // first run and late bolus recalculate window, others only new and future points
+        assertThat(cachedCalculations).isLessThan(fullCalculations / 4)
+    }
+
+    /**
+     * IOB and absolute IOB series of overview graph as prepared by [PrepareIobAutosensGraphDataStage]
+     */
+    private fun graph(now: Long, cache: Boolean = true): List<Triple<Long, Double, Double>> {
+        // the same as overview: 24 hours to whole hour + 100 sec, 3 hours of predictions
+        val toTime = now - now % T.hours(1).msecs() + T.hours(1).msecs() + T.secs(100).msecs()
+        val fromTime = toTime - T.hours(24).msecs()
+        val endTime = toTime + T.hours(3).msecs()
+        val run = sut.begin(now)
+        val series = mutableListOf<Triple<Long, Double, Double>>()
+        var time = fromTime
+        while (time <= endTime) {
+            val point = if (cache) run.point(time) { calculate(time) } else calculate(time)
+            series.add(Triple(time, point.iob.iob, point.absIob))
+            time += step
+        }
+        if (cache) sut.commit(run, fromTime)
+        return series
+    }
+
+    /**
+     * Expensive IOB calculation over whole history
+     */
+    private fun calculate(time: Long): IobGraphCache.Point {
+        calculations++
+        val iob = IobTotal(time)
+        for ((timestamp, amount) in boluses)
+            if (timestamp <= time) iob.iob += amount * exp(-(time - timestamp).toDouble() / T.hours(1).msecs())
+        var baseBasal = 0.0
+        for (i in 0 until 60) baseBasal += exp(-i / 12.0) * 0.1
+        return IobGraphCache.Point(iob, iob.iob + baseBasal)
+    }
+}